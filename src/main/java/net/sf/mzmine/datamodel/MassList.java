@@ -20,6 +20,10 @@ package net.sf.mzmine.datamodel;
 
 import javax.annotation.Nonnull;
 
+import com.google.common.collect.Range;
+
+import net.sf.mzmine.util.scans.ScanUtils;
+
 /**
  * This class represent detected masses (ions) in one mass spectrum. Each ion is represented by a
  * DataPoint
@@ -35,4 +39,43 @@ public interface MassList {
   @Nonnull
   public DataPoint[] getDataPoints();
 
+  /**
+   * Returns the detected masses in given m/z range, sorted in m/z order. Implementations which store
+   * the masses on disk may read only the masses inside of the range.
+   *
+   * @param mzRange m/z range
+   * @return Detected masses within given m/z range
+   */
+  @Nonnull
+  public default DataPoint[] getDataPointsByMass(@Nonnull Range<Double> mzRange) {
+    DataPoint dataPoints[] = getDataPoints();
+    return ScanUtils.selectDataPointsByMass(dataPoints, ScanUtils.isSortedByMZ(dataPoints),
+        mzRange);
+  }
+
+  /**
+   * @return Number of detected masses in this mass list
+   */
+  public default int getNumberOfDataPoints() {
+    return getDataPoints().length;
+  }
+
+  /**
+   * Copies the m/z and intensity values of the detected masses into the given arrays, in the order
+   * of getDataPoints(). Both arrays must have at least getNumberOfDataPoints() elements. Unlike
+   * getDataPoints(), implementations do not need to create a DataPoint object for each mass.
+   *
+   * @param mzValues array to be filled with m/z values
+   * @param intensityValues array to be filled with intensity values
+   * @return Number of data points copied into the arrays
+   */
+  public default int getDataPoints(@Nonnull double mzValues[], @Nonnull double intensityValues[]) {
+    DataPoint dataPoints[] = getDataPoints();
+    for (int i = 0; i < dataPoints.length; i++) {
+      mzValues[i] = dataPoints[i].getMZ();
+      intensityValues[i] = dataPoints[i].getIntensity();
+    }
+    return dataPoints.length;
+  }
+
 }
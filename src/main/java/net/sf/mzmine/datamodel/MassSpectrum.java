@@ -73,6 +73,27 @@ public interface MassSpectrum {
   @Nonnull
   public DataPoint[] getDataPoints();
 
+  /**
+   * Copies the m/z and intensity values of the data points of this spectrum into the given arrays,
+   * in the order in which they are stored, which is the order of getDataPoints(). Both arrays must
+   * have at least getNumberOfDataPoints() elements.
+   *
+   * Unlike getDataPoints(), implementations do not need to create a DataPoint object for each data
+   * point, so modules processing many spectra should prefer this method and reuse the arrays.
+   *
+   * @param mzValues array to be filled with m/z values
+   * @param intensityValues array to be filled with intensity values
+   * @return Number of data points copied into the arrays
+   */
+  public default int getDataPoints(@Nonnull double mzValues[], @Nonnull double intensityValues[]) {
+    DataPoint dataPoints[] = getDataPoints();
+    for (int i = 0; i < dataPoints.length; i++) {
+      mzValues[i] = dataPoints[i].getMZ();
+      intensityValues[i] = dataPoints[i].getIntensity();
+    }
+    return dataPoints.length;
+  }
+
   /**
    * Returns data points in given m/z range, sorted in m/z order.
    *
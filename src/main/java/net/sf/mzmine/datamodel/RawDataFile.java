@@ -86,6 +86,29 @@ public interface RawDataFile {
    */
   public @Nullable Scan getScan(int scan);
 
+  /**
+   * Returns sorted array of the numbers of the MS/MS scans in given MS level, with precursor m/z
+   * within given m/z range and retention time within given retention time range. The scans are
+   * found without being loaded.
+   * 
+   * @param msLevel MS level, or 0 for all MS levels from MS2 up
+   * @param precursorMZRange Precursor m/z range
+   * @param rtRange Retention time range
+   * @return Sorted array of scan numbers, never returns null
+   */
+  @Nonnull
+  public int[] getFragmentScanNumbers(int msLevel, @Nonnull Range<Double> precursorMZRange,
+      @Nonnull Range<Double> rtRange);
+
+  /**
+   * Returns the number of the MS/MS scan with the highest base peak intensity, among the scans
+   * returned by getFragmentScanNumbers(msLevel, precursorMZRange, rtRange)
+   * 
+   * @return Scan number, or -1 if there is no such scan with data points
+   */
+  public int getBestFragmentScanNumber(int msLevel, @Nonnull Range<Double> precursorMZRange,
+      @Nonnull Range<Double> rtRange);
+
   @Nonnull
   public Range<Double> getDataMZRange();
 
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.datamodel.impl;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Range;
+
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.util.ArrayUtils;
+
+/**
+ * Immutable index of the rows of a peak list by their average m/z and average RT. The rows are kept
+ * in two arrays, one sorted by m/z and one sorted by RT, so the rows inside of an m/z or RT range
+ * are found by a binary search. The index is a snapshot of the average values at the time it was
+ * built, so it can only be used as long as the rows are not changed (see isValid()).
+ */
+class PeakListRowIndex {
+
+  private final PeakListRow rows[];
+  private final double mzValues[], rtValues[];
+
+  // Average values sorted in ascending order and the positions of the corresponding rows
+  private final double sortedMzValues[], sortedRtValues[];
+  private final int mzSortedPositions[], rtSortedPositions[];
+
+  private final long rowsModificationCount;
+
+  /**
+   * Builds the index of given rows, or returns null if some of the rows cannot be indexed. The
+   * modification count of the rows must be read before the rows, so any change during the build
+   * invalidates the index.
+   */
+  static PeakListRowIndex build(List<PeakListRow> peakListRows, long rowsModificationCount) {
+    for (PeakListRow row : peakListRows) {
+      // We can only detect changes of the average values of SimplePeakListRow
+      if (!(row instanceof SimplePeakListRow))
+        return null;
+    }
+    return new PeakListRowIndex(peakListRows, rowsModificationCount);
+  }
+
+  private PeakListRowIndex(List<PeakListRow> peakListRows, long rowsModificationCount) {
+
+    this.rowsModificationCount = rowsModificationCount;
+
+    rows = peakListRows.toArray(new PeakListRow[0]);
+    mzValues = new double[rows.length];
+    rtValues = new double[rows.length];
+    for (int i = 0; i < rows.length; i++) {
+      mzValues[i] = rows[i].getAverageMZ();
+      rtValues[i] = rows[i].getAverageRT();
+    }
+
+    sortedMzValues = mzValues.clone();
+    mzSortedPositions = sortPositions(sortedMzValues);
+    sortedRtValues = rtValues.clone();
+    rtSortedPositions = sortPositions(sortedRtValues);
+
+  }
+
+  /**
+   * Returns true if the average values of the rows did not change since this index was built
+   * 
+   * @param currentModificationCount current modification count of the rows of the peak list
+   */
+  boolean isValid(long currentModificationCount) {
+    return rowsModificationCount == currentModificationCount;
+  }
+
+  /**
+   * Returns the rows inside given ranges in the order of the peak list, same as testing
+   * rtRange.contains(row.getAverageRT()) && mzRange.contains(row.getAverageMZ()) for each row
+   */
+  PeakListRow[] getRowsInsideScanAndMZRange(Range<Double> rtRange, Range<Double> mzRange) {
+
+    // Search the dimension which is limited from both sides, if possible
+    final boolean searchMz = mzRange.hasLowerBound() && mzRange.hasUpperBound();
+    final boolean searchRt = rtRange.hasLowerBound() && rtRange.hasUpperBound();
+
+    final double sortedValues[] = (searchMz || !searchRt) ? sortedMzValues : sortedRtValues;
+    final int sortedPositions[] = (searchMz || !searchRt) ? mzSortedPositions : rtSortedPositions;
+    final Range<Double> searchRange = (searchMz || !searchRt) ? mzRange : rtRange;
+
+    int insidePositions[] = new int[16];
+    int numOfInside = 0;
+    for (int i = lowerBound(sortedValues, searchRange); i < rows.length
+        && !isAboveUpperBound(sortedValues[i], searchRange); i++) {
+      final int position = sortedPositions[i];
+      if (rtRange.contains(rtValues[position]) && mzRange.contains(mzValues[position])) {
+        if (numOfInside == insidePositions.length)
+          insidePositions = Arrays.copyOf(insidePositions, numOfInside * 2);
+        insidePositions[numOfInside++] = position;
+      }
+    }
+
+    // Restore the order of the peak list
+    Arrays.sort(insidePositions, 0, numOfInside);
+    PeakListRow rowsInside[] = new PeakListRow[numOfInside];
+    for (int i = 0; i < numOfInside; i++)
+      rowsInside[i] = rows[insidePositions[i]];
+    return rowsInside;
+
+  }
+
+  /**
+   * Sorts given values in place and returns the original positions of the sorted values
+   */
+  private static int[] sortPositions(double values[]) {
+    int positions[] = new int[values.length];
+    for (int i = 0; i < positions.length; i++)
+      positions[i] = i;
+    ArrayUtils.sortIndexes(values, positions, values.length);
+    return positions;
+  }
+
+  /**
+   * Returns the index of the first sorted value, which is not below the lower bound of given range.
+   * Values are compared by Double.compare(), the same way Range<Double> compares them.
+   */
+  private static int lowerBound(double sortedValues[], Range<Double> range) {
+    if (!range.hasLowerBound())
+      return 0;
+    final double lower = range.lowerEndpoint();
+    int low = 0, high = sortedValues.length;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (Double.compare(sortedValues[middle], lower) < 0)
+        low = middle + 1;
+      else
+        high = middle;
+    }
+    return low;
+  }
+
+  private static boolean isAboveUpperBound(double value, Range<Double> range) {
+    return range.hasUpperBound() && (Double.compare(value, range.upperEndpoint()) > 0);
+  }
+
+}
@@ -25,6 +25,7 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
 import com.google.common.collect.Range;
 import net.sf.mzmine.datamodel.Feature;
@@ -48,6 +49,15 @@ public class SimplePeakList implements PeakList {
   private String dateCreated;
   private Range<Double> mzRange, rtRange;
 
+  // Index of the rows by m/z and RT for the range queries, discarded when the rows change
+  private volatile PeakListRowIndex rowIndex;
+
+  // Incremented whenever the average m/z or RT of one of the rows changes
+  private final AtomicLong rowsModificationCount = new AtomicLong();
+
+  // Modification count of the rows at the last range query, -1 after adding or removing a row
+  private volatile long lastQueryModificationCount = -1;
+
   public static DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
 
   public SimplePeakList(String name, RawDataFile dataFile) {
@@ -166,6 +176,11 @@ public class SimplePeakList implements PeakList {
 
   @Override
   public PeakListRow[] getRowsInsideScanAndMZRange(Range<Double> rtRange, Range<Double> mzRange) {
+
+    PeakListRowIndex index = getRowIndex();
+    if (index != null)
+      return index.getRowsInsideScanAndMZRange(rtRange, mzRange);
+
     Vector<PeakListRow> rowsInside = new Vector<PeakListRow>();
 
     for (PeakListRow row : peakListRows) {
@@ -176,6 +191,34 @@ public class SimplePeakList implements PeakList {
     return rowsInside.toArray(new PeakListRow[0]);
   }
 
+  /**
+   * Returns the index of the rows or null, if the rows should be searched one by one. The index is
+   * only built when the rows did not change since the previous query, so alternating queries and
+   * changes of the rows do not rebuild the index each time.
+   */
+  PeakListRowIndex getRowIndex() {
+    PeakListRowIndex index = rowIndex;
+    final long modificationCount = rowsModificationCount.get();
+    if ((index != null) && index.isValid(modificationCount))
+      return index;
+
+    if (modificationCount != lastQueryModificationCount) {
+      lastQueryModificationCount = modificationCount;
+      return null;
+    }
+
+    index = PeakListRowIndex.build(peakListRows, modificationCount);
+    rowIndex = index;
+    return index;
+  }
+
+  /**
+   * Called by the rows of this peak list when their average m/z or RT changes
+   */
+  void rowAverageValuesChanged() {
+    rowsModificationCount.incrementAndGet();
+  }
+
   @Override
   public void addRow(PeakListRow row) {
     List<RawDataFile> myFiles = Arrays.asList(this.getRawDataFiles());
@@ -185,6 +228,10 @@ public class SimplePeakList implements PeakList {
     }
 
     peakListRows.add(row);
+    if (row instanceof SimplePeakListRow)
+      ((SimplePeakListRow) row).addPeakList(this);
+    rowIndex = null;
+    lastQueryModificationCount = -1;
     if (row.getDataPointMaxIntensity() > maxDataPointIntensity) {
       maxDataPointIntensity = row.getDataPointMaxIntensity();
     }
@@ -229,9 +276,10 @@ public class SimplePeakList implements PeakList {
       Range<Double> mzRange) {
     Vector<Feature> peaksInside = new Vector<Feature>();
 
-    Feature[] peaks = getPeaks(file);
-    for (Feature p : peaks) {
-      if (rtRange.contains(p.getRT()) && mzRange.contains(p.getMZ()))
+    // Features may change their m/z and RT, so they are not indexed
+    for (PeakListRow row : peakListRows) {
+      Feature p = row.getPeak(file);
+      if ((p != null) && rtRange.contains(p.getRT()) && mzRange.contains(p.getMZ()))
         peaksInside.add(p);
     }
 
@@ -243,7 +291,10 @@ public class SimplePeakList implements PeakList {
    */
   @Override
   public void removeRow(PeakListRow row) {
-    peakListRows.remove(row);
+    if (peakListRows.remove(row) && (row instanceof SimplePeakListRow))
+      ((SimplePeakListRow) row).removePeakList(this);
+    rowIndex = null;
+    lastQueryModificationCount = -1;
 
     // We have to update the project tree model
     MZmineProjectImpl project =
@@ -18,6 +18,7 @@
 
 package net.sf.mzmine.datamodel.impl;
 
+import java.lang.ref.WeakReference;
 import java.text.Format;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -26,6 +27,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import javax.annotation.Nonnull;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.IsotopePattern;
@@ -61,6 +63,13 @@ public class SimplePeakListRow implements PeakListRow {
   private double averageRT, averageMZ, averageHeight, averageArea;
   private int rowCharge;
 
+  /**
+   * Peak lists containing this row, notified whenever the average m/z or RT changes, so their
+   * indexes (see PeakListRowIndex) know when they have to be rebuilt. The references are weak, so a
+   * row shared by several peak lists does not keep a removed peak list in memory.
+   */
+  private final List<WeakReference<SimplePeakList>> peakLists = new CopyOnWriteArrayList<>();
+
   public SimplePeakListRow(int myID) {
     this.myID = myID;
     peaks = new ConcurrentHashMap<RawDataFile, Feature>();
@@ -163,6 +172,7 @@ public class SimplePeakListRow implements PeakListRow {
     }
     averageRT = rtSum / peaks.size();
     averageMZ = mzSum / peaks.size();
+    averageValuesChanged();
     averageHeight = heightSum / peaks.size();
     averageArea = areaSum / peaks.size();
     if (chargeArr.size() < 2) {
@@ -218,6 +228,7 @@ public class SimplePeakListRow implements PeakListRow {
   @Override
   public void setAverageMZ(double mz) {
     this.averageMZ = mz;
+    averageValuesChanged();
   }
 
   /**
@@ -226,6 +237,36 @@ public class SimplePeakListRow implements PeakListRow {
   @Override
   public void setAverageRT(double rt) {
     this.averageRT = rt;
+    averageValuesChanged();
+  }
+
+  /**
+   * Called by SimplePeakList when this row is added to it
+   */
+  void addPeakList(SimplePeakList peakList) {
+    peakLists.add(new WeakReference<>(peakList));
+  }
+
+  /**
+   * Called by SimplePeakList when this row is removed from it
+   */
+  void removePeakList(SimplePeakList peakList) {
+    for (WeakReference<SimplePeakList> reference : peakLists) {
+      if (reference.get() == peakList) {
+        peakLists.remove(reference);
+        break;
+      }
+    }
+    // Also forget the peak lists which are no longer used
+    peakLists.removeIf(reference -> reference.get() == null);
+  }
+
+  private void averageValuesChanged() {
+    for (WeakReference<SimplePeakList> reference : peakLists) {
+      SimplePeakList peakList = reference.get();
+      if (peakList != null)
+        peakList.rowAverageValuesChanged();
+    }
   }
 
   /**
@@ -37,6 +37,7 @@ public class SimpleScan implements Scan {
   private int msLevel;
   private int fragmentScans[];
   private DataPoint dataPoints[];
+  private boolean sortedByMZ;
   private double precursorMZ;
   private int precursorCharge;
   private double retentionTime;
@@ -94,24 +95,7 @@ public class SimpleScan implements Scan {
    * @return Returns scan datapoints within a given range
    */
   public @Nonnull DataPoint[] getDataPointsByMass(@Nonnull Range<Double> mzRange) {
-
-    int startIndex, endIndex;
-    for (startIndex = 0; startIndex < dataPoints.length; startIndex++) {
-      if (dataPoints[startIndex].getMZ() >= mzRange.lowerEndpoint())
-        break;
-    }
-
-    for (endIndex = startIndex; endIndex < dataPoints.length; endIndex++) {
-      if (dataPoints[endIndex].getMZ() > mzRange.upperEndpoint())
-        break;
-    }
-
-    DataPoint pointsWithinRange[] = new DataPoint[endIndex - startIndex];
-
-    // Copy the relevant points
-    System.arraycopy(dataPoints, startIndex, pointsWithinRange, 0, endIndex - startIndex);
-
-    return pointsWithinRange;
+    return ScanUtils.selectDataPointsByMass(dataPoints, sortedByMZ, mzRange);
   }
 
   /**
@@ -138,6 +122,7 @@ public class SimpleScan implements Scan {
   public void setDataPoints(DataPoint[] dataPoints) {
 
     this.dataPoints = dataPoints;
+    sortedByMZ = ScanUtils.isSortedByMZ(dataPoints);
     mzRange = Range.singleton(0.0);
     basePeak = null;
     totalIonCurrent = 0;
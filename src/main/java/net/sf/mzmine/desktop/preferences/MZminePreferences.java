@@ -27,9 +27,11 @@ import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
 import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
 import net.sf.mzmine.parameters.parametertypes.ComboParameter;
+import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
 import net.sf.mzmine.parameters.parametertypes.WindowSettingsParameter;
 import net.sf.mzmine.parameters.parametertypes.filenames.FileNameParameter;
 import net.sf.mzmine.parameters.parametertypes.submodules.OptionalModuleParameter;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
 import net.sf.mzmine.util.ColorPalettes;
 import net.sf.mzmine.util.ExitCode;
 
@@ -66,11 +68,27 @@ public class MZminePreferences extends SimpleParameterSet {
       new OptionalModuleParameter("Send error e-Mail notifications",
           "Send error e-Mail notifications", new ErrorMailSettings());
 
+  public static final BooleanParameter memoryMappedStorage = new BooleanParameter(
+      "Memory-mapped scan storage",
+      "Read the data points of scans and mass lists from a memory-mapped temporary file. This allows many threads to read the same raw data file at once.",
+      true);
+
+  public static final IntegerParameter dataPointsCacheSize = new IntegerParameter(
+      "Scan cache size (MB)",
+      "Total memory used to keep the data points of recently read scans and mass lists, shared by all open raw data files, so they do not have to be read from the temporary file again. Set to 0 to disable the cache.",
+      256, 0, null);
+
+  public static final BooleanParameter indexedFilesInPlace = new BooleanParameter(
+      "Read indexed mzML/mzXML files in place",
+      "Import only the scan metadata of indexed mzML and mzXML files, and read the data points from the imported file when they are needed, instead of copying them to a temporary file. The imported file must not be moved or modified while it is open in MZmine.",
+      false);
+
   public static final WindowSettingsParameter windowSetttings = new WindowSettingsParameter();
 
   public MZminePreferences() {
     super(new Parameter[] {colorPalettes, mzFormat, rtFormat, intensityFormat, numOfThreads,
-        proxySettings, rExecPath, sendStatistics, windowSetttings, sendErrorEMail});
+        memoryMappedStorage, dataPointsCacheSize, indexedFilesInPlace, proxySettings, rExecPath,
+        sendStatistics, windowSetttings, sendErrorEMail});
   }
 
   @Override
@@ -83,6 +101,9 @@ public class MZminePreferences extends SimpleParameterSet {
       // Update proxy settings
       updateSystemProxySettings();
 
+      // Resize the scan cache
+      RawDataFileImpl.updateDataPointsCacheSize();
+
       // Repaint windows to update number formats
       MZmineCore.getDesktop().getMainWindow().repaint();
     }
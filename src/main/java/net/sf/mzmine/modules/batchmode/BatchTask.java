@@ -37,6 +37,7 @@ import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.taskcontrol.TaskPriority;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.taskcontrol.TaskStatusListener;
 import net.sf.mzmine.util.ExitCode;
 
 /**
@@ -54,6 +55,20 @@ public class BatchTask extends AbstractTask {
   private final List<RawDataFile> createdDataFiles, previousCreatedDataFiles;
   private final List<PeakList> createdPeakLists, previousCreatedPeakLists;
 
+  // Number of status changes of the tasks of the current step (and of this batch)
+  private long statusChanges = 0;
+
+  /**
+   * Wakes up the batch thread waiting for the tasks of the current step, whenever the status of one
+   * of them (or of this batch) changes
+   */
+  private final TaskStatusListener stepStatusListener = (task, newStatus, oldStatus) -> {
+    synchronized (this) {
+      statusChanges++;
+      this.notifyAll();
+    }
+  };
+
   BatchTask(MZmineProject project, ParameterSet parameters) {
     this.project = project;
     this.queue = parameters.getParameter(BatchModeParameters.batchQueue).getValue();
@@ -70,6 +85,9 @@ public class BatchTask extends AbstractTask {
     setStatus(TaskStatus.PROCESSING);
     logger.info("Starting a batch of " + totalSteps + " steps");
 
+    // Canceling the batch wakes up the batch thread waiting for a step
+    addTaskStatusListener(stepStatusListener);
+
     // Listen for new items in the project
     MZmineProjectListener listener = new MZmineProjectListener() {
       @Override
@@ -178,6 +196,18 @@ public class BatchTask extends AbstractTask {
     if (currentStepTasks.isEmpty())
       return;
 
+    // Listen for status changes of the tasks, so we can continue as soon
+    // as they are finished. Tasks which do not support listeners are polled.
+    // The listeners are never removed, because the listener list of
+    // AbstractTask must not be changed while the task may still run.
+    boolean pollTasks = false;
+    for (Task stepTask : currentStepTasks) {
+      if (stepTask instanceof AbstractTask)
+        ((AbstractTask) stepTask).addTaskStatusListener(stepStatusListener);
+      else
+        pollTasks = true;
+    }
+
     boolean allTasksFinished = false;
 
     // Submit the tasks to the task controller for processing
@@ -185,6 +215,13 @@ public class BatchTask extends AbstractTask {
 
     while (!allTasksFinished) {
 
+      // Remember the number of status changes before checking the tasks,
+      // so no change is missed while we check them
+      final long checkedStatusChanges;
+      synchronized (this) {
+        checkedStatusChanges = statusChanges;
+      }
+
       // If we canceled the batch, cancel all running tasks
       if (isCanceled()) {
         for (Task stepTask : currentStepTasks)
@@ -221,11 +258,16 @@ public class BatchTask extends AbstractTask {
 
       }
 
-      // Wait 1s before checking the tasks again
+      // Wait for a status change before checking the tasks again
       if (!allTasksFinished) {
         synchronized (this) {
           try {
-            this.wait(1000);
+            if (pollTasks)
+              this.wait(1000);
+            else {
+              while (statusChanges == checkedStatusChanges)
+                this.wait();
+            }
           } catch (InterruptedException e) {
             // ignore
           }
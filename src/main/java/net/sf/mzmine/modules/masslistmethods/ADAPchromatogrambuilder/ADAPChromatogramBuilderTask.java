@@ -26,7 +26,6 @@ import com.google.common.collect.RangeSet;
 import java.util.Arrays;
 import java.util.logging.Logger;
 
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.MassList;
@@ -193,6 +192,10 @@ public class ADAPChromatogramBuilderTask extends AbstractTask {
     // make a list of all the data points
     List<ExpandedDataPoint> allMzValues = new ArrayList<ExpandedDataPoint>();
 
+    // Buffers for the m/z and intensity values of the mass lists, reused for all scans
+    double mzBuffer[] = new double[0];
+    double intensityBuffer[] = new double[0];
+
     for (Scan scan : scans) {
       if (isCanceled())
         return;
@@ -205,17 +208,16 @@ public class ADAPChromatogramBuilderTask extends AbstractTask {
         return;
       }
 
-      DataPoint mzValues[] = massList.getDataPoints();
-
-      if (mzValues == null) {
-        setStatus(TaskStatus.ERROR);
-        setErrorMessage("Mass list " + massListName + " does not contain m/z values for scan #"
-            + scan.getScanNumber() + " of file " + dataFile);
-        return;
+      final int numOfDataPoints = massList.getNumberOfDataPoints();
+      if (mzBuffer.length < numOfDataPoints) {
+        mzBuffer = new double[numOfDataPoints];
+        intensityBuffer = new double[numOfDataPoints];
       }
+      final int size = massList.getDataPoints(mzBuffer, intensityBuffer);
 
-      for (DataPoint mzPeak : mzValues) {
-        ExpandedDataPoint curDatP = new ExpandedDataPoint(mzPeak, scan.getScanNumber());
+      for (int i = 0; i < size; i++) {
+        ExpandedDataPoint curDatP =
+            new ExpandedDataPoint(mzBuffer[i], intensityBuffer[i], scan.getScanNumber());
         allMzValues.add(curDatP);
         // corespondingScanNum.add(scan.getScanNumber());
       }
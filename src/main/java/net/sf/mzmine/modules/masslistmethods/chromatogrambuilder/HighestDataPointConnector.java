@@ -18,20 +18,25 @@
 
 package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
-import java.util.Set;
-
-import com.google.common.collect.Range;
+import java.util.List;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.util.ArrayUtils;
 import net.sf.mzmine.util.DataPointSorter;
 import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
 
+/**
+ * Connects the m/z peaks of consecutive scans to chromatograms. Each m/z peak is connected to the
+ * building chromatogram with the highest last data point within the m/z tolerance. The candidate
+ * chromatograms of each m/z peak are found by a binary search in the building chromatograms sorted
+ * by the m/z of their last data point, instead of testing all building chromatograms.
+ */
 public class HighestDataPointConnector {
 
   private final MZTolerance mzTolerance;
@@ -39,8 +44,20 @@ public class HighestDataPointConnector {
   private final RawDataFile dataFile;
   private final int allScanNumbers[];
 
-  // Mapping of last data point m/z --> chromatogram
-  private Set<Chromatogram> buildingChromatograms;
+  // We use a list to maintain a reproducible ordering. The position of a chromatogram in this list
+  // (its rank) decides between the chromatograms with the same intensity of the last data point,
+  // and the order of the list decides the order of the resulting peak list rows.
+  private List<Chromatogram> buildingChromatograms;
+
+  // Buffers reused between the scans
+  private double chromMzValues[] = new double[0];
+  private int chromRanks[] = new int[0];
+  private double lastMzValues[] = new double[0], lastIntensityValues[] = new double[0];
+  private boolean connected[] = new boolean[0];
+  private double peakMzValues[] = new double[0];
+  private int peakIndexes[] = new int[0];
+  private int peakPositions[] = new int[0], connectedRanks[] = new int[0];
+  private int candidates[] = new int[16];
 
   public HighestDataPointConnector(RawDataFile dataFile, int allScanNumbers[],
       double minimumTimeSpan, double minimumHeight, MZTolerance mzTolerance) {
@@ -51,73 +68,99 @@ public class HighestDataPointConnector {
     this.dataFile = dataFile;
     this.allScanNumbers = allScanNumbers;
 
-    // We use LinkedHashSet to maintain a reproducible ordering. If we use
-    // plain HashSet, the resulting peak list row IDs will have different
-    // order every time the method is invoked.
-    buildingChromatograms = new LinkedHashSet<Chromatogram>();
+    buildingChromatograms = new ArrayList<Chromatogram>();
 
   }
 
-  public void addScan(int scanNumber, DataPoint mzValues[]) {
+  /**
+   * Connects the m/z peaks of given scan to the building chromatograms. The m/z peaks are given as
+   * the first size elements of the mzValues and intensityValues arrays. Both arrays are sorted in
+   * place by this method.
+   */
+  public void addScan(int scanNumber, double mzValues[], double intensityValues[], int size) {
 
     // Sort m/z peaks by descending intensity
-    Arrays.sort(mzValues,
-        new DataPointSorter(SortingProperty.Intensity, SortingDirection.Descending));
-
-    // Set of already connected chromatograms in each iteration
-    Set<Chromatogram> connectedChromatograms = new LinkedHashSet<Chromatogram>();
+    DataPointSorter.sortDataPoints(mzValues, intensityValues, size, SortingProperty.Intensity,
+        SortingDirection.Descending);
+
+    final int numOfChromatograms = buildingChromatograms.size();
+    ensureCapacity(numOfChromatograms, size);
+
+    // Index the building chromatograms by the m/z of their last data point. The last data points
+    // of the chromatograms connected in this scan change, so those chromatograms are looked up in
+    // the index of this scan's m/z peaks instead.
+    for (int rank = 0; rank < numOfChromatograms; rank++) {
+      DataPoint lastMzPeak = buildingChromatograms.get(rank).getLastMzPeak();
+      lastMzValues[rank] = lastMzPeak.getMZ();
+      lastIntensityValues[rank] = lastMzPeak.getIntensity();
+      connected[rank] = false;
+      chromMzValues[rank] = lastMzValues[rank];
+      chromRanks[rank] = rank;
+    }
+    ArrayUtils.sortIndexes(chromMzValues, chromRanks, numOfChromatograms);
 
-    // TODO: these two nested cycles should be optimized for speed
-    for (DataPoint mzPeak : mzValues) {
+    // Index the m/z peaks of this scan by m/z
+    for (int i = 0; i < size; i++) {
+      peakMzValues[i] = mzValues[i];
+      peakIndexes[i] = i;
+      connectedRanks[i] = -1;
+    }
+    ArrayUtils.sortIndexes(peakMzValues, peakIndexes, size);
+    for (int position = 0; position < size; position++) {
+      peakPositions[peakIndexes[position]] = position;
+    }
 
-      // Search for best chromatogram, which has highest last data point
-      Chromatogram bestChromatogram = null;
+    // List of already connected chromatograms in each iteration
+    List<Chromatogram> connectedChromatograms =
+        new ArrayList<Chromatogram>(numOfChromatograms + size);
 
-      for (Chromatogram testChrom : buildingChromatograms) {
+    for (int i = 0; i < size; i++) {
 
-        DataPoint lastMzPeak = testChrom.getLastMzPeak();
-        Range<Double> toleranceRange = mzTolerance.getToleranceRange(lastMzPeak.getMZ());
-        if (toleranceRange.contains(mzPeak.getMZ())) {
-          if ((bestChromatogram == null) || (testChrom.getLastMzPeak()
-              .getIntensity() > bestChromatogram.getLastMzPeak().getIntensity())) {
-            bestChromatogram = testChrom;
-          }
-        }
+      final double mz = mzValues[i];
 
-      }
+      // Search for best chromatogram, which has highest last data point
+      int bestRank = findBestChromatogram(mz, numOfChromatograms, size);
 
       // If we found best chromatogram, check if it is already connected.
       // In such case, we may discard this mass and continue. If we
       // haven't found a chromatogram, we may create a new one.
-      if (bestChromatogram != null) {
-        if (connectedChromatograms.contains(bestChromatogram)) {
+      Chromatogram bestChromatogram;
+      if (bestRank >= 0) {
+        if (connected[bestRank]) {
           continue;
         }
+        bestChromatogram = buildingChromatograms.get(bestRank);
+        connected[bestRank] = true;
+        lastMzValues[bestRank] = mz;
+        lastIntensityValues[bestRank] = intensityValues[i];
+        connectedRanks[peakPositions[i]] = bestRank;
       } else {
         bestChromatogram = new Chromatogram(dataFile, allScanNumbers);
       }
 
       // Add this mzPeak to the chromatogram
-      bestChromatogram.addMzPeak(scanNumber, mzPeak);
+      bestChromatogram.addMzPeak(scanNumber, new SimpleDataPoint(mz, intensityValues[i]));
 
-      // Move the chromatogram to the set of connected chromatograms
+      // Move the chromatogram to the list of connected chromatograms
       connectedChromatograms.add(bestChromatogram);
 
     }
 
     // Process those chromatograms which were not connected to any m/z peak
-    for (Chromatogram testChrom : buildingChromatograms) {
+    for (int rank = 0; rank < numOfChromatograms; rank++) {
 
       // Skip those which were connected
-      if (connectedChromatograms.contains(testChrom)) {
+      if (connected[rank]) {
         continue;
       }
 
+      Chromatogram testChrom = buildingChromatograms.get(rank);
+
       // Check if we just finished a long-enough segment
       if (testChrom.getBuildingSegmentLength() >= minimumTimeSpan) {
         testChrom.commitBuildingSegment();
 
-        // Move the chromatogram to the set of connected chromatograms
+        // Move the chromatogram to the list of connected chromatograms
         connectedChromatograms.add(testChrom);
         continue;
       }
@@ -126,7 +169,7 @@ public class HighestDataPointConnector {
       if (testChrom.getNumberOfCommittedSegments() > 0) {
         testChrom.removeBuildingSegment();
 
-        // Move the chromatogram to the set of connected chromatograms
+        // Move the chromatogram to the list of connected chromatograms
         connectedChromatograms.add(testChrom);
         continue;
       }
@@ -139,22 +182,123 @@ public class HighestDataPointConnector {
 
   }
 
+  /**
+   * Finds the building chromatogram, whose last data point is within the m/z tolerance of given m/z
+   * and has the highest intensity. Returns the rank of the chromatogram or -1, if there is none.
+   */
+  private int findBestChromatogram(double mz, int numOfChromatograms, int size) {
+
+    // All m/z values L, for which mz is in the tolerance range of L, are within [lower, upper]
+    final double absoluteTolerance = mzTolerance.getMzToleranceForMass(mz);
+    final double relativeTolerance = mzTolerance.getPpmTolerance() / 1000000.0;
+    double lower = mz - absoluteTolerance;
+    double upper = mz + mzTolerance.getMzTolerance();
+    if (relativeTolerance >= 1)
+      upper = Double.POSITIVE_INFINITY;
+    else
+      upper = Math.max(upper, mz / (1 - relativeTolerance));
+
+    // Widen the search range to be safe from rounding, each candidate is checked exactly below
+    final double margin = (upper - lower) * 1e-6 + 4 * Math.ulp(mz);
+    lower -= margin;
+    upper += margin;
+
+    int numOfCandidates = 0;
+
+    // Chromatograms not connected in this scan yet
+    for (int i = lowerBound(chromMzValues, numOfChromatograms, lower); i < numOfChromatograms
+        && chromMzValues[i] <= upper; i++) {
+      final int rank = chromRanks[i];
+      if (connected[rank] || !isWithinTolerance(lastMzValues[rank], mz))
+        continue;
+      numOfCandidates = addCandidate(numOfCandidates, rank);
+    }
+
+    // Chromatograms already connected to an m/z peak of this scan
+    for (int i = lowerBound(peakMzValues, size, lower); i < size
+        && peakMzValues[i] <= upper; i++) {
+      final int rank = connectedRanks[i];
+      if ((rank < 0) || !isWithinTolerance(lastMzValues[rank], mz))
+        continue;
+      numOfCandidates = addCandidate(numOfCandidates, rank);
+    }
+
+    if (numOfCandidates == 0)
+      return -1;
+
+    // Select the best candidate in the order of the building chromatograms, so the result is the
+    // same as if we tested all of them one by one
+    Arrays.sort(candidates, 0, numOfCandidates);
+    int bestRank = candidates[0];
+    for (int i = 1; i < numOfCandidates; i++) {
+      if (lastIntensityValues[candidates[i]] > lastIntensityValues[bestRank])
+        bestRank = candidates[i];
+    }
+    return bestRank;
+
+  }
+
+  /**
+   * Same test as mzTolerance.getToleranceRange(lastMz).contains(mz), without creating the range
+   */
+  private boolean isWithinTolerance(double lastMz, double mz) {
+    final double absoluteTolerance = mzTolerance.getMzToleranceForMass(lastMz);
+    return (lastMz - absoluteTolerance <= mz) && (mz <= lastMz + absoluteTolerance);
+  }
+
+  private int addCandidate(int numOfCandidates, int rank) {
+    if (numOfCandidates == candidates.length)
+      candidates = Arrays.copyOf(candidates, candidates.length * 2);
+    candidates[numOfCandidates] = rank;
+    return numOfCandidates + 1;
+  }
+
+  /**
+   * Returns the index of the first of the sorted values, which is not lower than given value
+   */
+  private static int lowerBound(double sortedValues[], int size, double value) {
+    int low = 0, high = size;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (sortedValues[middle] < value)
+        low = middle + 1;
+      else
+        high = middle;
+    }
+    return low;
+  }
+
+  private void ensureCapacity(int numOfChromatograms, int size) {
+    if (chromMzValues.length < numOfChromatograms) {
+      final int capacity = Math.max(numOfChromatograms, chromMzValues.length * 2);
+      chromMzValues = new double[capacity];
+      chromRanks = new int[capacity];
+      lastMzValues = new double[capacity];
+      lastIntensityValues = new double[capacity];
+      connected = new boolean[capacity];
+    }
+    if (peakMzValues.length < size) {
+      final int capacity = Math.max(size, peakMzValues.length * 2);
+      peakMzValues = new double[capacity];
+      peakIndexes = new int[capacity];
+      peakPositions = new int[capacity];
+      connectedRanks = new int[capacity];
+    }
+  }
+
   public Chromatogram[] finishChromatograms() {
 
     // Iterate through current chromatograms and remove those which do not
     // contain any committed segment nor long-enough building segment
 
-    Iterator<Chromatogram> chromIterator = buildingChromatograms.iterator();
-    while (chromIterator.hasNext()) {
-
-      Chromatogram chromatogram = chromIterator.next();
+    List<Chromatogram> finishedChromatograms = new ArrayList<Chromatogram>();
+    for (Chromatogram chromatogram : buildingChromatograms) {
 
       if (chromatogram.getBuildingSegmentLength() >= minimumTimeSpan) {
         chromatogram.commitBuildingSegment();
         chromatogram.finishChromatogram();
       } else {
         if (chromatogram.getNumberOfCommittedSegments() == 0) {
-          chromIterator.remove();
           continue;
         } else {
           chromatogram.removeBuildingSegment();
@@ -164,12 +308,14 @@ public class HighestDataPointConnector {
 
       // Remove chromatograms smaller then minimum height
       if (chromatogram.getHeight() < minimumHeight)
-        chromIterator.remove();
+        continue;
+
+      finishedChromatograms.add(chromatogram);
 
     }
 
     // All remaining chromatograms are good, so we can return them
-    Chromatogram[] chromatograms = buildingChromatograms.toArray(new Chromatogram[0]);
+    Chromatogram[] chromatograms = finishedChromatograms.toArray(new Chromatogram[0]);
     return chromatograms;
   }
 
@@ -81,11 +81,17 @@ public class HierarAlignerGCParameters extends SimpleParameterSet {
 
   public static final MZToleranceParameter MZTolerance = new MZToleranceParameter();
   public static final DoubleParameter MZWeight = new DoubleParameter("Weight for m/z",
-      "Weight for chemical similarity. Score for perfectly matching m/z values.");
+      "Weight for chemical similarity. Score for perfectly matching m/z values."
+          + " If the weights for m/z and RT add up to 100 or more, the distances of all rows are"
+          + " copied to one full matrix, whose memory use grows with the square of the number of"
+          + " rows.");
 
   public static final RTToleranceParameter RTTolerance = new RTToleranceParameter();
   public static final DoubleParameter RTWeight = new DoubleParameter("Weight for RT",
-      "Weight for retention times similarity. Score for perfectly matching RT values.");
+      "Weight for retention times similarity. Score for perfectly matching RT values."
+          + " If the weights for m/z and RT add up to 100 or more, the distances of all rows are"
+          + " copied to one full matrix, whose memory use grows with the square of the number of"
+          + " rows.");
 
   public static final DoubleParameter minScore = new DoubleParameter("Minimum score",
       "Minimum score for blast to be considered as successful "
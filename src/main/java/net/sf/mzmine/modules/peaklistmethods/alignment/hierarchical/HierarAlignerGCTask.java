@@ -32,6 +32,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.Vector;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 import org.gnf.clustering.DataSource;
 import org.gnf.clustering.DistanceMatrix;
 import org.gnf.clustering.FloatSource1D;
@@ -122,6 +123,9 @@ public class HierarAlignerGCTask extends AbstractTask {
 
   private ClusteringProgression clustProgress;
 
+  // Number of rows whose candidate pairs are scored in parallel before they are stored.
+  private static final int ROWS_PER_CHUNK = 1024;
+
   // Minimum score ever.
   // TODO: better use "Double.MIN_VALUE" rather than zero (it has consequences
   // !!!!)
@@ -316,7 +320,7 @@ public class HierarAlignerGCTask extends AbstractTask {
     //
 
     // TriangularMatrix distances = null;
-    DistanceMatrix distancesGNF_Tri = null;
+    SparseDistanceMatrix distancesGNF_Sparse = null;
     DistanceMatrix distancesGNF_Tri_Bkp = null;
 
     int nbPeaks = 0;
@@ -325,14 +329,6 @@ public class HierarAlignerGCTask extends AbstractTask {
       nbPeaks += peakList.getNumberOfRows();
     }
 
-    // If 'Hybrid' or no distance matrix: no need for a matrix
-    if (CLUSTERER_TYPE == ClustererType.HYBRID || !saveRAMratherThanCPU_1) {
-      // distances = new double[nbPeaks][nbPeaks];
-
-      int nRowCount = nbPeaks;
-      distancesGNF_Tri = new DistanceMatrixTriangular1D2D(nRowCount);
-    }
-
     full_rows_list = new ArrayList<>();
 
     for (int i = 0; i < newIds.length; ++i) {
@@ -360,26 +356,10 @@ public class HierarAlignerGCTask extends AbstractTask {
     // If 'Hybrid' or no distance matrix: no need for a matrix
     if (CLUSTERER_TYPE == ClustererType.HYBRID || !saveRAMratherThanCPU_1) {
 
-      for (int x = 0; x < nbPeaks; ++x) {
-
-        for (int y = x; y < nbPeaks; ++y) {
-
-          float dist = (float) distProvider.getRankedDistance(x, y, mzTolerance.getMzTolerance(),
-              rtTolerance.getTolerance(), minScore);
-
-          // if (CLUSTERER_TYPE == ClustererType.CLASSIC_OLD)
-          // distances.set(x, y , dist);
-          // else
-          distancesGNF_Tri.setValue(x, y, dist);
-
-        }
-
-        processedRows++;
-        if (DEBUG)
-          logger.info(
-              "Treating lists: " + (Math.round(100 * processedRows / (double) nbPeaks)) + " %");
-
-      }
+      distancesGNF_Sparse = computeSparseDistances(distProvider);
+      if (DEBUG)
+        logger.info("Stored distances: " + distancesGNF_Sparse.getNumberOfStoredPairs()
+            + " pairs out of " + DistanceMatrixTriangular1D2D.sumFormula(nbPeaks - 1));
     }
     if (DEBUG)
       printMemoryUsage(logger, run_time, prevTotal, prevFree, "DISTANCES COMPUTED");
@@ -427,37 +407,26 @@ public class HierarAlignerGCTask extends AbstractTask {
 
     } else if (CLUSTERER_TYPE == ClustererType.CACHED) { // Pure Hierar!
 
-      // TODO: ...!
-      if (DEBUG_2)
-        logger.info(distancesGNF_Tri.toString());
-
       if (saveRAMratherThanCPU_2) { // Requires: distances values will be
                                     // recomputed on demand during
                                     // "getValidatedClusters_3()"
-        distancesGNF_Tri_Bkp = null; // No duplicate backup storage!
-      } else { // Otherwise, backing up the distance matrix (matrix being
-               // deeply changed during "clusterDM()", then no more
-               // exploitable)
-        distancesGNF_Tri_Bkp = new DistanceMatrixTriangular1D2D(distancesGNF_Tri);
-        if (DEBUG)
-          printMemoryUsage(logger, run_time, prevTotal, prevFree, "GNF CLUSTERER BACKUP MATRIX");
+        distancesGNF_Tri_Bkp = null;
+      } else { // Otherwise, using the sparse matrix (read-only, the
+               // matrices changed during "clusterDM()" are per component
+               // copies)
+        distancesGNF_Tri_Bkp = distancesGNF_Sparse;
       }
 
       if (DEBUG)
         logger.info("Clustering...");
-      if (distancesGNF_Tri != null)
-        arNodes = org.gnf.clustering.sequentialcache.SequentialCacheClustering
-            .clusterDM(distancesGNF_Tri, linkageStartegyType, null, nRowCount);
+      if (distancesGNF_Sparse != null)
+        arNodes = clusterComponents(distancesGNF_Sparse, max_dist, linkageStartegyType);
 
-      distancesGNF_Tri = null;
-      System.gc();
+      distancesGNF_Sparse = null;
 
       if (DEBUG)
         printMemoryUsage(logger, run_time, prevTotal, prevFree, "GNF CLUSTERER DONE");
 
-      if (DEBUG_2)
-        logger.info(distancesGNF_Tri.toString());
-
       if (DEBUG_2)
         for (int i = 0; i < arNodes.length; i++) {
           logger.info("Node " + i + ": " + arNodes[i]);
@@ -673,6 +642,183 @@ public class HierarAlignerGCTask extends AbstractTask {
 
   }
 
+  /**
+   * Computes the distances of the row pairs inside the m/z and RT tolerance window. The candidate
+   * pairs are found by a sweep over the rows sorted by the m/z of their best peak, and scored in
+   * parallel. All other pairs keep the default distances of SparseDistanceMatrix, same as given by
+   * RowVsRowDistanceProvider.getRankedDistance().
+   */
+  private SparseDistanceMatrix computeSparseDistances(RowVsRowDistanceProvider distProvider) {
+
+    final int nRowCount = full_rows_list.size();
+    final double mzMaxDiff = mzTolerance.getMzTolerance();
+    final double rtMaxDiff = rtTolerance.getTolerance();
+
+    final double mzValues[] = new double[nRowCount];
+    final double rtValues[] = new double[nRowCount];
+    final int rowFiles[] = new int[nRowCount];
+    HashMap<RawDataFile, Integer> fileIndexes = new HashMap<>();
+    for (int i = 0; i < nRowCount; i++) {
+      PeakListRow row = full_rows_list.get(i);
+      mzValues[i] = row.getBestPeak().getMZ();
+      rtValues[i] = row.getBestPeak().getRT();
+      Integer fileIndex = fileIndexes.get(row.getRawDataFiles()[0]);
+      if (fileIndex == null) {
+        fileIndex = fileIndexes.size();
+        fileIndexes.put(row.getRawDataFiles()[0], fileIndex);
+      }
+      rowFiles[i] = fileIndex;
+    }
+
+    Integer sortedRows[] = new Integer[nRowCount];
+    for (int i = 0; i < nRowCount; i++)
+      sortedRows[i] = i;
+    Arrays.sort(sortedRows, (a, b) -> Double.compare(mzValues[a], mzValues[b]));
+
+    int pairRows[] = new int[1024], pairColumns[] = new int[1024];
+    float pairDistances[] = new float[1024];
+    int numOfPairs = 0;
+
+    for (int chunkStart = 0; chunkStart < nRowCount; chunkStart += ROWS_PER_CHUNK) {
+
+      final int chunkOffset = chunkStart;
+      final int chunkLength = Math.min(ROWS_PER_CHUNK, nRowCount - chunkStart);
+      final int chunkColumns[][] = new int[chunkLength][];
+      final float chunkDistances[][] = new float[chunkLength][];
+
+      IntStream.range(0, chunkLength).parallel().forEach(c -> {
+        final int p = chunkOffset + c;
+        final int x = sortedRows[p];
+        int columns[] = new int[16];
+        float distances[] = new float[16];
+        int numOfColumns = 0;
+        // Same test as getRankedDistance(), the m/z difference of sorted rows being positive
+        for (int q = p + 1; q < nRowCount
+            && mzValues[sortedRows[q]] - mzValues[x] < mzMaxDiff / 2.0; q++) {
+          final int y = sortedRows[q];
+          if (rowFiles[x] == rowFiles[y]
+              || Math.abs(rtValues[x] - rtValues[y]) >= rtMaxDiff / 2.0)
+            continue;
+          if (numOfColumns == columns.length) {
+            columns = Arrays.copyOf(columns, numOfColumns * 2);
+            distances = Arrays.copyOf(distances, numOfColumns * 2);
+          }
+          columns[numOfColumns] = y;
+          distances[numOfColumns] =
+              (float) distProvider.getRankedDistance(x, y, mzMaxDiff, rtMaxDiff, minScore);
+          numOfColumns++;
+        }
+        chunkColumns[c] = Arrays.copyOf(columns, numOfColumns);
+        chunkDistances[c] = Arrays.copyOf(distances, numOfColumns);
+      });
+
+      for (int c = 0; c < chunkLength; c++) {
+        final int x = sortedRows[chunkOffset + c];
+        if (numOfPairs + chunkColumns[c].length > pairRows.length) {
+          final int newLength = Math.max(pairRows.length * 2, numOfPairs + chunkColumns[c].length);
+          pairRows = Arrays.copyOf(pairRows, newLength);
+          pairColumns = Arrays.copyOf(pairColumns, newLength);
+          pairDistances = Arrays.copyOf(pairDistances, newLength);
+        }
+        for (int k = 0; k < chunkColumns[c].length; k++) {
+          pairRows[numOfPairs] = x;
+          pairColumns[numOfPairs] = chunkColumns[c][k];
+          pairDistances[numOfPairs] = chunkDistances[c][k];
+          numOfPairs++;
+        }
+        processedRows++;
+      }
+    }
+
+    return new SparseDistanceMatrix(rowFiles, pairRows, pairColumns, pairDistances, numOfPairs);
+  }
+
+  /**
+   * Clusters each group of rows connected by stored distances on its own, and joins the resulting
+   * trees under nodes of the default distance. Groups can only be clustered apart, if any node
+   * spanning two groups is rejected by getValidatedClusters_3(), i.e. if max_dist is below the
+   * default distance. Otherwise, all rows are clustered together on a dense copy of their
+   * distances, which takes O(n^2) memory: the GNF clusterer updates the matrix it merges on, so it
+   * cannot run on the read-only sparse matrix.
+   */
+  static org.gnf.clustering.Node[] clusterComponents(SparseDistanceMatrix distances,
+      double max_dist, LinkageMode linkageStartegyType) {
+
+    final int nRowCount = distances.getRowCount();
+    if (nRowCount < 2)
+      return null;
+
+    final int components[][];
+    if (max_dist + EPSILON > SparseDistanceMatrix.DEFAULT_DISTANCE) {
+      int allRows[] = new int[nRowCount];
+      for (int i = 0; i < nRowCount; i++)
+        allRows[i] = i;
+      components = new int[][] {allRows};
+    } else {
+      components = distances.getConnectedComponents();
+    }
+
+    // GNF clustering of each group on a dense copy of its distances
+    final org.gnf.clustering.Node componentNodes[][] =
+        new org.gnf.clustering.Node[components.length][];
+    IntStream.range(0, components.length).parallel().forEach(c -> {
+      final int component[] = components[c];
+      if (component.length < 2)
+        return;
+      DistanceMatrix componentDistances = new DistanceMatrixTriangular1D2D(component.length);
+      for (int x = 0; x < component.length; x++) {
+        for (int y = x; y < component.length; y++) {
+          componentDistances.setValue(x, y, distances.getValue(component[x], component[y]));
+        }
+      }
+      componentNodes[c] = org.gnf.clustering.sequentialcache.SequentialCacheClustering
+          .clusterDM(componentDistances, linkageStartegyType, null, component.length);
+    });
+
+    // Renumber the nodes of each group: leaves are row indexes, nodes are referenced as
+    // -(node index + 1)
+    org.gnf.clustering.Node arNodes[] = new org.gnf.clustering.Node[nRowCount - 1];
+    int nNodes = 0;
+    int roots[] = new int[components.length];
+    double maxDistance = SparseDistanceMatrix.DEFAULT_DISTANCE;
+    for (int c = 0; c < components.length; c++) {
+      final int component[] = components[c];
+      if (component.length < 2) {
+        roots[c] = component[0];
+        continue;
+      }
+      final int nodeOffset = nNodes;
+      for (org.gnf.clustering.Node node : componentNodes[c]) {
+        node.m_nLeft = (node.m_nLeft >= 0) ? component[node.m_nLeft] : node.m_nLeft - nodeOffset;
+        node.m_nRight =
+            (node.m_nRight >= 0) ? component[node.m_nRight] : node.m_nRight - nodeOffset;
+        maxDistance = Math.max(maxDistance, node.m_fDistance);
+        arNodes[nNodes++] = node;
+      }
+      componentNodes[c] = null;
+      roots[c] = -nNodes;
+    }
+
+    // Join the trees pairwise, so the joining nodes form a balanced tree whose root is the last
+    // node
+    int numOfRoots = roots.length;
+    while (numOfRoots > 1) {
+      int numOfJoined = 0;
+      for (int r = 0; r < numOfRoots; r += 2) {
+        if (r + 1 < numOfRoots) {
+          arNodes[nNodes++] =
+              new org.gnf.clustering.Node(roots[r], roots[r + 1], (float) maxDistance);
+          roots[numOfJoined++] = -nNodes;
+        } else {
+          roots[numOfJoined++] = roots[r];
+        }
+      }
+      numOfRoots = numOfJoined;
+    }
+
+    return arNodes;
+  }
+
   /**
    * Two clusters can be merged if and only if: - The resulting merged cluster: (their parent)
    * doesn't exceed 'level' leaves - The distance between them two is acceptable (close enough)
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.alignment.hierarchical;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.gnf.clustering.DistanceMatrix;
+
+/**
+ * Read-only distance matrix which only stores the distances of the row pairs inside the m/z and RT
+ * tolerance window. All other pairs get the distance RowVsRowDistanceProvider.getRankedDistance()
+ * gives to rows which are not candidates: SAME_FILE_DISTANCE if both rows come from the same raw
+ * data file, DEFAULT_DISTANCE otherwise.
+ */
+public class SparseDistanceMatrix implements DistanceMatrix {
+
+  public static final float SAME_FILE_DISTANCE = 1000.0f;
+  public static final float DEFAULT_DISTANCE = 100.0f;
+
+  private final int dimension;
+
+  // Raw data file index of each row
+  private final int rowFiles[];
+
+  // Stored neighbors of each row in ascending order and their distances
+  private final int neighbors[][];
+  private final float distances[][];
+
+  /**
+   * Builds the matrix from the stored pairs, each pair being given only once
+   */
+  public SparseDistanceMatrix(int rowFiles[], int pairRows[], int pairColumns[],
+      float pairDistances[], int numOfPairs) {
+
+    this.dimension = rowFiles.length;
+    this.rowFiles = rowFiles;
+
+    int numOfNeighbors[] = new int[dimension];
+    for (int i = 0; i < numOfPairs; i++) {
+      numOfNeighbors[pairRows[i]]++;
+      numOfNeighbors[pairColumns[i]]++;
+    }
+
+    // Neighbor index in the upper and distance in the lower half, so the neighbors can be sorted
+    // along with their distances
+    long rowPairs[][] = new long[dimension][];
+    for (int i = 0; i < dimension; i++)
+      rowPairs[i] = new long[numOfNeighbors[i]];
+    Arrays.fill(numOfNeighbors, 0);
+    for (int i = 0; i < numOfPairs; i++) {
+      final long distanceBits = Float.floatToRawIntBits(pairDistances[i]) & 0xffffffffL;
+      final int row = pairRows[i], column = pairColumns[i];
+      rowPairs[row][numOfNeighbors[row]++] = ((long) column << 32) | distanceBits;
+      rowPairs[column][numOfNeighbors[column]++] = ((long) row << 32) | distanceBits;
+    }
+
+    neighbors = new int[dimension][];
+    distances = new float[dimension][];
+    for (int i = 0; i < dimension; i++) {
+      Arrays.sort(rowPairs[i]);
+      neighbors[i] = new int[rowPairs[i].length];
+      distances[i] = new float[rowPairs[i].length];
+      for (int j = 0; j < rowPairs[i].length; j++) {
+        neighbors[i][j] = (int) (rowPairs[i][j] >>> 32);
+        distances[i][j] = Float.intBitsToFloat((int) rowPairs[i][j]);
+      }
+      rowPairs[i] = null;
+    }
+  }
+
+  /**
+   * Returns the groups of rows connected by stored distances. Rows of each group are in ascending
+   * order, and groups are ordered by their first row.
+   */
+  public int[][] getConnectedComponents() {
+
+    List<int[]> components = new ArrayList<>();
+    boolean visited[] = new boolean[dimension];
+    int queue[] = new int[dimension];
+
+    for (int first = 0; first < dimension; first++) {
+      if (visited[first])
+        continue;
+      visited[first] = true;
+      queue[0] = first;
+      int queueLength = 1;
+      for (int q = 0; q < queueLength; q++) {
+        for (int neighbor : neighbors[queue[q]]) {
+          if (!visited[neighbor]) {
+            visited[neighbor] = true;
+            queue[queueLength++] = neighbor;
+          }
+        }
+      }
+      int component[] = Arrays.copyOf(queue, queueLength);
+      Arrays.sort(component);
+      components.add(component);
+    }
+
+    return components.toArray(new int[components.size()][]);
+  }
+
+  public int getNumberOfStoredPairs() {
+    long numOfNeighbors = 0;
+    for (int i = 0; i < dimension; i++)
+      numOfNeighbors += neighbors[i].length;
+    return (int) (numOfNeighbors / 2);
+  }
+
+  @Override
+  public int getRowCount() {
+    return dimension;
+  }
+
+  @Override
+  public int getColCount() {
+    return dimension;
+  }
+
+  @Override
+  public float getValue(int nRow, int nCol) {
+
+    if (nRow == nCol)
+      return 0.0f;
+
+    final int index = Arrays.binarySearch(neighbors[nRow], nCol);
+    if (index >= 0)
+      return distances[nRow][index];
+
+    return (rowFiles[nRow] == rowFiles[nCol]) ? SAME_FILE_DISTANCE : DEFAULT_DISTANCE;
+  }
+
+  @Override
+  public void setValue(int nRow, int nCol, float fVal) {
+    throw new UnsupportedOperationException("Sparse distance matrix is read-only");
+  }
+
+}
@@ -18,11 +18,18 @@
 
 package net.sf.mzmine.modules.peaklistmethods.alignment.join;
 
-import java.util.Hashtable;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 
 import net.sf.mzmine.datamodel.IsotopePattern;
 import net.sf.mzmine.datamodel.MZmineProject;
@@ -50,8 +57,9 @@ class JoinAlignerTask extends AbstractTask {
   private final MZmineProject project;
   private PeakList peakLists[], alignedPeakList;
 
-  // Processed rows counter
-  private int processedRows, totalRows;
+  // Processed rows counter, incremented by the threads calculating the scores
+  private final AtomicInteger processedRows = new AtomicInteger();
+  private int totalRows;
 
   private String peakListName;
   private MZTolerance mzTolerance;
@@ -103,7 +111,7 @@ class JoinAlignerTask extends AbstractTask {
   public double getFinishedPercentage() {
     if (totalRows == 0)
       return 0f;
-    return (double) processedRows / (double) totalRows;
+    return (double) processedRows.get() / (double) totalRows;
   }
 
   /**
@@ -150,83 +158,33 @@ class JoinAlignerTask extends AbstractTask {
     // Iterate source peak lists
     for (PeakList peakList : peakLists) {
 
-      // Create a sorted set of scores matching
-      TreeSet<RowVsRowScore> scoreSet = new TreeSet<RowVsRowScore>();
-
       PeakListRow allRows[] = peakList.getRows();
 
-      // Calculate scores for all possible alignments of this row
-      for (PeakListRow row : allRows) {
-
-        if (isCanceled())
-          return;
-
-        // Calculate limits for a row with which the row can be aligned
-        Range<Double> mzRange = mzTolerance.getToleranceRange(row.getAverageMZ());
-        Range<Double> rtRange = rtTolerance.getToleranceRange(row.getAverageRT());
-
-        // Get all rows of the aligned peaklist within parameter limits
-        PeakListRow candidateRows[] = alignedPeakList.getRowsInsideScanAndMZRange(rtRange, mzRange);
-
-        // Calculate scores and store them
-        for (PeakListRow candidate : candidateRows) {
-
-          if (sameChargeRequired) {
-            if (!PeakUtils.compareChargeState(row, candidate))
-              continue;
-          }
-
-          if (sameIDRequired) {
-            if (!PeakUtils.compareIdentities(row, candidate))
-              continue;
-          }
-
-          if (compareIsotopePattern) {
-            IsotopePattern ip1 = row.getBestIsotopePattern();
-            IsotopePattern ip2 = candidate.getBestIsotopePattern();
-
-            if ((ip1 != null) && (ip2 != null)) {
-              ParameterSet isotopeParams =
-                  parameters.getParameter(JoinAlignerParameters.compareIsotopePattern)
-                      .getEmbeddedParameters();
-
-              if (!IsotopePatternScoreCalculator.checkMatch(ip1, ip2, isotopeParams)) {
-                continue;
-              }
-            }
-          }
-
-          RowVsRowScore score =
-              new RowVsRowScore(row, candidate, RangeUtils.rangeLength(mzRange) / 2.0, mzWeight,
-                  RangeUtils.rangeLength(rtRange) / 2.0, rtWeight);
-
-          scoreSet.add(score);
-
-        }
-
-        processedRows++;
-
-      }
+      // Calculate scores for all possible alignments of all rows, ordered from the best one
+      RowVsRowScore scores[] = calculateScores(allRows);
+      if (isCanceled())
+        return;
 
-      // Create a table of mappings for best scores
-      Hashtable<PeakListRow, PeakListRow> alignmentMapping =
-          new Hashtable<PeakListRow, PeakListRow>();
+      // Create a table of mappings for best scores. Rows are compared by identity, the same as
+      // their equals() method does.
+      Map<PeakListRow, PeakListRow> alignmentMapping =
+          new IdentityHashMap<PeakListRow, PeakListRow>();
+      Set<PeakListRow> mappedAlignedRows =
+          Collections.newSetFromMap(new IdentityHashMap<PeakListRow, Boolean>());
 
       // Iterate scores by descending order
-      Iterator<RowVsRowScore> scoreIterator = scoreSet.iterator();
-      while (scoreIterator.hasNext()) {
-
-        RowVsRowScore score = scoreIterator.next();
+      for (RowVsRowScore score : scores) {
 
         // Check if the row is already mapped
         if (alignmentMapping.containsKey(score.getPeakListRow()))
           continue;
 
         // Check if the aligned row is already filled
-        if (alignmentMapping.containsValue(score.getAlignedRow()))
+        if (mappedAlignedRows.contains(score.getAlignedRow()))
           continue;
 
         alignmentMapping.put(score.getPeakListRow(), score.getAlignedRow());
+        mappedAlignedRows.add(score.getAlignedRow());
 
       }
 
@@ -251,7 +209,7 @@ class JoinAlignerTask extends AbstractTask {
         // aligned row
         PeakUtils.copyPeakListRowProperties(row, targetRow);
 
-        processedRows++;
+        processedRows.incrementAndGet();
 
       }
 
@@ -269,4 +227,112 @@ class JoinAlignerTask extends AbstractTask {
 
   }
 
+  /**
+   * Calculates the scores of all rows of a peak list against the rows of the aligned peak list
+   * within the tolerances. The rows are scored in parallel. The scores are returned in the same
+   * order as a TreeSet of the scores inserted row by row would iterate them, so the alignment does
+   * not depend on the number of threads.
+   */
+  private RowVsRowScore[] calculateScores(PeakListRow allRows[]) {
+
+    final ParameterSet isotopeParams = compareIsotopePattern
+        ? parameters.getParameter(JoinAlignerParameters.compareIsotopePattern)
+            .getEmbeddedParameters()
+        : null;
+
+    // Scores of each row, set by the thread which scored the row
+    final List<List<RowVsRowScore>> rowScores =
+        new ArrayList<>(Collections.nCopies(allRows.length, null));
+
+    IntStream.range(0, allRows.length).parallel().forEach(i -> {
+
+      if (isCanceled())
+        return;
+
+      PeakListRow row = allRows[i];
+
+      // Calculate limits for a row with which the row can be aligned
+      Range<Double> mzRange = mzTolerance.getToleranceRange(row.getAverageMZ());
+      Range<Double> rtRange = rtTolerance.getToleranceRange(row.getAverageRT());
+
+      // Get all rows of the aligned peaklist within parameter limits
+      PeakListRow candidateRows[] = alignedPeakList.getRowsInsideScanAndMZRange(rtRange, mzRange);
+
+      List<RowVsRowScore> scores = new ArrayList<RowVsRowScore>(candidateRows.length);
+
+      // Calculate scores and store them
+      for (PeakListRow candidate : candidateRows) {
+
+        if (sameChargeRequired) {
+          if (!PeakUtils.compareChargeState(row, candidate))
+            continue;
+        }
+
+        if (sameIDRequired) {
+          if (!PeakUtils.compareIdentities(row, candidate))
+            continue;
+        }
+
+        if (compareIsotopePattern) {
+          IsotopePattern ip1 = row.getBestIsotopePattern();
+          IsotopePattern ip2 = candidate.getBestIsotopePattern();
+
+          if ((ip1 != null) && (ip2 != null)) {
+            if (!IsotopePatternScoreCalculator.checkMatch(ip1, ip2, isotopeParams)) {
+              continue;
+            }
+          }
+        }
+
+        RowVsRowScore score =
+            new RowVsRowScore(row, candidate, RangeUtils.rangeLength(mzRange) / 2.0, mzWeight,
+                RangeUtils.rangeLength(rtRange) / 2.0, rtWeight);
+
+        scores.add(score);
+
+      }
+
+      rowScores.set(i, scores);
+      processedRows.incrementAndGet();
+
+    });
+
+    if (isCanceled())
+      return new RowVsRowScore[0];
+
+    // Concatenate the scores in the order they were calculated by a single thread before
+    int numOfScores = 0;
+    boolean hasNaN = false;
+    for (List<RowVsRowScore> scores : rowScores) {
+      numOfScores += scores.size();
+      for (RowVsRowScore score : scores)
+        hasNaN |= Double.isNaN(score.getScore());
+    }
+    RowVsRowScore allScores[] = new RowVsRowScore[numOfScores];
+    int position = 0;
+    for (List<RowVsRowScore> scores : rowScores) {
+      for (RowVsRowScore score : scores)
+        allScores[position++] = score;
+    }
+
+    // RowVsRowScore.compareTo() puts a score in front of all equal scores inserted before it. NaN
+    // scores (zero tolerance) have no consistent order, so in such case we use the TreeSet itself.
+    if (hasNaN) {
+      TreeSet<RowVsRowScore> scoreSet = new TreeSet<RowVsRowScore>(Arrays.asList(allScores));
+      return scoreSet.toArray(new RowVsRowScore[0]);
+    }
+
+    // Stable sort of the reversed scores by descending score gives the same order
+    Collections.reverse(Arrays.asList(allScores));
+    Arrays.parallelSort(allScores, (score1, score2) -> {
+      if (score1.getScore() < score2.getScore())
+        return 1;
+      if (score1.getScore() > score2.getScore())
+        return -1;
+      return 0;
+    });
+    return allScores;
+
+  }
+
 }
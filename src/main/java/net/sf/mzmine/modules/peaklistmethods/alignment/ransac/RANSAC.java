@@ -17,11 +17,10 @@
  */
 package net.sf.mzmine.modules.peaklistmethods.alignment.ransac;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.Random;
+import java.util.stream.IntStream;
 
 import net.sf.mzmine.parameters.ParameterSet;
 
@@ -33,6 +32,12 @@ import com.google.common.collect.Range;
 
 public class RANSAC {
 
+  // Seed of the random generators of the iterations, so the alignment is reproducible
+  private static final long RANDOM_SEED = 1L;
+
+  // Number of iterations run in parallel before their models are compared
+  private static final int ITERATIONS_PER_CHUNK = 256;
+
   /**
    * input: data - a set of observed data points n - the minimum number of data values required to
    * fit the model k - the maximum number of iterations allowed in the algorithm t - a threshold
@@ -44,7 +49,6 @@ public class RANSAC {
   private int n;
   private double d = 1;
   private int k = 0;
-  private int AlsoNumber;
   private double numRatePoints, t;
   private boolean Linear;
 
@@ -106,170 +110,205 @@ public class RANSAC {
   }
 
   /**
-   * RANSAC algorithm
+   * RANSAC algorithm. The iterations run in parallel, each one drawing its initial points with its
+   * own random generator, seeded from RANDOM_SEED, so the result does not depend on the number of
+   * threads and is the same for each run.
    * 
    * @param data vector with the points which represent all possible alignments.
    */
   public void ransac(List<AlignStructMol> data) {
-    double besterr = 9.9E99;
 
-    for (int iterations = 0; iterations < k; iterations++) {
-      AlsoNumber = n;
-      // Get the initial points
-      boolean initN = getInitN(data);
-      if (!initN) {
-        continue;
-      }
+    if (data.size() <= n || k <= 0) {
+      return;
+    }
 
-      // Calculate the model
-      fittPolinomialFunction(data, Linear);
-
-      // If the model has the minimun number of points
-      if (AlsoNumber >= d) {
-        // Get the error of the model based on the number of points
-        double error = 9.9E99;
-        try {
-          error = newError(data);
-        } catch (Exception ex) {
-          Logger.getLogger(RANSAC.class.getName()).log(Level.SEVERE, null, ex);
-        }
+    // The initial points are taken from the points sorted by RT
+    Collections.sort(data, new AlignStructMol());
 
-        // If the error is less than the error of the last model
-        if (error < besterr) {
-          besterr = error;
-          for (int i = 0; i < data.size(); i++) {
-            AlignStructMol alignStruct = data.get(i);
-            if (alignStruct.ransacAlsoInLiers || alignStruct.ransacMaybeInLiers) {
-              alignStruct.Aligned = true;
-            } else {
-              alignStruct.Aligned = false;
-            }
-
-            alignStruct.ransacAlsoInLiers = false;
-            alignStruct.ransacMaybeInLiers = false;
-
-          }
-        }
+    // The iterations run in chunks, so a large number of iterations does not need large arrays.
+    // The seeds are drawn in the order of the iterations.
+    final Random seedGenerator = new Random(RANDOM_SEED);
+    double besterr = 9.9E99;
+    long bestSeed = 0;
+    boolean found = false;
+    for (int chunkStart = 0; chunkStart < k; chunkStart += ITERATIONS_PER_CHUNK) {
+
+      final int chunkLength = Math.min(ITERATIONS_PER_CHUNK, k - chunkStart);
+      final long seeds[] = new long[chunkLength];
+      for (int i = 0; i < chunkLength; i++) {
+        seeds[i] = seedGenerator.nextLong();
       }
-      // remove the model
-      for (int i = 0; i < data.size(); i++) {
-        AlignStructMol alignStruct = data.get(i);
-        alignStruct.ransacAlsoInLiers = false;
-        alignStruct.ransacMaybeInLiers = false;
+
+      // Error of the model of each iteration
+      final double errors[] = new double[chunkLength];
+      IntStream.range(0, chunkLength).parallel().forEach(i -> {
+        boolean inLiers[] = new boolean[data.size()];
+        errors[i] = fitModel(data, new Random(seeds[i]), inLiers);
+      });
+
+      // Keep the first model with the lowest error, as if the iterations had run one by one
+      for (int i = 0; i < chunkLength; i++) {
+        if (errors[i] < besterr) {
+          besterr = errors[i];
+          bestSeed = seeds[i];
+          found = true;
+        }
       }
+    }
+    if (!found) {
+      return;
+    }
+
+    // Fit the best model again to get its points
+    boolean inLiers[] = new boolean[data.size()];
+    fitModel(data, new Random(bestSeed), inLiers);
+    for (int i = 0; i < data.size(); i++) {
+      data.get(i).Aligned = inLiers[i];
+    }
+  }
+
+  /**
+   * Fits one model from randomly taken initial points.
+   * 
+   * @param data vector with the points sorted by RT.
+   * @param random random generator of this model.
+   * @param inLiers set to true for the initial points and the points which fit the model.
+   * @return the error of the model, or 9.9E99 if the model has not the minimum number of points.
+   */
+  private double fitModel(List<AlignStructMol> data, Random random, boolean inLiers[]) {
+
+    boolean maybeInLiers[] = new boolean[data.size()];
+    boolean alsoInLiers[] = new boolean[data.size()];
 
+    // Get the initial points
+    getInitN(data, random, maybeInLiers);
+
+    // Calculate the model
+    int alsoNumber = n + fittPolinomialFunction(data, Linear, maybeInLiers, alsoInLiers);
+
+    for (int i = 0; i < data.size(); i++) {
+      inLiers[i] = alsoInLiers[i] || maybeInLiers[i];
     }
+
+    // If the model has not the minimun number of points
+    if (alsoNumber < d) {
+      return 9.9E99;
+    }
+
+    // Get the error of the model based on the number of points
+    return newError(inLiers);
   }
 
   /**
    * Take the initial points ramdoly. The points are divided by the initial number of points. If the
    * fractions contain enough number of points took one point from each part.
    * 
-   * @param data vector with the points which represent all possible alignments.
-   * @return false if there is any problem.
+   * @param data vector with the points sorted by RT.
+   * @param random random generator of this model.
+   * @param maybeInLiers set to true for the initial points.
    */
-  private boolean getInitN(List<AlignStructMol> data) {
-    if (data.size() > n) {
-      Collections.sort(data, new AlignStructMol());
-      double min = data.get(0).RT;
-      double max = data.get(data.size() - 1).RT;
-
-      Range<Double> rtRange = Range.closed(min, ((max - min) / 2) + min);
+  private void getInitN(List<AlignStructMol> data, Random random, boolean maybeInLiers[]) {
+    double min = data.get(0).RT;
+    double max = data.get(data.size() - 1).RT;
 
-      int cont = 0, bucle = 0;
-      while (cont < n / 2 && bucle < 1000) {
-        int index = (int) (data.size() * Math.random());
-        if (!data.get(index).ransacMaybeInLiers && rtRange.contains(data.get(index).RT)) {
-          data.get(index).ransacMaybeInLiers = true;
-          cont++;
+    Range<Double> rtRange = Range.closed(min, ((max - min) / 2) + min);
 
-        }
+    int cont = 0, bucle = 0;
+    while (cont < n / 2 && bucle < 1000) {
+      int index = (int) (data.size() * random.nextDouble());
+      if (!maybeInLiers[index] && rtRange.contains(data.get(index).RT)) {
+        maybeInLiers[index] = true;
+        cont++;
 
-        bucle++;
-      }
-      if (bucle >= 1000) {
-        getN(data, (n / 2) - cont);
       }
 
-      bucle = 0;
-      rtRange = Range.closed(((max - min) / 2) + min, max);
+      bucle++;
+    }
+    if (bucle >= 1000) {
+      getN(data, random, maybeInLiers, (n / 2) - cont);
+    }
+
+    bucle = 0;
+    rtRange = Range.closed(((max - min) / 2) + min, max);
 
-      while (cont < n && bucle < 1000) {
+    while (cont < n && bucle < 1000) {
 
-        int index = (int) (data.size() * Math.random());
-        if (!data.get(index).ransacMaybeInLiers && rtRange.contains(data.get(index).RT)) {
-          data.get(index).ransacMaybeInLiers = true;
-          cont++;
-        }
-        bucle++;
-      }
-      if (bucle >= 1000) {
-        getN(data, n - cont);
+      int index = (int) (data.size() * random.nextDouble());
+      if (!maybeInLiers[index] && rtRange.contains(data.get(index).RT)) {
+        maybeInLiers[index] = true;
+        cont++;
       }
-      return true;
-    } else {
-      return false;
+      bucle++;
+    }
+    if (bucle >= 1000) {
+      getN(data, random, maybeInLiers, n - cont);
     }
   }
 
-  private void getN(List<AlignStructMol> data, int newN) {
+  private void getN(List<AlignStructMol> data, Random random, boolean maybeInLiers[], int newN) {
     if (newN < 1) {
       return;
     }
     int cont = 0;
     while (cont < newN) {
-      int index = (int) (data.size() * Math.random());
-      if (!data.get(index).ransacMaybeInLiers) {
-        data.get(index).ransacMaybeInLiers = true;
+      int index = (int) (data.size() * random.nextDouble());
+      if (!maybeInLiers[index]) {
+        maybeInLiers[index] = true;
         cont++;
       }
     }
   }
 
-  private void fittPolinomialFunction(List<AlignStructMol> data, boolean linear) {
-    List<AlignStructMol> points = new ArrayList<AlignStructMol>();
+  /**
+   * Fits the polynomial function to the initial points.
+   * 
+   * @return the number of points which fit the function.
+   */
+  private int fittPolinomialFunction(List<AlignStructMol> data, boolean linear,
+      boolean maybeInLiers[], boolean alsoInLiers[]) {
 
     int degree = 3;
     if (linear) {
       degree = 1;
     }
 
+    int alsoNumber = 0;
     PolynomialFitter fitter = new PolynomialFitter(degree, new GaussNewtonOptimizer(true));
     for (int i = 0; i < data.size(); i++) {
       AlignStructMol point = data.get(i);
-      if (point.ransacMaybeInLiers) {
-        points.add(point);
+      if (maybeInLiers[i]) {
         fitter.addObservedPoint(1, point.RT, point.RT2);
       }
     }
     try {
       PolynomialFunction function = fitter.fit();
-      for (AlignStructMol point : data) {
+      for (int i = 0; i < data.size(); i++) {
+        AlignStructMol point = data.get(i);
         double y = point.RT2;
         double bestY = function.value(point.RT);
         if (Math.abs(y - bestY) < t) {
-          point.ransacAlsoInLiers = true;
-          AlsoNumber++;
+          alsoInLiers[i] = true;
+          alsoNumber++;
         } else {
-          point.ransacAlsoInLiers = false;
+          alsoInLiers[i] = false;
         }
       }
     } catch (Exception ex) {
     }
+    return alsoNumber;
   }
 
   /**
    * calculate the error in the model
    * 
-   * @param data vector with the points which represent all possible alignments.
-   * @param regression regression of the alignment points
+   * @param inLiers the points which fit the model.
    * @return the error in the model
    */
-  private double newError(List<AlignStructMol> data) throws Exception {
+  private double newError(boolean inLiers[]) {
 
     double numT = 1;
-    for (int i = 0; i < data.size(); i++) {
-      if (data.get(i).ransacAlsoInLiers || data.get(i).ransacMaybeInLiers) {
+    for (int i = 0; i < inLiers.length; i++) {
+      if (inLiers[i]) {
         numT++;
       }
     }
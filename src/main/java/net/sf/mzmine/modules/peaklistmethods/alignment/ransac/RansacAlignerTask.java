@@ -25,6 +25,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.TreeSet;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
@@ -228,7 +229,12 @@ class RansacAlignerTask extends AbstractTask {
 
     PeakListRow allRows[] = peakList.getRows();
 
-    for (PeakListRow row : allRows) {
+    // Score the candidates of the rows in parallel, the aligned peak list is not changed here
+    final RowVsRowScore rowScores[][] = new RowVsRowScore[allRows.length][];
+    final boolean failed[] = new boolean[1];
+    IntStream.range(0, allRows.length).parallel().forEach(i -> {
+      PeakListRow row = allRows[i];
+
       // Calculate limits for a row with which the row can be aligned
       Range<Double> mzRange = mzTolerance.getToleranceRange(row.getAverageMZ());
 
@@ -247,6 +253,7 @@ class RansacAlignerTask extends AbstractTask {
       // Get all rows of the aligned peaklist within parameter limits
       PeakListRow candidateRows[] = alignedPeakList.getRowsInsideScanAndMZRange(rtRange, mzRange);
 
+      List<RowVsRowScore> scores = new ArrayList<RowVsRowScore>(candidateRows.length);
       for (PeakListRow candidate : candidateRows) {
         RowVsRowScore score;
         if (sameChargeRequired && (!PeakUtils.compareChargeState(row, candidate))) {
@@ -257,15 +264,27 @@ class RansacAlignerTask extends AbstractTask {
           score = new RowVsRowScore(row, candidate, RangeUtils.rangeLength(mzRange) / 2.0,
               RangeUtils.rangeLength(rtRange) / 2.0, rt);
 
-          scoreSet.add(score);
-          setErrorMessage(score.getErrorMessage());
+          scores.add(score);
 
         } catch (Exception e) {
           e.printStackTrace();
-          setStatus(TaskStatus.ERROR);
-          return null;
+          failed[0] = true;
+          return;
         }
       }
+      rowScores[i] = scores.toArray(new RowVsRowScore[scores.size()]);
+    });
+
+    // Add the scores in the order of the rows
+    for (int i = 0; i < allRows.length; i++) {
+      if (failed[0] || rowScores[i] == null) {
+        setStatus(TaskStatus.ERROR);
+        return null;
+      }
+      for (RowVsRowScore score : rowScores[i]) {
+        scoreSet.add(score);
+        setErrorMessage(score.getErrorMessage());
+      }
       processedRows++;
     }
 
@@ -379,21 +398,32 @@ class RansacAlignerTask extends AbstractTask {
    */
   private List<AlignStructMol> getVectorAlignment(PeakList peakListX, PeakList peakListY) {
 
-    List<AlignStructMol> alignMol = new ArrayList<AlignStructMol>();
-    for (PeakListRow row : peakListX.getRows()) {
+    final PeakListRow rows[] = peakListX.getRows();
 
+    // Search the candidates of the rows in parallel
+    final PeakListRow rowCandidates[][] = new PeakListRow[rows.length][];
+    IntStream.range(0, rows.length).parallel().forEach(i -> {
       if (isCanceled()) {
-        return null;
+        return;
       }
+      PeakListRow row = rows[i];
+
       // Calculate limits for a row with which the row can be aligned
       Range<Double> mzRange = mzTolerance.getToleranceRange(row.getAverageMZ());
       Range<Double> rtRange = rtToleranceBefore.getToleranceRange(row.getAverageRT());
 
       // Get all rows of the aligned peaklist within parameter limits
-      PeakListRow candidateRows[] = peakListY.getRowsInsideScanAndMZRange(rtRange, mzRange);
+      rowCandidates[i] = peakListY.getRowsInsideScanAndMZRange(rtRange, mzRange);
+    });
 
-      for (PeakListRow candidateRow : candidateRows) {
-        alignMol.add(new AlignStructMol(row, candidateRow));
+    if (isCanceled()) {
+      return null;
+    }
+
+    List<AlignStructMol> alignMol = new ArrayList<AlignStructMol>();
+    for (int i = 0; i < rows.length; i++) {
+      for (PeakListRow candidateRow : rowCandidates[i]) {
+        alignMol.add(new AlignStructMol(rows[i], candidateRow));
       }
     }
 
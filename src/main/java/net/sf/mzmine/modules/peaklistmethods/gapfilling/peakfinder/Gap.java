@@ -71,12 +71,27 @@ public class Gap {
       return;
 
     // If we have passed the RT range and finished processing last peak
-    if ((scanRT > rtRange.upperEndpoint()) && (currentPeakDataPoints == null))
+    if (isFinished(scanRT))
       return;
 
     // Find top m/z peak in our range
     DataPoint basePeak = ScanUtils.findBasePeak(scan, mzRange);
 
+    offerNextScan(scan, basePeak);
+
+  }
+
+  /**
+   * Offers a scan, for which the top m/z peak inside the m/z range of this gap was already found.
+   * Must only be called if the RT of the scan is not below the RT range and isFinished() returns
+   * false for it.
+   * 
+   * @param basePeak top m/z peak inside the m/z range or null, if there is no m/z peak
+   */
+  void offerNextScan(Scan scan, DataPoint basePeak) {
+
+    double scanRT = scan.getRetentionTime();
+
     GapDataPoint currentDataPoint;
     if (basePeak != null) {
       currentDataPoint =
@@ -111,6 +126,21 @@ public class Gap {
 
   }
 
+  /**
+   * Returns true if a scan of given RT is after the RT range and the last peak is finished
+   */
+  boolean isFinished(double scanRT) {
+    return (scanRT > rtRange.upperEndpoint()) && (currentPeakDataPoints == null);
+  }
+
+  Range<Double> getMZRange() {
+    return mzRange;
+  }
+
+  Range<Double> getRTRange() {
+    return rtRange;
+  }
+
   /**
    * Finalizes the gap, adds a peak
    * 
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.gapfilling.peakfinder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Scan;
+
+/**
+ * Offers the scans of one raw data file to all gaps of that file, reading the data points of each
+ * scan only once. The gaps are activated in the order of their RT ranges, so only the gaps whose RT
+ * range was reached are checked for each scan. The active gaps are kept sorted by m/z, so their top
+ * m/z peaks are found in one pass over the data points of the scan. The gaps are filled the same
+ * way as by offering each scan to each gap by Gap.offerNextScan(Scan).
+ */
+public class GapFiller {
+
+  private static final Comparator<Gap> mzComparator =
+      (a, b) -> Double.compare(a.getMZRange().lowerEndpoint(), b.getMZRange().lowerEndpoint());
+
+  private final List<Gap> gaps;
+
+  // Gaps sorted by the start of their RT range and the number of gaps already activated
+  private final Gap gapsByRT[];
+  private int activatedGaps = 0;
+
+  // Activated gaps that still need scans, sorted by the start of their m/z range
+  private List<Gap> activeGaps = new ArrayList<>();
+
+  // Gaps that are finished as long as the RT of the offered scans does not decrease
+  private final List<Gap> finishedGaps = new ArrayList<>();
+
+  private double lastScanRT = Double.NEGATIVE_INFINITY;
+  private boolean increasingRT = true;
+
+  public GapFiller(List<Gap> gaps) {
+    this.gaps = gaps;
+    gapsByRT = gaps.toArray(new Gap[0]);
+    Arrays.sort(gapsByRT, Comparator.comparingDouble(GapFiller::getActivationRT));
+  }
+
+  /**
+   * Offers the next scan to all gaps
+   */
+  public void offerNextScan(Scan scan) {
+
+    final double scanRT = scan.getRetentionTime();
+
+    // Activate the gaps whose RT range was reached. If the RT of the scans is not increasing (which
+    // should never happen), all gaps check each scan themselves, same as Gap.offerNextScan(Scan).
+    final int previouslyActiveGaps = activeGaps.size();
+    if (increasingRT && !(scanRT >= lastScanRT)) {
+      increasingRT = false;
+      activeGaps.addAll(finishedGaps);
+      finishedGaps.clear();
+      while (activatedGaps < gapsByRT.length)
+        activeGaps.add(gapsByRT[activatedGaps++]);
+    }
+    while ((activatedGaps < gapsByRT.length)
+        && (getActivationRT(gapsByRT[activatedGaps]) <= scanRT))
+      activeGaps.add(gapsByRT[activatedGaps++]);
+    if (activeGaps.size() > previouslyActiveGaps)
+      activeGaps.sort(mzComparator);
+    lastScanRT = scanRT;
+
+    DataPoint dataPoints[] = null;
+    boolean sortedByMZ = false;
+    int position = 0;
+
+    List<Gap> stillActiveGaps = new ArrayList<>(activeGaps.size());
+    for (Gap gap : activeGaps) {
+
+      // If not yet inside the RT range
+      if (scanRT < gap.getRTRange().lowerEndpoint()) {
+        stillActiveGaps.add(gap);
+        continue;
+      }
+
+      // If we have passed the RT range and finished processing last peak
+      if (gap.isFinished(scanRT)) {
+        if (increasingRT)
+          finishedGaps.add(gap);
+        else
+          stillActiveGaps.add(gap);
+        continue;
+      }
+      stillActiveGaps.add(gap);
+
+      if (dataPoints == null) {
+        dataPoints = scan.getDataPoints();
+        sortedByMZ = isSortedByMZ(dataPoints);
+      }
+
+      // Find the first data point inside the m/z range, same as Scan.getDataPointsByMass(). The
+      // gaps are sorted by the start of their m/z range, so the search can continue from the data
+      // point found for the previous gap.
+      final double lowerMZ = gap.getMZRange().lowerEndpoint();
+      final boolean continueSearch = sortedByMZ && !Double.isNaN(lowerMZ);
+      int start = continueSearch ? position : 0;
+      while ((start < dataPoints.length) && !(dataPoints[start].getMZ() >= lowerMZ))
+        start++;
+      if (continueSearch)
+        position = start;
+
+      // Find top m/z peak in the m/z range, same as ScanUtils.findBasePeak()
+      final double upperMZ = gap.getMZRange().upperEndpoint();
+      DataPoint basePeak = null;
+      for (int i = start; (i < dataPoints.length) && !(dataPoints[i].getMZ() > upperMZ); i++) {
+        if ((basePeak == null) || (dataPoints[i].getIntensity() > basePeak.getIntensity()))
+          basePeak = dataPoints[i];
+      }
+
+      gap.offerNextScan(scan, basePeak);
+    }
+    activeGaps = stillActiveGaps;
+
+  }
+
+  /**
+   * Finalizes all gaps, adding the found peaks
+   */
+  public void noMoreOffers() {
+    for (Gap gap : gaps)
+      gap.noMoreOffers();
+  }
+
+  /**
+   * Returns the RT from which on the gap needs scans
+   */
+  private static double getActivationRT(Gap gap) {
+    final double lowerRT = gap.getRTRange().lowerEndpoint();
+    // A gap without a valid RT range checks all scans
+    return Double.isNaN(lowerRT) ? Double.NEGATIVE_INFINITY : lowerRT;
+  }
+
+  private static boolean isSortedByMZ(DataPoint dataPoints[]) {
+    for (int i = 1; i < dataPoints.length; i++) {
+      if (!(dataPoints[i - 1].getMZ() <= dataPoints[i].getMZ()))
+        return false;
+    }
+    return true;
+  }
+
+}
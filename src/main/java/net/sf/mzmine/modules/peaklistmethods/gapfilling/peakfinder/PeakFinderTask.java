@@ -168,6 +168,9 @@ class PeakFinderTask extends AbstractTask {
           return;
         }
 
+        // Offers each scan to all gaps, reading its data points only once
+        GapFiller gapFiller = new GapFiller(gaps);
+
         // Get all scans of this data file
         int scanNumbers[] = dataFile.getScanNumbers(1);
 
@@ -183,17 +186,13 @@ class PeakFinderTask extends AbstractTask {
           Scan scan = dataFile.getScan(scanNumber);
 
           // Feed this scan to all gaps
-          for (Gap gap : gaps) {
-            gap.offerNextScan(scan);
-          }
+          gapFiller.offerNextScan(scan);
 
           processedScans.incrementAndGet();
         }
 
         // Finalize gaps
-        for (Gap gap : gaps) {
-          gap.noMoreOffers();
-        }
+        gapFiller.noMoreOffers();
       });
     }
     // terminate - stream only skips all elements
@@ -304,6 +303,9 @@ class PeakFinderTask extends AbstractTask {
           continue;
         }
 
+        // Offers each scan to all gaps, reading its data points only once
+        GapFiller gapFiller = new GapFiller(gaps);
+
         // Get all scans of this data file
         int scanNumbers[] = datafile1.getScanNumbers(1);
 
@@ -319,16 +321,12 @@ class PeakFinderTask extends AbstractTask {
           Scan scan = datafile1.getScan(scanNumber);
 
           // Feed this scan to all gaps
-          for (Gap gap : gaps) {
-            gap.offerNextScan(scan);
-          }
+          gapFiller.offerNextScan(scan);
           processedScans.incrementAndGet();
         }
 
         // Finalize gaps
-        for (Gap gap : gaps) {
-          gap.noMoreOffers();
-        }
+        gapFiller.noMoreOffers();
       }
     }
   }
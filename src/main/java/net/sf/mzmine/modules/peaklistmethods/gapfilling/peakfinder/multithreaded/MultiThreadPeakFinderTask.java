@@ -29,6 +29,7 @@ import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.modules.peaklistmethods.gapfilling.peakfinder.Gap;
+import net.sf.mzmine.modules.peaklistmethods.gapfilling.peakfinder.GapFiller;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
@@ -126,6 +127,9 @@ class MultiThreadPeakFinderTask extends AbstractTask {
         continue;
       }
 
+      // Offers each scan to all gaps, reading its data points only once
+      GapFiller gapFiller = new GapFiller(gaps);
+
       // Get all scans of this data file
       int scanNumbers[] = dataFile.getScanNumbers(1);
 
@@ -140,17 +144,13 @@ class MultiThreadPeakFinderTask extends AbstractTask {
         Scan scan = dataFile.getScan(scanNumber);
 
         // Feed this scan to all gaps
-        for (Gap gap : gaps) {
-          gap.offerNextScan(scan);
-        }
+        gapFiller.offerNextScan(scan);
 
         processedScans++;
       }
 
       // Finalize gaps
-      for (Gap gap : gaps) {
-        gap.noMoreOffers();
-      }
+      gapFiller.noMoreOffers();
     }
 
     // first notify listener
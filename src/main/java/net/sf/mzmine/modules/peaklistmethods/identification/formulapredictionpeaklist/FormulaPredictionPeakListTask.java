@@ -17,10 +17,17 @@
  */
 package net.sf.mzmine.modules.peaklistmethods.identification.formulapredictionpeaklist;
 
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 import org.openscience.cdk.formula.MolecularFormulaGenerator;
 import org.openscience.cdk.formula.MolecularFormulaRange;
 import org.openscience.cdk.interfaces.IChemObjectBuilder;
@@ -55,20 +62,21 @@ import net.sf.mzmine.util.FormulaUtils;
 public class FormulaPredictionPeakListTask extends AbstractTask {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
-  private Range<Double> massRange;
   private MolecularFormulaRange elementCounts;
-  private MolecularFormulaGenerator generator;
   private IonizationType ionType;
-  private double searchedMass;
   private int charge;
   private PeakList peakList;
   private boolean checkIsotopes, checkMSMS, checkRatios, checkRDBE;
   private ParameterSet isotopeParameters, msmsParameters, ratiosParameters, rdbeParameters;
   private MZTolerance mzTolerance;
   private String message;
-  private int totalRows, finishedRows;
+  private int totalRows;
+  private final AtomicInteger finishedRows = new AtomicInteger();
   private int maxBestFormulasPerPeak;
 
+  // Formula generators of the groups being predicted, so they can be cancelled
+  private final Set<MolecularFormulaGenerator> generators = ConcurrentHashMap.newKeySet();
+
   /**
    *
    * @param parameters
@@ -122,7 +130,7 @@ public class FormulaPredictionPeakListTask extends AbstractTask {
   public double getFinishedPercentage() {
     if (totalRows == 0)
       return 0.0;
-    return (double) finishedRows / (double) totalRows;
+    return (double) finishedRows.get() / (double) totalRows;
   }
 
   /**
@@ -141,78 +149,182 @@ public class FormulaPredictionPeakListTask extends AbstractTask {
 
     totalRows = peakList.getNumberOfRows();
 
+    final double isotopeNoiseLevel = isotopeParameters
+        .getParameter(IsotopePatternScoreParameters.isotopeNoiseLevel).getValue();
+
+    List<RowPrediction> predictions = new ArrayList<>();
     for (PeakListRow row : peakList.getRows()) {
 
       if (row.getPeakIdentities().length > 0) {
+        finishedRows.incrementAndGet();
         continue;
       }
 
-      this.searchedMass = (row.getAverageMZ() - ionType.getAddedMass()) * charge;
+      RowPrediction prediction = new RowPrediction();
+      prediction.row = row;
+      prediction.searchedMass = (row.getAverageMZ() - ionType.getAddedMass()) * charge;
+      prediction.massRange = mzTolerance.getToleranceRange(prediction.searchedMass);
+
+      IsotopePattern detectedPattern = row.getBestIsotopePattern();
+      if ((checkIsotopes) && (detectedPattern != null)) {
+        final double detectedPatternHeight = detectedPattern.getHighestDataPoint().getIntensity();
+        prediction.minPredictedAbundance = isotopeNoiseLevel / detectedPatternHeight;
+      }
+      predictions.add(prediction);
+    }
 
+    // Group the rows whose mass ranges overlap, so the formulas of each group are enumerated only
+    // once
+    predictions.sort(Comparator.comparingDouble(p -> p.massRange.lowerEndpoint()));
+    List<RowPrediction[]> groups = new ArrayList<>();
+    int groupStart = 0;
+    double groupUpperMass = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < predictions.size(); i++) {
+      Range<Double> massRange = predictions.get(i).massRange;
+      if ((i > groupStart) && (massRange.lowerEndpoint() > groupUpperMass)) {
+        groups.add(predictions.subList(groupStart, i).toArray(new RowPrediction[0]));
+        groupStart = i;
+      }
+      groupUpperMass = (i == groupStart) ? massRange.upperEndpoint()
+          : Math.max(groupUpperMass, massRange.upperEndpoint());
+    }
+    if (groupStart < predictions.size())
+      groups.add(predictions.subList(groupStart, predictions.size()).toArray(new RowPrediction[0]));
+
+    // Each group is predicted by a single worker with its own formula generator
+    IntStream.range(0, groups.size()).parallel().forEach(i -> {
+      if (isCanceled())
+        return;
+      RowPrediction group[] = groups.get(i);
       message = "Formula prediction for "
-          + MZmineCore.getConfiguration().getMZFormat().format(searchedMass);
+          + MZmineCore.getConfiguration().getMZFormat().format(group[0].searchedMass);
+      predictFormulas(group);
+      finishedRows.addAndGet(group.length);
+    });
 
-      massRange = mzTolerance.getToleranceRange(searchedMass);
+    if (isCanceled())
+      return;
+
+    // Add the new formula entry top results
+    for (RowPrediction prediction : predictions) {
+      for (String formula : prediction.bestFormulas) {
+        SimplePeakIdentity newIdentity = new SimplePeakIdentity(formula);
+        prediction.row.addPeakIdentity(newIdentity, false);
+      }
+    }
+
+    logger.finest("Finished formula search for all the peaks");
 
-      IChemObjectBuilder builder = SilentChemObjectBuilder.getInstance();
-      generator = new MolecularFormulaGenerator(builder, massRange.lowerEndpoint(),
-          massRange.upperEndpoint(), elementCounts);
+    setStatus(TaskStatus.FINISHED);
 
-      IMolecularFormula cdkFormula;
+  }
+
+  /**
+   * Predicts the formulas of a group of rows with overlapping mass ranges. A single generator
+   * enumerates the formulas of the whole group into a mass-sorted table, which is then searched
+   * for the mass range of each row. The elemental ratio and RDBE restrictions are checked once per
+   * formula. The isotope pattern of each formula is predicted once for each minimum abundance of
+   * the rows, so every row is scored exactly as if it was predicted on its own.
+   */
+  private void predictFormulas(RowPrediction group[]) {
+
+    double minMass = group[0].massRange.lowerEndpoint();
+    double maxMass = group[0].massRange.upperEndpoint();
+    for (RowPrediction prediction : group)
+      maxMass = Math.max(maxMass, prediction.massRange.upperEndpoint());
+
+    IChemObjectBuilder builder = SilentChemObjectBuilder.getInstance();
+    MolecularFormulaGenerator generator =
+        new MolecularFormulaGenerator(builder, minMass, maxMass, elementCounts);
+    generators.add(generator);
+
+    IMolecularFormula cdkFormula;
+    List<CandidateFormula> candidates = new ArrayList<>();
+    try {
+      while ((cdkFormula = generator.getNextFormula()) != null) {
+        if (isCanceled())
+          return;
+
+        if (checkFormulaConstraints(cdkFormula) == true) {
+          CandidateFormula candidate = new CandidateFormula();
+          candidate.cdkFormula = cdkFormula;
+          candidate.formula = MolecularFormulaManipulator.getString(cdkFormula);
+          candidate.mass = FormulaUtils.calculateExactMass(candidate.formula);
+          candidates.add(candidate);
+        }
+      }
+    } finally {
+      generators.remove(generator);
+    }
+
+    if (isCanceled())
+      return;
+
+    candidates.sort(Comparator.comparingDouble(c -> c.mass));
+    double candidateMasses[] = new double[candidates.size()];
+    for (int i = 0; i < candidateMasses.length; i++)
+      candidateMasses[i] = candidates.get(i).mass;
+
+    for (RowPrediction prediction : group) {
+
+      final double searchedMass = prediction.searchedMass;
 
       // create a map to store ResultFormula and relative mass deviation for sorting
       Map<Double, String> possibleFormulas = new TreeMap<>();
-      while ((cdkFormula = generator.getNextFormula()) != null) {
+      for (int i = lowerBound(candidateMasses, prediction.massRange.lowerEndpoint());
+          i < candidateMasses.length
+              && candidateMasses[i] <= prediction.massRange.upperEndpoint();
+          i++) {
         if (isCanceled())
           return;
 
-        // Mass is ok, so test other constraints
-        if (checkConstraints(cdkFormula, row) == true) {
-          String formula = MolecularFormulaManipulator.getString(cdkFormula);
+        CandidateFormula candidate = candidates.get(i);
+
+        // Mass is ok, so test the row constraints
+        if (checkRowConstraints(candidate, prediction) == true) {
 
           // calc rel mass deviation
-          Double relMassDev =
-              ((searchedMass - (FormulaUtils.calculateExactMass(formula))) / searchedMass)
-                  * 1000000;
+          Double relMassDev = ((searchedMass - candidate.mass) / searchedMass) * 1000000;
 
           // write to map
-          possibleFormulas.put(relMassDev, formula);
+          possibleFormulas.put(relMassDev, candidate.formula);
         }
       }
 
-      if (isCanceled())
-        return;
-
       // create a map to store ResultFormula and relative mass deviation for sorting
       Map<Double, String> possibleFormulasSorted = new TreeMap<>(
           (Comparator<Double>) (o1, o2) -> Double.compare(Math.abs(o1), Math.abs(o2)));
       possibleFormulasSorted.putAll(possibleFormulas);
 
-      // Add the new formula entry top results
-      int ctr = 0;
-      for (Map.Entry<Double, String> entry : possibleFormulasSorted.entrySet()) {
-        if (ctr < maxBestFormulasPerPeak) {
-          SimplePeakIdentity newIdentity = new SimplePeakIdentity(entry.getValue());
-          row.addPeakIdentity(newIdentity, false);
-          ctr++;
-        }
+      List<String> bestFormulas = new ArrayList<>();
+      for (String formula : possibleFormulasSorted.values()) {
+        if (bestFormulas.size() >= maxBestFormulasPerPeak)
+          break;
+        bestFormulas.add(formula);
       }
-      if (isCanceled())
-        return;
-      finishedRows++;
-
+      prediction.bestFormulas = bestFormulas;
     }
+  }
 
-    if (isCanceled())
-      return;
-
-    logger.finest("Finished formula search for all the peaks");
-
-    setStatus(TaskStatus.FINISHED);
-
+  /**
+   * Returns the index of the first value which is not lower than the given value
+   */
+  private static int lowerBound(double values[], double value) {
+    int low = 0, high = values.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (values[middle] < value)
+        low = middle + 1;
+      else
+        high = middle;
+    }
+    return low;
   }
 
-  private boolean checkConstraints(IMolecularFormula cdkFormula, PeakListRow peakListRow) {
+  /**
+   * Checks the restrictions which only depend on the formula itself
+   */
+  private boolean checkFormulaConstraints(IMolecularFormula cdkFormula) {
 
     // Check elemental ratios
     if (checkRatios) {
@@ -232,25 +344,33 @@ public class FormulaPredictionPeakListTask extends AbstractTask {
       }
     }
 
+    return true;
+  }
+
+  /**
+   * Checks the isotope pattern and MS/MS restrictions of the row
+   */
+  private boolean checkRowConstraints(CandidateFormula candidate, RowPrediction prediction) {
+
+    PeakListRow peakListRow = prediction.row;
+    IMolecularFormula cdkFormula = candidate.cdkFormula;
+
     // Calculate isotope similarity score
     IsotopePattern detectedPattern = peakListRow.getBestIsotopePattern();
     IsotopePattern predictedIsotopePattern = null;
     Double isotopeScore = null;
-    if ((checkIsotopes) && (detectedPattern != null)) {
-
-      String stringFormula = MolecularFormulaManipulator.getString(cdkFormula);
-
-      String adjustedFormula = FormulaUtils.ionizeFormula(stringFormula, ionType, charge);
-
-      final double isotopeNoiseLevel = isotopeParameters
-          .getParameter(IsotopePatternScoreParameters.isotopeNoiseLevel).getValue();
-
-      final double detectedPatternHeight = detectedPattern.getHighestDataPoint().getIntensity();
-
-      final double minPredictedAbundance = isotopeNoiseLevel / detectedPatternHeight;
-
-      predictedIsotopePattern = IsotopePatternCalculator.calculateIsotopePattern(adjustedFormula,
-          minPredictedAbundance, charge, ionType.getPolarity());
+    if (prediction.minPredictedAbundance != null) {
+
+      // The minimum abundance also prunes the isotope combinations while predicting, so a pattern
+      // predicted for a lower abundance and cut off afterwards may differ. Rows of the same
+      // abundance share the pattern.
+      predictedIsotopePattern =
+          candidate.isotopePatterns.computeIfAbsent(prediction.minPredictedAbundance, abundance -> {
+            String adjustedFormula =
+                FormulaUtils.ionizeFormula(candidate.formula, ionType, charge);
+            return IsotopePatternCalculator.calculateIsotopePattern(adjustedFormula, abundance,
+                charge, ionType.getPolarity());
+          });
 
       isotopeScore = IsotopePatternScoreCalculator.getSimilarityScore(detectedPattern,
           predictedIsotopePattern, isotopeParameters);
@@ -302,11 +422,35 @@ public class FormulaPredictionPeakListTask extends AbstractTask {
   public void cancel() {
     super.cancel();
 
-    // We need to cancel the formula generator, because searching for next
+    // We need to cancel the formula generators, because searching for next
     // candidate formula may take a looong time
-    if (generator != null) {
+    for (MolecularFormulaGenerator generator : generators) {
       generator.cancel();
     }
 
   }
+
+  /**
+   * Searched mass and results of a row
+   */
+  private static class RowPrediction {
+    PeakListRow row;
+    double searchedMass;
+    Range<Double> massRange;
+    // Only set if the isotope pattern is checked
+    Double minPredictedAbundance;
+    List<String> bestFormulas = new ArrayList<>();
+  }
+
+  /**
+   * Generated formula which passed the elemental ratio and RDBE restrictions
+   */
+  private static class CandidateFormula {
+    IMolecularFormula cdkFormula;
+    String formula;
+    double mass;
+    // Predicted lazily for each minimum abundance, when the isotope pattern of a row is checked.
+    // Only the worker of the group accesses it.
+    Map<Double, IsotopePattern> isotopePatterns = new HashMap<>();
+  }
 }
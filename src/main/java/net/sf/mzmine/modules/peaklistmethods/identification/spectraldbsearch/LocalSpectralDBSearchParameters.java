@@ -51,6 +51,11 @@ public class LocalSpectralDBSearchParameters extends SimpleParameterSet {
   public static final FileNameParameter dataBaseFile = new FileNameParameter("Database file",
       "(GNPS json, MONA json, NIST msp, JCAMP-DX jdx) Name of file that contains information for peak identification");
 
+  public static final BooleanParameter cacheNextToLibrary = new BooleanParameter(
+      "Cache next to database file",
+      "Store the parsed database in a binary file next to the database file (file name + .mzlib) instead of the temporary directory, so it is kept for later sessions",
+      false);
+
   public static final OptionalModuleParameter<MassListDeisotoperParameters> deisotoping =
       new OptionalModuleParameter<>("13C deisotoping",
           "Removes 13C isotope signals from mass lists", new MassListDeisotoperParameters(), true);
@@ -94,9 +99,9 @@ public class LocalSpectralDBSearchParameters extends SimpleParameterSet {
 
 
   public LocalSpectralDBSearchParameters() {
-    super(new Parameter[] {peakLists, massList, dataBaseFile, msLevel, mzTolerancePrecursor,
-        noiseLevel, deisotoping, cropSpectraToOverlap, mzTolerance, rtTolerance, minMatch,
-        similarityFunction});
+    super(new Parameter[] {peakLists, massList, dataBaseFile, cacheNextToLibrary, msLevel,
+        mzTolerancePrecursor, noiseLevel, deisotoping, cropSpectraToOverlap, mzTolerance,
+        rtTolerance, minMatch, similarityFunction});
   }
 
   @Override
@@ -21,11 +21,13 @@ package net.sf.mzmine.modules.peaklistmethods.identification.spectraldbsearch;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
 import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.desktop.Desktop;
 import net.sf.mzmine.desktop.impl.HeadLessDesktop;
@@ -33,18 +35,25 @@ import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.taskcontrol.TaskStatusListener;
 import net.sf.mzmine.util.spectraldb.entry.SpectralDBEntry;
 import net.sf.mzmine.util.spectraldb.parser.AutoLibraryParser;
 import net.sf.mzmine.util.spectraldb.parser.LibraryEntryProcessor;
+import net.sf.mzmine.util.spectraldb.parser.SpectralDBCacheFile;
 import net.sf.mzmine.util.spectraldb.parser.UnsupportedFormatException;
 
 class LocalSpectralDBSearchTask extends AbstractTask {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
+  // The rows are split into more sub tasks than threads, as the number of library entries matching
+  // the precursor m/z varies a lot between rows
+  private static final int SUB_TASKS_PER_THREAD = 4;
+
   private final PeakList peakList;
   private final @Nonnull String massListName;
   private final File dataBaseFile;
+  private final boolean cacheNextToLibrary;
 
   private ParameterSet parameters;
 
@@ -52,11 +61,27 @@ class LocalSpectralDBSearchTask extends AbstractTask {
 
   private int totalTasks;
 
+  // Number of status changes of the sub tasks (and of this task)
+  private long statusChanges = 0;
+
+  /**
+   * Wakes up this task waiting for its sub tasks, whenever the status of one of them (or of this
+   * task) changes
+   */
+  private final TaskStatusListener subTaskStatusListener = (task, newStatus, oldStatus) -> {
+    synchronized (this) {
+      statusChanges++;
+      this.notifyAll();
+    }
+  };
+
   LocalSpectralDBSearchTask(PeakList peakList, ParameterSet parameters) {
     this.peakList = peakList;
     this.parameters = parameters;
     dataBaseFile = parameters.getParameter(LocalSpectralDBSearchParameters.dataBaseFile).getValue();
     massListName = parameters.getParameter(LocalSpectralDBSearchParameters.massList).getValue();
+    cacheNextToLibrary =
+        parameters.getParameter(LocalSpectralDBSearchParameters.cacheNextToLibrary).getValue();
   }
 
   /**
@@ -83,30 +108,50 @@ class LocalSpectralDBSearchTask extends AbstractTask {
   @Override
   public void run() {
     setStatus(TaskStatus.PROCESSING);
+    // Canceling this task wakes it up while waiting for the sub tasks
+    addTaskStatusListener(subTaskStatusListener);
     int count = 0;
     try {
-      tasks = parseFile(dataBaseFile);
-      totalTasks = tasks.size();
-      if (!tasks.isEmpty()) {
+      SpectralDBPrecursorIndex library = parseFile(dataBaseFile);
+      if (isCanceled())
+        return;
+      if (library.size() > 0) {
+        tasks = startTasks(library);
+        totalTasks = tasks.size();
+        // A cancelled sub task may still be reading the library
+        boolean cancelledSubTasks = false;
         // wait for the tasks to finish
         while (!isCanceled() && !tasks.isEmpty()) {
+          final long checkedStatusChanges;
+          synchronized (this) {
+            checkedStatusChanges = statusChanges;
+          }
           for (int i = 0; i < tasks.size(); i++) {
-            if (tasks.get(i).isFinished() || tasks.get(i).isCanceled()) {
-              count += tasks.get(i).getCount();
+            PeakListSpectralMatchTask task = tasks.get(i);
+            if (task.isFinished() || task.isCanceled()
+                || task.getStatus() == TaskStatus.ERROR) {
+              count += task.getCount();
+              cancelledSubTasks |= task.isCanceled();
               tasks.remove(i);
               i--;
             }
           }
-          // wait for all sub tasks to finish
-          try {
-            Thread.sleep(100);
-          } catch (Exception e) {
-            cancel();
+          // wait for the next status change of a sub task
+          synchronized (this) {
+            try {
+              while (!tasks.isEmpty() && statusChanges == checkedStatusChanges)
+                this.wait();
+            } catch (InterruptedException e) {
+              cancel();
+            }
           }
         }
         // cancelled
         if (isCanceled()) {
           tasks.stream().forEach(AbstractTask::cancel);
+        } else if (!cancelledSubTasks) {
+          // Otherwise the cache is released once the sub tasks do not refer to it any more
+          library.close();
         }
       } else {
         setStatus(TaskStatus.ERROR);
@@ -133,28 +178,71 @@ class LocalSpectralDBSearchTask extends AbstractTask {
   }
 
   /**
-   * Load all library entries from data base file
+   * Load all library entries from data base file, or from its cache if the file did not change
+   * since the cache was written. The cache is written after parsing the file.
    * 
    * @param dataBaseFile
-   * @return
+   * @return library entries indexed by precursor m/z
    */
-  private List<PeakListSpectralMatchTask> parseFile(File dataBaseFile)
+  private SpectralDBPrecursorIndex parseFile(File dataBaseFile)
       throws UnsupportedFormatException, IOException {
-    //
-    List<PeakListSpectralMatchTask> tasks = new ArrayList<>();
-    AutoLibraryParser parser = new AutoLibraryParser(100, new LibraryEntryProcessor() {
+    try {
+      SpectralDBCacheFile cache = SpectralDBCacheFile.open(dataBaseFile, cacheNextToLibrary);
+      if (cache != null)
+        return new SpectralDBPrecursorIndex(cache);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not read cache of " + dataBaseFile, e);
+    }
+
+    List<SpectralDBEntry> entries = new ArrayList<>();
+    AutoLibraryParser parser = new AutoLibraryParser(1000, new LibraryEntryProcessor() {
       @Override
       public void processNextEntries(List<SpectralDBEntry> list, int alreadyProcessed) {
-        // start last task
-        PeakListSpectralMatchTask task =
-            new PeakListSpectralMatchTask(peakList, parameters, alreadyProcessed + 1, list);
-        MZmineCore.getTaskController().addTask(task);
-        tasks.add(task);
+        synchronized (entries) {
+          entries.addAll(list);
+        }
       }
     });
 
-    // return tasks
-    parser.parse(this, dataBaseFile);
+    boolean parsed = parser.parse(this, dataBaseFile);
+    synchronized (entries) {
+      if (parsed && !isCanceled() && !entries.isEmpty()) {
+        try {
+          SpectralDBCacheFile.write(dataBaseFile, entries, cacheNextToLibrary);
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Could not write cache of " + dataBaseFile, e);
+        }
+      }
+      return new SpectralDBPrecursorIndex(entries);
+    }
+  }
+
+  /**
+   * Splits the rows of the peak list into sub tasks, which match them in parallel against all
+   * library entries
+   * 
+   * @param library
+   * @return started tasks
+   */
+  private List<PeakListSpectralMatchTask> startTasks(SpectralDBPrecursorIndex library) {
+    PeakListRow rows[] = peakList.getRows();
+    int numOfTasks = Math.max(1, Math.min(rows.length,
+        Runtime.getRuntime().availableProcessors() * SUB_TASKS_PER_THREAD));
+    int rowsPerTask = (rows.length + numOfTasks - 1) / numOfTasks;
+
+    List<PeakListSpectralMatchTask> tasks = new ArrayList<>();
+    for (int start = 0; start < rows.length; start += rowsPerTask) {
+      PeakListRow taskRows[] =
+          Arrays.copyOfRange(rows, start, Math.min(start + rowsPerTask, rows.length));
+      PeakListSpectralMatchTask task =
+          new PeakListSpectralMatchTask(peakList, parameters, start + 1, taskRows, library);
+      // add the listener before starting, so no status change is missed
+      task.addTaskStatusListener(subTaskStatusListener);
+      tasks.add(task);
+    }
+    MZmineCore.getTaskController().addTasks(tasks.toArray(new PeakListSpectralMatchTask[0]));
+    logger.info("Matching " + rows.length + " rows against " + library.size()
+        + " library entries in " + tasks.size() + " tasks");
     return tasks;
   }
 
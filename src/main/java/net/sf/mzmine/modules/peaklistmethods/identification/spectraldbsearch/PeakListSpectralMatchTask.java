@@ -50,6 +50,7 @@ import net.sf.mzmine.util.scans.sorting.ScanSortMode;
 import net.sf.mzmine.util.spectraldb.entry.DBEntryField;
 import net.sf.mzmine.util.spectraldb.entry.SpectralDBEntry;
 import net.sf.mzmine.util.spectraldb.entry.SpectralDBPeakIdentity;
+import net.sf.mzmine.util.spectraldb.parser.SpectralDBCacheFile;
 
 public class PeakListSpectralMatchTask extends AbstractTask {
 
@@ -73,13 +74,13 @@ public class PeakListSpectralMatchTask extends AbstractTask {
   private final int msLevel;
   private final double noiseLevel;
   private final int minMatch;
-  private List<SpectralDBEntry> list;
+  private SpectralDBPrecursorIndex library;
+  private final PeakListRow rows[];
 
   private int count = 0;
 
-  // as this module is started in a series the start entry is saved to track progress
-  private int startEntry;
-  private int listsize;
+  // as this module is started in a series the start row is saved to track progress
+  private final int startRow;
   private MZmineProcessingStep<SpectralSimilarityFunction> simFunction;
 
   // remove 13C isotopes
@@ -88,13 +89,17 @@ public class PeakListSpectralMatchTask extends AbstractTask {
 
   private final boolean cropSpectraToOverlap;
 
-  public PeakListSpectralMatchTask(PeakList peakList, ParameterSet parameters, int startEntry,
-      List<SpectralDBEntry> list) {
+  /**
+   * Matches the rows of the peak list from startRow (starting at 1) against all entries of the
+   * library
+   */
+  public PeakListSpectralMatchTask(PeakList peakList, ParameterSet parameters, int startRow,
+      PeakListRow rows[], SpectralDBPrecursorIndex library) {
     this.peakList = peakList;
     this.parameters = parameters;
-    this.startEntry = startEntry;
-    this.list = list;
-    listsize = list.size();
+    this.startRow = startRow;
+    this.rows = rows;
+    this.library = library;
     dataBaseFile = parameters.getParameter(LocalSpectralDBSearchParameters.dataBaseFile).getValue();
     massListName = parameters.getParameter(LocalSpectralDBSearchParameters.massList).getValue();
     mzToleranceSpectra =
@@ -121,7 +126,7 @@ public class PeakListSpectralMatchTask extends AbstractTask {
     else
       mzTolerancePrecursor = null;
 
-    totalRows = peakList.getNumberOfRows();
+    totalRows = rows.length;
   }
 
   /**
@@ -140,8 +145,8 @@ public class PeakListSpectralMatchTask extends AbstractTask {
   @Override
   public String getTaskDescription() {
     return MessageFormat.format(
-        "(entry {2}-{3}) spectral database identification in {0} using database {1}",
-        peakList.getName(), dataBaseFile.getName(), startEntry, startEntry + listsize - 1);
+        "(rows {2}-{3}) spectral database identification in {0} using database {1}",
+        peakList.getName(), dataBaseFile.getName(), startRow, startRow + totalRows - 1);
   }
 
   /**
@@ -150,7 +155,7 @@ public class PeakListSpectralMatchTask extends AbstractTask {
   @Override
   public void run() {
     setStatus(TaskStatus.PROCESSING);
-    for (PeakListRow row : peakList.getRows()) {
+    for (PeakListRow row : rows) {
       if (isCanceled()) {
         logger.info("Added " + count + " spectral library matches (before being cancelled)");
         repaintWindow();
@@ -172,16 +177,20 @@ public class PeakListSpectralMatchTask extends AbstractTask {
       if (scan != null) {
         try {
           // get mass list and perform deisotoping if active
-          DataPoint[] rowMassList = getDataPoints(row, true);
+          Scan matchedScan = getScan(row);
+          DataPoint[] rowMassList = getDataPoints(matchedScan, true);
           if (removeIsotopes)
             rowMassList = removeIsotopes(rowMassList);
 
-          // match against all library entries
-          for (SpectralDBEntry ident : list) {
+          // match against all library entries with a matching precursor m/z
+          List<SpectralDBEntry> candidates =
+              msLevel == 1 ? library.getEntries()
+                  : library.getCandidates(row.getAverageMZ(), mzTolerancePrecursor);
+          for (SpectralDBEntry ident : candidates) {
             SpectralSimilarity sim = spectraDBMatch(row, rowMassList, ident);
             if (sim != null) {
               count++;
-              addIdentity(row, ident, sim);
+              addIdentity(row, matchedScan, ident, sim);
             }
           }
           // sort identities based on similarity score
@@ -195,7 +204,7 @@ public class PeakListSpectralMatchTask extends AbstractTask {
           logger.log(Level.WARNING, "Data base matching failed. To many missing mass lists ");
           setStatus(TaskStatus.ERROR);
           setErrorMessage("Data base matching failed. To many missing mass lists ");
-          list = null;
+          library = null;
           return;
         }
       }
@@ -208,7 +217,7 @@ public class PeakListSpectralMatchTask extends AbstractTask {
     // Repaint the window to reflect the change in the peak list
     repaintWindow();
 
-    list = null;
+    library = null;
     setStatus(TaskStatus.FINISHED);
   }
 
@@ -287,13 +296,10 @@ public class PeakListSpectralMatchTask extends AbstractTask {
   /**
    * Thresholded masslist
    * 
-   * @param row
+   * @param scan
    * @return
-   * @throws MissingMassListException
    */
-  private DataPoint[] getDataPoints(PeakListRow row, boolean noiseFilter)
-      throws MissingMassListException {
-    Scan scan = getScan(row);
+  private DataPoint[] getDataPoints(Scan scan, boolean noiseFilter) {
     if (scan == null || scan.getMassList(massListName) == null)
       return new DataPoint[0];
 
@@ -323,11 +329,12 @@ public class PeakListSpectralMatchTask extends AbstractTask {
     return scan;
   }
 
-  private void addIdentity(PeakListRow row, SpectralDBEntry ident, SpectralSimilarity sim)
-      throws MissingMassListException {
-    // add new identity to the row
-    row.addPeakIdentity(new SpectralDBPeakIdentity(getScan(row), massListName, ident, sim, METHOD),
-        false);
+  private void addIdentity(PeakListRow row, Scan scan, SpectralDBEntry ident,
+      SpectralSimilarity sim) {
+    // add new identity to the row. The identity is kept after the library was closed, so it must
+    // not refer to the cache of the library.
+    row.addPeakIdentity(new SpectralDBPeakIdentity(scan, massListName,
+        SpectralDBCacheFile.detach(ident), sim, METHOD), false);
   }
 
   public int getCount() {
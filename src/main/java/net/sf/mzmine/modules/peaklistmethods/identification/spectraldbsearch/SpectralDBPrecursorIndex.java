@@ -0,0 +1,141 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.identification.spectraldbsearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.util.ArrayUtils;
+import net.sf.mzmine.util.spectraldb.entry.SpectralDBEntry;
+import net.sf.mzmine.util.spectraldb.parser.SpectralDBCacheFile;
+
+/**
+ * Library entries sorted by precursor m/z, so the entries matching the precursor m/z of a row are
+ * found by a binary search instead of testing all entries. Entries without precursor m/z are only
+ * kept in the list of all entries.
+ */
+class SpectralDBPrecursorIndex {
+
+  // Relative margin of the search window, so rounding errors never exclude an entry. The exact
+  // tolerance check is done by the caller.
+  private static final double WINDOW_MARGIN = 1E-9;
+
+  private final List<SpectralDBEntry> entries;
+
+  // Precursor m/z values sorted in ascending order and the positions of the corresponding entries
+  private final double sortedPrecursorMZ[];
+  private final int sortedPositions[];
+
+  // Cache the entries were read from, or null
+  private final SpectralDBCacheFile cache;
+
+  SpectralDBPrecursorIndex(List<SpectralDBEntry> entries) {
+    this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+    this.cache = null;
+
+    double precursorMZ[] = new double[entries.size()];
+    int positions[] = new int[entries.size()];
+    int size = 0;
+    for (int i = 0; i < entries.size(); i++) {
+      Double mz = entries.get(i).getPrecursorMZ();
+      if (mz == null || mz.isNaN())
+        continue;
+      precursorMZ[size] = mz;
+      positions[size] = i;
+      size++;
+    }
+    ArrayUtils.sortIndexes(precursorMZ, positions, size);
+
+    sortedPrecursorMZ = Arrays.copyOf(precursorMZ, size);
+    sortedPositions = Arrays.copyOf(positions, size);
+  }
+
+  /**
+   * Index of a cached library, whose precursor m/z values were sorted when the cache was written
+   */
+  SpectralDBPrecursorIndex(SpectralDBCacheFile cache) {
+    this.entries = cache.getEntries();
+    this.sortedPrecursorMZ = cache.getSortedPrecursorMZ();
+    this.sortedPositions = cache.getSortedPositions();
+    this.cache = cache;
+  }
+
+  /**
+   * Releases the cache the entries were read from, if any. Entries can not be read afterwards.
+   */
+  void close() {
+    if (cache != null)
+      cache.close();
+  }
+
+  /**
+   * @return all entries in the order of the library
+   */
+  List<SpectralDBEntry> getEntries() {
+    return entries;
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the entries in the order of the library, which may pass
+   * mzTolerance.checkWithinTolerance(entry.getPrecursorMZ(), mz). The tolerance is calculated from
+   * the precursor m/z of the entry, so the window is extended accordingly above given m/z.
+   */
+  List<SpectralDBEntry> getCandidates(double mz, MZTolerance mzTolerance) {
+    final double lower = mz - mzTolerance.getMzToleranceForMass(mz);
+    final double relativeTolerance = mzTolerance.getPpmTolerance() / 1E6;
+    // precursor - mz <= max(absolute, precursor * relative)
+    final double upper = (relativeTolerance >= 1) ? Double.POSITIVE_INFINITY
+        : Math.max(mz + mzTolerance.getMzTolerance(), mz / (1 - relativeTolerance));
+    final double margin = Math.abs(mz) * WINDOW_MARGIN;
+
+    final int first = lowerBound(lower - margin);
+    final int last = lowerBound(Math.nextUp(upper + margin));
+    if (first >= last)
+      return Collections.emptyList();
+
+    int positions[] = Arrays.copyOfRange(sortedPositions, first, last);
+    Arrays.sort(positions);
+    List<SpectralDBEntry> candidates = new ArrayList<>(positions.length);
+    for (int position : positions)
+      candidates.add(entries.get(position));
+    return candidates;
+  }
+
+  /**
+   * @return the index of the first precursor m/z, which is not below given value
+   */
+  private int lowerBound(double value) {
+    int low = 0, high = sortedPrecursorMZ.length;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (sortedPrecursorMZ[middle] < value)
+        low = middle + 1;
+      else
+        high = middle;
+    }
+    return low;
+  }
+
+}
@@ -19,10 +19,12 @@
 package net.sf.mzmine.modules.peaklistmethods.io.csvexport;
 
 import java.io.File;
-import java.io.FileWriter;
+import java.io.IOException;
 import java.text.NumberFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
@@ -39,9 +41,11 @@ import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.PeakUtils;
 import net.sf.mzmine.util.RangeUtils;
+import net.sf.mzmine.util.io.ParallelRowWriter;
 
 public class CSVExportTask extends AbstractTask {
 
+  private static final Pattern CONTROL_CHARACTERS = Pattern.compile("[\\p{Cntrl}]");
 
   private PeakList[] peakLists;
   private int processedRows = 0, totalRows = 0;
@@ -56,6 +60,12 @@ public class CSVExportTask extends AbstractTask {
   private String idSeparator;
   private RowFilter filter;
 
+  // Copies of the number formats for each thread formatting the rows
+  private final ThreadLocal<NumberFormat> mzFormats = ThreadLocal
+      .withInitial(() -> (NumberFormat) MZmineCore.getConfiguration().getMZFormat().clone());
+  private final ThreadLocal<NumberFormat> rtFormats = ThreadLocal
+      .withInitial(() -> (NumberFormat) MZmineCore.getConfiguration().getRTFormat().clone());
+
   public CSVExportTask(ParameterSet parameters) {
     this.peakLists =
         parameters.getParameter(CSVExportParameters.peakLists).getValue().getMatchingPeakLists();
@@ -135,9 +145,9 @@ public class CSVExportTask extends AbstractTask {
       }
 
       // Open file
-      FileWriter writer;
+      ParallelRowWriter writer;
       try {
-        writer = new FileWriter(curFile);
+        writer = new ParallelRowWriter(curFile);
       } catch (Exception e) {
         setStatus(TaskStatus.ERROR);
         setErrorMessage("Could not open file " + curFile + " for writing.");
@@ -146,11 +156,6 @@ public class CSVExportTask extends AbstractTask {
 
       exportPeakList(peakList, writer, curFile);
 
-      // Cancel?
-      if (isCanceled()) {
-        return;
-      }
-
       // Close file
       try {
         writer.close();
@@ -160,6 +165,11 @@ public class CSVExportTask extends AbstractTask {
         return;
       }
 
+      // Cancel?
+      if (isCanceled()) {
+        return;
+      }
+
       // If peak list substitution pattern wasn't found,
       // treat one peak list only
       if (!substitute)
@@ -171,12 +181,11 @@ public class CSVExportTask extends AbstractTask {
 
   }
 
-  private void exportPeakList(PeakList peakList, FileWriter writer, File fileName) {
-    NumberFormat mzForm = MZmineCore.getConfiguration().getMZFormat();
+  private void exportPeakList(PeakList peakList, ParallelRowWriter writer, File fileName) {
     RawDataFile rawDataFiles[] = peakList.getRawDataFiles();
 
     // Buffer for writing
-    StringBuffer line = new StringBuffer();
+    StringBuilder line = new StringBuilder();
 
     // Write column headers
 
@@ -187,15 +196,21 @@ public class CSVExportTask extends AbstractTask {
       name = commonElements[i].toString();
       name = name.replace("Export ", "");
       name = escapeStringForCSV(name);
-      line.append(name + fieldSeparator);
+      line.append(name).append(fieldSeparator);
     }
 
     // peak Information
     Set<String> peakInformationFields = new HashSet<>();
 
+    // Rows passing the filter
+    List<PeakListRow> exportedRows = new ArrayList<>();
+
     for (PeakListRow row : peakList.getRows()) {
-      if (!filter.filter(row))
+      if (!filter.filter(row)) {
+        processedRows++;
         continue;
+      }
+      exportedRows.add(row);
       if (row.getPeakInformation() != null) {
         for (String key : row.getPeakInformation().getAllProperties().keySet()) {
           peakInformationFields.add(key);
@@ -205,7 +220,7 @@ public class CSVExportTask extends AbstractTask {
 
     if (exportAllPeakInfo)
       for (String field : peakInformationFields)
-        line.append(field + fieldSeparator);
+        line.append(field).append(fieldSeparator);
 
     // Data file elements
     length = dataFileElements.length;
@@ -214,7 +229,7 @@ public class CSVExportTask extends AbstractTask {
         name = rawDataFiles[df].getName();
         name = name + " " + dataFileElements[i].toString();
         name = escapeStringForCSV(name);
-        line.append(name + fieldSeparator);
+        line.append(name).append(fieldSeparator);
       }
     }
 
@@ -228,183 +243,173 @@ public class CSVExportTask extends AbstractTask {
       return;
     }
 
-    // Write data rows
-    for (PeakListRow peakListRow : peakList.getRows()) {
-
-      if (!filter.filter(peakListRow)) {
-        processedRows++;
-        continue;
-      }
-
-      // Cancel?
-      if (isCanceled()) {
-        return;
-      }
+    // Write data rows, formatted in parallel
+    try {
+      writer.writeRows(exportedRows,
+          (row, rowLine) -> formatRow(row, rowLine, rawDataFiles, peakInformationFields),
+          this::isCanceled, rows -> processedRows += rows);
+    } catch (IOException e) {
+      setStatus(TaskStatus.ERROR);
+      setErrorMessage("Could not write to file " + fileName);
+      return;
+    }
+  }
 
-      // Reset the buffer
-      line.setLength(0);
+  /**
+   * Appends the line of the row. Called by several threads at once.
+   */
+  private void formatRow(PeakListRow peakListRow, StringBuilder line, RawDataFile rawDataFiles[],
+      Set<String> peakInformationFields) {
 
-      // Common elements
-      length = commonElements.length;
-      for (int i = 0; i < length; i++) {
-        switch (commonElements[i]) {
-          case ROW_ID:
-            line.append(peakListRow.getID() + fieldSeparator);
-            break;
-          case ROW_MZ:
-            line.append(peakListRow.getAverageMZ() + fieldSeparator);
-            break;
-          case ROW_RT:
-            line.append(peakListRow.getAverageRT() + fieldSeparator);
-            break;
-          case ROW_IDENTITY:
-            // Identity elements
-            PeakIdentity peakId = peakListRow.getPreferredPeakIdentity();
-            if (peakId == null) {
-              line.append(fieldSeparator);
-              break;
-            }
-            String propertyValue = peakId.toString();
-            propertyValue = escapeStringForCSV(propertyValue);
-            line.append(propertyValue + fieldSeparator);
-            break;
-          case ROW_IDENTITY_ALL:
-            // Identity elements
-            PeakIdentity[] peakIdentities = peakListRow.getPeakIdentities();
-            propertyValue = "";
-            for (int x = 0; x < peakIdentities.length; x++) {
-              if (x > 0)
-                propertyValue += idSeparator;
-              propertyValue += peakIdentities[x].toString();
-            }
-            propertyValue = escapeStringForCSV(propertyValue);
-            line.append(propertyValue + fieldSeparator);
-            break;
-          case ROW_IDENTITY_DETAILS:
-            peakId = peakListRow.getPreferredPeakIdentity();
-            if (peakId == null) {
-              line.append(fieldSeparator);
-              break;
-            }
-            propertyValue = peakId.getDescription();
-            if (propertyValue != null)
-              propertyValue = propertyValue.replaceAll("\\n", ";");
-            propertyValue = escapeStringForCSV(propertyValue);
-            line.append(propertyValue + fieldSeparator);
+    // Common elements
+    for (int i = 0; i < commonElements.length; i++) {
+      switch (commonElements[i]) {
+        case ROW_ID:
+          line.append(peakListRow.getID()).append(fieldSeparator);
+          break;
+        case ROW_MZ:
+          line.append(peakListRow.getAverageMZ()).append(fieldSeparator);
+          break;
+        case ROW_RT:
+          line.append(peakListRow.getAverageRT()).append(fieldSeparator);
+          break;
+        case ROW_IDENTITY:
+          // Identity elements
+          PeakIdentity peakId = peakListRow.getPreferredPeakIdentity();
+          if (peakId == null) {
+            line.append(fieldSeparator);
             break;
-          case ROW_COMMENT:
-            String comment = escapeStringForCSV(peakListRow.getComment());
-            line.append(comment + fieldSeparator);
+          }
+          String propertyValue = peakId.toString();
+          propertyValue = escapeStringForCSV(propertyValue);
+          line.append(propertyValue).append(fieldSeparator);
+          break;
+        case ROW_IDENTITY_ALL:
+          // Identity elements
+          PeakIdentity[] peakIdentities = peakListRow.getPeakIdentities();
+          StringBuilder allIdentities = new StringBuilder();
+          for (int x = 0; x < peakIdentities.length; x++) {
+            if (x > 0)
+              allIdentities.append(idSeparator);
+            allIdentities.append(peakIdentities[x].toString());
+          }
+          propertyValue = escapeStringForCSV(allIdentities.toString());
+          line.append(propertyValue).append(fieldSeparator);
+          break;
+        case ROW_IDENTITY_DETAILS:
+          peakId = peakListRow.getPreferredPeakIdentity();
+          if (peakId == null) {
+            line.append(fieldSeparator);
             break;
-          case ROW_PEAK_NUMBER:
-            int numDetected = 0;
-            for (Feature p : peakListRow.getPeaks()) {
-              if (p.getFeatureStatus() == FeatureStatus.DETECTED) {
-                numDetected++;
-              }
+          }
+          propertyValue = peakId.getDescription();
+          if (propertyValue != null)
+            propertyValue = propertyValue.replaceAll("\\n", ";");
+          propertyValue = escapeStringForCSV(propertyValue);
+          line.append(propertyValue).append(fieldSeparator);
+          break;
+        case ROW_COMMENT:
+          String comment = escapeStringForCSV(peakListRow.getComment());
+          line.append(comment).append(fieldSeparator);
+          break;
+        case ROW_PEAK_NUMBER:
+          int numDetected = 0;
+          for (Feature p : peakListRow.getPeaks()) {
+            if (p.getFeatureStatus() == FeatureStatus.DETECTED) {
+              numDetected++;
             }
-            line.append(numDetected + fieldSeparator);
-            break;
-        }
+          }
+          line.append(numDetected).append(fieldSeparator);
+          break;
       }
+    }
 
-      // peak Information
-      if (exportAllPeakInfo) {
-        if (peakListRow.getPeakInformation() != null) {
-          Map<String, String> allPropertiesMap =
-              peakListRow.getPeakInformation().getAllProperties();
-
-          for (String key : peakInformationFields) {
-            String value = allPropertiesMap.get(key);
-            if (value == null)
-              value = "";
-            line.append(value + fieldSeparator);
-          }
+    // peak Information
+    if (exportAllPeakInfo) {
+      if (peakListRow.getPeakInformation() != null) {
+        Map<String, String> allPropertiesMap =
+            peakListRow.getPeakInformation().getAllProperties();
+
+        for (String key : peakInformationFields) {
+          String value = allPropertiesMap.get(key);
+          if (value == null)
+            value = "";
+          line.append(value).append(fieldSeparator);
         }
       }
+    }
 
-      // Data file elements
-      length = dataFileElements.length;
-      for (RawDataFile dataFile : rawDataFiles) {
-        for (int i = 0; i < length; i++) {
-          Feature peak = peakListRow.getPeak(dataFile);
-          if (peak != null) {
-            switch (dataFileElements[i]) {
-              case PEAK_STATUS:
-                line.append(peak.getFeatureStatus() + fieldSeparator);
-                break;
-              case PEAK_NAME:
-                line.append(PeakUtils.peakToString(peak) + fieldSeparator);
-                break;
-              case PEAK_MZ:
-                line.append(peak.getMZ() + fieldSeparator);
-                break;
-              case PEAK_RT:
-                line.append(peak.getRT() + fieldSeparator);
-                break;
-              case PEAK_RT_START:
-                line.append(peak.getRawDataPointsRTRange().lowerEndpoint() + fieldSeparator);
-                break;
-              case PEAK_RT_END:
-                line.append(peak.getRawDataPointsRTRange().upperEndpoint() + fieldSeparator);
-                break;
-              case PEAK_DURATION:
-                line.append(
-                    RangeUtils.rangeLength(peak.getRawDataPointsRTRange()) + fieldSeparator);
-                break;
-              case PEAK_HEIGHT:
-                line.append(peak.getHeight() + fieldSeparator);
-                break;
-              case PEAK_AREA:
-                line.append(peak.getArea() + fieldSeparator);
-                break;
-              case PEAK_CHARGE:
-                line.append(peak.getCharge() + fieldSeparator);
-                break;
-              case PEAK_DATAPOINTS:
-                line.append(peak.getScanNumbers().length + fieldSeparator);
-                break;
-              case PEAK_FWHM:
-                line.append(peak.getFWHM() + fieldSeparator);
-                break;
-              case PEAK_TAILINGFACTOR:
-                line.append(peak.getTailingFactor() + fieldSeparator);
-                break;
-              case PEAK_ASYMMETRYFACTOR:
-                line.append(peak.getAsymmetryFactor() + fieldSeparator);
-                break;
-              case PEAK_MZMIN:
-                line.append(peak.getRawDataPointsMZRange().lowerEndpoint() + fieldSeparator);
-                break;
-              case PEAK_MZMAX:
-                line.append(peak.getRawDataPointsMZRange().upperEndpoint() + fieldSeparator);
-                break;
-            }
-          } else {
-            switch (dataFileElements[i]) {
-              case PEAK_STATUS:
-                line.append(FeatureStatus.UNKNOWN + fieldSeparator);
-                break;
-              default:
-                line.append("0" + fieldSeparator);
-                break;
-            }
+    // Data file elements
+    for (RawDataFile dataFile : rawDataFiles) {
+      for (int i = 0; i < dataFileElements.length; i++) {
+        Feature peak = peakListRow.getPeak(dataFile);
+        if (peak != null) {
+          switch (dataFileElements[i]) {
+            case PEAK_STATUS:
+              line.append(peak.getFeatureStatus()).append(fieldSeparator);
+              break;
+            case PEAK_NAME:
+              line.append(PeakUtils.peakToString(peak, mzFormats.get(), rtFormats.get()))
+                  .append(fieldSeparator);
+              break;
+            case PEAK_MZ:
+              line.append(peak.getMZ()).append(fieldSeparator);
+              break;
+            case PEAK_RT:
+              line.append(peak.getRT()).append(fieldSeparator);
+              break;
+            case PEAK_RT_START:
+              line.append(peak.getRawDataPointsRTRange().lowerEndpoint()).append(fieldSeparator);
+              break;
+            case PEAK_RT_END:
+              line.append(peak.getRawDataPointsRTRange().upperEndpoint()).append(fieldSeparator);
+              break;
+            case PEAK_DURATION:
+              line.append(RangeUtils.rangeLength(peak.getRawDataPointsRTRange()))
+                  .append(fieldSeparator);
+              break;
+            case PEAK_HEIGHT:
+              line.append(peak.getHeight()).append(fieldSeparator);
+              break;
+            case PEAK_AREA:
+              line.append(peak.getArea()).append(fieldSeparator);
+              break;
+            case PEAK_CHARGE:
+              line.append(peak.getCharge()).append(fieldSeparator);
+              break;
+            case PEAK_DATAPOINTS:
+              line.append(peak.getScanNumbers().length).append(fieldSeparator);
+              break;
+            case PEAK_FWHM:
+              line.append(peak.getFWHM()).append(fieldSeparator);
+              break;
+            case PEAK_TAILINGFACTOR:
+              line.append(peak.getTailingFactor()).append(fieldSeparator);
+              break;
+            case PEAK_ASYMMETRYFACTOR:
+              line.append(peak.getAsymmetryFactor()).append(fieldSeparator);
+              break;
+            case PEAK_MZMIN:
+              line.append(peak.getRawDataPointsMZRange().lowerEndpoint()).append(fieldSeparator);
+              break;
+            case PEAK_MZMAX:
+              line.append(peak.getRawDataPointsMZRange().upperEndpoint()).append(fieldSeparator);
+              break;
+          }
+        } else {
+          switch (dataFileElements[i]) {
+            case PEAK_STATUS:
+              line.append(FeatureStatus.UNKNOWN).append(fieldSeparator);
+              break;
+            default:
+              line.append("0").append(fieldSeparator);
+              break;
           }
         }
       }
-
-      line.append("\n");
-
-      try {
-        writer.write(line.toString());
-      } catch (Exception e) {
-        setStatus(TaskStatus.ERROR);
-        setErrorMessage("Could not write to file " + fileName);
-        return;
-      }
-
-      processedRows++;
     }
+
+    line.append("\n");
   }
 
   private String escapeStringForCSV(final String inputString) {
@@ -414,7 +419,7 @@ public class CSVExportTask extends AbstractTask {
 
     // Remove all special characters (particularly \n would mess up our CSV
     // format).
-    String result = inputString.replaceAll("[\\p{Cntrl}]", " ");
+    String result = CONTROL_CHARACTERS.matcher(inputString).replaceAll(" ");
 
     // Skip too long strings (see Excel 2007 specifications)
     if (result.length() >= 32766)
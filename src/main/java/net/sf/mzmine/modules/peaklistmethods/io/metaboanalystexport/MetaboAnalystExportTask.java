@@ -19,8 +19,8 @@
 package net.sf.mzmine.modules.peaklistmethods.io.metaboanalystexport;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.text.NumberFormat;
 import java.util.Arrays;
 import java.util.regex.Pattern;
 
@@ -35,6 +35,7 @@ import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.UserParameter;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.io.ParallelRowWriter;
 
 class MetaboAnalystExportTask extends AbstractTask {
 
@@ -49,6 +50,12 @@ class MetaboAnalystExportTask extends AbstractTask {
   private File fileName;
   private UserParameter<?, ?> groupParameter;
 
+  // Copies of the number formats for each thread formatting the rows
+  private final ThreadLocal<NumberFormat> mzFormats = ThreadLocal
+      .withInitial(() -> (NumberFormat) MZmineCore.getConfiguration().getMZFormat().clone());
+  private final ThreadLocal<NumberFormat> rtFormats = ThreadLocal
+      .withInitial(() -> (NumberFormat) MZmineCore.getConfiguration().getRTFormat().clone());
+
   MetaboAnalystExportTask(MZmineProject project, ParameterSet parameters) {
 
     this.project = project;
@@ -108,7 +115,7 @@ class MetaboAnalystExportTask extends AbstractTask {
       try {
 
         // Open file
-        FileWriter writer = new FileWriter(curFile);
+        ParallelRowWriter writer = new ParallelRowWriter(curFile);
 
         // Get number of rows
         totalRows = peakList.getNumberOfRows();
@@ -150,12 +157,12 @@ class MetaboAnalystExportTask extends AbstractTask {
     return true;
   }
 
-  private void exportPeakList(PeakList peakList, FileWriter writer) throws IOException {
+  private void exportPeakList(PeakList peakList, ParallelRowWriter writer) throws IOException {
 
     final RawDataFile rawDataFiles[] = peakList.getRawDataFiles();
 
     // Buffer for writing
-    StringBuffer line = new StringBuffer();
+    StringBuilder line = new StringBuilder();
 
     // Write sample (raw data file) names
     line.append("\"Sample\"");
@@ -198,36 +205,33 @@ class MetaboAnalystExportTask extends AbstractTask {
     line.append("\n");
     writer.write(line.toString());
 
-    // Write data rows
-    for (PeakListRow peakListRow : peakList.getRows()) {
-
-      // Cancel?
-      if (isCanceled()) {
-        return;
-      }
+    // Write data rows, formatted in parallel
+    writer.writeRows(Arrays.asList(peakList.getRows()),
+        (peakListRow, rowLine) -> formatRow(peakListRow, rowLine, rawDataFiles), this::isCanceled,
+        rows -> processedRows += rows);
+  }
 
-      // Reset the buffer
-      line.setLength(0);
+  /**
+   * Appends the line of the row. Called by several threads at once.
+   */
+  private void formatRow(PeakListRow peakListRow, StringBuilder line,
+      RawDataFile rawDataFiles[]) {
 
-      final String rowName = generateUniquePeakListRowName(peakListRow);
+    final String rowName = generateUniquePeakListRowName(peakListRow);
 
-      line.append("\"" + rowName + "\"");
+    line.append('"').append(rowName).append('"');
 
-      for (RawDataFile dataFile : rawDataFiles) {
-        line.append(fieldSeparator);
+    for (RawDataFile dataFile : rawDataFiles) {
+      line.append(fieldSeparator);
 
-        Feature peak = peakListRow.getPeak(dataFile);
-        if (peak != null) {
-          final double area = peak.getArea();
-          line.append(String.valueOf(area));
-        }
+      Feature peak = peakListRow.getPeak(dataFile);
+      if (peak != null) {
+        final double area = peak.getArea();
+        line.append(area);
       }
-
-      line.append("\n");
-      writer.write(line.toString());
-
-      processedRows++;
     }
+
+    line.append("\n");
   }
 
   /**
@@ -239,8 +243,8 @@ class MetaboAnalystExportTask extends AbstractTask {
     final double rt = row.getAverageRT();
     final int rowId = row.getID();
 
-    String generatedName = rowId + "/" + MZmineCore.getConfiguration().getMZFormat().format(mz)
-        + "mz/" + MZmineCore.getConfiguration().getRTFormat().format(rt) + "min";
+    String generatedName =
+        rowId + "/" + mzFormats.get().format(mz) + "mz/" + rtFormats.get().format(rt) + "min";
     PeakIdentity peakIdentity = row.getPreferredPeakIdentity();
 
     if (peakIdentity == null)
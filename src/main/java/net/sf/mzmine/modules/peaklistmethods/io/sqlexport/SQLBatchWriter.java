@@ -0,0 +1,119 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.io.sqlexport;
+
+import java.io.ByteArrayInputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Inserts table rows with a single prepared statement. The rows are sent to the database in
+ * batches, and committed every given number of rows. The remaining rows are committed by
+ * commit(); closing the writer without committing leaves them to the caller's transaction handling.
+ * The connection must not be in auto-commit mode.
+ *
+ * The values of a table row may be String, Integer, Double or byte[] (written as a BLOB). Null
+ * values are written as SQL NULL of the type given for their column.
+ */
+class SQLBatchWriter implements AutoCloseable {
+
+  private final Connection connection;
+  private final PreparedStatement statement;
+  private final int nullTypes[];
+  private final int batchSize;
+  private final int commitInterval;
+  private final boolean batchUpdates;
+
+  private int batchedRows = 0, uncommittedRows = 0;
+
+  /**
+   * @param nullTypes SQL type (java.sql.Types) of each column, used for null values
+   * @param batchSize number of rows sent to the database in a single batch
+   * @param commitInterval number of rows per transaction, 0 to commit only when closing
+   */
+  SQLBatchWriter(Connection connection, String sql, int nullTypes[], int batchSize,
+      int commitInterval) throws SQLException {
+    this.connection = connection;
+    this.statement = connection.prepareStatement(sql);
+    this.nullTypes = nullTypes;
+    this.batchSize = batchSize;
+    this.commitInterval = commitInterval;
+
+    // Drivers without batch support execute each row on its own
+    this.batchUpdates = connection.getMetaData().supportsBatchUpdates();
+  }
+
+  void write(Object values[]) throws SQLException {
+
+    for (int i = 0; i < values.length; i++) {
+      final Object value = values[i];
+      if (value == null)
+        statement.setNull(i + 1, nullTypes[i]);
+      else if (value instanceof String)
+        statement.setString(i + 1, (String) value);
+      else if (value instanceof Integer)
+        statement.setInt(i + 1, (Integer) value);
+      else if (value instanceof Double)
+        statement.setDouble(i + 1, (Double) value);
+      else if (value instanceof byte[])
+        statement.setBlob(i + 1, new ByteArrayInputStream((byte[]) value));
+      else
+        throw new IllegalArgumentException("Unsupported value type " + value.getClass());
+    }
+
+    if (batchUpdates) {
+      statement.addBatch();
+      batchedRows++;
+      if (batchedRows >= batchSize)
+        flush();
+    } else {
+      statement.executeUpdate();
+    }
+
+    uncommittedRows++;
+    if ((commitInterval > 0) && (uncommittedRows >= commitInterval))
+      commit();
+  }
+
+  /**
+   * Sends the batched rows to the database
+   */
+  void flush() throws SQLException {
+    if (batchedRows == 0)
+      return;
+    statement.executeBatch();
+    batchedRows = 0;
+  }
+
+  /**
+   * Sends the batched rows to the database and commits them
+   */
+  void commit() throws SQLException {
+    flush();
+    connection.commit();
+    uncommittedRows = 0;
+  }
+
+  @Override
+  public void close() throws SQLException {
+    statement.close();
+  }
+
+}
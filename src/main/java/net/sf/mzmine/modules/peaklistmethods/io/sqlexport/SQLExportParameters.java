@@ -21,6 +21,8 @@ package net.sf.mzmine.modules.peaklistmethods.io.sqlexport;
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
 import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
+import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
+import net.sf.mzmine.parameters.parametertypes.OptionalParameter;
 import net.sf.mzmine.parameters.parametertypes.StringParameter;
 import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsParameter;
 
@@ -41,8 +43,17 @@ public class SQLExportParameters extends SimpleParameterSet {
   public static final BooleanParameter emptyExport = new BooleanParameter("Export empty peak list",
       "If selected, an empty peak list will be exported with null values for all column other than the rawdatafile and any constant values.");
 
+  public static final IntegerParameter batchSize = new IntegerParameter("Batch size",
+      "Number of table rows sent to the database in a single batch", 1000, 1, null);
+
+  public static final OptionalParameter<IntegerParameter> commitInterval =
+      new OptionalParameter<>(new IntegerParameter("Commit every",
+          "Number of table rows inserted per transaction. If not selected, the whole peak list is committed in a single transaction at the end of the export.",
+          10000, 1, null));
+
   public SQLExportParameters() {
-    super(new Parameter[] {peakList, connectionString, tableName, exportColumns, emptyExport});
+    super(new Parameter[] {peakList, connectionString, tableName, exportColumns, emptyExport,
+        batchSize, commitInterval});
   }
 
 }
@@ -18,12 +18,16 @@
 
 package net.sf.mzmine.modules.peaklistmethods.io.sqlexport;
 
-import java.io.ByteArrayInputStream;
 import java.sql.Connection;
 import java.sql.DriverManager;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
@@ -34,20 +38,28 @@ import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
-import net.sf.mzmine.modules.peaklistmethods.io.mztabexport.MzTabExportParameters;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ExceptionUtils;
 import net.sf.mzmine.util.RangeUtils;
 import net.sf.mzmine.util.scans.ScanUtils;
 
 class SQLExportTask extends AbstractTask {
 
+  // Maximum number of formatted peak list rows waiting to be written
+  private static final int FORMATTED_ROWS_CAPACITY = 1024;
+
+  // Marks the end of the formatted peak list rows
+  private static final List<Object[]> END_OF_ROWS = new ArrayList<>(0);
+
   private final PeakList peakList;
   private final String connectionString;
   private final String tableName;
   private final SQLColumnSettings exportColumns;
   private final boolean emptyExport;
+  private final int batchSize;
+  private final int commitInterval;
 
   private int processedRows = 0, totalRows = 0;
 
@@ -63,6 +75,14 @@ class SQLExportTask extends AbstractTask {
     this.tableName = parameters.getParameter(SQLExportParameters.tableName).getValue();
     this.exportColumns = parameters.getParameter(SQLExportParameters.exportColumns).getValue();
     this.emptyExport = parameters.getParameter(SQLExportParameters.emptyExport).getValue();
+    this.batchSize = parameters.getParameter(SQLExportParameters.batchSize).getValue();
+
+    // 0 commits the whole peak list at the end
+    if (parameters.getParameter(SQLExportParameters.commitInterval).getValue())
+      this.commitInterval = parameters.getParameter(SQLExportParameters.commitInterval)
+          .getEmbeddedParameter().getValue();
+    else
+      this.commitInterval = 0;
 
   }
 
@@ -96,23 +116,35 @@ class SQLExportTask extends AbstractTask {
     try {
       dbConnection.setAutoCommit(false);
 
-      // If select, an empty row with just the raw data file
-      // information will be exported
-      if (rows.length < 1 && emptyExport) {
-        exportPeakListRow(null);
-      } else {
-        for (PeakListRow row : rows) {
-          if (getStatus() != TaskStatus.PROCESSING)
-            break;
-          exportPeakListRow(row);
-          processedRows++;
+      try (SQLBatchWriter writer = new SQLBatchWriter(dbConnection, createInsertStatement(),
+          getNullTypes(), batchSize, commitInterval)) {
+
+        // If select, an empty row with just the raw data file
+        // information will be exported
+        if (rows.length < 1 && emptyExport) {
+          if (!isCanceled())
+            writer.write(formatEmptyRow());
+        } else {
+          writePeakListRows(rows, writer);
         }
+        writer.commit();
       }
-      dbConnection.commit();
       dbConnection.close();
-    } catch (SQLException e) {
+    } catch (Throwable e) {
+      // Errors of the formatter thread are wrapped by writePeakListRows()
+      if ((e instanceof CompletionException) && (e.getCause() != null))
+        e = e.getCause();
       setStatus(TaskStatus.ERROR);
-      setErrorMessage("Error running SQL query: " + e.toString());
+      if (e instanceof SQLException)
+        setErrorMessage("Error running SQL query: " + e.toString());
+      else
+        setErrorMessage("Error exporting peak list: " + ExceptionUtils.exceptionToString(e));
+      try {
+        dbConnection.rollback();
+        dbConnection.close();
+      } catch (SQLException closeError) {
+        // Keep the original error message
+      }
       return;
     }
 
@@ -121,15 +153,87 @@ class SQLExportTask extends AbstractTask {
 
   }
 
-  private void exportPeakListRow(PeakListRow row) throws SQLException {
+  /**
+   * Writes the peak list rows while they are being formatted by a separate thread, so the database
+   * round-trips overlap with reading the peak and scan data
+   *
+   * @throws CompletionException wrapping the error of the formatter thread, if it failed
+   */
+  private void writePeakListRows(PeakListRow rows[], SQLBatchWriter writer) throws SQLException {
+
+    final RowFormatter formatter = new RowFormatter(rows);
+    final Thread formatterThread = new Thread(formatter, "SQL export of " + peakList);
+    formatterThread.setDaemon(true);
+    formatterThread.start();
 
-    // Cancel?
-    if (isCanceled()) {
+    try {
+      while (getStatus() == TaskStatus.PROCESSING) {
+        final List<Object[]> tableRows = formatter.formattedRows.take();
+        if (tableRows == END_OF_ROWS)
+          break;
+        for (Object values[] : tableRows)
+          writer.write(values);
+        processedRows++;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
       return;
+    } finally {
+      formatter.stopped = true;
     }
 
-    // Value for looping through raw data files
-    boolean loopDataFiles = false;
+    if (formatter.error != null)
+      throw new CompletionException(formatter.error);
+  }
+
+  /**
+   * Formats the peak list rows into a bounded queue. The thread is not interrupted when the writing
+   * stops, because that would close the channels of the raw data files it is reading.
+   */
+  private class RowFormatter implements Runnable {
+
+    private final PeakListRow rows[];
+    private final BlockingQueue<List<Object[]>> formattedRows =
+        new ArrayBlockingQueue<>(FORMATTED_ROWS_CAPACITY);
+    private volatile boolean stopped = false;
+    private volatile Throwable error;
+
+    RowFormatter(PeakListRow rows[]) {
+      this.rows = rows;
+    }
+
+    @Override
+    public void run() {
+      try {
+        for (PeakListRow row : rows) {
+          if (stopped || getStatus() != TaskStatus.PROCESSING)
+            break;
+          if (!enqueue(formatPeakListRow(row)))
+            return;
+        }
+      } catch (Throwable e) {
+        error = e;
+      } finally {
+        // The writer waits for the end of the rows, whatever stopped the formatting. The queue is
+        // not waited for, if the writer stopped taking rows.
+        enqueue(END_OF_ROWS);
+      }
+    }
+
+    private boolean enqueue(List<Object[]> tableRows) {
+      try {
+        while (!formattedRows.offer(tableRows, 100, TimeUnit.MILLISECONDS)) {
+          if (stopped)
+            return false;
+        }
+        return true;
+      } catch (InterruptedException e) {
+        return false;
+      }
+    }
+  }
+
+  private String createInsertStatement() {
 
     StringBuilder sql = new StringBuilder();
     sql.append("INSERT INTO ");
@@ -148,165 +252,187 @@ class SQLExportTask extends AbstractTask {
     }
     sql.append(")");
 
-    PreparedStatement statement = dbConnection.prepareStatement(sql.toString());
+    return sql.toString();
+  }
+
+  /**
+   * Returns the SQL type of each column, used to write null values
+   */
+  private int[] getNullTypes() {
+    int nullTypes[] = new int[exportColumns.getRowCount()];
+    for (int i = 0; i < exportColumns.getRowCount(); i++) {
+      SQLExportDataType dataType = (SQLExportDataType) exportColumns.getValueAt(i, 1);
+      nullTypes[i] = "BLOB".equals(dataType.valueType()) ? Types.BLOB : Types.VARCHAR;
+    }
+    return nullTypes;
+  }
+
+  private Object[] formatEmptyRow() {
+
+    Object values[] = new Object[exportColumns.getRowCount()];
+    for (int i = 0; i < exportColumns.getRowCount(); i++) {
+      SQLExportDataType dataType = (SQLExportDataType) exportColumns.getValueAt(i, 1);
+      String dataValue = (String) exportColumns.getValueAt(i, 2);
+      switch (dataType) {
+        case CONSTANT:
+          values[i] = dataValue;
+          break;
+        case RAWFILE:
+          RawDataFile rawdatafiles[] = peakList.getRawDataFiles();
+          values[i] = rawdatafiles[0].getName();
+          break;
+        default:
+          values[i] = null;
+          break;
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Returns the table rows of the peak list row, one for each raw data file if any data file
+   * element is exported
+   */
+  private List<Object[]> formatPeakListRow(PeakListRow row) {
 
-    if (row == null) {
+    // Value for looping through raw data files
+    boolean loopDataFiles = false;
+
+    List<Object[]> tableRows = new ArrayList<>();
+
+    for (RawDataFile rawDataFile : row.getRawDataFiles()) {
+      Feature peak = row.getPeak(rawDataFile);
+
+      Object values[] = new Object[exportColumns.getRowCount()];
       for (int i = 0; i < exportColumns.getRowCount(); i++) {
         SQLExportDataType dataType = (SQLExportDataType) exportColumns.getValueAt(i, 1);
         String dataValue = (String) exportColumns.getValueAt(i, 2);
         switch (dataType) {
           case CONSTANT:
-            statement.setString(i + 1, dataValue);
+            values[i] = dataValue;
+            break;
+          case MZ:
+            values[i] = row.getAverageMZ();
+            break;
+          case RT:
+            values[i] = row.getAverageRT();
+            break;
+          case ID:
+            values[i] = row.getID();
+            break;
+          case PEAKCHARGE:
+            values[i] = (double) peak.getCharge();
+            loopDataFiles = true;
+            break;
+          case PEAKDURATION:
+            values[i] = RangeUtils.rangeLength(peak.getRawDataPointsRTRange());
+            loopDataFiles = true;
+            break;
+          case PEAKSTATUS:
+            values[i] = peak.getFeatureStatus().name();
+            loopDataFiles = true;
+            break;
+          case PEAKMZ:
+            values[i] = peak.getMZ();
+            loopDataFiles = true;
+            break;
+          case PEAKRT:
+            values[i] = peak.getRT();
+            loopDataFiles = true;
+            break;
+          case PEAKRT_START:
+            values[i] = peak.getRawDataPointsRTRange().lowerEndpoint();
+            loopDataFiles = true;
+            break;
+          case PEAKRT_END:
+            values[i] = peak.getRawDataPointsRTRange().upperEndpoint();
+            loopDataFiles = true;
+            break;
+          case PEAKHEIGHT:
+            values[i] = peak.getHeight();
+            loopDataFiles = true;
+            break;
+          case PEAKAREA:
+            values[i] = peak.getArea();
+            loopDataFiles = true;
+            break;
+          case DATAPOINTS:
+            values[i] = (double) peak.getScanNumbers().length;
+            loopDataFiles = true;
+            break;
+          case FWHM:
+            values[i] = peak.getFWHM();
+            loopDataFiles = true;
+            break;
+          case TAILINGFACTOR:
+            values[i] = peak.getTailingFactor();
+            loopDataFiles = true;
+            break;
+          case ASYMMETRYFACTOR:
+            values[i] = peak.getAsymmetryFactor();
+            loopDataFiles = true;
             break;
           case RAWFILE:
-            RawDataFile rawdatafiles[] = peakList.getRawDataFiles();
-            statement.setString(i + 1, rawdatafiles[0].getName());
+            values[i] = rawDataFile.getName();
+            loopDataFiles = true;
             break;
-          default:
-            statement.setString(i + 1, null);
+          case HEIGHT:
+            values[i] = row.getAverageHeight();
             break;
-        }
-      }
-      statement.executeUpdate();
-    }
-
-    else {
-      for (RawDataFile rawDataFile : row.getRawDataFiles()) {
-        Feature peak = row.getPeak(rawDataFile);
-
-        for (int i = 0; i < exportColumns.getRowCount(); i++) {
-          SQLExportDataType dataType = (SQLExportDataType) exportColumns.getValueAt(i, 1);
-          String dataValue = (String) exportColumns.getValueAt(i, 2);
-          switch (dataType) {
-            case CONSTANT:
-              statement.setString(i + 1, dataValue);
-              break;
-            case MZ:
-              statement.setDouble(i + 1, row.getAverageMZ());
-              break;
-            case RT:
-              statement.setDouble(i + 1, row.getAverageRT());
-              break;
-            case ID:
-              statement.setInt(i + 1, row.getID());
-              break;
-            case PEAKCHARGE:
-              statement.setDouble(i + 1, peak.getCharge());
-              loopDataFiles = true;
-              break;
-            case PEAKDURATION:
-              statement.setDouble(i + 1, RangeUtils.rangeLength(peak.getRawDataPointsRTRange()));
-              loopDataFiles = true;
-              break;
-            case PEAKSTATUS:
-              statement.setString(i + 1, peak.getFeatureStatus().name());
-              loopDataFiles = true;
-              break;
-            case PEAKMZ:
-              statement.setDouble(i + 1, peak.getMZ());
-              loopDataFiles = true;
-              break;
-            case PEAKRT:
-              statement.setDouble(i + 1, peak.getRT());
-              loopDataFiles = true;
-              break;
-            case PEAKRT_START:
-              statement.setDouble(i + 1, peak.getRawDataPointsRTRange().lowerEndpoint());
-              loopDataFiles = true;
-              break;
-            case PEAKRT_END:
-              statement.setDouble(i + 1, peak.getRawDataPointsRTRange().upperEndpoint());
-              loopDataFiles = true;
-              break;
-            case PEAKHEIGHT:
-              statement.setDouble(i + 1, peak.getHeight());
-              loopDataFiles = true;
-              break;
-            case PEAKAREA:
-              statement.setDouble(i + 1, peak.getArea());
-              loopDataFiles = true;
-              break;
-            case DATAPOINTS:
-              statement.setDouble(i + 1, peak.getScanNumbers().length);
-              loopDataFiles = true;
-              break;
-            case FWHM:
-              statement.setDouble(i + 1, peak.getFWHM());
-              loopDataFiles = true;
-              break;
-            case TAILINGFACTOR:
-              statement.setDouble(i + 1, peak.getTailingFactor());
-              loopDataFiles = true;
-              break;
-            case ASYMMETRYFACTOR:
-              statement.setDouble(i + 1, peak.getAsymmetryFactor());
-              loopDataFiles = true;
-              break;
-            case RAWFILE:
-              statement.setString(i + 1, rawDataFile.getName());
-              loopDataFiles = true;
-              break;
-            case HEIGHT:
-              statement.setDouble(i + 1, row.getAverageHeight());
-              break;
-            case AREA:
-              statement.setDouble(i + 1, row.getAverageArea());
-              break;
-            case COMMENT:
-              statement.setString(i + 1, row.getComment());
-              break;
-            case IDENTITY:
-              PeakIdentity id = row.getPreferredPeakIdentity();
-              if (id != null) {
-                statement.setString(i + 1, id.getName());
-              } else {
-                statement.setNull(i + 1, Types.VARCHAR);
-              }
-              break;
-            case ISOTOPEPATTERN:
-              IsotopePattern isotopes = row.getBestIsotopePattern();
-              if (isotopes == null) {
-                statement.setNull(i + 1, Types.BLOB);
-                break;
-              }
-              DataPoint dataPoints[] = isotopes.getDataPoints();
-              byte bytes[] = ScanUtils.encodeDataPointsToBytes(dataPoints);
-              ByteArrayInputStream is = new ByteArrayInputStream(bytes);
-              statement.setBlob(i + 1, is);
+          case AREA:
+            values[i] = row.getAverageArea();
+            break;
+          case COMMENT:
+            values[i] = row.getComment();
+            break;
+          case IDENTITY:
+            PeakIdentity id = row.getPreferredPeakIdentity();
+            if (id != null) {
+              values[i] = id.getName();
+            } else {
+              values[i] = null;
+            }
+            break;
+          case ISOTOPEPATTERN:
+            IsotopePattern isotopes = row.getBestIsotopePattern();
+            if (isotopes == null) {
+              values[i] = null;
               break;
-            case MSMS:
-              int msmsScanNum = row.getBestPeak().getMostIntenseFragmentScanNumber();
-              // Check if there is any MS/MS scan
-              if (msmsScanNum <= 0) {
-                statement.setNull(i + 1, Types.BLOB);
-                break;
-              }
-              RawDataFile dataFile = row.getBestPeak().getDataFile();
-              Scan msmsScan = dataFile.getScan(msmsScanNum);
-              MassList msmsMassList = msmsScan.getMassList(dataValue);
-              // Check if there is a masslist for the scan
-              if (msmsMassList == null) {
-                statement.setNull(i + 1, Types.BLOB);
-                break;
-              }
-              dataPoints = msmsMassList.getDataPoints();
-              bytes = ScanUtils.encodeDataPointsToBytes(dataPoints);
-              is = new ByteArrayInputStream(bytes);
-              statement.setBlob(i + 1, is);
+            }
+            DataPoint dataPoints[] = isotopes.getDataPoints();
+            values[i] = ScanUtils.encodeDataPointsToBytes(dataPoints);
+            break;
+          case MSMS:
+            int msmsScanNum = row.getBestPeak().getMostIntenseFragmentScanNumber();
+            // Check if there is any MS/MS scan
+            if (msmsScanNum <= 0) {
+              values[i] = null;
               break;
-            default:
+            }
+            RawDataFile dataFile = row.getBestPeak().getDataFile();
+            Scan msmsScan = dataFile.getScan(msmsScanNum);
+            MassList msmsMassList = msmsScan.getMassList(dataValue);
+            // Check if there is a masslist for the scan
+            if (msmsMassList == null) {
+              values[i] = null;
               break;
-          }
+            }
+            dataPoints = msmsMassList.getDataPoints();
+            values[i] = ScanUtils.encodeDataPointsToBytes(dataPoints);
+            break;
+          default:
+            break;
         }
-        statement.executeUpdate();
+      }
+      tableRows.add(values);
 
-        // If no data file elements are selected then don't loop through
-        // all
-        // data files in peak list
-        if (!loopDataFiles) {
-          break;
-        }
+      // If no data file elements are selected then don't loop through
+      // all
+      // data files in peak list
+      if (!loopDataFiles) {
+        break;
       }
     }
+    return tableRows;
   }
 }
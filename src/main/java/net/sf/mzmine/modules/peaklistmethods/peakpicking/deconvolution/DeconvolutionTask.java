@@ -25,6 +25,7 @@ import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.De
 import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.DeconvolutionParameters.mzRangeMSMS;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
@@ -49,6 +50,10 @@ public class DeconvolutionTask extends AbstractTask {
   // Logger.
   private static final Logger LOG = Logger.getLogger(DeconvolutionTask.class.getName());
 
+  // Number of chromatograms resolved in parallel before their peaks are added to the peak list.
+  // This limits the number of resolved peaks kept in memory.
+  private static final int CHROMATOGRAMS_PER_CHUNK = 256;
+
   // Peak lists.
   private final MZmineProject project;
   private final PeakList originalPeakList;
@@ -252,29 +257,63 @@ public class DeconvolutionTask extends AbstractTask {
     // Process each chromatogram.
     final PeakListRow[] peakListRows = peakList.getRows();
     final int chromatogramCount = peakListRows.length;
-    for (int index = 0; !isCanceled() && index < chromatogramCount; index++) {
+    final PeakResolver resolverModule = resolver.getModule();
+    final ParameterSet resolverParams = resolver.getParameterSet();
+
+    // The R session cannot be shared by several threads, so resolvers using R resolve the
+    // chromatograms one by one
+    final boolean parallel = (rSession == null);
+
+    // Process the chromatograms in chunks. The chromatograms of each chunk are resolved (in
+    // parallel, if possible), then the peaks are added in the order of the chromatograms, so the
+    // peak IDs do not depend on the number of threads.
+    final int chunkSize = parallel ? CHROMATOGRAMS_PER_CHUNK : 1;
+    for (int chunkStart = 0; !isCanceled() && chunkStart < chromatogramCount;
+        chunkStart += chunkSize) {
+
+      final int firstIndex = chunkStart;
+      final int chunkLength = Math.min(chunkSize, chromatogramCount - chunkStart);
+      final ResolvedPeak chunkPeaks[][] = new ResolvedPeak[chunkLength][];
+
+      if (parallel) {
+        IntStream.range(0, chunkLength).parallel().forEach(i -> {
+          if (isCanceled())
+            return;
+          final Feature chromatogram = peakListRows[firstIndex + i].getPeak(dataFile);
+          try {
+            chunkPeaks[i] = resolverModule.resolvePeaks(chromatogram, resolverParams, null,
+                mzCenterFunction, msmsRange, RTRangeMSMS);
+          } catch (RSessionWrapperException e) {
+            // Not thrown by resolvers without R
+            throw new IllegalStateException(e);
+          }
+        });
+      } else {
+        final Feature chromatogram = peakListRows[firstIndex].getPeak(dataFile);
+        chunkPeaks[0] = resolverModule.resolvePeaks(chromatogram, resolverParams, rSession,
+            mzCenterFunction, msmsRange, RTRangeMSMS);
+      }
 
-      final PeakListRow currentRow = peakListRows[index];
-      final Feature chromatogram = currentRow.getPeak(dataFile);
+      if (isCanceled())
+        break;
 
-      // Resolve peaks.
-      final PeakResolver resolverModule = resolver.getModule();
-      final ParameterSet resolverParams = resolver.getParameterSet();
-      final ResolvedPeak[] peaks = resolverModule.resolvePeaks(chromatogram, resolverParams, rSession,
-          mzCenterFunction, msmsRange, RTRangeMSMS);
+      for (int i = 0; i < chunkLength; i++) {
 
-      // Add peaks to the new peak list.
-      for (final ResolvedPeak peak : peaks) {
+        final PeakListRow currentRow = peakListRows[firstIndex + i];
 
-        peak.setParentChromatogramRowID(currentRow.getID());
+        // Add peaks to the new peak list.
+        for (final ResolvedPeak peak : chunkPeaks[i]) {
 
-        final PeakListRow newRow = new SimplePeakListRow(peakId++);
-        newRow.addPeak(dataFile, peak);
-        newRow.setPeakInformation(peak.getPeakInformation());
-        resolvedPeaks.addRow(newRow);
-      }
+          peak.setParentChromatogramRowID(currentRow.getID());
+
+          final PeakListRow newRow = new SimplePeakListRow(peakId++);
+          newRow.addPeak(dataFile, peak);
+          newRow.setPeakInformation(peak.getPeakInformation());
+          resolvedPeaks.addRow(newRow);
+        }
 
-      processedRows++;
+        processedRows++;
+      }
     }
 
     return resolvedPeaks;
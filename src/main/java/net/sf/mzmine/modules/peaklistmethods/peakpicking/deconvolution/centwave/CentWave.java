@@ -0,0 +1,994 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.centwave;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.Range;
+
+import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.centwave.CentWaveDetectorParameters.PeakIntegrationMethod;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.wavelet.WaveletMassDetector;
+
+/**
+ * Java port of xcms findPeaks.centWave, as called by CentWaveDetector: the chromatogram is the only
+ * m/z trace and every section of non-zero intensities is a region of interest (ROI). The port
+ * follows the R code of xcms step by step (including the MassSpecWavelet functions copied to
+ * xcms), so the names of the R functions are given in the comments. Retention times are converted
+ * to seconds like in the R version. Instead of rtmin and rtmax, the peaks are returned as the
+ * indexes of their first and last scans.
+ */
+final class CentWave {
+
+  private static final double SECONDS_PER_MINUTE = 60.0;
+
+  // Trimming of estimateChromNoise() and trimm()
+  private static final double NOISE_TRIM = 0.05;
+
+  // Default arguments of getLocalMaximumCWT() and getRidge()
+  private static final int MIN_LOCAL_MAX_WINDOW = 5;
+  private static final int MIN_RIDGE_WINDOW = 3;
+  private static final int RIDGE_GAP_THRESHOLD = 3;
+
+  // rectUnique() is called with ydiff = -0.00001 to allow adjacent peaks
+  private static final double RT_DIFF = -0.00001;
+
+  // The Mexican hat wavelet of MassSpecWavelet, sampled at 1024 points from -8 to 8
+  private static final int PSI_LENGTH = 1024;
+  private static final double PSI_FROM = -8.0, PSI_TO = 8.0;
+  private static final double psi[] = new double[PSI_LENGTH];
+  private static final double psiStep, psiWidth;
+
+  static {
+    final double by = (PSI_TO - PSI_FROM) / (PSI_LENGTH - 1);
+    for (int i = 0; i < PSI_LENGTH; i++) {
+      final double x = (i == PSI_LENGTH - 1) ? PSI_TO : PSI_FROM + i * by;
+      psi[i] = WaveletMassDetector.cwtMEXHATreal(x, 1.0, 0.0);
+    }
+    psiStep = (PSI_FROM + by) - PSI_FROM;
+    psiWidth = PSI_TO - PSI_FROM;
+  }
+
+  private final double scanTime[];
+  private final double intensity[];
+  private final double snThreshold;
+  private final boolean integrateSmoothed;
+
+  private final int scales[];
+  private final int minPeakWidth, noiseRange[], minPtsAboveBaseLine, scRangeTol, maxDescOutlier;
+
+  /**
+   * @param retentionTimes retention times of the scans in minutes
+   * @param intensities intensities of the chromatogram, 0 for missing data points
+   * @param peakWidth range of peak widths in minutes
+   * @param snThreshold signal to noise ratio threshold
+   * @param integrationMethod integration method
+   */
+  CentWave(final double retentionTimes[], final double intensities[],
+      final Range<Double> peakWidth, final double snThreshold,
+      final PeakIntegrationMethod integrationMethod) {
+
+    scanTime = new double[retentionTimes.length];
+    for (int i = 0; i < scanTime.length; i++)
+      scanTime[i] = retentionTimes[i] * SECONDS_PER_MINUTE;
+    intensity = intensities;
+    this.snThreshold = snThreshold;
+    integrateSmoothed = (integrationMethod == PeakIntegrationMethod.UseSmoothedData);
+
+    // scalerange <- round((peakwidth / mean(diff(scantime))) / 2)
+    final double diffs[] = new double[Math.max(0, scanTime.length - 1)];
+    for (int i = 0; i < diffs.length; i++)
+      diffs[i] = scanTime[i + 1] - scanTime[i];
+    final double meanDiff = mean(diffs, diffs.length);
+    final double lowerScale =
+        Math.rint((peakWidth.lowerEndpoint() * SECONDS_PER_MINUTE / meanDiff) / 2);
+    final double upperScale =
+        Math.rint((peakWidth.upperEndpoint() * SECONDS_PER_MINUTE / meanDiff) / 2);
+
+    // Zero scales are removed, without any scale there are no peaks
+    if (Double.isInfinite(lowerScale) || Double.isInfinite(upperScale)
+        || (!(lowerScale > 0) && !(upperScale > 0))) {
+      scales = new int[0];
+    } else if (!(lowerScale > 0) || !(upperScale > 0)) {
+      scales = new int[] {(int) Math.max(lowerScale, upperScale)};
+    } else {
+      scales = new int[(int) ((upperScale - lowerScale) / 2) + 1];
+      for (int i = 0; i < scales.length; i++)
+        scales[i] = (int) lowerScale + 2 * i;
+    }
+
+    minPeakWidth = (scales.length == 0) ? 0 : scales[0];
+    noiseRange = new int[] {minPeakWidth * 3,
+        (scales.length == 0) ? 0 : scales[scales.length - 1] * 3};
+    minPtsAboveBaseLine = Math.max(4, minPeakWidth - 2);
+    scRangeTol = maxDescOutlier = minPeakWidth / 2;
+
+  }
+
+  /**
+   * @return detected peaks, in the order of the ROIs
+   */
+  List<Peak> findPeaks() {
+
+    final List<Peak> peaks = new ArrayList<>();
+    if (scales.length == 0)
+      return Collections.emptyList();
+
+    for (int start = 0; start < intensity.length; start++) {
+      if (intensity[start] > 0.0) {
+        int end = start + 1;
+        while (end < intensity.length && intensity[end] > 0.0)
+          end++;
+        findPeaks(start, end - 1, peaks);
+        start = end;
+      }
+    }
+
+    // rectUnique(): keep the most intense one of overlapping peaks
+    final Peak orderedPeaks[] = peaks.toArray(new Peak[peaks.size()]);
+    Arrays.sort(orderedPeaks, (p1, p2) -> Double.compare(p2.into, p1.into));
+    final Set<Peak> keptPeaks = new HashSet<>();
+    for (int i = 0; i < orderedPeaks.length; i++) {
+      final Peak peak = orderedPeaks[i];
+      boolean keep = true;
+      for (int j = 0; j < i && keep; j++) {
+        final Peak other = orderedPeaks[j];
+        keep = !keptPeaks.contains(other) || (peak.rtMin - other.rtMax > RT_DIFF)
+            || (other.rtMin - peak.rtMax > RT_DIFF);
+      }
+      if (keep)
+        keptPeaks.add(peak);
+    }
+
+    final List<Peak> result = new ArrayList<>(keptPeaks.size());
+    for (Peak peak : peaks) {
+      if (keptPeaks.contains(peak))
+        result.add(peak);
+    }
+    return result;
+
+  }
+
+  /**
+   * Detects the peaks in one ROI, given by its first and last scan index
+   */
+  private void findPeaks(final int scmin, final int scmax, final List<Peak> peaks) {
+
+    final int numOfScans = intensity.length;
+
+    // Data of the ROI extended by the noise range: d, td
+    final int srFrom = Math.max(0, scmin - noiseRange[1]);
+    final int srTo = Math.min(numOfScans - 1, scmax + noiseRange[1]);
+    final double d[] = Arrays.copyOfRange(intensity, srFrom, srTo + 1);
+
+    // ROI extended by the tolerance, as indexes of d: ftd
+    final int fFrom = Math.max(srFrom, scmin - scRangeTol) - srFrom;
+    final int fTo = Math.min(srTo, scmax + scRangeTol) - srFrom;
+
+    final double noised[] = (scmax - scmin + 1 >= 10 * minPeakWidth) ? intensity : d;
+    final double noise = estimateChromNoise(noised, 3 * minPeakWidth);
+
+    // Is there any data above the noise level?
+    if (!continuousPtsAboveThreshold(d, fFrom, fTo, noise))
+      return;
+
+    final double localNoise[] = getLocalNoiseEstimate(d, fFrom, fTo, noise);
+    final double baseline = Math.max(1.0, Math.min(localNoise[0], noise));
+    final double sdnoise = Math.max(1.0, localNoise[1]);
+    final double sdthr = sdnoise * snThreshold;
+
+    // Is there any data above S/N * threshold?
+    if (!anyAboveThreshold(d, fFrom, fTo, baseline, sdthr))
+      return;
+
+    final double wCoefs[][] = cwt(d);
+    if (wCoefs == null)
+      return;
+    boolean coefAboveThreshold = false;
+    for (double coefs[] : wCoefs)
+      coefAboveThreshold |= anyAboveThreshold(coefs, 0, coefs.length - 1, baseline, sdthr);
+    if (!coefAboveThreshold)
+      return;
+
+    // Workaround of xcms, getLocalMaximumCWT() fails otherwise
+    if (srTo == numOfScans - 1 && d.length > 1) {
+      for (double coefs[] : wCoefs)
+        coefs[coefs.length - 1] = coefs[coefs.length - 2] * 0.99;
+    }
+
+    final boolean localMax[][] = getLocalMaximumCWT(wCoefs);
+    final List<int[]> ridges = getRidge(localMax);
+
+    for (int opp[] : ridges) {
+
+      boolean isPeak = false;
+      for (int pos : opp)
+        isPeak |= (wCoefs[0][pos] - baseline >= sdthr);
+      if (!isPeak)
+        continue;
+
+      // Final S/N check of the ridge positions inside of the ROI
+      boolean aboveThreshold = false;
+      for (int pos : opp)
+        aboveThreshold |= (pos >= fFrom && pos <= fTo && d[pos] - baseline >= sdthr);
+      if (!aboveThreshold)
+        continue;
+
+      // Decide which scale describes the peak best. A ridge of a single scale can be longer than
+      // the number of scales, in which case R fails, so we only use the valid scales.
+      final int irange = (scales[0] + 1) / 2;
+      int bestScaleNr = 0;
+      double maxInti = Double.NEGATIVE_INFINITY;
+      for (int k = 0; k < Math.min(opp.length, wCoefs.length); k++) {
+        final int r1 = Math.max(0, opp[k] - irange);
+        final int r2 = Math.min(d.length - 1, opp[k] + irange);
+        double inti = 0.0;
+        for (int i = r1; i <= r2; i++)
+          inti += d[i];
+        if (inti > maxInti) {
+          maxInti = inti;
+          bestScaleNr = k;
+        }
+      }
+      final int bestScale = scales[bestScaleNr];
+      final int bestScalePos = opp[bestScaleNr];
+      final int lwpos = Math.max(0, bestScalePos - bestScale);
+      final int rwpos = Math.min(bestScalePos + bestScale, d.length - 1);
+
+      // Find the minima around the peak
+      int lm[];
+      if (integrateSmoothed) {
+        lm = descendMin(wCoefs[bestScaleNr], bestScalePos);
+        boolean gap = true;
+        for (int i = lm[0]; i <= lm[1]; i++)
+          gap &= (d[i] == 0.0);
+        if (lm[0] == lm[1] || gap)
+          lm = descendMinTol(d, lwpos, rwpos);
+      } else {
+        lm = descendMinTol(d, lwpos, rwpos);
+      }
+
+      // Narrow down the peak boundaries by skipping zeros
+      int leadingZeros = 0;
+      while (lm[0] + leadingZeros <= lm[1] && d[lm[0] + leadingZeros] < 1.0)
+        leadingZeros++;
+      int trailingZeros = 0;
+      while (lm[1] - trailingZeros >= lm[0] && d[lm[1] - trailingZeros] < 1.0)
+        trailingZeros++;
+      final int lmin = lm[0] + Math.max(0, leadingZeros - 1);
+      final int lmax = lm[1] - Math.max(0, trailingZeros - 1);
+
+      final Peak peak = new Peak();
+      peak.scanMin = srFrom + lmin;
+      peak.scanMax = srFrom + lmax;
+      peak.scanApex = srFrom + bestScalePos;
+      peak.rtMin = scanTime[peak.scanMin];
+      peak.rtMax = scanTime[peak.scanMax];
+      double pwid = (peak.rtMax - peak.rtMin) / (peak.scanMax - peak.scanMin);
+      if (Double.isNaN(pwid))
+        pwid = 1.0;
+      double sum = 0.0, maxo = Double.NEGATIVE_INFINITY;
+      for (int i = lmin;; i += (lmin <= lmax) ? 1 : -1) {
+        sum += d[i];
+        maxo = Math.max(maxo, d[i]);
+        if (i == lmax)
+          break;
+      }
+      peak.into = pwid * sum;
+      peak.maxo = maxo;
+      peaks.add(peak);
+
+    }
+
+  }
+
+  /**
+   * MSW.cwt(): continuous wavelet transform with the Mexican hat wavelet. Returns the coefficients
+   * of each scale, or null if the first scale is too large for the data. Larger scales than the
+   * data are skipped.
+   */
+  private double[][] cwt(final double data[]) {
+
+    // Extend the data to the next power of 2 by reflection
+    final int oldLength = data.length;
+    int length = 1;
+    while (length < oldLength)
+      length <<= 1;
+    final double dataRe[] = Arrays.copyOf(data, length);
+    final double dataIm[] = new double[length];
+    for (int i = oldLength; i < length; i++)
+      dataRe[i] = data[2 * oldLength - 1 - i];
+    fft(dataRe, dataIm, false);
+
+    final List<double[]> wCoefs = new ArrayList<>(scales.length);
+    for (int scale : scales) {
+
+      final int waveLength = (int) Math.floor(scale * psiWidth) + 1;
+      if (waveLength > length)
+        break;
+
+      final int j[] = new int[waveLength];
+      for (int k = 0; k < waveLength; k++)
+        j[k] = (int) Math.floor(k / (scale * psiStep));
+      final double psiValues[] = new double[waveLength];
+      for (int k = 0; k < waveLength; k++)
+        psiValues[k] = psi[j[k]];
+      final double psiMean = mean(psiValues, waveLength);
+
+      final double waveRe[] = new double[length];
+      final double waveIm[] = new double[length];
+      for (int k = 0; k < waveLength; k++)
+        waveRe[k] = psiValues[waveLength - 1 - k] - psiMean;
+      fft(waveRe, waveIm, false);
+
+      // convolve(ms, f): circular cross-correlation of the data and the wavelet
+      for (int k = 0; k < length; k++) {
+        final double re = dataRe[k] * waveRe[k] + dataIm[k] * waveIm[k];
+        final double im = dataIm[k] * waveRe[k] - dataRe[k] * waveIm[k];
+        waveRe[k] = re;
+        waveIm[k] = im;
+      }
+      fft(waveRe, waveIm, true);
+
+      // Shift by the half wave length and cut the extension
+      final double coefs[] = new double[oldLength];
+      final int shift = waveLength / 2;
+      final double norm = 1.0 / Math.sqrt(scale);
+      for (int p = 0; p < oldLength; p++)
+        coefs[p] = norm * (waveRe[(p - shift + length) % length] / length);
+      wCoefs.add(coefs);
+
+    }
+
+    return wCoefs.isEmpty() ? null : wCoefs.toArray(new double[wCoefs.size()][]);
+
+  }
+
+  /**
+   * In-place radix-2 FFT, the length must be a power of 2. As fft() in R, the inverse transform is
+   * not normalized.
+   */
+  private static void fft(final double re[], final double im[], final boolean inverse) {
+
+    final int n = re.length;
+    for (int i = 1, j = 0; i < n; i++) {
+      int bit = n >> 1;
+      for (; (j & bit) != 0; bit >>= 1)
+        j ^= bit;
+      j ^= bit;
+      if (i < j) {
+        double temp = re[i];
+        re[i] = re[j];
+        re[j] = temp;
+        temp = im[i];
+        im[i] = im[j];
+        im[j] = temp;
+      }
+    }
+
+    for (int size = 2; size <= n; size <<= 1) {
+      final int half = size >> 1;
+      final double angle = (inverse ? 2.0 : -2.0) * Math.PI / size;
+      for (int k = 0; k < half; k++) {
+        final double wRe = Math.cos(angle * k), wIm = Math.sin(angle * k);
+        for (int a = k; a < n; a += size) {
+          final int b = a + half;
+          final double tRe = re[b] * wRe - im[b] * wIm;
+          final double tIm = re[b] * wIm + im[b] * wRe;
+          re[b] = re[a] - tRe;
+          im[b] = im[a] - tIm;
+          re[a] += tRe;
+          im[a] += tIm;
+        }
+      }
+    }
+
+  }
+
+  /**
+   * MSW.getLocalMaximumCWT(): local maxima of the coefficients of each scale
+   */
+  private boolean[][] getLocalMaximumCWT(final double wCoefs[][]) {
+    final boolean localMax[][] = new boolean[wCoefs.length][];
+    for (int i = 0; i < wCoefs.length; i++) {
+      localMax[i] = localMaximum(wCoefs[i], Math.max(scales[i] * 2 + 1, MIN_LOCAL_MAX_WINDOW));
+      for (int p = 0; p < wCoefs[i].length; p++) {
+        if (wCoefs[i][p] < 0.0)
+          localMax[i][p] = false;
+      }
+    }
+    return localMax;
+  }
+
+  /**
+   * MSW.localMaximum(): maxima of the windows of given size, tested at two window offsets. Of two
+   * maxima closer than the window size only the higher one is kept.
+   */
+  private static boolean[] localMaximum(final double x[], final int winSize) {
+
+    final boolean localMax[] = new boolean[x.length];
+    markWindowMaxima(x, winSize, 0, localMax);
+    markWindowMaxima(x, winSize, winSize / 2, localMax);
+
+    final List<Integer> maxInd = new ArrayList<>();
+    for (int i = 0; i < x.length; i++) {
+      if (localMax[i])
+        maxInd.add(i);
+    }
+    for (int i = 0; i < maxInd.size() - 1; i++) {
+      final int ind1 = maxInd.get(i), ind2 = maxInd.get(i + 1);
+      if (ind2 - ind1 < winSize) {
+        if (x[ind1] - x[ind2] <= 0.0)
+          localMax[ind1] = false;
+        else
+          localMax[ind2] = false;
+      }
+    }
+
+    return localMax;
+
+  }
+
+  private static void markWindowMaxima(final double x[], final int winSize, final int shift,
+      final boolean localMax[]) {
+
+    final int numOfWindows = (x.length + shift + winSize - 1) / winSize;
+    for (int w = 0; w < numOfWindows; w++) {
+      final int from = w * winSize;
+      int maxIndex = from;
+      for (int i = from + 1; i < from + winSize; i++) {
+        if (paddedValue(x, i, shift) > paddedValue(x, maxIndex, shift))
+          maxIndex = i;
+      }
+      final double max = paddedValue(x, maxIndex, shift);
+      if (max > paddedValue(x, from, shift) && max > paddedValue(x, from + winSize - 1, shift))
+        localMax[maxIndex - shift] = true;
+    }
+
+  }
+
+  /**
+   * Value of x shifted to the right and padded with the first and last value on both sides
+   */
+  private static double paddedValue(final double x[], final int index, final int shift) {
+    return x[Math.max(0, Math.min(x.length - 1, index - shift))];
+  }
+
+  /**
+   * MSW.getRidge(): connects the local maxima from the largest to the smallest scale. The R code
+   * identifies the ridges by named lists, which is kept here as NamedList, because some results
+   * of R depend on it. Returns the positions of each ridge from the smallest scale on.
+   */
+  private List<int[]> getRidge(final boolean localMax[][]) {
+
+    final int nCol = localMax.length;
+    final int nMz = localMax[0].length;
+
+    // The positions in the ridges are 1-based, as their names depend on them
+    List<Integer> maxIndCurr = which(localMax[nCol - 1]);
+    NamedList<List<Integer>> ridgeList = new NamedList<>();
+    NamedList<Integer> peakStatus = new NamedList<>();
+    for (int ind : maxIndCurr) {
+      ridgeList.add(String.valueOf(ind), Collections.singletonList(ind));
+      peakStatus.add(String.valueOf(ind), 0);
+    }
+
+    final List<List<Integer>> orphanRidgeList = new ArrayList<>();
+    final List<String> orphanRidgeName = new ArrayList<>();
+
+    final int colInd[];
+    if (nCol > 1) {
+      colInd = new int[nCol - 1];
+      for (int j = 0; j < colInd.length; j++)
+        colInd[j] = nCol - 1 - j;
+    } else {
+      colInd = new int[] {1};
+    }
+
+    for (int col : colInd) {
+
+      final int scale = scales[col - 1];
+
+      if (maxIndCurr.isEmpty()) {
+        maxIndCurr = which(localMax[col - 1]);
+        continue;
+      }
+
+      final int winSize = Math.max(scale / 2, MIN_RIDGE_WINDOW);
+      List<Integer> selPeak = new ArrayList<>();
+      final Set<String> remove = new HashSet<>();
+
+      for (int indK : maxIndCurr) {
+
+        final String name = String.valueOf(indK);
+        final int startK = Math.max(1, indK - winSize);
+        final int endK = Math.min(nMz, indK + winSize);
+        int indCurr = -1;
+        for (int ind = startK; ind <= endK; ind++) {
+          if (localMax[col - 1][ind - 1]
+              && (indCurr < 0 || Math.abs(ind - indK) < Math.abs(indCurr - indK)))
+            indCurr = ind;
+        }
+
+        if (indCurr < 0) {
+          final Integer status = peakStatus.get(name);
+          final int statusK = (status == null) ? RIDGE_GAP_THRESHOLD + 1 : status;
+          if (statusK > RIDGE_GAP_THRESHOLD && scale >= 2) {
+            final List<Integer> temp = ridgeList.get(name);
+            orphanRidgeList.add((temp == null) ? null
+                : new ArrayList<>(temp.subList(0, Math.max(1, temp.size() - statusK))));
+            orphanRidgeName.add((col + statusK + 1) + "_" + indK);
+            remove.add(name);
+            continue;
+          }
+          indCurr = indK;
+          peakStatus.set(name, statusK + 1);
+        } else {
+          peakStatus.set(name, 0);
+        }
+
+        final List<Integer> ridge = ridgeList.get(name);
+        final List<Integer> newRidge =
+            (ridge == null) ? new ArrayList<>() : new ArrayList<>(ridge);
+        newRidge.add(indCurr);
+        ridgeList.set(name, newRidge);
+        selPeak.add(indCurr);
+
+      }
+
+      // Remove the disconnected ridges. As in R, removing no position removes everything.
+      if (!remove.isEmpty()) {
+        final Set<Integer> removeInd = new HashSet<>();
+        for (int i = 0; i < ridgeList.size(); i++) {
+          if (remove.contains(ridgeList.getName(i)))
+            removeInd.add(i);
+        }
+        if (removeInd.isEmpty()) {
+          ridgeList = new NamedList<>();
+          peakStatus = new NamedList<>();
+        } else {
+          ridgeList.remove(removeInd);
+          peakStatus.remove(removeInd);
+        }
+      }
+
+      // Of duplicated peaks only the ridge with the longest path is kept. The orphan ridge is
+      // taken from the position of the longest path in the list of duplicates, as in R.
+      final Set<Integer> dupPeak = new LinkedHashSet<>();
+      final Set<Integer> seenPeaks = new HashSet<>();
+      for (int peak : selPeak) {
+        if (!seenPeaks.add(peak))
+          dupPeak.add(peak);
+      }
+      if (!dupPeak.isEmpty()) {
+        final Set<Integer> removeInd = new HashSet<>();
+        for (int dup : dupPeak) {
+          final List<Integer> selInd = new ArrayList<>();
+          for (int i = 0; i < selPeak.size(); i++) {
+            if (selPeak.get(i) == dup)
+              selInd.add(i);
+          }
+          int removeIndJk = 0;
+          for (int i = 1; i < selInd.size(); i++) {
+            if (ridgeLength(ridgeList, selInd.get(i)) > ridgeLength(ridgeList,
+                selInd.get(removeIndJk)))
+              removeIndJk = i;
+          }
+          for (int i = 0; i < selInd.size(); i++) {
+            if (i != removeIndJk)
+              removeInd.add(selInd.get(i));
+          }
+          orphanRidgeList
+              .add((removeIndJk < ridgeList.size()) ? ridgeList.getValue(removeIndJk) : null);
+          orphanRidgeName.add(col + "_"
+              + ((removeIndJk < selPeak.size()) ? String.valueOf(selPeak.get(removeIndJk)) : "NA"));
+        }
+        final List<Integer> remainingPeaks = new ArrayList<>();
+        for (int i = 0; i < selPeak.size(); i++) {
+          if (!removeInd.contains(i))
+            remainingPeaks.add(selPeak.get(i));
+        }
+        selPeak = remainingPeaks;
+        ridgeList.remove(removeInd);
+        peakStatus.remove(removeInd);
+      }
+
+      // The ridges are named by their current peaks
+      ridgeList.setNames(selPeak);
+      peakStatus.setNames(selPeak);
+
+      if (scale >= 2) {
+        // Start new ridges at the unselected peaks of this level
+        final List<Integer> unSelPeak = which(localMax[col - 1]);
+        unSelPeak.removeAll(selPeak);
+        for (int ind : unSelPeak) {
+          ridgeList.add(String.valueOf(ind), Collections.singletonList(ind));
+          peakStatus.add(String.valueOf(ind), 0);
+        }
+        maxIndCurr = new ArrayList<>(selPeak);
+        maxIndCurr.addAll(unSelPeak);
+      } else {
+        maxIndCurr = selPeak;
+      }
+
+    }
+
+    // Combine the ridges and the orphan ridges and remove the duplicated names
+    final Set<String> names = new HashSet<>();
+    final List<int[]> ridges = new ArrayList<>();
+    for (int i = 0; i < ridgeList.size() + orphanRidgeList.size(); i++) {
+      final String name;
+      final List<Integer> ridge;
+      if (i < ridgeList.size()) {
+        name = "1_" + ridgeList.getName(i);
+        ridge = ridgeList.getValue(i);
+      } else {
+        name = orphanRidgeName.get(i - ridgeList.size());
+        ridge = orphanRidgeList.get(i - ridgeList.size());
+      }
+      if (!names.add(name))
+        continue;
+
+      // Reverse the order from the smallest scale on, convert to 0-based positions
+      final int positions[] = new int[(ridge == null) ? 0 : ridge.size()];
+      for (int p = 0; p < positions.length; p++)
+        positions[p] = ridge.get(positions.length - 1 - p) - 1;
+      ridges.add(positions);
+    }
+
+    return ridges;
+
+  }
+
+  private static int ridgeLength(NamedList<List<Integer>> ridgeList, int index) {
+    if (index >= ridgeList.size() || ridgeList.getValue(index) == null)
+      return 0;
+    return ridgeList.getValue(index).size();
+  }
+
+  /**
+   * Returns the 1-based positions of the true values
+   */
+  private static List<Integer> which(final boolean values[]) {
+    final List<Integer> positions = new ArrayList<>();
+    for (int i = 0; i < values.length; i++) {
+      if (values[i])
+        positions.add(i + 1);
+    }
+    return positions;
+  }
+
+  /**
+   * descendMin(): descends from the start position to the next minimum on both sides
+   */
+  private static int[] descendMin(final double values[], final int start) {
+    int lower = start;
+    while (lower > 0 && values[lower - 1] <= values[lower])
+      lower--;
+    int upper = start;
+    while (upper < values.length - 1 && values[upper + 1] <= values[upper])
+      upper++;
+    return new int[] {lower, upper};
+  }
+
+  /**
+   * descendMinTol(): descends from the start positions on both sides until more than
+   * maxDescOutlier values are above the minimum or a zero is reached
+   */
+  private int[] descendMinTol(final double d[], final int startLeft, final int startRight) {
+
+    int l = startLeft, outl = 0, opos = 0;
+    while (l > 0 && d[l] > 0.0 && outl <= maxDescOutlier) {
+      final int vpos = (outl > 0) ? opos : l;
+      if (d[l - 1] > d[vpos])
+        outl++;
+      else
+        outl = 0;
+      if (outl == 1)
+        opos = l;
+      l--;
+    }
+    if (outl > 0)
+      l += outl;
+
+    int r = startRight;
+    outl = 0;
+    while (r < d.length - 1 && d[r] > 0.0 && outl <= maxDescOutlier) {
+      final int vpos = (outl > 0) ? opos : r;
+      if (d[r + 1] > d[vpos])
+        outl++;
+      else
+        outl = 0;
+      if (outl == 1)
+        opos = r;
+      r++;
+    }
+    if (outl > 0)
+      r -= outl;
+
+    return new int[] {l, r};
+
+  }
+
+  /**
+   * estimateChromNoise(): trimmed mean of the positive values, or the mean of all values if there
+   * are not enough positive values
+   */
+  private static double estimateChromNoise(final double x[], final int minPts) {
+    final double positive[] = positiveValues(x);
+    if (positive.length < minPts)
+      return mean(x, x.length);
+    Arrays.sort(positive);
+    final int trimmed = (int) Math.floor(positive.length * NOISE_TRIM);
+    return mean(Arrays.copyOfRange(positive, trimmed, positive.length - trimmed),
+        positive.length - 2 * trimmed);
+  }
+
+  /**
+   * getLocalNoiseEstimate(): baseline and standard deviation of the noise around the ROI
+   */
+  private double[] getLocalNoiseEstimate(final double d[], final int fFrom, final int fTo,
+      final double threshold) {
+
+    double baseline1, sdnoise1, baseline2, sdnoise2;
+
+    if (d.length < intensity.length) {
+
+      // Region outside of the ROI (wide)
+      final double n1[] = new double[d.length - (fTo - fFrom + 1)];
+      System.arraycopy(d, 0, n1, 0, fFrom);
+      System.arraycopy(d, fTo + 1, n1, fFrom, d.length - fTo - 1);
+      final double noise1[] = removeContinuousPtsAboveThreshold(n1, threshold);
+      if (noise1.length > 1) {
+        baseline1 = mean(noise1, noise1.length);
+        sdnoise1 = sd(noise1);
+      } else {
+        baseline1 = sdnoise1 = 1.0;
+      }
+
+      // Region outside of the ROI (narrow), including the first and last point of the ROI
+      final int from = Math.max(0, fFrom - noiseRange[0]);
+      final int to = Math.min(d.length - 1, fTo + noiseRange[0]);
+      final double n2[] = new double[(fFrom - from + 1) + (to - fTo + 1)];
+      System.arraycopy(d, from, n2, 0, fFrom - from + 1);
+      System.arraycopy(d, fTo, n2, fFrom - from + 1, to - fTo + 1);
+      final double noise2[] = removeContinuousPtsAboveThreshold(n2, threshold);
+      if (noise2.length > 1) {
+        baseline2 = mean(noise2, noise2.length);
+        sdnoise2 = sd(noise2);
+      } else {
+        baseline2 = sdnoise2 = 1.0;
+      }
+
+    } else {
+
+      // trimm(): positive values between the 5% and 95% quantile
+      final double positive[] = positiveValues(d);
+      Arrays.sort(positive);
+      final int from = (int) Math.rint(positive.length * NOISE_TRIM + 1);
+      final int to = (int) Math.rint(positive.length * (1.0 - NOISE_TRIM));
+      final double trimmed[] = (positive.length == 0) ? new double[] {Double.NaN}
+          : Arrays.copyOfRange(positive, Math.min(from, to) - 1, Math.max(from, to));
+      baseline1 = baseline2 = mean(trimmed, trimmed.length);
+      sdnoise1 = sdnoise2 = sd(trimmed);
+
+    }
+
+    return new double[] {Math.min(baseline1, baseline2), Math.min(sdnoise1, sdnoise2)};
+
+  }
+
+  /**
+   * continuousPtsAboveThreshold(): true if at least minPtsAboveBaseLine consecutive values between
+   * given indexes are above the threshold
+   */
+  private boolean continuousPtsAboveThreshold(final double x[], final int from, final int to,
+      final double threshold) {
+    int count = 0;
+    for (int i = from; i <= to; i++) {
+      count = (x[i] > threshold) ? count + 1 : 0;
+      if (count >= minPtsAboveBaseLine)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Removes the values of continuousPtsAboveThresholdIdx(), the runs of at least
+   * minPtsAboveBaseLine values above the threshold
+   */
+  private double[] removeContinuousPtsAboveThreshold(final double x[], final double threshold) {
+    final boolean continuous[] = new boolean[x.length];
+    int count = 0;
+    for (int i = 0; i <= x.length; i++) {
+      if (i < x.length && x[i] > threshold) {
+        count++;
+        continue;
+      }
+      if (count >= minPtsAboveBaseLine)
+        Arrays.fill(continuous, i - count, i, true);
+      count = 0;
+    }
+    final double remaining[] = new double[x.length];
+    int numOfRemaining = 0;
+    for (int i = 0; i < x.length; i++) {
+      if (!continuous[i])
+        remaining[numOfRemaining++] = x[i];
+    }
+    return Arrays.copyOf(remaining, numOfRemaining);
+  }
+
+  private static boolean anyAboveThreshold(final double x[], final int from, final int to,
+      final double baseline, final double threshold) {
+    for (int i = from; i <= to; i++) {
+      if (x[i] - baseline >= threshold)
+        return true;
+    }
+    return false;
+  }
+
+  private static double[] positiveValues(final double x[]) {
+    final double positive[] = new double[x.length];
+    int numOfPositive = 0;
+    for (double value : x) {
+      if (value > 0.0)
+        positive[numOfPositive++] = value;
+    }
+    return Arrays.copyOf(positive, numOfPositive);
+  }
+
+  /**
+   * Mean of the first n values, with the correction of the second pass as in R
+   */
+  private static double mean(final double x[], final int n) {
+    double sum = 0.0;
+    for (int i = 0; i < n; i++)
+      sum += x[i];
+    final double mean = sum / n;
+    double correction = 0.0;
+    for (int i = 0; i < n; i++)
+      correction += x[i] - mean;
+    return mean + correction / n;
+  }
+
+  /**
+   * Sample standard deviation, NaN for less than 2 values as in R
+   */
+  private static double sd(final double x[]) {
+    if (x.length < 2)
+      return Double.NaN;
+    final double mean = mean(x, x.length);
+    double sum = 0.0;
+    for (double value : x)
+      sum += (value - mean) * (value - mean);
+    return Math.sqrt(sum / (x.length - 1));
+  }
+
+  /**
+   * Peak found by findPeaks.centWave, a row of the peak matrix of xcms
+   */
+  static final class Peak {
+
+    private int scanMin, scanMax, scanApex;
+    private double rtMin, rtMax, into, maxo;
+
+    /**
+     * @return index of the first scan of the peak (rtmin)
+     */
+    int getFirstScan() {
+      return scanMin;
+    }
+
+    /**
+     * @return index of the last scan of the peak (rtmax)
+     */
+    int getLastScan() {
+      return scanMax;
+    }
+
+    /**
+     * @return index of the scan at the ridge position of the best scale (rt)
+     */
+    int getApexScan() {
+      return scanApex;
+    }
+
+    /**
+     * @return integrated intensity, in intensity * seconds (into)
+     */
+    double getArea() {
+      return into;
+    }
+
+    /**
+     * @return maximum intensity between the first and the last scan (maxo)
+     */
+    double getMaxIntensity() {
+      return maxo;
+    }
+
+  }
+
+  /**
+   * List of values with names, which behaves like a named list in R: values are found by the first
+   * matching name and the names can be replaced by position.
+   */
+  private static final class NamedList<T> {
+
+    private final List<String> names = new ArrayList<>();
+    private final List<T> values = new ArrayList<>();
+
+    int size() {
+      return values.size();
+    }
+
+    String getName(int index) {
+      return names.get(index);
+    }
+
+    T getValue(int index) {
+      return values.get(index);
+    }
+
+    T get(String name) {
+      final int index = names.indexOf(name);
+      return (index < 0) ? null : values.get(index);
+    }
+
+    void add(String name, T value) {
+      names.add(name);
+      values.add(value);
+    }
+
+    void set(String name, T value) {
+      final int index = names.indexOf(name);
+      if (index < 0)
+        add(name, value);
+      else
+        values.set(index, value);
+    }
+
+    /**
+     * Removes the values at given positions, positions outside of the list are ignored
+     */
+    void remove(Set<Integer> positions) {
+      for (int i = values.size() - 1; i >= 0; i--) {
+        if (positions.contains(i)) {
+          names.remove(i);
+          values.remove(i);
+        }
+      }
+    }
+
+    /**
+     * Replaces the names by position, missing names are NA
+     */
+    void setNames(List<Integer> newNames) {
+      for (int i = 0; i < names.size(); i++)
+        names.set(i, (i < newNames.size()) ? String.valueOf(newNames.get(i)) : "NA");
+    }
+
+  }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.centwave;
+
+import java.awt.Window;
+import java.text.NumberFormat;
+
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.PeakResolverSetupDialog;
+import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.centwave.CentWaveDetectorParameters.PeakIntegrationMethod;
+import net.sf.mzmine.parameters.Parameter;
+import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.ComboParameter;
+import net.sf.mzmine.parameters.parametertypes.DoubleParameter;
+import net.sf.mzmine.parameters.parametertypes.ranges.DoubleRangeParameter;
+import net.sf.mzmine.util.ExitCode;
+
+import com.google.common.collect.Range;
+
+/**
+ * Parameters used by CentWaveJavaDetector, same as CentWaveDetectorParameters without the R engine.
+ */
+public class CentWaveJavaDetectorParameters extends SimpleParameterSet {
+
+  public static final DoubleRangeParameter PEAK_DURATION =
+      new DoubleRangeParameter("Peak duration range", "Range of acceptable peak lengths",
+          MZmineCore.getConfiguration().getRTFormat(), Range.closed(0.0, 10.0));
+
+  public static final DoubleRangeParameter PEAK_SCALES = new DoubleRangeParameter("Wavelet scales",
+      "Range wavelet widths (smallest, largest) in minutes",
+      MZmineCore.getConfiguration().getRTFormat(), Range.closed(0.25, 5.0));
+
+  public static final DoubleParameter SN_THRESHOLD = new DoubleParameter("S/N threshold",
+      "Signal to noise ratio threshold", NumberFormat.getNumberInstance(), 10.0, 0.0, null);
+
+  public static final ComboParameter<PeakIntegrationMethod> INTEGRATION_METHOD =
+      new ComboParameter<PeakIntegrationMethod>("Peak integration method",
+          "Method used to determine RT extents of detected peaks", PeakIntegrationMethod.values(),
+          PeakIntegrationMethod.UseSmoothedData);
+
+  public CentWaveJavaDetectorParameters() {
+    super(new Parameter[] {SN_THRESHOLD, PEAK_SCALES, PEAK_DURATION, INTEGRATION_METHOD});
+  }
+
+  @Override
+  public ExitCode showSetupDialog(Window parent, boolean valueCheckRequired) {
+    final PeakResolverSetupDialog dialog = new PeakResolverSetupDialog(parent, valueCheckRequired,
+        this, CentWaveJavaDetector.class);
+    dialog.setVisible(true);
+    return dialog.getExitCode();
+  }
+}
@@ -22,7 +22,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.TreeMap;
 import java.util.logging.Logger;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -213,20 +212,14 @@ public class RawDataFileOpenHandler_2_3 extends DefaultHandler implements RawDat
     if (qName.equals(RawDataElementName_2_3.SCAN.getElementName())) {
 
       try {
-        int newStorageID = 1;
-        TreeMap<Integer, Long> dataPointsOffsets = newRawDataFile.getDataPointsOffsets();
-        TreeMap<Integer, Integer> dataPointsLengths = newRawDataFile.getDataPointsLengths();
-        if (!dataPointsOffsets.isEmpty())
-          newStorageID = dataPointsOffsets.lastKey().intValue() + 1;
+        int newStorageID =
+            newRawDataFile.addDataPointsStorage(storageFileOffset, dataPointsNumber);
 
         StorableScan storableScan = new StorableScan(newRawDataFile, newStorageID, dataPointsNumber,
             scanNumber, msLevel, retentionTime, precursorMZ, precursorCharge, fragmentScan,
             spectrumType, PolarityType.UNKNOWN, "", null);
         newRawDataFile.addScan(storableScan);
 
-        dataPointsOffsets.put(newStorageID, storageFileOffset);
-        dataPointsLengths.put(newStorageID, dataPointsNumber);
-
         for (SimpleMassList newML : currentMassLists) {
           newML.setScan(storableScan);
         }
@@ -22,7 +22,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.TreeMap;
 import java.util.logging.Logger;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -62,8 +61,6 @@ public class RawDataFileOpenHandler_2_5 extends DefaultHandler implements RawDat
   private int currentStorageID;
   private int storedDataID;
   private int storedDataNumDP;
-  private TreeMap<Integer, Long> dataPointsOffsets;
-  private TreeMap<Integer, Integer> dataPointsLengths;
   private ArrayList<StorableMassList> massLists;
   private PolarityType polarity = PolarityType.UNKNOWN;
   private String scanDescription = "";
@@ -88,9 +85,6 @@ public class RawDataFileOpenHandler_2_5 extends DefaultHandler implements RawDat
     newRawDataFile = (RawDataFileImpl) MZmineCore.createNewFile(null);
     newRawDataFile.openDataPointsFile(scansFile);
 
-    dataPointsOffsets = newRawDataFile.getDataPointsOffsets();
-    dataPointsLengths = newRawDataFile.getDataPointsLengths();
-
     // Reads the XML file (raw data description)
     SAXParserFactory factory = SAXParserFactory.newInstance();
     SAXParser saxParser = factory.newSAXParser();
@@ -178,8 +172,7 @@ public class RawDataFileOpenHandler_2_5 extends DefaultHandler implements RawDat
 
     if (qName.equals(RawDataElementName_2_5.STORED_DATA.getElementName())) {
       long offset = Long.parseLong(getTextOfElement());
-      dataPointsOffsets.put(storedDataID, offset);
-      dataPointsLengths.put(storedDataID, storedDataNumDP);
+      newRawDataFile.setDataPointsStorage(storedDataID, offset, storedDataNumDP);
     }
 
     if (qName.equals(RawDataElementName_2_5.MS_LEVEL.getElementName())) {
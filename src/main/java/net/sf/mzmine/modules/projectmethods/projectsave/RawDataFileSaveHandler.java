@@ -21,6 +21,8 @@ package net.sf.mzmine.modules.projectmethods.projectsave;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.logging.Logger;
@@ -34,8 +36,8 @@ import javax.xml.transform.sax.SAXTransformerFactory;
 import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 
+import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MassList;
-import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.project.impl.RawDataFileImpl;
 import net.sf.mzmine.project.impl.StorableMassList;
 import net.sf.mzmine.project.impl.StorableScan;
@@ -92,6 +94,7 @@ class RawDataFileSaveHandler {
     // dataPointsOffset table. Some deleted mass lists may still be present
     // in the data points file, we don't want to copy those.
     long newOffset = 0;
+    int savedEntries = 0;
     byte buffer[] = new byte[1 << 20];
     RandomAccessFile dataPointsFile = rawDataFile.getDataPointsFile();
     for (Integer storageID : dataPointsOffsets.keySet()) {
@@ -99,18 +102,39 @@ class RawDataFileSaveHandler {
       if (canceled)
         return;
 
-      final long offset = dataPointsOffsets.get(storageID);
-      dataPointsFile.seek(offset);
-
-      final int bytes = dataPointsLengths.get(storageID) * 4 * 2;
       consolidatedDataPointsOffsets.put(storageID, newOffset);
-      if (buffer.length < bytes) {
-        buffer = new byte[bytes * 2];
+
+      if (rawDataFile.isDataPointsInSource(storageID)) {
+        // Data points which were not copied from the raw data file are decoded and saved in the
+        // format of the data points file
+        DataPoint dataPoints[] = rawDataFile.readDataPoints(storageID);
+        final int bytes = dataPoints.length * 4 * 2;
+        if (buffer.length < bytes) {
+          buffer = new byte[bytes * 2];
+        }
+        FloatBuffer floatBuffer = ByteBuffer.wrap(buffer).asFloatBuffer();
+        for (DataPoint dp : dataPoints) {
+          floatBuffer.put((float) dp.getMZ());
+          floatBuffer.put((float) dp.getIntensity());
+        }
+        zipOutputStream.write(buffer, 0, bytes);
+        newOffset += bytes;
+        dataPointsLengths.put(storageID, dataPoints.length);
+      } else {
+        final long offset = dataPointsOffsets.get(storageID);
+        dataPointsFile.seek(offset);
+
+        final int bytes = dataPointsLengths.get(storageID) * 4 * 2;
+        if (buffer.length < bytes) {
+          buffer = new byte[bytes * 2];
+        }
+        dataPointsFile.read(buffer, 0, bytes);
+        zipOutputStream.write(buffer, 0, bytes);
+        newOffset += bytes;
       }
-      dataPointsFile.read(buffer, 0, bytes);
-      zipOutputStream.write(buffer, 0, bytes);
-      newOffset += bytes;
-      progress = 0.9 * ((double) offset / dataPointsFile.length());
+
+      savedEntries++;
+      progress = 0.9 * ((double) savedEntries / dataPointsOffsets.size());
     }
 
     if (canceled)
@@ -211,7 +235,8 @@ class RawDataFileSaveHandler {
    * @param scan
    * @param element
    */
-  private void fillScanElement(Scan scan, TransformerHandler hd) throws SAXException, IOException {
+  private void fillScanElement(StorableScan scan, TransformerHandler hd)
+      throws SAXException, IOException {
     // <SCAN_ID>
     AttributesImpl atts = new AttributesImpl();
     hd.startElement("", "", RawDataElementName.SCAN_ID.getElementName(), atts);
@@ -254,9 +279,14 @@ class RawDataFileSaveHandler {
     hd.endElement("", "", RawDataElementName.CENTROIDED.getElementName());
 
     // <QUANTITY_DATAPOINTS>
+    // The number of saved data points, which may differ from the one declared by the raw data file
+    // for data points that were not copied from it
+    Integer numOfDataPoints = dataPointsLengths.get(scan.getStorageID());
+    if (numOfDataPoints == null)
+      numOfDataPoints = scan.getNumberOfDataPoints();
     hd.startElement("", "", RawDataElementName.QUANTITY_DATAPOINTS.getElementName(), atts);
-    hd.characters(String.valueOf((scan.getNumberOfDataPoints())).toCharArray(), 0,
-        String.valueOf((scan.getNumberOfDataPoints())).length());
+    hd.characters(String.valueOf(numOfDataPoints).toCharArray(), 0,
+        String.valueOf(numOfDataPoints).length());
     hd.endElement("", "", RawDataElementName.QUANTITY_DATAPOINTS.getElementName());
 
     // <FRAGMENT_SCAN>
@@ -22,6 +22,7 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.RawDataFile;
@@ -46,6 +47,10 @@ import ucar.nc2.Variable;
 
 public class MassDetectionTask extends AbstractTask {
 
+  // Number of scans processed in parallel before their mass lists are added to the scans. This
+  // limits the number of mass lists kept in memory.
+  private static final int SCANS_PER_CHUNK = 256;
+
   private final Logger logger = Logger.getLogger(this.getClass().getName());
   private final RawDataFile dataFile;
 
@@ -135,39 +140,59 @@ public class MassDetectionTask extends AbstractTask {
 
       final Scan scans[] = scanSelection.getMatchingScans(dataFile);
       totalScans = scans.length;
-      // Process scans one by one
-      for (Scan scan : scans) {
+      final MassDetector detector = massDetector.getModule();
+      final ParameterSet detectorParameters = massDetector.getParameterSet();
+
+      // Process scans in chunks. The masses of the scans in each chunk are detected in parallel,
+      // then the mass lists are added in the order of the scans.
+      for (int chunkStart = 0; chunkStart < scans.length; chunkStart += SCANS_PER_CHUNK) {
 
         if (isCanceled())
           return;
 
-        MassDetector detector = massDetector.getModule();
-        DataPoint mzPeaks[] = detector.getMassValues(scan, massDetector.getParameterSet());
+        final int firstScan = chunkStart;
+        final int chunkLength = Math.min(SCANS_PER_CHUNK, scans.length - chunkStart);
+        final DataPoint chunkMzPeaks[][] = new DataPoint[chunkLength][];
 
-        SimpleMassList newMassList = new SimpleMassList(name, scan, mzPeaks);
+        IntStream.range(0, chunkLength).parallel().forEach(i -> {
+          if (isCanceled())
+            return;
+          chunkMzPeaks[i] = detector.getMassValues(scans[firstScan + i], detectorParameters);
+        });
 
-        // Add new mass list to the scan
-        scan.addMassList(newMassList);
+        if (isCanceled())
+          return;
 
-        if (this.saveToCDF) {
+        for (int i = 0; i < chunkLength; i++) {
 
-          curTotalIntensity = 0;
-          for (int a = 0; a < mzPeaks.length; a++) {
-            DataPoint curMzPeak = mzPeaks[a];
-            allMZ.add(curMzPeak.getMZ());
-            allIntensities.add(curMzPeak.getIntensity());
-            curTotalIntensity += curMzPeak.getIntensity();
-          }
+          Scan scan = scans[firstScan + i];
+          DataPoint mzPeaks[] = chunkMzPeaks[i];
 
-          scanAcquisitionTime.add(scan.getRetentionTime());
-          pointsInScans.add(0);
-          startIndex.add(mzPeaks.length + lastPointCount);
-          totalIntensity.add(curTotalIntensity);
+          SimpleMassList newMassList = new SimpleMassList(name, scan, mzPeaks);
 
-          lastPointCount = mzPeaks.length + lastPointCount;
-        }
+          // Add new mass list to the scan
+          scan.addMassList(newMassList);
 
-        processedScans++;
+          if (this.saveToCDF) {
+
+            curTotalIntensity = 0;
+            for (int a = 0; a < mzPeaks.length; a++) {
+              DataPoint curMzPeak = mzPeaks[a];
+              allMZ.add(curMzPeak.getMZ());
+              allIntensities.add(curMzPeak.getIntensity());
+              curTotalIntensity += curMzPeak.getIntensity();
+            }
+
+            scanAcquisitionTime.add(scan.getRetentionTime());
+            pointsInScans.add(0);
+            startIndex.add(mzPeaks.length + lastPointCount);
+            totalIntensity.add(curTotalIntensity);
+
+            lastPointCount = mzPeaks.length + lastPointCount;
+          }
+
+          processedScans++;
+        }
       }
 
       // Update the GUI with all new mass lists
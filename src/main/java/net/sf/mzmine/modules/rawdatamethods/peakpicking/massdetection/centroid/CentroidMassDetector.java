@@ -20,6 +20,7 @@ package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.centroid;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetector;
 import net.sf.mzmine.parameters.ParameterSet;
 
@@ -34,9 +35,12 @@ import java.util.ArrayList;
 public class CentroidMassDetector implements MassDetector {
 
   public DataPoint[] getMassValues(Scan scan, ParameterSet parameters) {
-    return getMassValues(scan.getDataPoints(), parameters);
+    final double mzValues[] = new double[scan.getNumberOfDataPoints()];
+    final double intensityValues[] = new double[scan.getNumberOfDataPoints()];
+    final int size = scan.getDataPoints(mzValues, intensityValues);
+    return getMassValues(mzValues, intensityValues, size, parameters);
   }
-  
+
   public DataPoint[] getMassValues(DataPoint dataPoints[], ParameterSet parameters) {
 
     double noiseLevel =
@@ -56,6 +60,30 @@ public class CentroidMassDetector implements MassDetector {
     return mzPeaks.toArray(new DataPoint[0]);
   }
 
+  /**
+   * Same as getMassValues(DataPoint[], ParameterSet), but works on m/z and intensity arrays, so a
+   * DataPoint is only created for the data points above the noise level
+   */
+  private DataPoint[] getMassValues(double mzValues[], double intensityValues[], int size,
+      ParameterSet parameters) {
+
+    double noiseLevel =
+        parameters.getParameter(CentroidMassDetectorParameters.noiseLevel).getValue();
+
+    ArrayList<DataPoint> mzPeaks = new ArrayList<DataPoint>();
+
+    // Find possible mzPeaks
+    for (int j = 0; j < size; j++) {
+
+      // Is intensity above the noise level?
+      if (intensityValues[j] >= noiseLevel) {
+        // Yes, then mark this index as mzPeak
+        mzPeaks.add(new SimpleDataPoint(mzValues[j], intensityValues[j]));
+      }
+    }
+    return mzPeaks.toArray(new DataPoint[0]);
+  }
+
   public @Nonnull String getName() {
     return "Centroid";
   }
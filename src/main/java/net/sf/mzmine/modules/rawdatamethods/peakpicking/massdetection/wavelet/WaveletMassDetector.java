@@ -19,7 +19,6 @@
 package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.wavelet;
 
 import java.util.TreeSet;
-import java.util.Vector;
 
 import javax.annotation.Nonnull;
 
@@ -40,7 +39,10 @@ import net.sf.mzmine.util.SortingProperty;
 public class WaveletMassDetector implements MassDetector {
   
   public DataPoint[] getMassValues(Scan scan, ParameterSet parameters) {
-    return getMassValues(scan.getDataPoints(), parameters);
+    final double mzValues[] = new double[scan.getNumberOfDataPoints()];
+    final double intensityValues[] = new double[scan.getNumberOfDataPoints()];
+    final int size = scan.getDataPoints(mzValues, intensityValues);
+    return getMassValues(mzValues, intensityValues, size, parameters);
   }
 
   /**
@@ -51,16 +53,28 @@ public class WaveletMassDetector implements MassDetector {
   private static final int WAVELET_ESL = -5;
   private static final int WAVELET_ESR = 5;
 
-  public DataPoint[] getMassValues(DataPoint originalDataPoints[] , ParameterSet parameters) {
+  public DataPoint[] getMassValues(DataPoint originalDataPoints[], ParameterSet parameters) {
+    final double mzValues[] = new double[originalDataPoints.length];
+    final double intensityValues[] = new double[originalDataPoints.length];
+    for (int i = 0; i < originalDataPoints.length; i++) {
+      mzValues[i] = originalDataPoints[i].getMZ();
+      intensityValues[i] = originalDataPoints[i].getIntensity();
+    }
+    return getMassValues(mzValues, intensityValues, originalDataPoints.length, parameters);
+  }
+
+  private DataPoint[] getMassValues(double mzValues[], double intensityValues[], int size,
+      ParameterSet parameters) {
     double noiseLevel =
         parameters.getParameter(WaveletMassDetectorParameters.noiseLevel).getValue();
     int scaleLevel = parameters.getParameter(WaveletMassDetectorParameters.scaleLevel).getValue();
     double waveletWindow =
         parameters.getParameter(WaveletMassDetectorParameters.waveletWindow).getValue();
 
-    DataPoint waveletDataPoints[] = performCWT(originalDataPoints, waveletWindow, scaleLevel);
+    double waveletIntensities[] = performCWT(intensityValues, size, waveletWindow, scaleLevel);
 
-    DataPoint mzPeaks[] = getMzPeaks(noiseLevel, originalDataPoints, waveletDataPoints);
+    DataPoint mzPeaks[] =
+        getMzPeaks(noiseLevel, mzValues, intensityValues, waveletIntensities, size);
 
     return mzPeaks;
   }
@@ -68,12 +82,11 @@ public class WaveletMassDetector implements MassDetector {
   /**
    * Perform the CWT over raw data points in the selected scale level
    * 
-   * @param dataPoints
+   * @return intensities of the wavelet transformed data points
    */
-  private SimpleDataPoint[] performCWT(DataPoint[] dataPoints, double waveletWindow,
+  private double[] performCWT(double intensityValues[], int length, double waveletWindow,
       int scaleLevel) {
-    int length = dataPoints.length;
-    SimpleDataPoint[] cwtDataPoints = new SimpleDataPoint[length];
+    double cwtIntensities[] = new double[length];
     double wstep = ((WAVELET_ESR - WAVELET_ESL) / NPOINTS);
     double[] W = new double[(int) NPOINTS];
 
@@ -109,26 +122,27 @@ public class WaveletMassDetector implements MassDetector {
           ind = 0;
         if (ind >= NPOINTS)
           ind = (int) NPOINTS - 1;
-        intensity += dataPoints[i].getIntensity() * W[ind];
+        intensity += intensityValues[i] * W[ind];
       }
       intensity /= sqrtScaleLevel;
       // Eliminate the negative part of the wavelet map
       if (intensity < 0)
         intensity = 0;
-      cwtDataPoints[dx] = new SimpleDataPoint(dataPoints[dx].getMZ(), (double) intensity);
+      cwtIntensities[dx] = intensity;
     }
 
-    return cwtDataPoints;
+    return cwtIntensities;
   }
 
   /**
-   * This function calculates the wavelets's coefficients in Time domain
+   * This function calculates the wavelets's coefficients in Time domain (also used by the
+   * CentWave chromatogram deconvolution)
    * 
    * @param double x Step of the wavelet
    * @param double a Window Width of the wavelet
    * @param double b Offset from the center of the peak
    */
-  private double cwtMEXHATreal(double x, double a, double b) {
+  public static double cwtMEXHATreal(double x, double a, double b) {
     /* c = 2 / ( sqrt(3) * pi^(1/4) ) */
     double c = 0.8673250705840776;
     double TINY = 1E-200;
@@ -144,19 +158,18 @@ public class WaveletMassDetector implements MassDetector {
   /**
    * This function searches for maximums from wavelet data points
    */
-  private DataPoint[] getMzPeaks(double noiseLevel, DataPoint[] originalDataPoints,
-      DataPoint[] waveletDataPoints) {
+  private DataPoint[] getMzPeaks(double noiseLevel, double mzValues[], double intensityValues[],
+      double waveletIntensities[], int size) {
 
     TreeSet<DataPoint> mzPeaks =
         new TreeSet<DataPoint>(new DataPointSorter(SortingProperty.MZ, SortingDirection.Ascending));
 
-    Vector<DataPoint> rawDataPoints = new Vector<DataPoint>();
     int peakMaxInd = 0;
-    int stopInd = waveletDataPoints.length - 1;
+    int stopInd = size - 1;
 
     for (int ind = 0; ind <= stopInd; ind++) {
 
-      while ((ind <= stopInd) && (waveletDataPoints[ind].getIntensity() == 0)) {
+      while ((ind <= stopInd) && (waveletIntensities[ind] == 0)) {
         ind++;
       }
       peakMaxInd = ind;
@@ -164,13 +177,17 @@ public class WaveletMassDetector implements MassDetector {
         break;
       }
 
+      // Highest intensity of the raw data points of this peak
+      double aproxIntensity = 0;
+
       // While peak is on
-      while ((ind <= stopInd) && (waveletDataPoints[ind].getIntensity() > 0)) {
+      while ((ind <= stopInd) && (waveletIntensities[ind] > 0)) {
         // Check if this is the maximum point of the peak
-        if (waveletDataPoints[ind].getIntensity() > waveletDataPoints[peakMaxInd].getIntensity()) {
+        if (waveletIntensities[ind] > waveletIntensities[peakMaxInd]) {
           peakMaxInd = ind;
         }
-        rawDataPoints.add(originalDataPoints[ind]);
+        if (intensityValues[ind] > aproxIntensity)
+          aproxIntensity = intensityValues[ind];
         ind++;
       }
 
@@ -178,33 +195,21 @@ public class WaveletMassDetector implements MassDetector {
         break;
       }
 
-      rawDataPoints.add(originalDataPoints[ind]);
+      if (intensityValues[ind] > aproxIntensity)
+        aproxIntensity = intensityValues[ind];
 
-      if (originalDataPoints[peakMaxInd].getIntensity() > noiseLevel) {
-        SimpleDataPoint peakDataPoint = new SimpleDataPoint(originalDataPoints[peakMaxInd].getMZ(),
-            calcAproxIntensity(rawDataPoints));
+      if (intensityValues[peakMaxInd] > noiseLevel) {
+        SimpleDataPoint peakDataPoint = new SimpleDataPoint(mzValues[peakMaxInd], aproxIntensity);
 
         mzPeaks.add(peakDataPoint);
 
       }
-      rawDataPoints.clear();
     }
 
     return mzPeaks.toArray(new DataPoint[0]);
 
   }
 
-  private double calcAproxIntensity(Vector<DataPoint> rawDataPoints) {
-
-    double aproxIntensity = 0;
-
-    for (DataPoint d : rawDataPoints) {
-      if (d.getIntensity() > aproxIntensity)
-        aproxIntensity = d.getIntensity();
-    }
-    return aproxIntensity;
-  }
-
   @Override
   public @Nonnull String getName() {
     return "Wavelet transform";
@@ -36,10 +36,12 @@ import com.google.common.base.Strings;
 
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.MZmineModuleCategory;
 import net.sf.mzmine.modules.MZmineProcessingModule;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.AgilentCsvReadTask;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.IndexedFileReadTask;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzDataReadTask;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzMLReadTask;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzXMLReadTask;
@@ -162,7 +164,14 @@ public class RawDataImportModule implements MZmineProcessingModule {
         continue;
       }
 
-      Task newTask = createOpeningTask(fileType, project, fileNames[i], newMZmineFile);
+      // Only files opened directly are read in place, the ones extracted by ZipReadTask are
+      // temporary
+      Task newTask;
+      if (isIndexedFilesInPlaceEnabled()
+          && ((fileType == RawDataFileType.MZML) || (fileType == RawDataFileType.MZXML)))
+        newTask = new IndexedFileReadTask(project, fileNames[i], fileType, newMZmineFile);
+      else
+        newTask = createOpeningTask(fileType, project, fileNames[i], newMZmineFile);
 
       if (newTask == null) {
         logger.warning("File type " + fileType + " of file " + fileNames[i] + " is not supported.");
@@ -218,4 +227,10 @@ public class RawDataImportModule implements MZmineProcessingModule {
     return newTask;
   }
 
+  private static boolean isIndexedFilesInPlaceEnabled() {
+    Boolean enabled = MZmineCore.getConfiguration().getPreferences()
+        .getParameter(MZminePreferences.indexedFilesInPlace).getValue();
+    return (enabled != null) && enabled;
+  }
+
 }
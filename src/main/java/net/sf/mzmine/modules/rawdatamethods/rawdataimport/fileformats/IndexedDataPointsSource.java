@@ -0,0 +1,300 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.google.common.collect.Range;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.project.impl.DataPointsSource;
+
+/**
+ * Reads the spectra of an indexed XML raw data file on demand. The index at the end of the file
+ * gives the offset of each spectrum, so a spectrum can be parsed on its own, starting at its
+ * offset. When the file is imported, only the metadata of the spectra are read (readScanHeader()).
+ * Their data points are decoded when needed, using positional reads of a shared FileChannel, so
+ * many threads may read at once.
+ */
+abstract class IndexedDataPointsSource implements DataPointsSource {
+
+  // Size of the end of the file which is searched for the offset of the index
+  private static final int TAIL_SIZE = 4096;
+
+  // Size of the buffer of the stream read by the XML parser
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  // Maximum size of each read of a scan header. The metadata of a spectrum take a few kB in front
+  // of its data points, which would otherwise be read along with them, so the reads of successive
+  // headers would overlap.
+  private static final int HEADER_READ_SIZE = 4096;
+
+  // XMLInputFactory instances are not guaranteed to be thread-safe
+  private static final ThreadLocal<XMLInputFactory> xmlInputFactory =
+      ThreadLocal.withInitial(() -> {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        return factory;
+      });
+
+  protected final File file;
+  private final String spectrumElement;
+
+  // Opened again, if an interrupted reading thread closed it
+  private FileChannel channel;
+  private boolean closed = false;
+
+  // Offsets of the spectrum elements in the file, in the order of the index
+  protected long offsets[] = new long[0];
+
+  /**
+   * @param spectrumElement name of the elements the offsets of the index point to
+   */
+  IndexedDataPointsSource(File file, String spectrumElement) throws IOException {
+    this.file = file;
+    this.spectrumElement = spectrumElement;
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+  }
+
+  /**
+   * Reads the index of the file, and everything else needed to parse the spectra on their own.
+   *
+   * @return false if the file has no index
+   */
+  abstract boolean readIndex() throws IOException, XMLStreamException;
+
+  /**
+   * Reads the metadata of the spectrum with given index. The reader is at the start element of the
+   * spectrum. Called from a single thread, for all spectra in the order of the index.
+   *
+   * @return null for spectra which are not mass spectra
+   */
+  @Nullable
+  abstract ScanHeader readScanHeader(int index, XMLStreamReader reader)
+      throws IOException, XMLStreamException;
+
+  /**
+   * Decodes the data points of the spectrum with given index. The reader is at the start element of
+   * the spectrum.
+   */
+  @Nonnull
+  abstract DataPoint[] decodeDataPoints(int index, XMLStreamReader reader)
+      throws IOException, XMLStreamException;
+
+  int getNumOfSpectra() {
+    return offsets.length;
+  }
+
+  @Nullable
+  ScanHeader readScanHeader(int index) throws IOException, XMLStreamException {
+    XMLStreamReader reader = openElement(offsets[index], spectrumElement, HEADER_READ_SIZE);
+    try {
+      return readScanHeader(index, reader);
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Override
+  public @Nonnull DataPoint[] readDataPoints(int index) throws IOException {
+    try {
+      XMLStreamReader reader = openElement(offsets[index], spectrumElement);
+      try {
+        return decodeDataPoints(index, reader);
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException e) {
+      throw new IOException("Could not read spectrum #" + (index + 1) + " of " + file + ": " + e,
+          e);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    closed = true;
+    channel.close();
+  }
+
+  /**
+   * Returns the offset of the index, found by the given pattern at the end of the file, -1 if there
+   * is none
+   */
+  protected long readIndexOffset(Pattern indexOffsetPattern) throws IOException {
+
+    final long size = getChannel().size();
+    ByteBuffer tail = ByteBuffer.allocate((int) Math.min(size, TAIL_SIZE));
+    while (tail.hasRemaining()) {
+      if (getChannel().read(tail, size - tail.capacity() + tail.position()) < 0)
+        break;
+    }
+
+    final String text =
+        new String(tail.array(), 0, tail.position(), StandardCharsets.ISO_8859_1);
+    final Matcher matcher = indexOffsetPattern.matcher(text);
+    if (!matcher.find())
+      return -1;
+    return Long.parseLong(matcher.group(1));
+  }
+
+  /**
+   * Returns a reader of the file starting at given offset, which must be the start of an element
+   * or of the file
+   */
+  protected XMLStreamReader openReader(long offset) throws XMLStreamException {
+    return openReader(offset, BUFFER_SIZE);
+  }
+
+  /**
+   * Returns a reader of the file starting at given offset, reading at most readSize bytes at once
+   */
+  private XMLStreamReader openReader(long offset, int readSize) throws XMLStreamException {
+    // The XML parser requests bigger blocks than the buffer size, so the size of the reads is
+    // limited by the stream itself
+    InputStream in = new BufferedInputStream(new ChannelInputStream(offset, readSize), readSize);
+    return xmlInputFactory.get().createXMLStreamReader(in);
+  }
+
+  /**
+   * Returns a reader of the file at the start element found at given offset, which must have the
+   * given name
+   */
+  protected XMLStreamReader openElement(long offset, String elementName)
+      throws IOException, XMLStreamException {
+    return openElement(offset, elementName, BUFFER_SIZE);
+  }
+
+  private XMLStreamReader openElement(long offset, String elementName, int readSize)
+      throws IOException, XMLStreamException {
+
+    XMLStreamReader reader = openReader(offset, readSize);
+    while (reader.hasNext()) {
+      if (reader.next() != XMLStreamConstants.START_ELEMENT)
+        continue;
+      if (reader.getLocalName().equals(elementName))
+        return reader;
+      break;
+    }
+    reader.close();
+    throw new IOException(
+        "The index of " + file + " does not match the file, no " + elementName + " at " + offset);
+  }
+
+  private synchronized FileChannel getChannel() throws IOException {
+    if (closed)
+      throw new ClosedChannelException();
+    return channel;
+  }
+
+  /**
+   * Opens the channel again, after a reading thread was interrupted, which closes the channel for
+   * all threads
+   */
+  private synchronized FileChannel reopenChannel(FileChannel closedChannel) throws IOException {
+    if (closed)
+      throw new ClosedChannelException();
+    if (channel == closedChannel)
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    return channel;
+  }
+
+  /**
+   * Reads the file from given offset, without changing the position of the shared channel
+   */
+  private class ChannelInputStream extends InputStream {
+
+    private long position;
+    private final int maxReadSize;
+
+    ChannelInputStream(long position, int maxReadSize) {
+      this.position = position;
+      this.maxReadSize = maxReadSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte b[] = new byte[1];
+      return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte b[], int off, int len) throws IOException {
+      if (len == 0)
+        return 0;
+      final ByteBuffer buffer = ByteBuffer.wrap(b, off, Math.min(len, maxReadSize));
+      final FileChannel currentChannel = getChannel();
+      int bytesRead;
+      try {
+        bytesRead = currentChannel.read(buffer, position);
+      } catch (ClosedByInterruptException e) {
+        // This thread was interrupted, so it stops reading
+        throw e;
+      } catch (ClosedChannelException e) {
+        bytesRead = reopenChannel(currentChannel).read(buffer, position);
+      }
+      if (bytesRead > 0)
+        position += bytesRead;
+      return bytesRead;
+    }
+  }
+
+  /**
+   * Metadata of one scan, as read from the file
+   */
+  static class ScanHeader {
+
+    // Index of the spectrum in the source
+    int index;
+
+    int scanNumber, msLevel;
+    // Number of the parent scan, -1 if none
+    int parentScanNumber = -1;
+    double retentionTime;
+    double precursorMZ;
+    int precursorCharge;
+    PolarityType polarity = PolarityType.UNKNOWN;
+    String scanDefinition;
+    int numberOfDataPoints;
+
+    // Values given by the metadata of the file, null if they are not given
+    Range<Double> mzRange;
+    DataPoint basePeak;
+    Double totalIonCurrent;
+  }
+
+}
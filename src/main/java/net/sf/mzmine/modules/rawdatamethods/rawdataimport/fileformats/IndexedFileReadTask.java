@@ -0,0 +1,253 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.collect.Range;
+import com.google.common.primitives.Ints;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.RawDataFileWriter;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.RawDataFileType;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.IndexedDataPointsSource.ScanHeader;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+import net.sf.mzmine.project.impl.StorableScan;
+import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ExceptionUtils;
+
+/**
+ * This class opens indexed mzML and mzXML files without copying their data points to the temporary
+ * file of the raw data file. Only the metadata of the scans are read, using the offsets of the
+ * index of the file, and the data points are read from the file when they are needed (see
+ * IndexedDataPointsSource). Files without an index, or with an index which does not match the
+ * file, are imported by MzMLReadTask or MzXMLReadTask.
+ */
+public class IndexedFileReadTask extends AbstractTask {
+
+  private Logger logger = Logger.getLogger(this.getClass().getName());
+
+  private File file;
+  private RawDataFileType fileType;
+  private MZmineProject project;
+  private RawDataFileImpl newMZmineFile;
+  private RawDataFile finalRawDataFile;
+  private int totalScans = 0, parsedScans;
+
+  // Task importing the whole file, if it cannot be read using its index
+  private volatile AbstractTask fallbackTask;
+
+  public IndexedFileReadTask(MZmineProject project, File fileToOpen, RawDataFileType fileType,
+      RawDataFileWriter newMZmineFile) {
+    if ((fileType != RawDataFileType.MZML) && (fileType != RawDataFileType.MZXML))
+      throw new IllegalArgumentException("Unsupported file type " + fileType);
+    this.project = project;
+    this.file = fileToOpen;
+    this.fileType = fileType;
+    this.newMZmineFile = (RawDataFileImpl) newMZmineFile;
+  }
+
+  /**
+   * @see net.sf.mzmine.taskcontrol.Task#getFinishedPercentage()
+   */
+  public double getFinishedPercentage() {
+    final AbstractTask task = fallbackTask;
+    if (task != null)
+      return task.getFinishedPercentage();
+    return totalScans == 0 ? 0 : (double) parsedScans / totalScans;
+  }
+
+  /**
+   * @see java.lang.Runnable#run()
+   */
+  public void run() {
+
+    setStatus(TaskStatus.PROCESSING);
+    logger.info("Started reading the index of file " + file);
+
+    IndexedDataPointsSource source = null;
+    List<ScanHeader> headers = null;
+    try {
+      if (fileType == RawDataFileType.MZML)
+        source = new IndexedMzMLSource(file);
+      else
+        source = new IndexedMzXMLSource(file);
+      if (source.readIndex())
+        headers = readScanHeaders(source);
+      else
+        logger.info("File " + file + " has no index");
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "Could not read the index of file " + file, e);
+      headers = null;
+    }
+
+    if ((headers == null) || isCanceled()) {
+      closeSource(source);
+      if (!isCanceled())
+        importWholeFile();
+      return;
+    }
+
+    try {
+
+      newMZmineFile.setDataPointsSource(source);
+
+      // Fragment scans of each parent scan
+      Map<Integer, List<Integer>> fragmentScans = new HashMap<>();
+      for (ScanHeader header : headers) {
+        if (header.parentScanNumber < 0)
+          continue;
+        List<Integer> fragments = fragmentScans.get(header.parentScanNumber);
+        if (fragments == null) {
+          fragments = new ArrayList<>();
+          fragmentScans.put(header.parentScanNumber, fragments);
+        }
+        fragments.add(header.scanNumber);
+      }
+
+      for (ScanHeader header : headers) {
+
+        if (isCanceled()) {
+          closeSource(source);
+          return;
+        }
+
+        final List<Integer> fragments = fragmentScans.get(header.scanNumber);
+
+        // Values of empty scans, as computed by StorableScan
+        Range<Double> mzRange = header.mzRange;
+        DataPoint basePeak = header.basePeak;
+        Double totalIonCurrent = header.totalIonCurrent;
+        if (header.numberOfDataPoints == 0) {
+          mzRange = Range.singleton(0.0);
+          basePeak = null;
+          totalIonCurrent = 0.0;
+        }
+
+        final int storageID =
+            newMZmineFile.addSourceDataPoints(header.index, header.numberOfDataPoints);
+        StorableScan scan = new StorableScan(newMZmineFile, storageID, header.numberOfDataPoints,
+            header.scanNumber, header.msLevel, header.retentionTime, header.precursorMZ,
+            header.precursorCharge, (fragments == null) ? null : Ints.toArray(fragments), null,
+            header.polarity, header.scanDefinition, null, mzRange, basePeak, totalIonCurrent);
+        newMZmineFile.addScan(scan);
+      }
+
+      finalRawDataFile = newMZmineFile.finishWriting();
+      project.addFile(finalRawDataFile);
+
+    } catch (Throwable e) {
+      closeSource(source);
+      e.printStackTrace();
+      setStatus(TaskStatus.ERROR);
+      setErrorMessage("Error reading " + file + ": " + ExceptionUtils.exceptionToString(e));
+      return;
+    }
+
+    if (headers.isEmpty()) {
+      setStatus(TaskStatus.ERROR);
+      setErrorMessage("No scans found");
+      return;
+    }
+
+    logger.info("Finished reading " + file + ", read " + headers.size() + " scans");
+    setStatus(TaskStatus.FINISHED);
+
+  }
+
+  /**
+   * Reads the metadata of all mass spectra of the file
+   */
+  private List<ScanHeader> readScanHeaders(IndexedDataPointsSource source) throws Exception {
+
+    totalScans = source.getNumOfSpectra();
+    List<ScanHeader> headers = new ArrayList<>(totalScans);
+
+    for (int i = 0; i < totalScans; i++) {
+      if (isCanceled())
+        return headers;
+      ScanHeader header = source.readScanHeader(i);
+      if (header != null) {
+        header.index = i;
+        headers.add(header);
+      }
+      parsedScans++;
+    }
+
+    return headers;
+  }
+
+  /**
+   * Imports the file by a task which copies all data points to the temporary file
+   */
+  private void importWholeFile() {
+
+    logger.info("Importing the whole file " + file);
+
+    AbstractTask task;
+    if (fileType == RawDataFileType.MZML)
+      task = new MzMLReadTask(project, file, newMZmineFile);
+    else
+      task = new MzXMLReadTask(project, file, newMZmineFile);
+    fallbackTask = task;
+
+    // The task may have been canceled before it was visible to cancel()
+    if (isCanceled())
+      return;
+
+    task.run();
+
+    if (task.getStatus() == TaskStatus.ERROR)
+      setErrorMessage(task.getErrorMessage());
+    setStatus(task.getStatus());
+  }
+
+  private void closeSource(IndexedDataPointsSource source) {
+    if (source == null)
+      return;
+    try {
+      source.close();
+    } catch (IOException e) {
+      logger.warning("Could not close file " + file + ": " + e);
+    }
+  }
+
+  @Override
+  public void cancel() {
+    super.cancel();
+    final AbstractTask task = fallbackTask;
+    if (task != null)
+      task.cancel();
+  }
+
+  public String getTaskDescription() {
+    return "Opening file " + file;
+  }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.google.common.primitives.Longs;
+
+import net.sf.mzmine.datamodel.DataPoint;
+
+/**
+ * Reads the spectra of an indexedmzML file on demand, using the spectrum offsets of its indexList
+ */
+class IndexedMzMLSource extends IndexedDataPointsSource {
+
+  private static final Pattern INDEX_OFFSET_PATTERN =
+      Pattern.compile("<indexListOffset>\\s*([0-9]+)\\s*</indexListOffset>");
+
+  private static final Pattern SCAN_NUMBER_PATTERN = Pattern.compile("scan=([0-9]+)");
+
+  private final MzMLSpectrumParser parser = new MzMLSpectrumParser();
+
+  // Spectrum IDs given by the index
+  private String ids[] = new String[0];
+
+  private final Map<String, Integer> scanIdTable = new HashMap<>();
+  private int lastScanNumber = 0;
+
+  IndexedMzMLSource(File file) throws IOException {
+    super(file, "spectrum");
+  }
+
+  @Override
+  boolean readIndex() throws IOException, XMLStreamException {
+
+    final long indexListOffset = readIndexOffset(INDEX_OFFSET_PATTERN);
+    if (indexListOffset < 0)
+      return false;
+
+    // The referenceable parameter groups precede the spectra
+    XMLStreamReader reader = openReader(0);
+    try {
+      parsing: while (reader.hasNext()) {
+        if (reader.next() != XMLStreamConstants.START_ELEMENT)
+          continue;
+        switch (reader.getLocalName()) {
+          case "referenceableParamGroup":
+            parser.readReferenceableParamGroup(reader);
+            break;
+          case "run":
+            break parsing;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    List<Long> spectrumOffsets = new ArrayList<>();
+    List<String> spectrumIds = new ArrayList<>();
+
+    reader = openElement(indexListOffset, "indexList");
+    try {
+      String indexName = null;
+      while (reader.hasNext()) {
+        final int event = reader.next();
+        if ((event == XMLStreamConstants.END_ELEMENT)
+            && reader.getLocalName().equals("indexList"))
+          break;
+        if (event != XMLStreamConstants.START_ELEMENT)
+          continue;
+        switch (reader.getLocalName()) {
+          case "index":
+            indexName = reader.getAttributeValue(null, "name");
+            break;
+          case "offset":
+            // Chromatograms are not needed
+            if (!"spectrum".equals(indexName))
+              break;
+            spectrumIds.add(reader.getAttributeValue(null, "idRef"));
+            spectrumOffsets.add(Long.parseLong(reader.getElementText().trim()));
+            break;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    offsets = Longs.toArray(spectrumOffsets);
+    ids = spectrumIds.toArray(new String[0]);
+    return offsets.length > 0;
+  }
+
+  @Override
+  ScanHeader readScanHeader(int index, XMLStreamReader reader)
+      throws IOException, XMLStreamException {
+
+    final String id = reader.getAttributeValue(null, "id");
+    if ((ids[index] != null) && !ids[index].equals(id))
+      throw new IOException("The index of " + file + " does not match the file, found spectrum "
+          + id + " instead of " + ids[index]);
+
+    MzMLSpectrum spectrum = parser.readSpectrumHeader(reader);
+
+    // Ignore scans that are not MS, e.g. UV
+    if (!spectrum.isMSSpectrum())
+      return null;
+
+    ScanHeader header = new ScanHeader();
+    header.scanNumber = convertScanIdToScanNumber(spectrum.getId());
+    final String precursorSpectrumRef = spectrum.getPrecursorSpectrumRef();
+    if (precursorSpectrumRef != null)
+      header.parentScanNumber = convertScanIdToScanNumber(precursorSpectrumRef);
+    header.msLevel = spectrum.getMSLevel();
+    header.retentionTime = spectrum.getRetentionTime();
+    header.precursorMZ = spectrum.getPrecursorMz();
+    header.precursorCharge = spectrum.getPrecursorCharge();
+    header.polarity = spectrum.getPolarity();
+    header.scanDefinition = spectrum.getScanDefinition();
+    header.numberOfDataPoints = spectrum.getDefaultArrayLength();
+    header.mzRange = spectrum.getMZRange();
+    header.basePeak = spectrum.getBasePeak();
+    header.totalIonCurrent = spectrum.getTIC();
+    return header;
+  }
+
+  @Override
+  DataPoint[] decodeDataPoints(int index, XMLStreamReader reader)
+      throws IOException, XMLStreamException {
+    MzMLSpectrum spectrum = parser.readSpectrum(reader);
+    try {
+      return spectrum.decodeDataPoints();
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt data of spectrum " + spectrum.getId() + ": " + e);
+    }
+  }
+
+  /**
+   * Converts the spectrum ID to a scan number, like MzMLReadTask does
+   */
+  private int convertScanIdToScanNumber(String scanId) {
+
+    Integer scanNumber = scanIdTable.get(scanId);
+    if (scanNumber != null)
+      return scanNumber;
+
+    // Some vendors include scan=XX in the ID, some don't, such as mzML converted from WIFF files
+    final Matcher matcher = SCAN_NUMBER_PATTERN.matcher(scanId);
+    if (matcher.find())
+      scanNumber = Integer.parseInt(matcher.group(1));
+    else
+      scanNumber = ++lastScanNumber;
+
+    scanIdTable.put(scanId, scanNumber);
+    return scanNumber;
+  }
+
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Range;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+
+/**
+ * Reads the scans of an indexed mzXML file on demand, using the scan offsets of its index
+ */
+class IndexedMzXMLSource extends IndexedDataPointsSource {
+
+  private static final Pattern INDEX_OFFSET_PATTERN =
+      Pattern.compile("<indexOffset>\\s*([0-9]+)\\s*</indexOffset>");
+
+  // Scan numbers given by the index
+  private int scanNumbers[] = new int[0];
+
+  // Retention time parser
+  private DatatypeFactory dataTypeFactory;
+
+  // Number of the last scan of each MS level, the parent of the next scan of the level above
+  private final int parentTreeValue[] = new int[10];
+
+  IndexedMzXMLSource(File file) throws IOException {
+    super(file, "scan");
+  }
+
+  @Override
+  boolean readIndex() throws IOException, XMLStreamException {
+
+    try {
+      dataTypeFactory = DatatypeFactory.newInstance();
+    } catch (DatatypeConfigurationException e) {
+      throw new IOException(e);
+    }
+
+    final long indexOffset = readIndexOffset(INDEX_OFFSET_PATTERN);
+    if (indexOffset < 0)
+      return false;
+
+    List<Long> scanOffsets = new ArrayList<>();
+    List<Integer> scanIds = new ArrayList<>();
+
+    XMLStreamReader reader = openElement(indexOffset, "index");
+    try {
+      if (!"scan".equals(reader.getAttributeValue(null, "name")))
+        return false;
+      while (reader.hasNext()) {
+        final int event = reader.next();
+        if ((event == XMLStreamConstants.END_ELEMENT) && reader.getLocalName().equals("index"))
+          break;
+        if ((event == XMLStreamConstants.START_ELEMENT)
+            && reader.getLocalName().equals("offset")) {
+          scanIds.add(Integer.parseInt(reader.getAttributeValue(null, "id")));
+          scanOffsets.add(Long.parseLong(reader.getElementText().trim()));
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    offsets = Longs.toArray(scanOffsets);
+    scanNumbers = Ints.toArray(scanIds);
+    return offsets.length > 0;
+  }
+
+  @Override
+  ScanHeader readScanHeader(int index, XMLStreamReader reader)
+      throws IOException, XMLStreamException {
+
+    ScanHeader header = new ScanHeader();
+
+    /*
+     * Only num, msLevel & peaksCount values are required according with mzxml standard, the others
+     * are optional
+     */
+    header.scanNumber = Integer.parseInt(reader.getAttributeValue(null, "num"));
+    if (header.scanNumber != scanNumbers[index])
+      throw new IOException("The index of " + file + " does not match the file, found scan "
+          + header.scanNumber + " instead of " + scanNumbers[index]);
+
+    header.msLevel = Integer.parseInt(reader.getAttributeValue(null, "msLevel"));
+    header.numberOfDataPoints = Integer.parseInt(reader.getAttributeValue(null, "peaksCount"));
+
+    String scanId = reader.getAttributeValue(null, "filterLine");
+    if (Strings.isNullOrEmpty(scanId))
+      scanId = reader.getAttributeValue(null, "scanType");
+    header.scanDefinition = scanId;
+
+    final String polarityAttr = reader.getAttributeValue(null, "polarity");
+    if ((polarityAttr != null) && (polarityAttr.length() == 1))
+      header.polarity = PolarityType.fromSingleChar(polarityAttr);
+
+    final String retentionTimeStr = reader.getAttributeValue(null, "retentionTime");
+    if (retentionTimeStr == null)
+      throw new IOException("This file does not contain retentionTime for scans");
+    header.retentionTime =
+        dataTypeFactory.newDuration(retentionTimeStr).getTimeInMillis(new Date()) / 1000d / 60d;
+
+    if (header.msLevel > 9)
+      throw new IOException("The value of msLevel is bigger than 10");
+
+    // Same parent as assigned by MzXMLReadTask, the last scan of the level below
+    if (header.msLevel > 1)
+      header.parentScanNumber = parentTreeValue[header.msLevel - 1];
+    parentTreeValue[header.msLevel] = header.scanNumber;
+
+    final double basePeakMz = parseDouble(reader.getAttributeValue(null, "basePeakMz"));
+    final double basePeakIntensity =
+        parseDouble(reader.getAttributeValue(null, "basePeakIntensity"));
+    if (!Double.isNaN(basePeakMz) && !Double.isNaN(basePeakIntensity))
+      header.basePeak = new SimpleDataPoint(basePeakMz, basePeakIntensity);
+
+    final double totIonCurrent = parseDouble(reader.getAttributeValue(null, "totIonCurrent"));
+    if (!Double.isNaN(totIonCurrent))
+      header.totalIonCurrent = totIonCurrent;
+
+    final double lowMz = parseDouble(reader.getAttributeValue(null, "lowMz"));
+    final double highMz = parseDouble(reader.getAttributeValue(null, "highMz"));
+    if (!Double.isNaN(lowMz) && !Double.isNaN(highMz) && (lowMz <= highMz))
+      header.mzRange = Range.closed(lowMz, highMz);
+
+    // The precursor precedes the peaks and the scans nested in this one
+    while (reader.hasNext()) {
+      final int event = reader.next();
+      if ((event == XMLStreamConstants.END_ELEMENT) && reader.getLocalName().equals("scan"))
+        break;
+      if (event != XMLStreamConstants.START_ELEMENT)
+        continue;
+      final String name = reader.getLocalName();
+      if (name.equals("peaks") || name.equals("scan"))
+        break;
+      if (name.equals("precursorMz")) {
+        final String precursorCharge = reader.getAttributeValue(null, "precursorCharge");
+        if (precursorCharge != null)
+          header.precursorCharge = Integer.parseInt(precursorCharge);
+        final String textContent = reader.getElementText().trim();
+        if (!textContent.isEmpty())
+          header.precursorMZ = Double.parseDouble(textContent);
+      }
+    }
+
+    return header;
+  }
+
+  @Override
+  DataPoint[] decodeDataPoints(int index, XMLStreamReader reader)
+      throws IOException, XMLStreamException {
+
+    final int peaksCount = Integer.parseInt(reader.getAttributeValue(null, "peaksCount"));
+
+    while (reader.hasNext()) {
+      final int event = reader.next();
+      if ((event == XMLStreamConstants.END_ELEMENT) && reader.getLocalName().equals("scan"))
+        break;
+      if (event != XMLStreamConstants.START_ELEMENT)
+        continue;
+      final String name = reader.getLocalName();
+      if (name.equals("scan"))
+        break;
+      if (!name.equals("peaks"))
+        continue;
+
+      final String precision = reader.getAttributeValue(null, "precision");
+      final String compressionType = reader.getAttributeValue(null, "compressionType");
+      final String compressedLen = reader.getAttributeValue(null, "compressedLen");
+      final int encodedBytes = Strings.isNullOrEmpty(compressedLen)
+          ? peaksCount * 2 * ("64".equals(precision) ? 8 : 4)
+          : Integer.parseInt(compressedLen);
+
+      MzXMLPeaks peaks = new MzXMLPeaks(precision, compressionType,
+          MzMLSpectrumParser.readBase64(reader, 4 * ((encodedBytes + 2) / 3)));
+      try {
+        return peaks.decode(peaksCount);
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupt data of scan " + scanNumbers[index] + ": " + e);
+      }
+    }
+
+    // The scan has no peaks
+    return new DataPoint[0];
+  }
+
+  private static double parseDouble(String value) {
+    if (Strings.isNullOrEmpty(value))
+      return Double.NaN;
+    return Double.parseDouble(value);
+  }
+
+}
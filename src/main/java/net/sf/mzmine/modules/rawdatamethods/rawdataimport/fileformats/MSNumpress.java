@@ -0,0 +1,173 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * Decoder of the MS-Numpress compressions of mzML binary data arrays
+ * (https://github.com/ms-numpress/ms-numpress): linear prediction (m/z and retention time), short
+ * logged float (intensity) and positive integer (ion counts).
+ */
+class MSNumpress {
+
+  /**
+   * Decodes numpress linear prediction compressed values
+   */
+  static double[] decodeLinear(byte data[]) throws DataFormatException {
+
+    if (data.length < 8)
+      throw new DataFormatException("Corrupt numpress linear data");
+    final double fixedPoint = decodeFixedPoint(data);
+    if (data.length == 8)
+      return new double[0];
+    if (data.length < 12)
+      throw new DataFormatException("Corrupt numpress linear data");
+
+    long previous = decodeUnsignedInt(data, 8);
+    if (data.length == 12)
+      return new double[] {previous / fixedPoint};
+    if (data.length < 16)
+      throw new DataFormatException("Corrupt numpress linear data");
+
+    // Each further value takes at least half a byte
+    double result[] = new double[2 + 2 * (data.length - 16)];
+    result[0] = previous / fixedPoint;
+
+    long current = decodeUnsignedInt(data, 12);
+    result[1] = current / fixedPoint;
+
+    int count = 2;
+    HalfByteDecoder decoder = new HalfByteDecoder(data, 16);
+    while (decoder.hasNext()) {
+      // The residual of the linear extrapolation of the previous two values
+      final long next = 2 * current - previous + decoder.next();
+      result[count++] = next / fixedPoint;
+      previous = current;
+      current = next;
+    }
+
+    return Arrays.copyOf(result, count);
+  }
+
+  /**
+   * Decodes numpress short logged float compressed values
+   */
+  static double[] decodeSlof(byte data[]) throws DataFormatException {
+
+    if ((data.length < 8) || (data.length % 2 != 0))
+      throw new DataFormatException("Corrupt numpress slof data");
+    final double fixedPoint = decodeFixedPoint(data);
+
+    double result[] = new double[(data.length - 8) / 2];
+    for (int i = 0; i < result.length; i++) {
+      final int value = (data[8 + 2 * i] & 0xff) | ((data[9 + 2 * i] & 0xff) << 8);
+      result[i] = Math.exp(value / fixedPoint) - 1;
+    }
+
+    return result;
+  }
+
+  /**
+   * Decodes numpress positive integer compressed values
+   */
+  static double[] decodePic(byte data[]) throws DataFormatException {
+
+    double result[] = new double[2 * data.length];
+    int count = 0;
+    HalfByteDecoder decoder = new HalfByteDecoder(data, 0);
+    while (decoder.hasNext())
+      result[count++] = decoder.next();
+
+    return Arrays.copyOf(result, count);
+  }
+
+  /**
+   * The fixed point is stored as a big-endian 64-bit float
+   */
+  private static double decodeFixedPoint(byte data[]) {
+    long bits = 0;
+    for (int i = 0; i < 8; i++)
+      bits = (bits << 8) | (data[i] & 0xff);
+    return Double.longBitsToDouble(bits);
+  }
+
+  private static long decodeUnsignedInt(byte data[], int offset) {
+    long value = 0;
+    for (int i = 0; i < 4; i++)
+      value |= (data[offset + i] & 0xffL) << (8 * i);
+    return value;
+  }
+
+  /**
+   * Decodes the 32-bit integers which are stored in half bytes. The first half byte of each
+   * integer gives the number of its leading half bytes which are zero (0-8) or 0xf (9-15, minus 8).
+   * The remaining half bytes follow, least significant first.
+   */
+  private static class HalfByteDecoder {
+
+    private final byte data[];
+    private int position;
+    private boolean secondHalf = false;
+
+    HalfByteDecoder(byte data[], int position) {
+      this.data = data;
+      this.position = position;
+    }
+
+    boolean hasNext() {
+      if (position >= data.length)
+        return false;
+      // The last byte may be padded with a zero half byte
+      if ((position == data.length - 1) && secondHalf && ((data[position] & 0xf) != 0x8))
+        return false;
+      return true;
+    }
+
+    int next() throws DataFormatException {
+
+      final int head = nextHalfByte();
+      int value = 0, leading = head;
+      if (head > 8) {
+        leading = head - 8;
+        for (int i = 0; i < leading; i++)
+          value |= 0xf << (28 - 4 * i);
+      }
+
+      for (int i = leading; i < 8; i++)
+        value |= nextHalfByte() << (4 * (i - leading));
+
+      return value;
+    }
+
+    private int nextHalfByte() throws DataFormatException {
+      if (position >= data.length)
+        throw new DataFormatException("Corrupt numpress data");
+      final int halfByte;
+      if (secondHalf)
+        halfByte = data[position++] & 0xf;
+      else
+        halfByte = (data[position] & 0xff) >> 4;
+      secondHalf = !secondHalf;
+      return halfByte;
+    }
+  }
+
+}
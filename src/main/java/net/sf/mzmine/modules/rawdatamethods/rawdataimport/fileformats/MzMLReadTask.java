@@ -18,43 +18,42 @@
 
 package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Hashtable;
 import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.MassSpectrumType;
-import net.sf.mzmine.datamodel.PolarityType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
-import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleScan;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
 import net.sf.mzmine.util.scans.ScanUtils;
-import uk.ac.ebi.jmzml.model.mzml.BinaryDataArray;
-import uk.ac.ebi.jmzml.model.mzml.BinaryDataArrayList;
-import uk.ac.ebi.jmzml.model.mzml.CVParam;
-import uk.ac.ebi.jmzml.model.mzml.ParamGroup;
-import uk.ac.ebi.jmzml.model.mzml.Precursor;
-import uk.ac.ebi.jmzml.model.mzml.PrecursorList;
-import uk.ac.ebi.jmzml.model.mzml.Scan;
-import uk.ac.ebi.jmzml.model.mzml.ScanList;
-import uk.ac.ebi.jmzml.model.mzml.SelectedIonList;
-import uk.ac.ebi.jmzml.model.mzml.Spectrum;
-import uk.ac.ebi.jmzml.xml.io.MzMLObjectIterator;
-import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshaller;
 
 /**
- * This class reads mzML 1.0 and 1.1.0 files (http://www.psidev.info/index.php?q=node/257) using the
- * jmzml library (http://code.google.com/p/jmzml/).
+ * This class reads mzML 1.0 and 1.1.0 files (http://www.psidev.info/index.php?q=node/257) using a
+ * streaming StAX parser. The task thread only reads the metadata and the base64 text of the
+ * spectra. The binary data arrays are decoded in parallel, and the scans are added to the raw data
+ * file in the order of the file.
  */
 public class MzMLReadTask extends AbstractTask {
 
@@ -70,6 +69,8 @@ public class MzMLReadTask extends AbstractTask {
 
   private Map<String, Integer> scanIdTable = new Hashtable<String, Integer>();
 
+  private static final Pattern SCAN_NUMBER_PATTERN = Pattern.compile("scan=([0-9]+)");
+
   /*
    * This stack stores at most 20 consecutive scans. This window serves to find possible fragments
    * (current scan) that belongs to any of the stored scans in the stack. The reason of the size
@@ -80,6 +81,13 @@ public class MzMLReadTask extends AbstractTask {
   private static final int PARENT_STACK_SIZE = 20;
   private LinkedList<SimpleScan> parentStack = new LinkedList<SimpleScan>();
 
+  /*
+   * Scans being decoded, in the order of the file. The number of scans decoded ahead of the
+   * writing is limited, so the encoded data of the whole file is never held in memory.
+   */
+  private final int maxPendingScans = 4 * Runtime.getRuntime().availableProcessors();
+  private final Deque<PendingScan> pendingScans = new ArrayDeque<>();
+
   public MzMLReadTask(MZmineProject project, File fileToOpen, RawDataFileWriter newMZmineFile) {
     this.project = project;
     this.file = fileToOpen;
@@ -101,67 +109,51 @@ public class MzMLReadTask extends AbstractTask {
     setStatus(TaskStatus.PROCESSING);
     logger.info("Started parsing file " + file);
 
-    MzMLUnmarshaller unmarshaller = new MzMLUnmarshaller(file);
-
-    totalScans = unmarshaller.getObjectCountForXpath("/run/spectrumList/spectrum");
-
-    MzMLObjectIterator<Spectrum> spectrumIterator =
-        unmarshaller.unmarshalCollectionFromXpath("/run/spectrumList/spectrum", Spectrum.class);
-    try {
-
-      while (spectrumIterator.hasNext()) {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
 
-        if (isCanceled())
-          return;
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 20)) {
 
-        Spectrum spectrum = spectrumIterator.next();
-
-        // Ignore scans that are not MS, e.g. UV
-        if (!isMsSpectrum(spectrum)) {
-          parsedScans++;
-          continue;
-        }
+      XMLStreamReader reader = factory.createXMLStreamReader(in);
+      MzMLSpectrumParser parser = new MzMLSpectrumParser();
 
-        String scanId = spectrum.getId();
-        int scanNumber = convertScanIdToScanNumber(scanId);
+      try {
+        while (reader.hasNext()) {
 
-        // Extract scan data
-        int msLevel = extractMSLevel(spectrum);
-        double retentionTime = extractRetentionTime(spectrum);
-        PolarityType polarity = extractPolarity(spectrum);
-        int parentScan = extractParentScanNumber(spectrum);
-        double precursorMz = extractPrecursorMz(spectrum);
-        int precursorCharge = extractPrecursorCharge(spectrum);
-        String scanDefinition = extractScanDefinition(spectrum);
-        DataPoint dataPoints[] = extractDataPoints(spectrum);
-
-        // Auto-detect whether this scan is centroided
-        MassSpectrumType spectrumType = ScanUtils.detectSpectrumType(dataPoints);
+          if (isCanceled()) {
+            cancelPendingScans();
+            return;
+          }
 
-        SimpleScan scan = new SimpleScan(null, scanNumber, msLevel, retentionTime, precursorMz,
-            precursorCharge, null, dataPoints, spectrumType, polarity, scanDefinition, null);
+          final int event = reader.next();
+          if ((event == XMLStreamConstants.END_ELEMENT)
+              && reader.getLocalName().equals("spectrumList"))
+            // Chromatograms and the index are not needed
+            break;
+          if (event != XMLStreamConstants.START_ELEMENT)
+            continue;
 
-        for (SimpleScan s : parentStack) {
-          if (s.getScanNumber() == parentScan) {
-            s.addFragmentScan(scanNumber);
+          switch (reader.getLocalName()) {
+            case "referenceableParamGroup":
+              parser.readReferenceableParamGroup(reader);
+              break;
+            case "spectrumList":
+              final String count = reader.getAttributeValue(null, "count");
+              if (count != null)
+                totalScans = Integer.parseInt(count);
+              break;
+            case "spectrum":
+              readSpectrum(parser.readSpectrum(reader));
+              break;
           }
         }
-
-        /*
-         * Verify the size of parentStack. The actual size of the window to cover possible
-         * candidates is defined by limitSize.
-         */
-        if (parentStack.size() > PARENT_STACK_SIZE) {
-          SimpleScan firstScan = parentStack.removeLast();
-          newMZmineFile.addScan(firstScan);
-        }
-
-        parentStack.addFirst(scan);
-
-        parsedScans++;
-
+      } finally {
+        reader.close();
       }
 
+      while (!pendingScans.isEmpty())
+        writeScan(pendingScans.removeFirst());
+
       while (!parentStack.isEmpty()) {
         SimpleScan scan = parentStack.removeLast();
         newMZmineFile.addScan(scan);
@@ -172,10 +164,13 @@ public class MzMLReadTask extends AbstractTask {
       project.addFile(finalRawDataFile);
 
     } catch (Throwable e) {
+      cancelPendingScans();
+      // Decoding errors are wrapped by the CompletableFuture
+      if ((e instanceof CompletionException) && (e.getCause() != null))
+        e = e.getCause();
       e.printStackTrace();
       setStatus(TaskStatus.ERROR);
       setErrorMessage("Error parsing mzML: " + ExceptionUtils.exceptionToString(e));
-      e.printStackTrace();
       return;
     }
 
@@ -190,292 +185,124 @@ public class MzMLReadTask extends AbstractTask {
 
   }
 
-  private int convertScanIdToScanNumber(String scanId) {
-
-    if (scanIdTable.containsKey(scanId))
-      return scanIdTable.get(scanId);
-
-    final Pattern pattern = Pattern.compile("scan=([0-9]+)");
-    final Matcher matcher = pattern.matcher(scanId);
-    boolean scanNumberFound = matcher.find();
-
-    // Some vendors include scan=XX in the ID, some don't, such as
-    // mzML converted from WIFF files. See the definition of nativeID in
-    // http://psidev.cvs.sourceforge.net/viewvc/psidev/psi/psi-ms/mzML/controlledVocabulary/psi-ms.obo
-    if (scanNumberFound) {
-      int scanNumber = Integer.parseInt(matcher.group(1));
-      scanIdTable.put(scanId, scanNumber);
-      return scanNumber;
-    }
-
-    int scanNumber = lastScanNumber + 1;
-    lastScanNumber++;
-    scanIdTable.put(scanId, scanNumber);
-    return scanNumber;
-  }
+  /**
+   * Starts decoding the spectrum, and writes the scans which are decoded already
+   */
+  private void readSpectrum(MzMLSpectrum spectrum) throws Exception {
 
-  private int extractMSLevel(Spectrum spectrum) {
-    // Browse the spectrum parameters
-    List<CVParam> cvParams = spectrum.getCvParam();
-    if (cvParams == null)
-      return 1;
-    for (CVParam param : cvParams) {
-      String accession = param.getAccession();
-      String value = param.getValue();
-      if ((accession == null) || (value == null))
-        continue;
-
-      // MS level MS:1000511
-      if (accession.equals("MS:1000511")) {
-        int msLevel = Integer.parseInt(value);
-        return msLevel;
-      }
+    // Ignore scans that are not MS, e.g. UV
+    if (!spectrum.isMSSpectrum()) {
+      parsedScans++;
+      return;
     }
-    return 1;
-  }
 
-  private double extractRetentionTime(Spectrum spectrum) {
-
-    ScanList scanListElement = spectrum.getScanList();
-    if (scanListElement == null)
-      return 0;
-    List<Scan> scanElements = scanListElement.getScan();
-    if (scanElements == null)
-      return 0;
-
-    for (Scan scan : scanElements) {
-      List<CVParam> cvParams = scan.getCvParam();
-      if (cvParams == null)
-        continue;
-
-      for (CVParam param : cvParams) {
-        String accession = param.getAccession();
-        String unitAccession = param.getUnitAccession();
-        String value = param.getValue();
-        if ((accession == null) || (value == null))
-          continue;
-
-        // Retention time (actually "Scan start time") MS:1000016
-        if (accession.equals("MS:1000016")) {
-          // MS:1000038 is used in mzML 1.0, while UO:0000031
-          // is used in mzML 1.1.0 :-/
-          double retentionTime;
-          if ((unitAccession == null) || (unitAccession.equals("MS:1000038"))
-              || unitAccession.equals("UO:0000031")) {
-            retentionTime = Double.parseDouble(value);
-          } else {
-            retentionTime = Double.parseDouble(value) / 60d;
-          }
-          return retentionTime;
+    final int scanNumber = convertScanIdToScanNumber(spectrum.getId());
+    final String precursorSpectrumRef = spectrum.getPrecursorSpectrumRef();
+    final int parentScan =
+        (precursorSpectrumRef == null) ? -1 : convertScanIdToScanNumber(precursorSpectrumRef);
 
-        }
-      }
-    }
+    CompletableFuture<SimpleScan> scan =
+        CompletableFuture.supplyAsync(() -> createScan(spectrum, scanNumber));
+    pendingScans.addLast(new PendingScan(scan, parentScan));
 
-    return 0;
+    while ((pendingScans.size() >= maxPendingScans)
+        || (!pendingScans.isEmpty() && pendingScans.getFirst().scan.isDone()))
+      writeScan(pendingScans.removeFirst());
   }
 
-  private DataPoint[] extractDataPoints(Spectrum spectrum) {
-    BinaryDataArrayList dataList = spectrum.getBinaryDataArrayList();
-
-    if ((dataList == null) || (dataList.getCount().equals(0)))
-      return new DataPoint[0];
-
-    BinaryDataArray mzArray = dataList.getBinaryDataArray().get(0);
-    BinaryDataArray intensityArray = dataList.getBinaryDataArray().get(1);
-    Number mzValues[] = mzArray.getBinaryDataAsNumberArray();
-    Number intensityValues[] = intensityArray.getBinaryDataAsNumberArray();
-    DataPoint dataPoints[] = new DataPoint[mzValues.length];
-    for (int i = 0; i < dataPoints.length; i++) {
-      double mz = mzValues[i].doubleValue();
-      double intensity = intensityValues[i].doubleValue();
-      dataPoints[i] = new SimpleDataPoint(mz, intensity);
-    }
-    return dataPoints;
-
-  }
+  /**
+   * Decodes the data points of the spectrum. Runs in parallel with the parsing.
+   */
+  private static SimpleScan createScan(MzMLSpectrum spectrum, int scanNumber) {
 
-  private int extractParentScanNumber(Spectrum spectrum) {
-    PrecursorList precursorListElement = spectrum.getPrecursorList();
-    if ((precursorListElement == null) || (precursorListElement.getCount().equals(0)))
-      return -1;
-
-    List<Precursor> precursorList = precursorListElement.getPrecursor();
-    for (Precursor parent : precursorList) {
-      // Get the precursor scan number
-      String precursorScanId = parent.getSpectrumRef();
-      if (precursorScanId == null) {
-        return -1;
-      }
-      int parentScan = convertScanIdToScanNumber(precursorScanId);
-      return parentScan;
+    DataPoint dataPoints[];
+    try {
+      dataPoints = spectrum.decodeDataPoints();
+    } catch (DataFormatException e) {
+      throw new CompletionException(
+          new DataFormatException("Corrupt data of spectrum " + spectrum.getId() + ": " + e));
     }
-    return -1;
-  }
-
-  private double extractPrecursorMz(Spectrum spectrum) {
 
-    PrecursorList precursorListElement = spectrum.getPrecursorList();
-    if ((precursorListElement == null) || (precursorListElement.getCount().equals(0)))
-      return 0;
+    // Auto-detect whether this scan is centroided
+    MassSpectrumType spectrumType = ScanUtils.detectSpectrumType(dataPoints);
 
-    List<Precursor> precursorList = precursorListElement.getPrecursor();
-    for (Precursor parent : precursorList) {
+    return new SimpleScan(null, scanNumber, spectrum.getMSLevel(), spectrum.getRetentionTime(),
+        spectrum.getPrecursorMz(), spectrum.getPrecursorCharge(), null, dataPoints, spectrumType,
+        spectrum.getPolarity(), spectrum.getScanDefinition(), null);
+  }
 
-      SelectedIonList selectedIonListElement = parent.getSelectedIonList();
-      if ((selectedIonListElement == null) || (selectedIonListElement.getCount().equals(0)))
-        return 0;
-      List<ParamGroup> selectedIonParams = selectedIonListElement.getSelectedIon();
-      if (selectedIonParams == null)
-        continue;
+  /**
+   * Waits until the scan is decoded, and adds it to its parent scan and to the raw data file
+   */
+  private void writeScan(PendingScan pendingScan) throws Exception {
 
-      for (ParamGroup pg : selectedIonParams) {
-        List<CVParam> pgCvParams = pg.getCvParam();
-        for (CVParam param : pgCvParams) {
-          String accession = param.getAccession();
-          String value = param.getValue();
-          if ((accession == null) || (value == null))
-            continue;
-          // MS:1000040 is used in mzML 1.0,
-          // MS:1000744 is used in mzML 1.1.0
-          if (accession.equals("MS:1000040") || accession.equals("MS:1000744")) {
-            double precursorMz = Double.parseDouble(value);
-            return precursorMz;
-          }
-        }
+    SimpleScan scan = pendingScan.scan.join();
 
+    for (SimpleScan s : parentStack) {
+      if (s.getScanNumber() == pendingScan.parentScan) {
+        s.addFragmentScan(scan.getScanNumber());
       }
     }
-    return 0;
-  }
 
-  private int extractPrecursorCharge(Spectrum spectrum) {
-    PrecursorList precursorListElement = spectrum.getPrecursorList();
-    if ((precursorListElement == null) || (precursorListElement.getCount().equals(0)))
-      return 0;
-
-    List<Precursor> precursorList = precursorListElement.getPrecursor();
-    for (Precursor parent : precursorList) {
-
-      SelectedIonList selectedIonListElement = parent.getSelectedIonList();
-      if ((selectedIonListElement == null) || (selectedIonListElement.getCount().equals(0)))
-        return 0;
-      List<ParamGroup> selectedIonParams = selectedIonListElement.getSelectedIon();
-      if (selectedIonParams == null)
-        continue;
-
-      for (ParamGroup pg : selectedIonParams) {
-        List<CVParam> pgCvParams = pg.getCvParam();
-        for (CVParam param : pgCvParams) {
-          String accession = param.getAccession();
-          String value = param.getValue();
-          if ((accession == null) || (value == null))
-            continue;
-          if (accession.equals("MS:1000041")) {
-            int precursorCharge = Integer.parseInt(value);
-            return precursorCharge;
-          }
+    /*
+     * Verify the size of parentStack. The actual size of the window to cover possible candidates
+     * is defined by limitSize.
+     */
+    if (parentStack.size() > PARENT_STACK_SIZE) {
+      SimpleScan firstScan = parentStack.removeLast();
+      newMZmineFile.addScan(firstScan);
+    }
 
-        }
+    parentStack.addFirst(scan);
 
-      }
-    }
-    return 0;
+    parsedScans++;
   }
 
-  private PolarityType extractPolarity(Spectrum spectrum) {
-    List<CVParam> cvParams = spectrum.getCvParam();
-    if (cvParams != null) {
-      for (CVParam param : cvParams) {
-        String accession = param.getAccession();
-
-        if (accession == null)
-          continue;
-        if (accession.equals("MS:1000130"))
-          return PolarityType.POSITIVE;
-        if (accession.equals("MS:1000129"))
-          return PolarityType.NEGATIVE;
-      }
-    }
-    ScanList scanListElement = spectrum.getScanList();
-    if (scanListElement != null) {
-      List<Scan> scanElements = scanListElement.getScan();
-      if (scanElements != null) {
-        for (Scan scan : scanElements) {
-          cvParams = scan.getCvParam();
-          if (cvParams == null)
-            continue;
-          for (CVParam param : cvParams) {
-            String accession = param.getAccession();
-            if (accession == null)
-              continue;
-            if (accession.equals("MS:1000130"))
-              return PolarityType.POSITIVE;
-            if (accession.equals("MS:1000129"))
-              return PolarityType.NEGATIVE;
-          }
+  private void cancelPendingScans() {
+    for (PendingScan pendingScan : pendingScans)
+      pendingScan.scan.cancel(false);
+    pendingScans.clear();
+  }
 
-        }
-      }
-    }
-    return PolarityType.UNKNOWN;
+  private int convertScanIdToScanNumber(String scanId) {
 
-  }
+    if (scanIdTable.containsKey(scanId))
+      return scanIdTable.get(scanId);
 
-  private String extractScanDefinition(Spectrum spectrum) {
-    List<CVParam> cvParams = spectrum.getCvParam();
-    if (cvParams != null) {
-      for (CVParam param : cvParams) {
-        String accession = param.getAccession();
+    final Matcher matcher = SCAN_NUMBER_PATTERN.matcher(scanId);
+    boolean scanNumberFound = matcher.find();
 
-        if (accession == null)
-          continue;
-        if (accession.equals("MS:1000512"))
-          return param.getValue();
-      }
+    // Some vendors include scan=XX in the ID, some don't, such as
+    // mzML converted from WIFF files. See the definition of nativeID in
+    // http://psidev.cvs.sourceforge.net/viewvc/psidev/psi/psi-ms/mzML/controlledVocabulary/psi-ms.obo
+    if (scanNumberFound) {
+      int scanNumber = Integer.parseInt(matcher.group(1));
+      scanIdTable.put(scanId, scanNumber);
+      return scanNumber;
     }
-    ScanList scanListElement = spectrum.getScanList();
-    if (scanListElement != null) {
-      List<Scan> scanElements = scanListElement.getScan();
-      if (scanElements != null) {
-        for (Scan scan : scanElements) {
-          cvParams = scan.getCvParam();
-          if (cvParams == null)
-            continue;
-          for (CVParam param : cvParams) {
-            String accession = param.getAccession();
-            if (accession == null)
-              continue;
-            if (accession.equals("MS:1000512"))
-              return param.getValue();
-          }
 
-        }
-      }
-    }
-    return spectrum.getId();
+    int scanNumber = lastScanNumber + 1;
+    lastScanNumber++;
+    scanIdTable.put(scanId, scanNumber);
+    return scanNumber;
   }
 
   public String getTaskDescription() {
     return "Opening file " + file;
   }
 
-  boolean isMsSpectrum(Spectrum spectrum) {
+  /**
+   * Scan being decoded and the number of its parent scan (-1 if none)
+   */
+  private static class PendingScan {
 
-    List<CVParam> cvParams = spectrum.getCvParam();
-    if (cvParams != null) {
-      for (CVParam param : cvParams) {
-        String accession = param.getAccession();
-        if (accession == null)
-          continue;
+    private final CompletableFuture<SimpleScan> scan;
+    private final int parentScan;
 
-        if (accession.equals("MS:1000804"))
-          return false;
-      }
+    PendingScan(CompletableFuture<SimpleScan> scan, int parentScan) {
+      this.scan = scan;
+      this.parentScan = parentScan;
     }
-
-    // By default, let's assume unidentified spectra are MS spectra
-    return true;
   }
 
 }
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Range;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.util.CompressionUtils;
+
+/**
+ * Metadata of one mzML spectrum and its still encoded binary data arrays, as read by
+ * MzMLSpectrumParser. The data points are decoded by decodeDataPoints(), which does not depend on
+ * the parser and may run on any thread.
+ */
+public class MzMLSpectrum {
+
+  private final String id;
+  private final int defaultArrayLength;
+
+  boolean msSpectrum = true;
+  int msLevel = 1;
+  double retentionTime = 0;
+  PolarityType spectrumPolarity, scanPolarity;
+  String spectrumScanDefinition, scanScanDefinition;
+  String precursorSpectrumRef;
+  double precursorMz = 0;
+  int precursorCharge = 0;
+  double basePeakMz = Double.NaN, basePeakIntensity = Double.NaN, totalIonCurrent = Double.NaN;
+  double lowestMz = Double.NaN, highestMz = Double.NaN;
+  final List<BinaryDataArray> binaryDataArrays = new ArrayList<>(2);
+
+  // Set once the value was found, the first occurrence counts
+  boolean msLevelSet, retentionTimeSet, precursorMzSet, precursorChargeSet;
+
+  MzMLSpectrum(String id, int defaultArrayLength) {
+    this.id = id;
+    this.defaultArrayLength = defaultArrayLength;
+  }
+
+  @Nonnull
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * Returns false for spectra which are not mass spectra, e.g. UV spectra
+   */
+  public boolean isMSSpectrum() {
+    return msSpectrum;
+  }
+
+  public int getMSLevel() {
+    return msLevel;
+  }
+
+  /**
+   * Returns the scan start time in minutes
+   */
+  public double getRetentionTime() {
+    return retentionTime;
+  }
+
+  @Nonnull
+  public PolarityType getPolarity() {
+    if (spectrumPolarity != null)
+      return spectrumPolarity;
+    if (scanPolarity != null)
+      return scanPolarity;
+    return PolarityType.UNKNOWN;
+  }
+
+  /**
+   * Returns the filter string, or the spectrum ID if there is none
+   */
+  @Nonnull
+  public String getScanDefinition() {
+    if (spectrumScanDefinition != null)
+      return spectrumScanDefinition;
+    if (scanScanDefinition != null)
+      return scanScanDefinition;
+    return id;
+  }
+
+  /**
+   * Returns the ID of the spectrum of the first precursor, null if there is none
+   */
+  @Nullable
+  public String getPrecursorSpectrumRef() {
+    return precursorSpectrumRef;
+  }
+
+  public double getPrecursorMz() {
+    return precursorMz;
+  }
+
+  public int getPrecursorCharge() {
+    return precursorCharge;
+  }
+
+  /**
+   * Returns the number of data points given by the defaultArrayLength attribute
+   */
+  public int getDefaultArrayLength() {
+    return defaultArrayLength;
+  }
+
+  /**
+   * Returns the base peak given by the metadata, null if it is not given
+   */
+  @Nullable
+  public DataPoint getBasePeak() {
+    if (Double.isNaN(basePeakMz) || Double.isNaN(basePeakIntensity))
+      return null;
+    return new SimpleDataPoint(basePeakMz, basePeakIntensity);
+  }
+
+  /**
+   * Returns the total ion current given by the metadata, null if it is not given
+   */
+  @Nullable
+  public Double getTIC() {
+    return Double.isNaN(totalIonCurrent) ? null : totalIonCurrent;
+  }
+
+  /**
+   * Returns the range of the lowest and highest observed m/z given by the metadata, null if it is
+   * not given
+   */
+  @Nullable
+  public Range<Double> getMZRange() {
+    if (Double.isNaN(lowestMz) || Double.isNaN(highestMz) || (lowestMz > highestMz))
+      return null;
+    return Range.closed(lowestMz, highestMz);
+  }
+
+  /**
+   * Decodes the m/z and intensity arrays. Arrays without a type are taken as m/z and intensity
+   * arrays in the order of the file.
+   */
+  @Nonnull
+  public DataPoint[] decodeDataPoints() throws DataFormatException {
+
+    BinaryDataArray mzArray = null, intensityArray = null;
+    for (BinaryDataArray array : binaryDataArrays) {
+      if ((array.arrayType == ArrayType.MZ) && (mzArray == null))
+        mzArray = array;
+      if ((array.arrayType == ArrayType.INTENSITY) && (intensityArray == null))
+        intensityArray = array;
+    }
+    if ((mzArray == null) && (intensityArray == null) && (binaryDataArrays.size() >= 2)) {
+      mzArray = binaryDataArrays.get(0);
+      intensityArray = binaryDataArrays.get(1);
+    }
+    if ((mzArray == null) || (intensityArray == null))
+      return new DataPoint[0];
+
+    final double mzValues[] = mzArray.decode(defaultArrayLength);
+    final double intensityValues[] = intensityArray.decode(defaultArrayLength);
+
+    DataPoint dataPoints[] = new DataPoint[Math.min(mzValues.length, intensityValues.length)];
+    for (int i = 0; i < dataPoints.length; i++)
+      dataPoints[i] = new SimpleDataPoint(mzValues[i], intensityValues[i]);
+    return dataPoints;
+  }
+
+  enum ArrayType {
+    MZ, INTENSITY, OTHER
+  }
+
+  enum Compression {
+    NONE, ZLIB, NUMPRESS_LINEAR, NUMPRESS_PIC, NUMPRESS_SLOF, NUMPRESS_LINEAR_ZLIB,
+    NUMPRESS_PIC_ZLIB, NUMPRESS_SLOF_ZLIB
+  }
+
+  enum Precision {
+    FLOAT32(4), FLOAT64(8), INT32(4), INT64(8);
+
+    private final int bytes;
+
+    Precision(int bytes) {
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * One base64-encoded binary data array
+   */
+  static class BinaryDataArray {
+
+    ArrayType arrayType;
+    Compression compression = Compression.NONE;
+    Precision precision = Precision.FLOAT64;
+
+    // Length given by the binaryDataArray element, -1 if it uses the default of the spectrum
+    int arrayLength = -1;
+
+    // Base64 characters without whitespace
+    byte encoded[];
+
+    double[] decode(int defaultArrayLength) throws DataFormatException {
+
+      final int expectedLength = (arrayLength >= 0) ? arrayLength : defaultArrayLength;
+
+      byte bytes[] = Base64.getDecoder().decode(encoded);
+      switch (compression) {
+        case ZLIB:
+          bytes = CompressionUtils.decompress(bytes, expectedLength * precision.bytes);
+          break;
+        case NUMPRESS_LINEAR_ZLIB:
+        case NUMPRESS_PIC_ZLIB:
+        case NUMPRESS_SLOF_ZLIB:
+          bytes = CompressionUtils.decompress(bytes);
+          break;
+        default:
+          break;
+      }
+
+      switch (compression) {
+        case NUMPRESS_LINEAR:
+        case NUMPRESS_LINEAR_ZLIB:
+          return MSNumpress.decodeLinear(bytes);
+        case NUMPRESS_PIC:
+        case NUMPRESS_PIC_ZLIB:
+          return MSNumpress.decodePic(bytes);
+        case NUMPRESS_SLOF:
+        case NUMPRESS_SLOF_ZLIB:
+          return MSNumpress.decodeSlof(bytes);
+        default:
+          break;
+      }
+
+      // Binary data arrays are always little-endian
+      final ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+      final double values[] = new double[bytes.length / precision.bytes];
+      switch (precision) {
+        case FLOAT32:
+          for (int i = 0; i < values.length; i++)
+            values[i] = buffer.getFloat(4 * i);
+          break;
+        case FLOAT64:
+          buffer.asDoubleBuffer().get(values);
+          break;
+        case INT32:
+          for (int i = 0; i < values.length; i++)
+            values[i] = buffer.getInt(4 * i);
+          break;
+        case INT64:
+          for (int i = 0; i < values.length; i++)
+            values[i] = buffer.getLong(8 * i);
+          break;
+      }
+      return values;
+    }
+  }
+
+}
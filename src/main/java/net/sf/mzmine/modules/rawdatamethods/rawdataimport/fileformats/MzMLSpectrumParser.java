@@ -0,0 +1,372 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzMLSpectrum.ArrayType;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzMLSpectrum.BinaryDataArray;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzMLSpectrum.Compression;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzMLSpectrum.Precision;
+
+/**
+ * Reads spectra of mzML 1.0 and 1.1.0 files from a StAX stream. Only the metadata MZmine uses are
+ * extracted, and the base64 text of the binary data arrays is copied without being decoded. The
+ * parameters of referenceableParamGroup elements read before are applied wherever the groups are
+ * referenced.
+ */
+public class MzMLSpectrumParser {
+
+  private final Map<String, List<CVParam>> referenceableParamGroups = new HashMap<>();
+
+  /**
+   * Reads a referenceableParamGroup element. The reader must be at its start element, and is left
+   * at its end element.
+   */
+  public void readReferenceableParamGroup(@Nonnull XMLStreamReader reader)
+      throws XMLStreamException {
+
+    final String id = reader.getAttributeValue(null, "id");
+    List<CVParam> params = new ArrayList<>();
+
+    int depth = 1;
+    while (depth > 0) {
+      switch (reader.next()) {
+        case XMLStreamConstants.START_ELEMENT:
+          depth++;
+          if (reader.getLocalName().equals("cvParam"))
+            params.add(new CVParam(reader));
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          depth--;
+          break;
+      }
+    }
+
+    if (id != null)
+      referenceableParamGroups.put(id, params);
+  }
+
+  /**
+   * Reads a spectrum element. The reader must be at its start element, and is left at its end
+   * element.
+   */
+  @Nonnull
+  public MzMLSpectrum readSpectrum(@Nonnull XMLStreamReader reader) throws XMLStreamException {
+    return readSpectrum(reader, false);
+  }
+
+  /**
+   * Reads the metadata of a spectrum element, without its binary data arrays. The reader must be at
+   * its start element, and is left at the start element of the binaryDataArrayList, or at the end
+   * element of the spectrum if there is none.
+   */
+  @Nonnull
+  public MzMLSpectrum readSpectrumHeader(@Nonnull XMLStreamReader reader)
+      throws XMLStreamException {
+    return readSpectrum(reader, true);
+  }
+
+  private MzMLSpectrum readSpectrum(XMLStreamReader reader, boolean headerOnly)
+      throws XMLStreamException {
+
+    final String id = reader.getAttributeValue(null, "id");
+    final String defaultArrayLength = reader.getAttributeValue(null, "defaultArrayLength");
+    MzMLSpectrum spectrum = new MzMLSpectrum(id,
+        (defaultArrayLength == null) ? 0 : Integer.parseInt(defaultArrayLength));
+
+    Deque<String> elements = new ArrayDeque<>();
+    elements.push("spectrum");
+    int precursors = 0;
+    BinaryDataArray binaryDataArray = null;
+    int encodedLength = 0;
+
+    while (!elements.isEmpty()) {
+      switch (reader.next()) {
+
+        case XMLStreamConstants.START_ELEMENT:
+          final String name = reader.getLocalName();
+          final String parent = elements.peek();
+          // The binary data arrays follow all metadata of the spectrum
+          if (headerOnly && name.equals("binaryDataArrayList"))
+            return spectrum;
+          switch (name) {
+            case "cvParam":
+              applyParam(spectrum, parent, precursors, binaryDataArray, new CVParam(reader));
+              break;
+            case "referenceableParamGroupRef":
+              List<CVParam> group =
+                  referenceableParamGroups.get(reader.getAttributeValue(null, "ref"));
+              if (group != null) {
+                for (CVParam param : group)
+                  applyParam(spectrum, parent, precursors, binaryDataArray, param);
+              }
+              break;
+            case "precursor":
+              // Only the first precursor is used
+              precursors++;
+              if (precursors == 1)
+                spectrum.precursorSpectrumRef = reader.getAttributeValue(null, "spectrumRef");
+              break;
+            case "binaryDataArray":
+              binaryDataArray = new BinaryDataArray();
+              final String arrayLength = reader.getAttributeValue(null, "arrayLength");
+              if (arrayLength != null)
+                binaryDataArray.arrayLength = Integer.parseInt(arrayLength);
+              final String encoded = reader.getAttributeValue(null, "encodedLength");
+              encodedLength = (encoded == null) ? 0 : Integer.parseInt(encoded);
+              spectrum.binaryDataArrays.add(binaryDataArray);
+              break;
+            case "binary":
+              // Reads up to the end element
+              if (binaryDataArray != null)
+                binaryDataArray.encoded = readBase64(reader, encodedLength);
+              else
+                reader.getElementText();
+              continue;
+          }
+          elements.push(name);
+          break;
+
+        case XMLStreamConstants.END_ELEMENT:
+          elements.pop();
+          break;
+      }
+    }
+
+    return spectrum;
+  }
+
+  private static void applyParam(MzMLSpectrum spectrum, String element, int precursors,
+      BinaryDataArray binaryDataArray, CVParam param) {
+
+    final String accession = param.accession, value = param.value;
+    if (accession == null)
+      return;
+
+    switch (element) {
+
+      case "spectrum":
+        switch (accession) {
+          case "MS:1000511": // MS level
+            if ((value != null) && !spectrum.msLevelSet) {
+              spectrum.msLevel = Integer.parseInt(value);
+              spectrum.msLevelSet = true;
+            }
+            break;
+          case "MS:1000130": // positive scan
+          case "MS:1000129": // negative scan
+            if (spectrum.spectrumPolarity == null)
+              spectrum.spectrumPolarity = getPolarity(accession);
+            break;
+          case "MS:1000512": // filter string
+            if ((value != null) && (spectrum.spectrumScanDefinition == null))
+              spectrum.spectrumScanDefinition = value;
+            break;
+          case "MS:1000804": // electromagnetic radiation spectrum, e.g. UV
+            spectrum.msSpectrum = false;
+            break;
+          case "MS:1000504": // base peak m/z
+            if (value != null)
+              spectrum.basePeakMz = Double.parseDouble(value);
+            break;
+          case "MS:1000505": // base peak intensity
+            if (value != null)
+              spectrum.basePeakIntensity = Double.parseDouble(value);
+            break;
+          case "MS:1000285": // total ion current
+            if (value != null)
+              spectrum.totalIonCurrent = Double.parseDouble(value);
+            break;
+          case "MS:1000528": // lowest observed m/z
+            if (value != null)
+              spectrum.lowestMz = Double.parseDouble(value);
+            break;
+          case "MS:1000527": // highest observed m/z
+            if (value != null)
+              spectrum.highestMz = Double.parseDouble(value);
+            break;
+        }
+        break;
+
+      case "scan":
+        switch (accession) {
+          case "MS:1000016": // scan start time
+            if ((value != null) && !spectrum.retentionTimeSet) {
+              // MS:1000038 is used in mzML 1.0, while UO:0000031 is used in mzML 1.1.0
+              final String unitAccession = param.unitAccession;
+              if ((unitAccession == null) || unitAccession.equals("MS:1000038")
+                  || unitAccession.equals("UO:0000031"))
+                spectrum.retentionTime = Double.parseDouble(value);
+              else
+                spectrum.retentionTime = Double.parseDouble(value) / 60d;
+              spectrum.retentionTimeSet = true;
+            }
+            break;
+          case "MS:1000130":
+          case "MS:1000129":
+            if (spectrum.scanPolarity == null)
+              spectrum.scanPolarity = getPolarity(accession);
+            break;
+          case "MS:1000512":
+            if ((value != null) && (spectrum.scanScanDefinition == null))
+              spectrum.scanScanDefinition = value;
+            break;
+        }
+        break;
+
+      case "selectedIon":
+        if ((precursors != 1) || (value == null))
+          break;
+        switch (accession) {
+          // MS:1000040 is used in mzML 1.0, MS:1000744 is used in mzML 1.1.0
+          case "MS:1000040":
+          case "MS:1000744":
+            if (!spectrum.precursorMzSet) {
+              spectrum.precursorMz = Double.parseDouble(value);
+              spectrum.precursorMzSet = true;
+            }
+            break;
+          case "MS:1000041": // charge state
+            if (!spectrum.precursorChargeSet) {
+              spectrum.precursorCharge = Integer.parseInt(value);
+              spectrum.precursorChargeSet = true;
+            }
+            break;
+        }
+        break;
+
+      case "binaryDataArray":
+        if (binaryDataArray != null)
+          applyBinaryDataArrayParam(binaryDataArray, accession);
+        break;
+    }
+  }
+
+  private static void applyBinaryDataArrayParam(BinaryDataArray binaryDataArray,
+      String accession) {
+    switch (accession) {
+      case "MS:1000514": // m/z array
+        binaryDataArray.arrayType = ArrayType.MZ;
+        break;
+      case "MS:1000515": // intensity array
+        binaryDataArray.arrayType = ArrayType.INTENSITY;
+        break;
+      case "MS:1000516": // charge array
+      case "MS:1000517": // signal to noise array
+      case "MS:1000595": // time array
+      case "MS:1000617": // wavelength array
+      case "MS:1000786": // non-standard data array
+        binaryDataArray.arrayType = ArrayType.OTHER;
+        break;
+      case "MS:1000521":
+        binaryDataArray.precision = Precision.FLOAT32;
+        break;
+      case "MS:1000523":
+        binaryDataArray.precision = Precision.FLOAT64;
+        break;
+      case "MS:1000519":
+        binaryDataArray.precision = Precision.INT32;
+        break;
+      case "MS:1000522":
+        binaryDataArray.precision = Precision.INT64;
+        break;
+      case "MS:1000576":
+        binaryDataArray.compression = Compression.NONE;
+        break;
+      case "MS:1000574":
+        binaryDataArray.compression = Compression.ZLIB;
+        break;
+      case "MS:1002312":
+        binaryDataArray.compression = Compression.NUMPRESS_LINEAR;
+        break;
+      case "MS:1002313":
+        binaryDataArray.compression = Compression.NUMPRESS_PIC;
+        break;
+      case "MS:1002314":
+        binaryDataArray.compression = Compression.NUMPRESS_SLOF;
+        break;
+      case "MS:1002746":
+        binaryDataArray.compression = Compression.NUMPRESS_LINEAR_ZLIB;
+        break;
+      case "MS:1002747":
+        binaryDataArray.compression = Compression.NUMPRESS_PIC_ZLIB;
+        break;
+      case "MS:1002748":
+        binaryDataArray.compression = Compression.NUMPRESS_SLOF_ZLIB;
+        break;
+    }
+  }
+
+  private static PolarityType getPolarity(String accession) {
+    return accession.equals("MS:1000130") ? PolarityType.POSITIVE : PolarityType.NEGATIVE;
+  }
+
+  /**
+   * Copies the base64 text up to the end element, leaving out whitespace
+   */
+  static byte[] readBase64(XMLStreamReader reader, int encodedLength)
+      throws XMLStreamException {
+
+    byte encoded[] = new byte[encodedLength];
+    int length = 0;
+
+    int event;
+    while ((event = reader.next()) != XMLStreamConstants.END_ELEMENT) {
+      if ((event != XMLStreamConstants.CHARACTERS) && (event != XMLStreamConstants.CDATA)
+          && (event != XMLStreamConstants.SPACE))
+        continue;
+      final char text[] = reader.getTextCharacters();
+      final int start = reader.getTextStart(), end = start + reader.getTextLength();
+      if (length + end - start > encoded.length)
+        encoded = Arrays.copyOf(encoded, Math.max(2 * encoded.length, length + end - start));
+      for (int i = start; i < end; i++) {
+        final char c = text[i];
+        if (c > ' ')
+          encoded[length++] = (byte) c;
+      }
+    }
+
+    return (length == encoded.length) ? encoded : Arrays.copyOf(encoded, length);
+  }
+
+  private static class CVParam {
+
+    private final String accession, value, unitAccession;
+
+    CVParam(XMLStreamReader reader) {
+      accession = reader.getAttributeValue(null, "accession");
+      value = reader.getAttributeValue(null, "value");
+      unitAccession = reader.getAttributeValue(null, "unitAccession");
+    }
+  }
+
+}
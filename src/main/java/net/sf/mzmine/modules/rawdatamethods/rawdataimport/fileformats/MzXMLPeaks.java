@@ -0,0 +1,85 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.util.CompressionUtils;
+
+/**
+ * The still encoded content of an mzXML peaks element. The m/z and intensity values are stored in
+ * pairs (pairOrder="m/z-int") in network byte order.
+ */
+class MzXMLPeaks {
+
+  private final boolean doublePrecision;
+  private final boolean compressed;
+
+  // Base64 characters without whitespace
+  private final byte encoded[];
+
+  /**
+   * @param precision value of the precision attribute, "64" for double precision
+   * @param compressionType value of the compressionType attribute, may be null
+   */
+  MzXMLPeaks(String precision, String compressionType, byte encoded[]) {
+    this.doublePrecision = "64".equals(precision);
+    this.compressed = (compressionType != null) && !compressionType.equals("none");
+    this.encoded = encoded;
+  }
+
+  /**
+   * Decodes the given number of data points
+   */
+  DataPoint[] decode(int peaksCount) throws DataFormatException {
+
+    final int valueBytes = doublePrecision ? 8 : 4;
+
+    byte peakBytes[] = Base64.getDecoder().decode(encoded);
+    if (compressed)
+      peakBytes = CompressionUtils.decompress(peakBytes, peaksCount * 2 * valueBytes);
+
+    final ByteBuffer buffer = ByteBuffer.wrap(peakBytes);
+    DataPoint dataPoints[] = new DataPoint[peaksCount];
+    try {
+      for (int i = 0; i < peaksCount; i++) {
+        final double mz, intensity;
+        if (doublePrecision) {
+          mz = buffer.getDouble();
+          intensity = buffer.getDouble();
+        } else {
+          mz = buffer.getFloat();
+          intensity = buffer.getFloat();
+        }
+        dataPoints[i] = new SimpleDataPoint(mz, intensity);
+      }
+    } catch (BufferUnderflowException e) {
+      throw new DataFormatException("Corrupt mzXML file: " + peaksCount + " peaks expected, found "
+          + (peakBytes.length / 2 / valueBytes));
+    }
+
+    return dataPoints;
+  }
+
+}
@@ -18,13 +18,19 @@
 
 package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.util.Base64;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Logger;
 import java.util.zip.DataFormatException;
 
@@ -45,16 +51,16 @@ import net.sf.mzmine.datamodel.MassSpectrumType;
 import net.sf.mzmine.datamodel.PolarityType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
-import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleScan;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
-import net.sf.mzmine.util.CompressionUtils;
 import net.sf.mzmine.util.ExceptionUtils;
 import net.sf.mzmine.util.scans.ScanUtils;
 
 /**
- * 
+ * This class reads mzXML files using a SAX parser. The parser thread only reads the metadata and
+ * the base64 text of the peaks of the scans. The peaks are decoded in parallel, and the scans are
+ * added to the raw data file as soon as they are decoded and cannot get any more fragment scans.
  */
 public class MzXMLReadTask extends AbstractTask {
 
@@ -67,9 +73,9 @@ public class MzXMLReadTask extends AbstractTask {
   private int totalScans = 0, parsedScans;
   private int peaksCount = 0;
   private StringBuilder charBuffer;
-  private boolean compressFlag = false;
+  private boolean readingCharacters = false;
   private DefaultHandler handler = new MzXMLHandler();
-  private String precision;
+  private String precision, compressionType;
 
   // Retention time parser
   private DatatypeFactory dataTypeFactory;
@@ -79,24 +85,26 @@ public class MzXMLReadTask extends AbstractTask {
    * initial size of array is set to 10, but it depends of fragmentation level.
    */
   private int parentTreeValue[] = new int[10];
-  private int msLevelTree = 0;
 
   /*
-   * This stack stores the current scan and all his fragments until all the information is recover.
-   * The logic is FIFO at the moment of write into the RawDataFile
+   * Scans which were not added to the raw data file yet, in the order of the file, and by scan
+   * number. A scan is added once its peaks are decoded and it cannot get any more fragment scans,
+   * i.e. it is not the last scan of its MS level. The number of scans decoded ahead of the writing
+   * is limited, so the encoded peaks of the whole file are never held in memory.
    */
-  private LinkedList<SimpleScan> parentStack;
+  private final int maxPendingScans = 4 * Runtime.getRuntime().availableProcessors();
+  private final Deque<PendingScan> pendingScans = new ArrayDeque<>();
+  private final Map<Integer, PendingScan> pendingScansByNumber = new HashMap<>();
 
   /*
-   * This variable hold the present scan or fragment, it is send to the stack when another
-   * scan/fragment appears as a parser.startElement
+   * The scans whose </scan> was not read yet, innermost first. Fragment scans may be nested in
+   * their parent scan, so the parent scan is only complete at its own </scan>.
    */
-  private SimpleScan buildingScan;
+  private final Deque<PendingScan> openScans = new ArrayDeque<>();
 
   public MzXMLReadTask(MZmineProject project, File fileToOpen, RawDataFileWriter newMZmineFile) {
     // 256 kilo-chars buffer
     charBuffer = new StringBuilder(1 << 18);
-    parentStack = new LinkedList<SimpleScan>();
     this.project = project;
     this.file = fileToOpen;
     this.newMZmineFile = newMZmineFile;
@@ -127,11 +135,18 @@ public class MzXMLReadTask extends AbstractTask {
       SAXParser saxParser = factory.newSAXParser();
       saxParser.parse(file, handler);
 
+      while (!pendingScans.isEmpty())
+        writeScan(pendingScans.removeFirst());
+
       // Close file
       finalRawDataFile = newMZmineFile.finishWriting();
       project.addFile(finalRawDataFile);
 
     } catch (Throwable e) {
+      cancelPendingScans();
+      // Decoding errors are wrapped by the CompletableFuture
+      if ((e instanceof CompletionException) && (e.getCause() != null))
+        e = e.getCause();
       e.printStackTrace();
       /* we may already have set the status to CANCELED */
       if (getStatus() == TaskStatus.PROCESSING) {
@@ -159,6 +174,77 @@ public class MzXMLReadTask extends AbstractTask {
     return "Opening file " + file;
   }
 
+  /**
+   * Decodes the peaks and sets them to the scan. Runs in parallel with the parsing.
+   */
+  private static SimpleScan decodeScan(SimpleScan scan, MzXMLPeaks peaks, int peaksCount) {
+
+    DataPoint dataPoints[];
+    try {
+      dataPoints = peaks.decode(peaksCount);
+    } catch (DataFormatException e) {
+      throw new CompletionException(new DataFormatException(
+          "Corrupt peaks of scan " + scan.getScanNumber() + ": " + e.getMessage()));
+    }
+
+    // Auto-detect whether this scan is centroided
+    MassSpectrumType spectrumType = ScanUtils.detectSpectrumType(dataPoints);
+
+    // Set the centroided tag
+    scan.setSpectrumType(spectrumType);
+
+    // Set the final data points to the scan
+    scan.setDataPoints(dataPoints);
+
+    return scan;
+  }
+
+  /**
+   * Writes the decoded scans in the order of the file. If too many scans are pending, waits for
+   * their decoding. The last scan of each MS level is kept, because it may still get fragment
+   * scans.
+   */
+  private void writeDecodedScans() throws IOException {
+    Iterator<PendingScan> iterator = pendingScans.iterator();
+    while (iterator.hasNext()) {
+      PendingScan pendingScan = iterator.next();
+      if (parentTreeValue[pendingScan.msLevel] == pendingScan.scanNumber)
+        continue;
+      // The future of an open scan is only set once its peaks or its </scan> are read
+      if (pendingScan.scan == null)
+        break;
+      if ((pendingScans.size() < maxPendingScans) && !pendingScan.scan.isDone())
+        break;
+      iterator.remove();
+      writeScan(pendingScan);
+    }
+  }
+
+  /**
+   * Waits until the scan is decoded, and adds it to the raw data file together with its fragment
+   * scans
+   */
+  private void writeScan(PendingScan pendingScan) throws IOException {
+
+    SimpleScan scan = pendingScan.scan.join();
+    for (int fragmentScan : pendingScan.fragmentScans)
+      scan.addFragmentScan(fragmentScan);
+
+    newMZmineFile.addScan(scan);
+    pendingScansByNumber.remove(pendingScan.scanNumber);
+    parsedScans++;
+  }
+
+  private void cancelPendingScans() {
+    for (PendingScan pendingScan : pendingScans) {
+      if (pendingScan.scan != null)
+        pendingScan.scan.cancel(false);
+    }
+    pendingScans.clear();
+    pendingScansByNumber.clear();
+    openScans.clear();
+  }
+
   private class MzXMLHandler extends DefaultHandler {
     public void startElement(String namespaceURI, String lName, // local
         // name
@@ -178,11 +264,6 @@ public class MzXMLReadTask extends AbstractTask {
       // <scan>
       if (qName.equalsIgnoreCase("scan")) {
 
-        if (buildingScan != null) {
-          parentStack.addFirst(buildingScan);
-          buildingScan = null;
-        }
-
         /*
          * Only num, msLevel & peaksCount values are required according with mzxml standard, the
          * others are optional
@@ -226,19 +307,20 @@ public class MzXMLReadTask extends AbstractTask {
 
         if (msLevel > 1) {
           parentScan = parentTreeValue[msLevel - 1];
-          for (SimpleScan p : parentStack) {
-            if (p.getScanNumber() == parentScan) {
-              p.addFragmentScan(scanNumber);
-            }
-          }
+          PendingScan parent = pendingScansByNumber.get(parentScan);
+          if (parent != null)
+            parent.fragmentScans.add(scanNumber);
         }
 
-        // Setting the level of fragment of scan and parent scan number
-        msLevelTree++;
+        // Setting the parent scan number of the next fragment
         parentTreeValue[msLevel] = scanNumber;
 
-        buildingScan = new SimpleScan(null, scanNumber, msLevel, retentionTime, 0, 0, null,
+        SimpleScan scan = new SimpleScan(null, scanNumber, msLevel, retentionTime, 0, 0, null,
             new DataPoint[0], null, polarity, scanId, null);
+        PendingScan pendingScan = new PendingScan(scan);
+        openScans.addFirst(pendingScan);
+        pendingScans.addLast(pendingScan);
+        pendingScansByNumber.put(scanNumber, pendingScan);
 
       }
 
@@ -246,12 +328,8 @@ public class MzXMLReadTask extends AbstractTask {
       if (qName.equalsIgnoreCase("peaks")) {
         // clean the current char buffer for the new element
         charBuffer.setLength(0);
-        compressFlag = false;
-        String compressionType = attrs.getValue("compressionType");
-        if ((compressionType == null) || (compressionType.equals("none")))
-          compressFlag = false;
-        else
-          compressFlag = true;
+        readingCharacters = true;
+        compressionType = attrs.getValue("compressionType");
         precision = attrs.getValue("precision");
 
       }
@@ -260,9 +338,11 @@ public class MzXMLReadTask extends AbstractTask {
       if (qName.equalsIgnoreCase("precursorMz")) {
         // clean the current char buffer for the new element
         charBuffer.setLength(0);
+        readingCharacters = true;
         String precursorCharge = attrs.getValue("precursorCharge");
-        if (precursorCharge != null)
-          buildingScan.setPrecursorCharge(Integer.parseInt(precursorCharge));
+        PendingScan buildingScan = getBuildingScan();
+        if ((precursorCharge != null) && (buildingScan != null))
+          buildingScan.metadata.setPrecursorCharge(Integer.parseInt(precursorCharge));
       }
 
     }
@@ -277,36 +357,14 @@ public class MzXMLReadTask extends AbstractTask {
       // </scan>
       if (qName.equalsIgnoreCase("scan")) {
 
-        msLevelTree--;
-
-        /*
-         * At this point we verify if the scan and his fragments are closed, so we include the
-         * present scan/fragment into the stack and start to take elements from them (FIFO) for the
-         * RawDataFile.
-         */
-
-        if (msLevelTree == 0) {
-          parentStack.addFirst(buildingScan);
-          buildingScan = null;
-          while (!parentStack.isEmpty()) {
-            SimpleScan currentScan = parentStack.removeLast();
-            try {
-              newMZmineFile.addScan(currentScan);
-            } catch (IOException e) {
-              e.printStackTrace();
-              setStatus(TaskStatus.ERROR);
-              setErrorMessage("IO error: " + e);
-              throw new SAXException("Parsing error: " + e);
-            }
-            parsedScans++;
-          }
-
-          /*
-           * The scan with all his fragments is in the RawDataFile, now we clean the stack for the
-           * next scan and fragments.
-           */
-          parentStack.clear();
+        PendingScan pendingScan = openScans.pollFirst();
+        if (pendingScan == null)
+          return;
 
+        // A scan without peaks has no data points
+        if (pendingScan.scan == null) {
+          pendingScan.scan = CompletableFuture.completedFuture(pendingScan.metadata);
+          writeScansWhileParsing();
         }
 
         return;
@@ -314,68 +372,69 @@ public class MzXMLReadTask extends AbstractTask {
 
       // <precursorMz>
       if (qName.equalsIgnoreCase("precursorMz")) {
+        readingCharacters = false;
         final String textContent = charBuffer.toString();
         double precursorMz = 0d;
         if (!textContent.isEmpty())
           precursorMz = Double.parseDouble(textContent);
-        buildingScan.setPrecursorMZ(precursorMz);
+        PendingScan buildingScan = getBuildingScan();
+        if (buildingScan != null)
+          buildingScan.metadata.setPrecursorMZ(precursorMz);
         return;
       }
 
       // <peaks>
       if (qName.equalsIgnoreCase("peaks")) {
 
-        byte[] peakBytes = Base64.getDecoder().decode(charBuffer.toString());
-
-        if (compressFlag) {
-          try {
-            peakBytes = CompressionUtils.decompress(peakBytes);
-          } catch (DataFormatException e) {
-            setStatus(TaskStatus.ERROR);
-            setErrorMessage("Corrupt compressed peak: " + e.toString());
-            throw new SAXException("Parsing Cancelled");
-          }
+        readingCharacters = false;
+        PendingScan buildingScan = getBuildingScan();
+        if (buildingScan == null)
+          return;
+
+        // Copy the base64 text, leaving out whitespace
+        byte encoded[] = new byte[charBuffer.length()];
+        int length = 0;
+        for (int i = 0; i < charBuffer.length(); i++) {
+          final char c = charBuffer.charAt(i);
+          if (c > ' ')
+            encoded[length++] = (byte) c;
         }
+        if (length < encoded.length)
+          encoded = Arrays.copyOf(encoded, length);
 
-        // make a data input stream
-        DataInputStream peakStream = new DataInputStream(new ByteArrayInputStream(peakBytes));
-
-        DataPoint dataPoints[] = new DataPoint[peaksCount];
-
-        try {
-          for (int i = 0; i < dataPoints.length; i++) {
-
-            // Always respect this order pairOrder="m/z-int"
-            double massOverCharge;
-            double intensity;
-            if ("64".equals(precision)) {
-              massOverCharge = peakStream.readDouble();
-              intensity = peakStream.readDouble();
-            } else {
-              massOverCharge = (double) peakStream.readFloat();
-              intensity = (double) peakStream.readFloat();
-            }
+        final SimpleScan scan = buildingScan.metadata;
+        final MzXMLPeaks peaks = new MzXMLPeaks(precision, compressionType, encoded);
+        final int count = peaksCount;
+        // The scan is not modified any more while it is being decoded
+        buildingScan.scan = CompletableFuture.supplyAsync(() -> decodeScan(scan, peaks, count));
 
-            // Copy m/z and intensity data
-            dataPoints[i] = new SimpleDataPoint(massOverCharge, intensity);
+        writeScansWhileParsing();
 
-          }
-        } catch (IOException eof) {
-          setStatus(TaskStatus.ERROR);
-          setErrorMessage("Corrupt mzXML file");
-          throw new SAXException("Parsing Cancelled");
-        }
-
-        // Auto-detect whether this scan is centroided
-        MassSpectrumType spectrumType = ScanUtils.detectSpectrumType(dataPoints);
-
-        // Set the centroided tag
-        buildingScan.setSpectrumType(spectrumType);
+        return;
+      }
+    }
 
-        // Set the final data points to the scan
-        buildingScan.setDataPoints(dataPoints);
+    /**
+     * Returns the innermost open scan, unless its peaks were already read
+     */
+    private PendingScan getBuildingScan() {
+      PendingScan buildingScan = openScans.peekFirst();
+      if ((buildingScan == null) || (buildingScan.scan != null))
+        return null;
+      return buildingScan;
+    }
 
-        return;
+    /**
+     * Writes the decoded scans, reporting write errors to the parser
+     */
+    private void writeScansWhileParsing() throws SAXException {
+      try {
+        writeDecodedScans();
+      } catch (IOException e) {
+        e.printStackTrace();
+        setStatus(TaskStatus.ERROR);
+        setErrorMessage("IO error: " + e);
+        throw new SAXException("Parsing error: " + e);
       }
     }
 
@@ -385,7 +444,27 @@ public class MzXMLReadTask extends AbstractTask {
      * @see org.xml.sax.ContentHandler#characters(char[], int, int)
      */
     public void characters(char buf[], int offset, int len) throws SAXException {
-      charBuffer.append(buf, offset, len);
+      if (readingCharacters)
+        charBuffer.append(buf, offset, len);
+    }
+  }
+
+  /**
+   * Scan which was not added to the raw data file yet. Its data points are decoded by the scan
+   * future, which is null until the peaks or the </scan> of the scan are read. The fragment scans
+   * are added after the decoding.
+   */
+  private static class PendingScan {
+
+    private final SimpleScan metadata;
+    private final int scanNumber, msLevel;
+    private CompletableFuture<SimpleScan> scan;
+    private final List<Integer> fragmentScans = new ArrayList<>(0);
+
+    PendingScan(SimpleScan metadata) {
+      this.metadata = metadata;
+      this.scanNumber = metadata.getScanNumber();
+      this.msLevel = metadata.getMSLevel();
     }
   }
 
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+import net.sf.mzmine.datamodel.DataPoint;
+
+/**
+ * Cache of decoded data points, shared by all open raw data files. It maps the storage IDs (of
+ * scans and mass lists) of each file to data point arrays. The size of the cache is limited by an
+ * estimate of the memory used by all cached arrays together.
+ * 
+ * Lookups do not lock: the entries are kept in a ConcurrentHashMap and a lookup only marks the
+ * entry as recently used. When the cache is full, a clock sweep evicts the entries that have not
+ * been used since the previous sweep, which approximates evicting the least recently used ones.
+ * 
+ * The cached arrays are shared, so they must never be modified or handed out to the callers of
+ * RawDataFileImpl directly.
+ */
+public class DataPointsCache {
+
+  // Estimated memory used by one cached data point: the SimpleDataPoint instance (header and two
+  // doubles) and the reference in the array
+  private static final long BYTES_PER_DATA_POINT = 36;
+
+  // Estimated memory used by the array, the cache entry and the map entry
+  private static final long BYTES_PER_ENTRY = 96;
+
+  private static class CacheEntry {
+
+    private final long key;
+    private final DataPoint dataPoints[];
+    private final long bytes;
+
+    // Set by each lookup, cleared when the clock hand passes the entry
+    private volatile boolean referenced = true;
+
+    private CacheEntry(long key, DataPoint dataPoints[]) {
+      this.key = key;
+      this.dataPoints = dataPoints;
+      this.bytes = getEstimatedSize(dataPoints);
+    }
+  }
+
+  private final ConcurrentHashMap<Long, CacheEntry> cachedDataPoints = new ConcurrentHashMap<>();
+
+  private final AtomicInteger lastFileID = new AtomicInteger();
+
+  private volatile long maxBytes;
+  private final AtomicLong currentBytes = new AtomicLong();
+  private final LongAdder hits = new LongAdder(), misses = new LongAdder(),
+      evictions = new LongAdder();
+
+  // The clock hand of the eviction, guarded by evictionLock
+  private Iterator<CacheEntry> clockHand;
+  private final Object evictionLock = new Object();
+
+  /**
+   * @param maxBytes maximum estimated size of the cached data points in bytes, 0 disables the cache
+   */
+  public DataPointsCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @return new ID identifying the entries of one raw data file in this cache
+   */
+  public int newFileID() {
+    return lastFileID.incrementAndGet();
+  }
+
+  /**
+   * Returns the cached data points for given storage ID of given file and counts the lookup as a hit
+   * or a miss. Callers that do not put the data points after a miss should use peek() instead.
+   * 
+   * @return cached data points or null, if they are not cached
+   */
+  public @Nullable DataPoint[] get(int fileID, int storageID) {
+    DataPoint dataPoints[] = peek(fileID, storageID);
+    if (dataPoints == null)
+      misses.increment();
+    return dataPoints;
+  }
+
+  /**
+   * Returns the cached data points for given storage ID of given file, like get(), but does not
+   * count a miss
+   * 
+   * @return cached data points or null, if they are not cached
+   */
+  public @Nullable DataPoint[] peek(int fileID, int storageID) {
+    final CacheEntry entry = cachedDataPoints.get(getKey(fileID, storageID));
+    if (entry == null)
+      return null;
+    // Avoid writing the shared field if it is already set
+    if (!entry.referenced)
+      entry.referenced = true;
+    hits.increment();
+    return entry.dataPoints;
+  }
+
+  /**
+   * Caches the data points stored under given storage ID of given file, evicting entries that have
+   * not been used recently if necessary. The array must not be modified afterwards.
+   */
+  public void put(int fileID, int storageID, DataPoint dataPoints[]) {
+
+    final long limit = maxBytes;
+    final CacheEntry entry = new CacheEntry(getKey(fileID, storageID), dataPoints);
+
+    // Too big to be cached at all
+    if (entry.bytes > limit)
+      return;
+
+    // Whoever removes an entry from the map subtracts its size, so the total stays consistent
+    CacheEntry previous = cachedDataPoints.put(entry.key, entry);
+    if (previous != null)
+      currentBytes.addAndGet(-previous.bytes);
+    if (currentBytes.addAndGet(entry.bytes) > limit)
+      evict();
+
+  }
+
+  /**
+   * Removes the data points stored under given storage ID of given file from the cache
+   */
+  public void remove(int fileID, int storageID) {
+    CacheEntry removed = cachedDataPoints.remove(getKey(fileID, storageID));
+    if (removed != null)
+      currentBytes.addAndGet(-removed.bytes);
+  }
+
+  /**
+   * Removes all data points of given file from the cache, e.g. when the file is closed
+   */
+  public void removeAll(int fileID) {
+    for (CacheEntry entry : cachedDataPoints.values()) {
+      if ((entry.key >>> 32) == (getKey(fileID, 0) >>> 32))
+        removeEntry(entry);
+    }
+  }
+
+  public void clear() {
+    for (CacheEntry entry : cachedDataPoints.values())
+      removeEntry(entry);
+  }
+
+  /**
+   * Sets the maximum estimated size of the cached data points in bytes, evicting entries if the
+   * cache is bigger. 0 disables the cache.
+   */
+  public void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes;
+    if (maxBytes <= 0)
+      clear();
+    else if (currentBytes.get() > maxBytes)
+      evict();
+  }
+
+  /**
+   * Sweeps the clock hand over the entries until the cache fits its size. Recently used entries
+   * get a second chance, the hand only clears their mark. Lookups are not blocked by the sweep.
+   */
+  private void evict() {
+    synchronized (evictionLock) {
+      // Entries that are passed without being evicted, used to stop giving second chances when
+      // concurrent lookups mark the entries faster than the hand clears them
+      long passed = 0;
+      while (currentBytes.get() > maxBytes) {
+        if ((clockHand == null) || !clockHand.hasNext()) {
+          clockHand = cachedDataPoints.values().iterator();
+          if (!clockHand.hasNext())
+            return;
+        }
+        final CacheEntry entry = clockHand.next();
+        if (entry.referenced && (passed <= 2L * cachedDataPoints.size())) {
+          entry.referenced = false;
+          passed++;
+          continue;
+        }
+        if (removeEntry(entry)) {
+          evictions.increment();
+          passed = 0;
+        }
+      }
+    }
+  }
+
+  private boolean removeEntry(CacheEntry entry) {
+    // Only removes the entry if it has not been replaced in the meantime
+    if (!cachedDataPoints.remove(entry.key, entry))
+      return false;
+    currentBytes.addAndGet(-entry.bytes);
+    return true;
+  }
+
+  public boolean isEnabled() {
+    return maxBytes > 0;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public long getCurrentBytes() {
+    return currentBytes.get();
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  private static long getKey(int fileID, int storageID) {
+    // The hash code of a Long combines its halves with XOR, so the file ID is scrambled to keep the
+    // entries of different files with small storage IDs from colliding. The multiplication with an
+    // odd number is a bijection, so the keys are still unique.
+    final int scrambledFileID = fileID * 0x9E3779B9;
+    return ((long) scrambledFileID << 32) | (storageID & 0xffffffffL);
+  }
+
+  private static long getEstimatedSize(DataPoint dataPoints[]) {
+    return BYTES_PER_ENTRY + dataPoints.length * BYTES_PER_DATA_POINT;
+  }
+
+  @Override
+  public String toString() {
+    final long hits = getHits(), misses = getMisses();
+    final long requests = hits + misses;
+    final long hitRate = (requests == 0) ? 0 : (100 * hits / requests);
+    return "hits: " + hits + ", misses: " + misses + " (" + hitRate + "% hit rate), evictions: "
+        + getEvictions() + ", size: " + (getCurrentBytes() >> 10) + " of " + (maxBytes >> 10)
+        + " kB";
+  }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.DataPoint;
+
+/**
+ * Source of data points which are decoded on demand instead of being copied to the data points
+ * file of a RawDataFileImpl, e.g. the spectra of an indexed mzML file. The data points are
+ * registered by RawDataFileImpl.addSourceDataPoints() under the index of the spectrum in the
+ * source. Implementations must allow many threads to read at once.
+ */
+public interface DataPointsSource {
+
+  /**
+   * Decodes the data points of the spectrum with given index
+   */
+  @Nonnull
+  DataPoint[] readDataPoints(int index) throws IOException;
+
+  /**
+   * Releases the underlying file. Called when the raw data file is closed.
+   */
+  void close() throws IOException;
+
+}
@@ -18,43 +18,63 @@
 
 package net.sf.mzmine.project.impl;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
-import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
-import java.util.Set;
 import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import com.google.common.collect.Range;
-import com.google.common.primitives.Ints;
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.util.scans.ScanUtils;
 
 /**
  * RawDataFile implementation. It provides storage of data points for scans and mass lists using the
  * storeDataPoints() and readDataPoints() methods. The data points are stored in a temporary file
- * (dataPointsFile) and the structure of the file is stored in two TreeMaps. The dataPointsOffsets
- * maps storage ID to the offset in the dataPointsFile. The dataPointsLength maps the storage ID to
- * the number of data points stored under this ID. When stored data points are deleted using
- * removeStoredDataPoints(), the dataPointsFile is not modified, the storage ID is just deleted from
- * the two TreeMaps. When the project is saved, the contents of the dataPointsFile are consolidated
- * - only data points referenced by the TreeMaps are saved (see the RawDataFileSaveHandler class).
+ * (dataPointsFile) and the structure of the file is stored in two primitive arrays indexed by the
+ * storage ID. The dataPointsOffsets array maps storage ID to the offset in the dataPointsFile. The
+ * dataPointsLengths array maps the storage ID to the number of data points stored under this ID
+ * (-1 for unused IDs). The dataPointsOrder array records whether the m/z values stored under
+ * each ID are sorted, so the data points within an m/z range can be found by a binary search
+ * (see readDataPoints(int, Range)). When stored data points are deleted using removeStoredDataPoints(), the
+ * dataPointsFile is not modified, the storage ID is just marked as unused. When the project is
+ * saved, the contents of the dataPointsFile are consolidated - only data points referenced by a
+ * used storage ID are saved (see the RawDataFileSaveHandler class).
+ * 
+ * Reading of the data points does not require any lock. If memory mapping is enabled in the
+ * preferences, the complete segments of MAPPED_SEGMENT_SIZE bytes of the dataPointsFile are mapped
+ * and the data points are decoded directly from the mapped segments, so many threads can read from
+ * the same file at once. The last, still growing segment and the rare records crossing a segment
+ * boundary are read by positional reads of the file. Only writing (storeDataPoints()) is
+ * serialized. Recently read data points are kept in a DataPointsCache, limited to the size set in
+ * the preferences.
+ * 
+ * Data points may also stay in the raw data file they were imported from. Such data points are
+ * registered by addSourceDataPoints() and decoded on demand by a DataPointsSource. Their offset is
+ * the index of the spectrum in the source, and the dataPointsInSource array marks their storage
+ * IDs.
  */
 public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
@@ -63,18 +83,57 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
   // Name of this raw data file - may be changed by the user
   private String dataFileName;
 
+  // RT and m/z ranges set by setRTRange() and setMZRange(), which override the ones of the scans
   private final Hashtable<Integer, Range<Double>> dataMZRange, dataRTRange;
-  private final Hashtable<Integer, Double> dataMaxBasePeakIntensity, dataMaxTIC;
-  private final Hashtable<Integer, int[]> scanNumbersCache;
+
+  // Index of the scans by MS level and RT, built by finishWriting() or on first use after adding
+  // scans
+  private volatile ScanIndex scanIndex;
+
+  // Size of the memory mapped segments of the data points file. Only complete segments are mapped,
+  // so at most this many bytes at the end of the file are read without memory mapping.
+  private static final long MAPPED_SEGMENT_SIZE = 1L << 26;
 
   private ByteBuffer buffer = ByteBuffer.allocate(20000);
-  private final TreeMap<Integer, Long> dataPointsOffsets;
-  private final TreeMap<Integer, Integer> dataPointsLengths;
+
+  // Storage structure, indexed by storage ID. The arrays are only modified while holding the lock of
+  // this instance. Each modification is published by a write to lastStorageID, so readers must read
+  // lastStorageID before accessing the arrays.
+  private volatile long dataPointsOffsets[];
+  private volatile int dataPointsLengths[];
+  private volatile byte dataPointsOrder[];
+  private volatile boolean dataPointsInSource[];
+  private volatile int lastStorageID;
+
+  // Values of dataPointsOrder. The order of data points registered by setDataPointsStorage() is
+  // unknown until they are read for the first time.
+  private static final byte ORDER_UNKNOWN = 0, ORDER_SORTED = 1, ORDER_UNSORTED = 2;
 
   // Temporary file for scan data storage
   private File dataPointsFileName;
   private RandomAccessFile dataPointsFile;
 
+  // Source of the data points which are not copied to the data points file, if any
+  private volatile DataPointsSource dataPointsSource;
+
+  // Memory mapped segments of the data points file, mapped on demand. The data points file only
+  // grows, so a segment is mapped once the file is longer than the end of the segment and its
+  // contents never change. The read channel is used for mapping and for the positional reads of the
+  // rest of the file, it is opened again if an interrupted reading thread closed it.
+  private volatile boolean memoryMapped;
+  private volatile long dataPointsFileSize;
+  private volatile FileChannel mappedChannel;
+  private volatile MappedByteBuffer mappedSegments[] = new MappedByteBuffer[0];
+  private boolean closed = false;
+  private final Object mappingLock = new Object();
+
+  // Recently read data points of all raw data files, the size is a total for all files
+  private static final DataPointsCache dataPointsCache =
+      new DataPointsCache(getDataPointsCacheSize());
+
+  // Identifies the entries of this file in the shared data points cache
+  private final int cacheFileID = dataPointsCache.newFileID();
+
   // To store mass lists that have been added but not yet reflected in the GUI by the
   // notifyUpdatedMassLists() method
   private final List<MassList> newMassLists = new ArrayList<>();
@@ -88,15 +147,16 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
     this.dataFileName = dataFileName;
 
-    // Prepare the hashtables for scan numbers and data limits.
-    scanNumbersCache = new Hashtable<Integer, int[]>();
+    // Prepare the hashtables for data limits.
     dataMZRange = new Hashtable<Integer, Range<Double>>();
     dataRTRange = new Hashtable<Integer, Range<Double>>();
-    dataMaxBasePeakIntensity = new Hashtable<Integer, Double>();
-    dataMaxTIC = new Hashtable<Integer, Double>();
     scans = new Hashtable<Integer, StorableScan>();
-    dataPointsOffsets = new TreeMap<Integer, Long>();
-    dataPointsLengths = new TreeMap<Integer, Integer>();
+    dataPointsOffsets = new long[1024];
+    dataPointsLengths = new int[1024];
+    Arrays.fill(dataPointsLengths, -1);
+    dataPointsOrder = new byte[1024];
+    dataPointsInSource = new boolean[1024];
+    updateDataPointsCacheSize();
 
   }
 
@@ -133,6 +193,8 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
     this.dataPointsFileName = dataPointsFileName;
     this.dataPointsFile = new RandomAccessFile(dataPointsFileName, "rw");
+    this.dataPointsFileSize = dataPointsFile.length();
+    this.memoryMapped = isMemoryMappingEnabled();
 
     // Locks the temporary file so it is not removed when another instance
     // of MZmine is starting. Lock will be automatically released when this
@@ -151,6 +213,17 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
   }
 
+  /**
+   * Sets the source of the data points registered by addSourceDataPoints(). The source is closed
+   * together with this raw data file.
+   */
+  public synchronized void setDataPointsSource(@Nonnull DataPointsSource dataPointsSource) {
+    if (this.dataPointsSource != null) {
+      throw new IllegalStateException("The data points source is already set");
+    }
+    this.dataPointsSource = dataPointsSource;
+  }
+
   /**
    * @see net.sf.mzmine.datamodel.RawDataFile#getNumOfScans()
    */
@@ -167,17 +240,26 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     return scans.get(scanNumber);
   }
 
+  /**
+   * Returns the index of the scans, building it if scans were added since it was last built
+   */
+  private ScanIndex getScanIndex() {
+    ScanIndex index = scanIndex;
+    if (index != null)
+      return index;
+    synchronized (this) {
+      if (scanIndex == null)
+        scanIndex = new ScanIndex(scans.values());
+      return scanIndex;
+    }
+  }
+
   /**
    * @see net.sf.mzmine.datamodel.RawDataFile#getScanNumbers(int)
    */
   @Override
   public @Nonnull int[] getScanNumbers(int msLevel) {
-    if (scanNumbersCache.containsKey(msLevel))
-      return scanNumbersCache.get(msLevel);
-    Range<Double> all = Range.all();
-    int scanNumbers[] = getScanNumbers(msLevel, all);
-    scanNumbersCache.put(msLevel, scanNumbers);
-    return scanNumbers;
+    return getScanIndex().getScanNumbers(msLevel);
   }
 
   /**
@@ -188,20 +270,33 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
     assert rtRange != null;
 
-    ArrayList<Integer> eligibleScanNumbers = new ArrayList<Integer>();
+    return getScanIndex().getScanNumbers(msLevel, rtRange);
+  }
 
-    Enumeration<StorableScan> scansEnum = scans.elements();
-    while (scansEnum.hasMoreElements()) {
-      Scan scan = scansEnum.nextElement();
+  /**
+   * @see net.sf.mzmine.datamodel.RawDataFile#getFragmentScanNumbers(int, Range, Range)
+   */
+  @Override
+  public @Nonnull int[] getFragmentScanNumbers(int msLevel, @Nonnull Range<Double> precursorMZRange,
+      @Nonnull Range<Double> rtRange) {
 
-      if ((scan.getMSLevel() == msLevel) && (rtRange.contains(scan.getRetentionTime())))
-        eligibleScanNumbers.add(scan.getScanNumber());
-    }
+    assert precursorMZRange != null;
+    assert rtRange != null;
 
-    int[] numbersArray = Ints.toArray(eligibleScanNumbers);
-    Arrays.sort(numbersArray);
+    return getScanIndex().getFragmentScanNumbers(msLevel, precursorMZRange, rtRange);
+  }
 
-    return numbersArray;
+  /**
+   * @see net.sf.mzmine.datamodel.RawDataFile#getBestFragmentScanNumber(int, Range, Range)
+   */
+  @Override
+  public int getBestFragmentScanNumber(int msLevel, @Nonnull Range<Double> precursorMZRange,
+      @Nonnull Range<Double> rtRange) {
+
+    assert precursorMZRange != null;
+    assert rtRange != null;
+
+    return getScanIndex().getBestFragmentScanNumber(msLevel, precursorMZRange, rtRange);
   }
 
   /**
@@ -209,173 +304,478 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
    */
   @Override
   public @Nonnull int[] getScanNumbers() {
+    return getScanIndex().getScanNumbers();
+  }
+
+  /**
+   * @see net.sf.mzmine.datamodel.RawDataFile#getMSLevels()
+   */
+  @Override
+  public @Nonnull int[] getMSLevels() {
+    return getScanIndex().getMSLevels();
+  }
 
-    if (scanNumbersCache.containsKey(0))
-      return scanNumbersCache.get(0);
+  /**
+   * @see net.sf.mzmine.datamodel.RawDataFile#getDataMaxBasePeakIntensity()
+   */
+  @Override
+  public double getDataMaxBasePeakIntensity(int msLevel) {
+    // -1 if no scan at this MS level
+    return getScanIndex().getMaxBasePeakIntensity(msLevel);
+  }
 
-    Set<Integer> allScanNumbers = scans.keySet();
-    int[] numbersArray = Ints.toArray(allScanNumbers);
-    Arrays.sort(numbersArray);
+  /**
+   * @see net.sf.mzmine.datamodel.RawDataFile#getDataMaxTotalIonCurrent()
+   */
+  @Override
+  public double getDataMaxTotalIonCurrent(int msLevel) {
+    // -1 if no scan at this MS level
+    return getScanIndex().getMaxTIC(msLevel);
+  }
 
-    scanNumbersCache.put(0, numbersArray);
+  public synchronized int storeDataPoints(DataPoint dataPoints[]) throws IOException {
 
-    return numbersArray;
+    if (dataPointsFile == null) {
+      File newFile = RawDataFileImpl.createNewDataPointsFile();
+      openDataPointsFile(newFile);
+    }
+
+    final long currentOffset = dataPointsFile.length();
+
+    final int currentID = lastStorageID + 1;
+
+    final int numOfDataPoints = dataPoints.length;
+
+    // Convert the dataPoints into a byte array. Each float takes 4 bytes,
+    // so we get the current float offset by dividing the size of the file
+    // by 4
+    final int numOfBytes = numOfDataPoints * 2 * 4;
+
+    final ByteBuffer record = getBuffer(numOfBytes);
+    FloatBuffer floatBuffer = record.asFloatBuffer();
+    boolean sortedByMZ = true;
+    float previousMZ = Float.NEGATIVE_INFINITY;
+    for (DataPoint dp : dataPoints) {
+      final float mz = (float) dp.getMZ();
+      if (!(previousMZ <= mz))
+        sortedByMZ = false;
+      previousMZ = mz;
+      floatBuffer.put(mz);
+      floatBuffer.put((float) dp.getIntensity());
+    }
+
+    dataPointsFile.seek(currentOffset);
+    dataPointsFile.write(record.array(), 0, numOfBytes);
+    dataPointsFileSize = currentOffset + numOfBytes;
+
+    setDataPointsStorage(currentID, currentOffset, numOfDataPoints,
+        sortedByMZ ? ORDER_SORTED : ORDER_UNSORTED, false);
+
+    return currentID;
 
   }
 
   /**
-   * @see net.sf.mzmine.datamodel.RawDataFile#getMSLevels()
+   * Registers data points that are already present in the data points file (e.g. when loading a
+   * project) under the given storage ID.
    */
-  @Override
-  public @Nonnull int[] getMSLevels() {
-
-    Set<Integer> msLevelsSet = new HashSet<Integer>();
+  public synchronized void setDataPointsStorage(int ID, long offset, int numOfDataPoints) {
+    setDataPointsStorage(ID, offset, numOfDataPoints, ORDER_UNKNOWN, false);
+  }
 
-    Enumeration<StorableScan> scansEnum = scans.elements();
-    while (scansEnum.hasMoreElements()) {
-      Scan scan = scansEnum.nextElement();
-      msLevelsSet.add(scan.getMSLevel());
+  private synchronized void setDataPointsStorage(int ID, long offset, int numOfDataPoints,
+      byte order, boolean inSource) {
+
+    if (ID <= 0)
+      throw new IllegalArgumentException("Invalid storage ID " + ID);
+
+    long offsets[] = dataPointsOffsets;
+    int lengths[] = dataPointsLengths;
+    byte orders[] = dataPointsOrder;
+    boolean sources[] = dataPointsInSource;
+
+    if (ID >= offsets.length) {
+      final int newSize = Math.max(ID + 1, offsets.length * 2);
+      offsets = Arrays.copyOf(offsets, newSize);
+      final int oldSize = lengths.length;
+      lengths = Arrays.copyOf(lengths, newSize);
+      Arrays.fill(lengths, oldSize, newSize, -1);
+      orders = Arrays.copyOf(orders, newSize);
+      sources = Arrays.copyOf(sources, newSize);
     }
 
-    int[] msLevels = Ints.toArray(msLevelsSet);
-    Arrays.sort(msLevels);
-    return msLevels;
+    offsets[ID] = offset;
+    lengths[ID] = numOfDataPoints;
+    orders[ID] = order;
+    sources[ID] = inSource;
+
+    dataPointsOffsets = offsets;
+    dataPointsLengths = lengths;
+    dataPointsOrder = orders;
+    dataPointsInSource = sources;
+
+    // Publish the modification
+    lastStorageID = Math.max(lastStorageID, ID);
 
   }
 
   /**
-   * @see net.sf.mzmine.datamodel.RawDataFile#getDataMaxBasePeakIntensity()
+   * Registers data points that are already present in the data points file under a new storage ID.
+   * 
+   * @return the new storage ID
    */
-  @Override
-  public double getDataMaxBasePeakIntensity(int msLevel) {
+  public synchronized int addDataPointsStorage(long offset, int numOfDataPoints) {
+    final int newID = lastStorageID + 1;
+    setDataPointsStorage(newID, offset, numOfDataPoints);
+    return newID;
+  }
 
-    // check if we have this value already cached
-    Double maxBasePeak = dataMaxBasePeakIntensity.get(msLevel);
-    if (maxBasePeak != null)
-      return maxBasePeak;
+  /**
+   * Registers the data points of the spectrum with given index in the data points source under a
+   * new storage ID. The number of data points is the one declared by the source, the number of
+   * decoded data points may differ.
+   * 
+   * @return the new storage ID
+   */
+  public synchronized int addSourceDataPoints(int index, int numOfDataPoints) {
+    if (dataPointsSource == null) {
+      throw new IllegalStateException("No data points source was set");
+    }
+    final int newID = lastStorageID + 1;
+    setDataPointsStorage(newID, index, numOfDataPoints, ORDER_UNKNOWN, true);
+    return newID;
+  }
 
-    // find the value
-    Enumeration<StorableScan> scansEnum = scans.elements();
-    while (scansEnum.hasMoreElements()) {
-      Scan scan = scansEnum.nextElement();
+  /**
+   * Replaces the number of data points declared by the source with the number of data points it
+   * decoded the first time, and records their order. Data points of the source whose order is
+   * unknown were not decoded yet.
+   */
+  private synchronized void updateSourceDataPoints(int ID, DataPoint dataPoints[]) {
+    // The data points may have been removed while they were decoded
+    if (dataPointsLengths[ID] < 0)
+      return;
+    dataPointsLengths[ID] = dataPoints.length;
+    dataPointsOrder[ID] = ScanUtils.isSortedByMZ(dataPoints) ? ORDER_SORTED : ORDER_UNSORTED;
+    publishStorageChanges();
+  }
 
-      // ignore scans of other ms levels
-      if (scan.getMSLevel() != msLevel)
-        continue;
+  /**
+   * Returns true if the data points stored under given storage ID are read from the data points
+   * source, and offset of the ID is the index of the spectrum in the source
+   */
+  public boolean isDataPointsInSource(int ID) {
+    final int maxID = lastStorageID;
+    final int lengths[] = dataPointsLengths;
+    final boolean sources[] = dataPointsInSource;
+    if ((ID <= 0) || (ID > maxID) || (lengths[ID] < 0)) {
+      throw new IllegalArgumentException("Unknown storage ID " + ID);
+    }
+    return sources[ID];
+  }
 
-      DataPoint scanBasePeak = scan.getHighestDataPoint();
-      if (scanBasePeak == null)
-        continue;
+  public DataPoint[] readDataPoints(int ID) throws IOException {
 
-      if ((maxBasePeak == null) || (scanBasePeak.getIntensity() > maxBasePeak))
-        maxBasePeak = scanBasePeak.getIntensity();
+    if (!dataPointsCache.isEnabled())
+      return decodeDataPoints(ID);
 
+    // The cached array is shared, so we always return a copy
+    DataPoint dataPoints[] = dataPointsCache.get(cacheFileID, ID);
+    if (dataPoints == null) {
+      dataPoints = decodeDataPoints(ID);
+      dataPointsCache.put(cacheFileID, ID, dataPoints);
     }
+    return dataPoints.clone();
 
-    // return -1 if no scan at this MS level
-    if (maxBasePeak == null)
-      maxBasePeak = -1d;
+  }
 
-    // cache the value
-    dataMaxBasePeakIntensity.put(msLevel, maxBasePeak);
+  private DataPoint[] decodeDataPoints(int ID) throws IOException {
 
-    return maxBasePeak;
+    // Reading the volatile lastStorageID first makes all stored entries visible
+    final int maxID = lastStorageID;
+    final long offsets[] = dataPointsOffsets;
+    final int lengths[] = dataPointsLengths;
+    final byte orders[] = dataPointsOrder;
+    final boolean sources[] = dataPointsInSource;
+
+    if ((ID <= 0) || (ID > maxID) || (lengths[ID] < 0)) {
+      throw new IllegalArgumentException("Unknown storage ID " + ID);
+    }
+
+    if (sources[ID]) {
+      DataPoint dataPoints[] = dataPointsSource.readDataPoints((int) offsets[ID]);
+      if (orders[ID] == ORDER_UNKNOWN)
+        updateSourceDataPoints(ID, dataPoints);
+      return dataPoints;
+    }
+
+    final long currentOffset = offsets[ID];
+    final int numOfDataPoints = lengths[ID];
+    final int numOfBytes = numOfDataPoints * 2 * 4;
+
+    final ByteBuffer region = getStoredRegion(currentOffset, numOfBytes);
+    if (region != null) {
+      DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
+      for (int i = 0; i < numOfDataPoints; i++) {
+        float mz = region.getFloat(i * 8);
+        float intensity = region.getFloat(i * 8 + 4);
+        dataPoints[i] = new SimpleDataPoint(mz, intensity);
+      }
+      return dataPoints;
+    }
+
+    return readDataPointsFromFile(currentOffset, numOfDataPoints);
+
+  }
+
+  private synchronized DataPoint[] readDataPointsFromFile(long currentOffset, int numOfDataPoints)
+      throws IOException {
+
+    FloatBuffer floatBuffer = readRecordFromFile(currentOffset, numOfDataPoints).asFloatBuffer();
+
+    DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
+
+    for (int i = 0; i < numOfDataPoints; i++) {
+      float mz = floatBuffer.get();
+      float intensity = floatBuffer.get();
+      dataPoints[i] = new SimpleDataPoint(mz, intensity);
+    }
+
+    return dataPoints;
 
   }
 
   /**
-   * @see net.sf.mzmine.datamodel.RawDataFile#getDataMaxTotalIonCurrent()
+   * Reads the data points stored under given storage ID within given m/z range: from the first one,
+   * which is not below the range, up to the first one above the range (see
+   * ScanUtils.selectDataPointsByMass()). If the stored m/z values are sorted, the range is found by
+   * a binary search and only the data points inside of it are decoded.
    */
-  @Override
-  public double getDataMaxTotalIonCurrent(int msLevel) {
-
-    // check if we have this value already cached
-    Double maxTIC = dataMaxTIC.get(msLevel);
-    if (maxTIC != null)
-      return maxTIC.doubleValue();
+  public DataPoint[] readDataPoints(int ID, Range<Double> mzRange) throws IOException {
 
-    // find the value
-    Enumeration<StorableScan> scansEnum = scans.elements();
-    while (scansEnum.hasMoreElements()) {
-      Scan scan = scansEnum.nextElement();
+    // Reading the volatile lastStorageID first makes all stored entries visible
+    final int maxID = lastStorageID;
+    final long offsets[] = dataPointsOffsets;
+    final int lengths[] = dataPointsLengths;
+    final byte orders[] = dataPointsOrder;
+    final boolean sources[] = dataPointsInSource;
 
-      // ignore scans of other ms levels
-      if (scan.getMSLevel() != msLevel)
-        continue;
+    if ((ID <= 0) || (ID > maxID) || (lengths[ID] < 0)) {
+      throw new IllegalArgumentException("Unknown storage ID " + ID);
+    }
 
-      if ((maxTIC == null) || (scan.getTIC() > maxTIC))
-        maxTIC = scan.getTIC();
+    // Use the cached data points, if available. The data points read below are not cached, so a
+    // lookup that finds nothing does not count as a miss.
+    final DataPoint cachedDataPoints[] =
+        dataPointsCache.isEnabled() ? dataPointsCache.peek(cacheFileID, ID) : null;
+    if ((cachedDataPoints != null) && (orders[ID] != ORDER_UNKNOWN)) {
+      return ScanUtils.selectDataPointsByMass(cachedDataPoints, orders[ID] == ORDER_SORTED,
+          mzRange);
+    }
 
+    // We need all data points, if the order is unknown or they are not sorted. The data points of
+    // the source are always decoded as a whole.
+    if ((orders[ID] != ORDER_SORTED) || sources[ID]) {
+      DataPoint dataPoints[] = (cachedDataPoints != null) ? cachedDataPoints : readDataPoints(ID);
+      final boolean sortedByMZ = ScanUtils.isSortedByMZ(dataPoints);
+      // Remember the order, it does not matter if a concurrent modification of the arrays loses it
+      orders[ID] = sortedByMZ ? ORDER_SORTED : ORDER_UNSORTED;
+      return ScanUtils.selectDataPointsByMass(dataPoints, sortedByMZ, mzRange);
     }
 
-    // return -1 if no scan at this MS level
-    if (maxTIC == null)
-      maxTIC = -1d;
+    final long currentOffset = offsets[ID];
+    final int numOfDataPoints = lengths[ID];
+    final int numOfBytes = numOfDataPoints * 2 * 4;
+    final double lowerMZ = mzRange.lowerEndpoint(), upperMZ = mzRange.upperEndpoint();
 
-    // cache the value
-    dataMaxTIC.put(msLevel, maxTIC);
+    final ByteBuffer region = getStoredRegion(currentOffset, numOfBytes);
+    if (region != null)
+      return decodeDataPointsInRange(region, numOfDataPoints, lowerMZ, upperMZ);
 
-    return maxTIC;
+    return readDataPointsFromFile(currentOffset, numOfDataPoints, lowerMZ, upperMZ);
 
   }
 
-  public synchronized int storeDataPoints(DataPoint dataPoints[]) throws IOException {
+  /**
+   * Reads the data points within given m/z range from the file. The stored m/z values must be
+   * sorted. The whole record is read at once, a single read is cheaper than seeking to each value
+   * probed by the binary search.
+   */
+  private synchronized DataPoint[] readDataPointsFromFile(long currentOffset, int numOfDataPoints,
+      double lowerMZ, double upperMZ) throws IOException {
 
-    if (dataPointsFile == null) {
-      File newFile = RawDataFileImpl.createNewDataPointsFile();
-      openDataPointsFile(newFile);
+    final ByteBuffer record = readRecordFromFile(currentOffset, numOfDataPoints);
+    return decodeDataPointsInRange(record, numOfDataPoints, lowerMZ, upperMZ);
+
+  }
+
+  /**
+   * Decodes the data points within given m/z range from a record starting at index 0 of given
+   * buffer. The range is found by a binary search, so the stored m/z values must be sorted.
+   */
+  private static DataPoint[] decodeDataPointsInRange(ByteBuffer record, int numOfDataPoints,
+      double lowerMZ, double upperMZ) {
+
+    // Sorted m/z values contain no NaN, so only the NaN lower bound needs special handling
+    int startIndex = numOfDataPoints, endIndex = numOfDataPoints;
+    if (!Double.isNaN(lowerMZ)) {
+      int low = 0, high = numOfDataPoints;
+      while (low < high) {
+        final int middle = (low + high) >>> 1;
+        if (record.getFloat(middle * 8) >= lowerMZ)
+          high = middle;
+        else
+          low = middle + 1;
+      }
+      startIndex = low;
+      high = numOfDataPoints;
+      while (low < high) {
+        final int middle = (low + high) >>> 1;
+        if (record.getFloat(middle * 8) > upperMZ)
+          high = middle;
+        else
+          low = middle + 1;
+      }
+      endIndex = low;
     }
 
-    final long currentOffset = dataPointsFile.length();
+    DataPoint dataPoints[] = new DataPoint[endIndex - startIndex];
+    int position = startIndex * 8;
+    for (int i = 0; i < dataPoints.length; i++) {
+      float mz = record.getFloat(position);
+      float intensity = record.getFloat(position + 4);
+      dataPoints[i] = new SimpleDataPoint(mz, intensity);
+      position += 8;
+    }
+    return dataPoints;
 
-    final int currentID;
-    if (!dataPointsOffsets.isEmpty())
-      currentID = dataPointsOffsets.lastKey() + 1;
-    else
-      currentID = 1;
+  }
 
-    final int numOfDataPoints = dataPoints.length;
+  /**
+   * Reads the m/z and intensity values stored under given storage ID into the given arrays, which
+   * must have at least getNumOfStoredDataPoints(ID) elements. No objects are created when the data
+   * is read from a memory mapped segment.
+   * 
+   * @return number of data points stored under given storage ID
+   */
+  public int readDataPoints(int ID, double mzValues[], double intensityValues[])
+      throws IOException {
 
-    // Convert the dataPoints into a byte array. Each float takes 4 bytes,
-    // so we get the current float offset by dividing the size of the file
-    // by 4
+    // Reading the volatile lastStorageID first makes all stored entries visible
+    final int maxID = lastStorageID;
+    final long offsets[] = dataPointsOffsets;
+    final int lengths[] = dataPointsLengths;
+    final boolean sources[] = dataPointsInSource;
+
+    if ((ID <= 0) || (ID > maxID) || (lengths[ID] < 0)) {
+      throw new IllegalArgumentException("Unknown storage ID " + ID);
+    }
+
+    // The number of data points decoded from the source may differ from the declared one
+    if (sources[ID]) {
+      DataPoint dataPoints[] =
+          dataPointsCache.isEnabled() ? dataPointsCache.get(cacheFileID, ID) : null;
+      if (dataPoints == null) {
+        dataPoints = decodeDataPoints(ID);
+        if (dataPointsCache.isEnabled())
+          dataPointsCache.put(cacheFileID, ID, dataPoints);
+      }
+      checkArrayLengths(ID, dataPoints.length, mzValues, intensityValues);
+      for (int i = 0; i < dataPoints.length; i++) {
+        mzValues[i] = dataPoints[i].getMZ();
+        intensityValues[i] = dataPoints[i].getIntensity();
+      }
+      return dataPoints.length;
+    }
+
+    final long currentOffset = offsets[ID];
+    final int numOfDataPoints = lengths[ID];
     final int numOfBytes = numOfDataPoints * 2 * 4;
 
-    if (buffer.capacity() < numOfBytes) {
-      buffer = ByteBuffer.allocate(numOfBytes * 2);
-    } else {
-      // JDK 9 breaks compatibility with JRE8: need to cast
-      // https://stackoverflow.com/questions/48693695/java-nio-buffer-not-loading-clear-method-on-runtime
-      ((Buffer) buffer).clear();
+    checkArrayLengths(ID, numOfDataPoints, mzValues, intensityValues);
+
+    // Use the cached data points, if available. The data points read below are not cached, so a
+    // lookup that finds nothing does not count as a miss.
+    final DataPoint cachedDataPoints[] =
+        dataPointsCache.isEnabled() ? dataPointsCache.peek(cacheFileID, ID) : null;
+    if (cachedDataPoints != null) {
+      for (int i = 0; i < cachedDataPoints.length; i++) {
+        mzValues[i] = cachedDataPoints[i].getMZ();
+        intensityValues[i] = cachedDataPoints[i].getIntensity();
+      }
+      return cachedDataPoints.length;
     }
 
-    FloatBuffer floatBuffer = buffer.asFloatBuffer();
-    for (DataPoint dp : dataPoints) {
-      floatBuffer.put((float) dp.getMZ());
-      floatBuffer.put((float) dp.getIntensity());
+    final ByteBuffer region = getStoredRegion(currentOffset, numOfBytes);
+    if (region != null) {
+      for (int i = 0; i < numOfDataPoints; i++) {
+        mzValues[i] = region.getFloat(i * 8);
+        intensityValues[i] = region.getFloat(i * 8 + 4);
+      }
+      return numOfDataPoints;
     }
 
-    dataPointsFile.seek(currentOffset);
-    dataPointsFile.write(buffer.array(), 0, numOfBytes);
+    readDataPointsFromFile(currentOffset, numOfDataPoints, mzValues, intensityValues);
+    return numOfDataPoints;
 
-    dataPointsOffsets.put(currentID, currentOffset);
-    dataPointsLengths.put(currentID, numOfDataPoints);
+  }
 
-    return currentID;
+  private static void checkArrayLengths(int ID, int numOfDataPoints, double mzValues[],
+      double intensityValues[]) {
+    if ((mzValues.length < numOfDataPoints) || (intensityValues.length < numOfDataPoints)) {
+      throw new IllegalArgumentException("Arrays are too short for " + numOfDataPoints
+          + " data points stored under storage ID " + ID);
+    }
+  }
 
+  /**
+   * Returns the number of data points stored under given storage ID. The number of data points
+   * declared by the data points source is only checked when they are decoded, so data points of
+   * the source are decoded here if they were not decoded yet.
+   */
+  public int getNumOfStoredDataPoints(int ID) throws IOException {
+    final int maxID = lastStorageID;
+    final int lengths[] = dataPointsLengths;
+    final byte orders[] = dataPointsOrder;
+    final boolean sources[] = dataPointsInSource;
+    if ((ID <= 0) || (ID > maxID) || (lengths[ID] < 0)) {
+      throw new IllegalArgumentException("Unknown storage ID " + ID);
+    }
+    if (sources[ID] && (orders[ID] == ORDER_UNKNOWN))
+      return readDataPoints(ID).length;
+    return lengths[ID];
   }
 
-  public synchronized DataPoint[] readDataPoints(int ID) throws IOException {
+  private synchronized void readDataPointsFromFile(long currentOffset, int numOfDataPoints,
+      double mzValues[], double intensityValues[]) throws IOException {
 
-    final Long currentOffset = dataPointsOffsets.get(ID);
-    final Integer numOfDataPoints = dataPointsLengths.get(ID);
+    FloatBuffer floatBuffer = readRecordFromFile(currentOffset, numOfDataPoints).asFloatBuffer();
 
-    if ((currentOffset == null) || (numOfDataPoints == null)) {
-      throw new IllegalArgumentException("Unknown storage ID " + ID);
+    for (int i = 0; i < numOfDataPoints; i++) {
+      mzValues[i] = floatBuffer.get();
+      intensityValues[i] = floatBuffer.get();
     }
 
+  }
+
+  /**
+   * Reads the record of given number of data points at given offset of the data points file into
+   * the shared buffer, starting at index 0. The buffer is only valid while holding the lock of this
+   * instance.
+   */
+  private synchronized ByteBuffer readRecordFromFile(long offset, int numOfDataPoints)
+      throws IOException {
     final int numOfBytes = numOfDataPoints * 2 * 4;
+    final ByteBuffer record = getBuffer(numOfBytes);
+    dataPointsFile.seek(offset);
+    dataPointsFile.readFully(record.array(), 0, numOfBytes);
+    return record;
+  }
 
+  /**
+   * Returns the shared buffer, cleared and with a capacity of at least given number of bytes
+   */
+  private synchronized ByteBuffer getBuffer(int numOfBytes) {
     if (buffer.capacity() < numOfBytes) {
       buffer = ByteBuffer.allocate(numOfBytes * 2);
     } else {
@@ -383,27 +783,142 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
       // https://stackoverflow.com/questions/48693695/java-nio-buffer-not-loading-clear-method-on-runtime
       ((Buffer) buffer).clear();
     }
+    return buffer;
+  }
 
-    dataPointsFile.seek(currentOffset);
-    dataPointsFile.read(buffer.array(), 0, numOfBytes);
+  /**
+   * Returns the stored bytes of given region of the data points file, starting at index 0 of the
+   * returned buffer. The region is read from a mapped segment if possible, otherwise by a
+   * positional read of the file, so no lock is needed. Returns null if memory mapping is disabled,
+   * in which case the caller should read the data by the synchronized readDataPointsFromFile().
+   */
+  private @Nullable ByteBuffer getStoredRegion(long offset, int numOfBytes) throws IOException {
 
-    FloatBuffer floatBuffer = buffer.asFloatBuffer();
+    if (!memoryMapped)
+      return null;
 
-    DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
+    final ByteBuffer segment = getMappedSegment(offset, numOfBytes);
+    if (segment != null) {
+      ByteBuffer region = segment.duplicate();
+      // JDK 9 breaks compatibility with JRE8: need to cast
+      ((Buffer) region).position((int) (offset % MAPPED_SEGMENT_SIZE));
+      return region.slice();
+    }
 
-    for (int i = 0; i < numOfDataPoints; i++) {
-      float mz = floatBuffer.get();
-      float intensity = floatBuffer.get();
-      dataPoints[i] = new SimpleDataPoint(mz, intensity);
+    // Mapping may have failed
+    if (!memoryMapped)
+      return null;
+
+    final ByteBuffer region = ByteBuffer.allocate(numOfBytes);
+    FileChannel channel = mappedChannel;
+    if (channel == null)
+      channel = getReadChannel(null);
+    while (region.hasRemaining()) {
+      int bytesRead;
+      try {
+        bytesRead = channel.read(region, offset + region.position());
+      } catch (ClosedByInterruptException e) {
+        // This thread was interrupted, so it stops reading
+        throw e;
+      } catch (ClosedChannelException e) {
+        // Another reading thread was interrupted, which closes the channel for all threads
+        channel = getReadChannel(channel);
+        continue;
+      }
+      if (bytesRead < 0)
+        throw new EOFException("Unexpected end of file " + dataPointsFileName);
     }
+    return region;
 
-    return dataPoints;
+  }
 
+  /**
+   * Returns the channel for reading the data points file, opening it if it is not open yet or if it
+   * is the given closed channel
+   */
+  private FileChannel getReadChannel(@Nullable FileChannel closedChannel) throws IOException {
+    synchronized (mappingLock) {
+      if (closed)
+        throw new ClosedChannelException();
+      if ((mappedChannel == null) || (mappedChannel == closedChannel))
+        mappedChannel = FileChannel.open(dataPointsFileName.toPath(), StandardOpenOption.READ);
+      return mappedChannel;
+    }
+  }
+
+  /**
+   * Returns the mapped segment which contains the given region of the data points file, mapping it
+   * if necessary. Returns null if the region crosses a segment boundary, if it lies in the last,
+   * incomplete segment of the file, or if the segment cannot be mapped, in which case the caller
+   * should read the data from the file directly.
+   */
+  private @Nullable ByteBuffer getMappedSegment(long offset, int numOfBytes) {
+
+    final int segmentIndex = (int) (offset / MAPPED_SEGMENT_SIZE);
+    final long segmentStart = segmentIndex * MAPPED_SEGMENT_SIZE;
+    final long segmentEnd = segmentStart + MAPPED_SEGMENT_SIZE;
+
+    if (offset + numOfBytes > segmentEnd)
+      return null;
+
+    MappedByteBuffer segments[] = mappedSegments;
+    if ((segmentIndex < segments.length) && (segments[segmentIndex] != null))
+      return segments[segmentIndex];
+
+    // The last segment of the file may still grow, it is mapped once it is complete
+    if (dataPointsFileSize < segmentEnd)
+      return null;
+
+    synchronized (mappingLock) {
+
+      // Check again, another thread may have mapped the segment meanwhile
+      segments = mappedSegments;
+      if ((segmentIndex < segments.length) && (segments[segmentIndex] != null))
+        return segments[segmentIndex];
+
+      if (closed)
+        return null;
+
+      try {
+        MappedByteBuffer newSegment = getReadChannel(null).map(FileChannel.MapMode.READ_ONLY,
+            segmentStart, MAPPED_SEGMENT_SIZE);
+
+        if (segmentIndex >= segments.length)
+          segments = Arrays.copyOf(segments, segmentIndex + 1);
+        else
+          segments = segments.clone();
+        segments[segmentIndex] = newSegment;
+        mappedSegments = segments;
+
+        return newSegment;
+
+      } catch (IOException e) {
+        logger.log(Level.WARNING,
+            "Failed to map the file " + dataPointsFileName + ", disabling memory mapping", e);
+        memoryMapped = false;
+        return null;
+      }
+    }
+
+  }
+
+  /**
+   * Publishes the modifications of the storage arrays to the readers, which read lastStorageID
+   * before accessing the arrays. Must be called while holding the lock of this instance after
+   * modifying an element of the arrays without changing lastStorageID.
+   */
+  private void publishStorageChanges() {
+    // Not a no-op: the volatile write makes the preceding writes to the arrays visible to every
+    // thread that reads lastStorageID afterwards
+    lastStorageID = lastStorageID;
   }
 
   public synchronized void removeStoredDataPoints(int ID) throws IOException {
-    dataPointsOffsets.remove(ID);
-    dataPointsLengths.remove(ID);
+    if ((ID <= 0) || (ID > lastStorageID))
+      return;
+    dataPointsLengths[ID] = -1;
+    publishStorageChanges();
+    dataPointsCache.remove(cacheFileID, ID);
   }
 
   @Override
@@ -413,6 +928,7 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     // and we just need store the reference
     if (newScan instanceof StorableScan) {
       scans.put(newScan.getScanNumber(), (StorableScan) newScan);
+      scanIndex = null;
       return;
     }
 
@@ -422,6 +938,7 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     StorableScan storedScan = new StorableScan(newScan, this, dataPoints.length, storageID);
 
     scans.put(newScan.getScanNumber(), storedScan);
+    scanIndex = null;
 
   }
 
@@ -431,8 +948,11 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
   @Override
   public synchronized RawDataFile finishWriting() throws IOException {
     for (StorableScan scan : scans.values()) {
-      scan.updateValues();
+      // The values of scans read from the source are usually known from its metadata already
+      if (!scan.hasValues() || !isDataPointsInSource(scan.getStorageID()))
+        scan.updateValues();
     }
+    scanIndex = new ScanIndex(scans.values());
     logger.finest("Writing of scans to file " + dataPointsFileName + " finished");
     return this;
   }
@@ -445,29 +965,13 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
   @Override
   public @Nonnull Range<Double> getDataMZRange(int msLevel) {
 
-    // check if we have this value already cached
+    // check if the range was set
     Range<Double> mzRange = dataMZRange.get(msLevel);
     if (mzRange != null)
       return mzRange;
 
-    // find the value
-    for (Scan scan : scans.values()) {
-
-      // ignore scans of other ms levels
-      if ((msLevel != 0) && (scan.getMSLevel() != msLevel))
-        continue;
-
-      if (mzRange == null)
-        mzRange = scan.getDataPointMZRange();
-      else
-        mzRange = mzRange.span(scan.getDataPointMZRange());
-
-    }
-
-    // cache the value, if we found any
-    if (mzRange != null)
-      dataMZRange.put(msLevel, mzRange);
-    else
+    mzRange = getScanIndex().getMZRange(msLevel);
+    if (mzRange == null)
       mzRange = Range.singleton(0.0);
 
     return mzRange;
@@ -482,29 +986,13 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
   @Override
   public @Nonnull Range<Double> getDataRTRange(int msLevel) {
 
-    // check if we have this value already cached
+    // check if the range was set
     Range<Double> rtRange = dataRTRange.get(msLevel);
     if (rtRange != null)
       return rtRange;
 
-    // find the value
-    for (Scan scan : scans.values()) {
-
-      // ignore scans of other ms levels
-      if ((msLevel != 0) && (scan.getMSLevel() != msLevel))
-        continue;
-
-      if (rtRange == null)
-        rtRange = Range.singleton(scan.getRetentionTime());
-      else
-        rtRange = rtRange.span(Range.singleton(scan.getRetentionTime()));
-
-    }
-
-    // cache the value
-    if (rtRange != null)
-      dataRTRange.put(msLevel, rtRange);
-    else
+    rtRange = getScanIndex().getRTRange(msLevel);
+    if (rtRange == null)
       rtRange = Range.singleton(0.0);
 
     return rtRange;
@@ -524,26 +1012,104 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     return getScanNumbers(msLevel).length;
   }
 
+  /**
+   * Returns a snapshot of the storage ID to data points file offset mapping
+   */
   public synchronized TreeMap<Integer, Long> getDataPointsOffsets() {
-    return dataPointsOffsets;
+    TreeMap<Integer, Long> offsets = new TreeMap<>();
+    for (int ID = 1; ID <= lastStorageID; ID++) {
+      if (dataPointsLengths[ID] >= 0)
+        offsets.put(ID, dataPointsOffsets[ID]);
+    }
+    return offsets;
   }
 
+  /**
+   * Returns a snapshot of the storage ID to number of data points mapping
+   */
   public synchronized TreeMap<Integer, Integer> getDataPointsLengths() {
-    return dataPointsLengths;
+    TreeMap<Integer, Integer> lengths = new TreeMap<>();
+    for (int ID = 1; ID <= lastStorageID; ID++) {
+      if (dataPointsLengths[ID] >= 0)
+        lengths.put(ID, dataPointsLengths[ID]);
+    }
+    return lengths;
+  }
+
+  /**
+   * Returns the cache of recently read data points, shared by all raw data files, e.g. to check its
+   * hit/miss statistics
+   */
+  public static @Nonnull DataPointsCache getDataPointsCache() {
+    return dataPointsCache;
+  }
+
+  /**
+   * Applies the size of the data points cache set in the preferences
+   */
+  public static void updateDataPointsCacheSize() {
+    dataPointsCache.setMaxBytes(getDataPointsCacheSize());
   }
 
   @Override
   public synchronized void close() {
+    dataPointsCache.removeAll(cacheFileID);
+    if (dataPointsCache.isEnabled())
+      logger.finest("Data points cache after closing " + dataFileName + ": " + dataPointsCache);
     try {
+      // The data points of a closed file must not be read any more, the following reads fail
+      synchronized (mappingLock) {
+        closed = true;
+        memoryMapped = false;
+        // The segments are not unmapped, other threads may still read from them. They are released
+        // by the garbage collector once nothing refers to them any more.
+        mappedSegments = new MappedByteBuffer[0];
+        if (mappedChannel != null) {
+          mappedChannel.close();
+          mappedChannel = null;
+        }
+      }
       if (dataPointsFileName != null) {
         dataPointsFile.close();
+        // Fails on Windows while a segment is still mapped, the file was also registered by
+        // deleteOnExit() in openDataPointsFile()
         dataPointsFileName.delete();
       }
     } catch (IOException e) {
       logger.warning("Could not close file " + dataPointsFileName + ": " + e.toString());
     }
+    if (dataPointsSource != null) {
+      try {
+        dataPointsSource.close();
+      } catch (IOException e) {
+        logger.warning("Could not close the data points source of " + dataFileName + ": " + e);
+      }
+    }
+  }
+
+
+  private static boolean isMemoryMappingEnabled() {
+    // The configuration is not available e.g. when running the unit tests
+    if (MZmineCore.getConfiguration() == null)
+      return true;
+    Boolean enabled = MZmineCore.getConfiguration().getPreferences()
+        .getParameter(MZminePreferences.memoryMappedStorage).getValue();
+    return (enabled == null) || enabled;
   }
 
+  /**
+   * Returns the size of the data points cache in bytes, as set in the preferences
+   */
+  private static long getDataPointsCacheSize() {
+    // The configuration is not available e.g. when running the unit tests
+    if (MZmineCore.getConfiguration() == null)
+      return 0;
+    Integer cacheSize = MZmineCore.getConfiguration().getPreferences()
+        .getParameter(MZminePreferences.dataPointsCacheSize).getValue();
+    if (cacheSize == null)
+      return 0;
+    return cacheSize * 1024L * 1024L;
+  }
 
   @Override
   public @Nonnull String getName() {
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Range;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Scan;
+
+/**
+ * Immutable index of the scans of one RawDataFileImpl. For each MS level, the scan numbers are
+ * stored in ascending order and sorted by retention time, so the scans within an RT range are found
+ * by a binary search. The RT and m/z ranges, the maximum base peak intensity and the maximum TIC
+ * of each MS level are computed once, when the index is built. The MS/MS scans are also indexed by
+ * their precursor m/z, so fragment scans of a feature are found without loading any scan.
+ */
+class ScanIndex {
+
+  private static final int EMPTY[] = new int[0];
+
+  private final int allScanNumbers[];
+  private final int msLevels[];
+  private final Map<Integer, LevelIndex> levels = new HashMap<>();
+
+  // RT and m/z ranges of all scans, null if there are no scans
+  private final Range<Double> rtRange, mzRange;
+
+  private final PrecursorIndex precursorIndex;
+
+  ScanIndex(Collection<? extends Scan> scans) {
+
+    Scan sortedScans[] = scans.toArray(new Scan[scans.size()]);
+    Arrays.sort(sortedScans, (s1, s2) -> Integer.compare(s1.getScanNumber(), s2.getScanNumber()));
+
+    allScanNumbers = new int[sortedScans.length];
+    Map<Integer, Integer> levelCounts = new HashMap<>();
+    for (int i = 0; i < sortedScans.length; i++) {
+      allScanNumbers[i] = sortedScans[i].getScanNumber();
+      levelCounts.merge(sortedScans[i].getMSLevel(), 1, Integer::sum);
+    }
+
+    msLevels = new int[levelCounts.size()];
+    int levelIndex = 0;
+    for (int msLevel : levelCounts.keySet())
+      msLevels[levelIndex++] = msLevel;
+    Arrays.sort(msLevels);
+
+    for (int msLevel : msLevels) {
+      Scan levelScans[] = new Scan[levelCounts.get(msLevel)];
+      int count = 0;
+      for (Scan scan : sortedScans) {
+        if (scan.getMSLevel() == msLevel)
+          levelScans[count++] = scan;
+      }
+      levels.put(msLevel, new LevelIndex(levelScans));
+    }
+
+    Range<Double> allRTRange = null, allMZRange = null;
+    for (LevelIndex level : levels.values()) {
+      allRTRange = (allRTRange == null) ? level.rtRange : allRTRange.span(level.rtRange);
+      allMZRange = (allMZRange == null) ? level.mzRange : allMZRange.span(level.mzRange);
+    }
+    rtRange = allRTRange;
+    mzRange = allMZRange;
+
+    int numOfFragmentScans = 0;
+    for (Scan scan : sortedScans) {
+      if (scan.getMSLevel() >= 2)
+        numOfFragmentScans++;
+    }
+    Scan fragmentScans[] = new Scan[numOfFragmentScans];
+    int count = 0;
+    for (Scan scan : sortedScans) {
+      if (scan.getMSLevel() >= 2)
+        fragmentScans[count++] = scan;
+    }
+    precursorIndex = new PrecursorIndex(fragmentScans);
+  }
+
+  /**
+   * Returns all scan numbers in ascending order. The returned array must not be modified.
+   */
+  @Nonnull
+  int[] getScanNumbers() {
+    return allScanNumbers;
+  }
+
+  /**
+   * Returns the scan numbers of the MS level in ascending order. The returned array must not be
+   * modified.
+   */
+  @Nonnull
+  int[] getScanNumbers(int msLevel) {
+    LevelIndex level = levels.get(msLevel);
+    return (level == null) ? EMPTY : level.scanNumbers;
+  }
+
+  /**
+   * Returns the numbers of the scans of the MS level within the RT range, in ascending order
+   */
+  @Nonnull
+  int[] getScanNumbers(int msLevel, @Nonnull Range<Double> rtRange) {
+
+    LevelIndex level = levels.get(msLevel);
+    if (level == null)
+      return EMPTY;
+
+    final double rts[] = level.sortedRTs;
+    int first = 0;
+    if (rtRange.hasLowerBound())
+      first = lowerBound(rts, rtRange.lowerEndpoint());
+
+    int last = first;
+    while ((last < rts.length)
+        && (!rtRange.hasUpperBound() || (rts[last] <= rtRange.upperEndpoint())))
+      last++;
+
+    int scanNumbers[] = new int[last - first];
+    int count = 0;
+    boolean sorted = true;
+    for (int i = first; i < last; i++) {
+      // The bounds may be open
+      if (!rtRange.contains(rts[i]))
+        continue;
+      final int scanNumber = level.scanNumbersByRT[i];
+      if ((count > 0) && (scanNumber < scanNumbers[count - 1]))
+        sorted = false;
+      scanNumbers[count++] = scanNumber;
+    }
+
+    if (count < scanNumbers.length)
+      scanNumbers = Arrays.copyOf(scanNumbers, count);
+
+    // Usually the scan numbers increase with the RT
+    if (!sorted)
+      Arrays.sort(scanNumbers);
+
+    return scanNumbers;
+  }
+
+  @Nonnull
+  int[] getMSLevels() {
+    return msLevels.clone();
+  }
+
+  /**
+   * Returns the RT range of the MS level (0 for all levels), null if there are no such scans
+   */
+  @Nullable
+  Range<Double> getRTRange(int msLevel) {
+    if (msLevel == 0)
+      return rtRange;
+    LevelIndex level = levels.get(msLevel);
+    return (level == null) ? null : level.rtRange;
+  }
+
+  /**
+   * Returns the m/z range of the MS level (0 for all levels), null if there are no such scans
+   */
+  @Nullable
+  Range<Double> getMZRange(int msLevel) {
+    if (msLevel == 0)
+      return mzRange;
+    LevelIndex level = levels.get(msLevel);
+    return (level == null) ? null : level.mzRange;
+  }
+
+  /**
+   * Returns the maximum base peak intensity of the MS level, -1 if there are no such scans
+   */
+  double getMaxBasePeakIntensity(int msLevel) {
+    LevelIndex level = levels.get(msLevel);
+    return (level == null) ? -1d : level.maxBasePeakIntensity;
+  }
+
+  /**
+   * Returns the maximum TIC of the MS level, -1 if there are no such scans
+   */
+  double getMaxTIC(int msLevel) {
+    LevelIndex level = levels.get(msLevel);
+    return (level == null) ? -1d : level.maxTIC;
+  }
+
+  /**
+   * Returns the numbers of the scans of the MS level (0 for all levels from MS2 up) with precursor
+   * m/z within the m/z range and retention time within the RT range, in ascending order
+   */
+  @Nonnull
+  int[] getFragmentScanNumbers(int msLevel, @Nonnull Range<Double> precursorMZRange,
+      @Nonnull Range<Double> rtRange) {
+
+    final PrecursorIndex index = precursorIndex;
+    final int first = index.first(precursorMZRange);
+    final int last = index.last(precursorMZRange, first);
+
+    int scanNumbers[] = new int[last - first];
+    int count = 0;
+    for (int i = first; i < last; i++) {
+      if (index.matches(i, msLevel, precursorMZRange, rtRange))
+        scanNumbers[count++] = index.scanNumbers[i];
+    }
+
+    if (count < scanNumbers.length)
+      scanNumbers = Arrays.copyOf(scanNumbers, count);
+    Arrays.sort(scanNumbers);
+
+    return scanNumbers;
+  }
+
+  /**
+   * Returns the number of the scan of the MS level (0 for all levels from MS2 up) with the highest
+   * base peak, among the scans with precursor m/z within the m/z range and retention time within
+   * the RT range. Of several scans with the same base peak intensity, the first one is returned.
+   * Returns -1 if there is no such scan with a base peak.
+   */
+  int getBestFragmentScanNumber(int msLevel, @Nonnull Range<Double> precursorMZRange,
+      @Nonnull Range<Double> rtRange) {
+
+    final PrecursorIndex index = precursorIndex;
+    final int first = index.first(precursorMZRange);
+    final int last = index.last(precursorMZRange, first);
+
+    int bestScanNumber = -1;
+    double topBasePeak = 0;
+    for (int i = first; i < last; i++) {
+      if (!index.matches(i, msLevel, precursorMZRange, rtRange))
+        continue;
+      final double basePeak = index.basePeakIntensities[i];
+      final int scanNumber = index.scanNumbers[i];
+      // Same result as checking the scans in the order of scan numbers
+      final boolean earlierTie =
+          (basePeak == topBasePeak) && (bestScanNumber >= 0) && (scanNumber < bestScanNumber);
+      if ((basePeak > topBasePeak) || earlierTie) {
+        bestScanNumber = scanNumber;
+        topBasePeak = basePeak;
+      }
+    }
+
+    return bestScanNumber;
+  }
+
+  /**
+   * Returns the index of the first value which is not lower than the given value
+   */
+  private static int lowerBound(double values[], double value) {
+    int low = 0, high = values.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (values[middle] < value)
+        low = middle + 1;
+      else
+        high = middle;
+    }
+    return low;
+  }
+
+  /**
+   * Scans of one MS level
+   */
+  private static class LevelIndex {
+
+    // Scan numbers in ascending order
+    private final int scanNumbers[];
+
+    // Retention times in ascending order and the corresponding scan numbers
+    private final double sortedRTs[];
+    private final int scanNumbersByRT[];
+
+    private final Range<Double> rtRange, mzRange;
+    private final double maxBasePeakIntensity, maxTIC;
+
+    /**
+     * @param scans scans of this MS level in ascending order of scan numbers
+     */
+    LevelIndex(Scan scans[]) {
+
+      scanNumbers = new int[scans.length];
+      for (int i = 0; i < scans.length; i++)
+        scanNumbers[i] = scans[i].getScanNumber();
+
+      // Stable sort, so scans with the same RT stay in the order of scan numbers
+      Scan scansByRT[] = scans.clone();
+      Arrays.sort(scansByRT,
+          (s1, s2) -> Double.compare(s1.getRetentionTime(), s2.getRetentionTime()));
+      sortedRTs = new double[scans.length];
+      scanNumbersByRT = new int[scans.length];
+      for (int i = 0; i < scans.length; i++) {
+        sortedRTs[i] = scansByRT[i].getRetentionTime();
+        scanNumbersByRT[i] = scansByRT[i].getScanNumber();
+      }
+      rtRange = Range.closed(sortedRTs[0], sortedRTs[sortedRTs.length - 1]);
+
+      Range<Double> levelMZRange = null;
+      Double maxBasePeak = null, levelMaxTIC = null;
+      for (Scan scan : scans) {
+        levelMZRange = (levelMZRange == null) ? scan.getDataPointMZRange()
+            : levelMZRange.span(scan.getDataPointMZRange());
+
+        DataPoint scanBasePeak = scan.getHighestDataPoint();
+        if ((scanBasePeak != null)
+            && ((maxBasePeak == null) || (scanBasePeak.getIntensity() > maxBasePeak)))
+          maxBasePeak = scanBasePeak.getIntensity();
+
+        if ((levelMaxTIC == null) || (scan.getTIC() > levelMaxTIC))
+          levelMaxTIC = scan.getTIC();
+      }
+      mzRange = levelMZRange;
+      maxBasePeakIntensity = (maxBasePeak == null) ? -1d : maxBasePeak;
+      maxTIC = levelMaxTIC;
+    }
+  }
+
+  /**
+   * Scans of MS level 2 and higher, sorted by precursor m/z
+   */
+  private static class PrecursorIndex {
+
+    private final double precursorMZs[];
+    private final double rts[];
+    private final int scanNumbers[];
+    private final int msLevels[];
+
+    // 0 for scans without data points
+    private final double basePeakIntensities[];
+
+    /**
+     * @param scans scans in ascending order of scan numbers
+     */
+    PrecursorIndex(Scan scans[]) {
+
+      // Stable sort, so scans with the same precursor m/z stay in the order of scan numbers
+      Scan scansByMZ[] = scans.clone();
+      Arrays.sort(scansByMZ,
+          (s1, s2) -> Double.compare(s1.getPrecursorMZ(), s2.getPrecursorMZ()));
+
+      precursorMZs = new double[scans.length];
+      rts = new double[scans.length];
+      scanNumbers = new int[scans.length];
+      msLevels = new int[scans.length];
+      basePeakIntensities = new double[scans.length];
+      for (int i = 0; i < scans.length; i++) {
+        final Scan scan = scansByMZ[i];
+        precursorMZs[i] = scan.getPrecursorMZ();
+        rts[i] = scan.getRetentionTime();
+        scanNumbers[i] = scan.getScanNumber();
+        msLevels[i] = scan.getMSLevel();
+        DataPoint basePeak = scan.getHighestDataPoint();
+        basePeakIntensities[i] = (basePeak == null) ? 0d : basePeak.getIntensity();
+      }
+    }
+
+    /**
+     * Returns the index of the first scan which may have its precursor m/z within the range
+     */
+    int first(Range<Double> precursorMZRange) {
+      if (!precursorMZRange.hasLowerBound())
+        return 0;
+      return lowerBound(precursorMZs, precursorMZRange.lowerEndpoint());
+    }
+
+    /**
+     * Returns the index after the last scan which may have its precursor m/z within the range
+     */
+    int last(Range<Double> precursorMZRange, int first) {
+      if (!precursorMZRange.hasUpperBound())
+        return precursorMZs.length;
+      final double upperEndpoint = precursorMZRange.upperEndpoint();
+      int last = first;
+      while ((last < precursorMZs.length) && (precursorMZs[last] <= upperEndpoint))
+        last++;
+      return last;
+    }
+
+    boolean matches(int i, int msLevel, Range<Double> precursorMZRange, Range<Double> rtRange) {
+      // The bounds may be open
+      return ((msLevel == 0) || (msLevels[i] == msLevel))
+          && precursorMZRange.contains(precursorMZs[i]) && rtRange.contains(rts[i]);
+    }
+  }
+
+}
@@ -23,6 +23,8 @@ import java.util.logging.Logger;
 
 import javax.annotation.Nonnull;
 
+import com.google.common.collect.Range;
+
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.Scan;
@@ -73,6 +75,36 @@ public class StorableMassList implements MassList {
     }
   }
 
+  @Override
+  public @Nonnull DataPoint[] getDataPointsByMass(@Nonnull Range<Double> mzRange) {
+    try {
+      return rawDataFile.readDataPoints(storageID, mzRange);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+      return new DataPoint[0];
+    }
+  }
+
+  @Override
+  public int getNumberOfDataPoints() {
+    try {
+      return rawDataFile.getNumOfStoredDataPoints(storageID);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+      return 0;
+    }
+  }
+
+  @Override
+  public int getDataPoints(@Nonnull double mzValues[], @Nonnull double intensityValues[]) {
+    try {
+      return rawDataFile.readDataPoints(storageID, mzValues, intensityValues);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+      return 0;
+    }
+  }
+
   public void removeStoredData() {
     try {
       rawDataFile.removeStoredDataPoints(storageID);
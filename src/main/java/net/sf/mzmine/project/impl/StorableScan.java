@@ -35,6 +35,7 @@ import net.sf.mzmine.datamodel.MassSpectrumType;
 import net.sf.mzmine.datamodel.PolarityType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.desktop.impl.projecttree.RawDataTreeModel;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.util.scans.ScanUtils;
@@ -95,6 +96,21 @@ public class StorableScan implements Scan {
       int scanNumber, int msLevel, double retentionTime, double precursorMZ, int precursorCharge,
       int fragmentScans[], MassSpectrumType spectrumType, PolarityType polarity,
       String scanDefinition, Range<Double> scanMZRange) {
+    this(rawDataFile, storageID, numberOfDataPoints, scanNumber, msLevel, retentionTime,
+        precursorMZ, precursorCharge, fragmentScans, spectrumType, polarity, scanDefinition,
+        scanMZRange, null, null, null);
+  }
+
+  /**
+   * Constructor for a scan whose m/z range, base peak and TIC are already known, e.g. from the
+   * metadata of the raw data file. Values which are null are computed from the data points on first
+   * use.
+   */
+  public StorableScan(RawDataFileImpl rawDataFile, int storageID, int numberOfDataPoints,
+      int scanNumber, int msLevel, double retentionTime, double precursorMZ, int precursorCharge,
+      int fragmentScans[], MassSpectrumType spectrumType, PolarityType polarity,
+      String scanDefinition, Range<Double> scanMZRange, Range<Double> mzRange, DataPoint basePeak,
+      Double totalIonCurrent) {
 
     this.rawDataFile = rawDataFile;
     this.numberOfDataPoints = numberOfDataPoints;
@@ -110,6 +126,9 @@ public class StorableScan implements Scan {
     this.polarity = polarity;
     this.scanDefinition = scanDefinition;
     this.scanMZRange = scanMZRange;
+    this.mzRange = mzRange;
+    this.basePeak = basePeak;
+    this.totalIonCurrent = totalIonCurrent;
   }
 
   /**
@@ -128,31 +147,34 @@ public class StorableScan implements Scan {
   }
 
   /**
-   * @return Returns scan datapoints within a given range
+   * Reads the scan's data points from temporary file into the given arrays, without creating
+   * DataPoint instances.
    */
-  public @Nonnull DataPoint[] getDataPointsByMass(@Nonnull Range<Double> mzRange) {
-
-    DataPoint dataPoints[] = getDataPoints();
+  @Override
+  public int getDataPoints(@Nonnull double mzValues[], @Nonnull double intensityValues[]) {
 
-    int startIndex, endIndex;
-    for (startIndex = 0; startIndex < dataPoints.length; startIndex++) {
-      if (dataPoints[startIndex].getMZ() >= mzRange.lowerEndpoint()) {
-        break;
-      }
+    try {
+      return rawDataFile.readDataPoints(storageID, mzValues, intensityValues);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+      return 0;
     }
 
-    for (endIndex = startIndex; endIndex < dataPoints.length; endIndex++) {
-      if (dataPoints[endIndex].getMZ() > mzRange.upperEndpoint()) {
-        break;
-      }
-    }
+  }
 
-    DataPoint pointsWithinRange[] = new DataPoint[endIndex - startIndex];
+  /**
+   * @return Returns scan datapoints within a given range
+   */
+  public @Nonnull DataPoint[] getDataPointsByMass(@Nonnull Range<Double> mzRange) {
 
-    // Copy the relevant points
-    System.arraycopy(dataPoints, startIndex, pointsWithinRange, 0, endIndex - startIndex);
+    try {
+      DataPoint result[] = rawDataFile.readDataPoints(storageID, mzRange);
+      return result;
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+      return new DataPoint[0];
+    }
 
-    return pointsWithinRange;
   }
 
   /**
@@ -186,7 +208,14 @@ public class StorableScan implements Scan {
    * @see net.sf.mzmine.datamodel.Scan#getNumberOfDataPoints()
    */
   public int getNumberOfDataPoints() {
-    return numberOfDataPoints;
+    // The number of data points declared by a data points source is only checked when the data
+    // points are decoded, which the raw data file does on the first call
+    try {
+      return rawDataFile.getNumOfStoredDataPoints(storageID);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+      return numberOfDataPoints;
+    }
   }
 
   /**
@@ -224,27 +253,43 @@ public class StorableScan implements Scan {
     return retentionTime;
   }
 
+  /**
+   * Returns true if the m/z range, base peak and TIC are known, so updateValues() does not need to
+   * read the data points
+   */
+  boolean hasValues() {
+    return (mzRange != null) && (totalIonCurrent != null)
+        && ((basePeak != null) || (numberOfDataPoints == 0));
+  }
+
   void updateValues() {
-    DataPoint dataPoints[] = getDataPoints();
+
+    final int numOfDataPoints = getNumberOfDataPoints();
+    final double mzValues[] = new double[numOfDataPoints];
+    final double intensityValues[] = new double[numOfDataPoints];
+    final int size = getDataPoints(mzValues, intensityValues);
 
     // find m/z range and base peak
-    if (dataPoints.length > 0) {
+    if (size > 0) {
 
-      basePeak = dataPoints[0];
-      mzRange = Range.singleton(dataPoints[0].getMZ());
+      int basePeakIndex = 0;
+      double minMz = mzValues[0], maxMz = mzValues[0];
       double tic = 0;
 
-      for (DataPoint dp : dataPoints) {
+      for (int i = 0; i < size; i++) {
 
-        if (dp.getIntensity() > basePeak.getIntensity())
-          basePeak = dp;
+        if (intensityValues[i] > intensityValues[basePeakIndex])
+          basePeakIndex = i;
 
-        mzRange = mzRange.span(Range.singleton(dp.getMZ()));
+        minMz = Math.min(minMz, mzValues[i]);
+        maxMz = Math.max(maxMz, mzValues[i]);
 
-        tic += dp.getIntensity();
+        tic += intensityValues[i];
 
       }
 
+      basePeak = new SimpleDataPoint(mzValues[basePeakIndex], intensityValues[basePeakIndex]);
+      mzRange = Range.closed(minMz, maxMz);
       totalIonCurrent = new Double(tic);
 
     } else {
@@ -290,7 +335,11 @@ public class StorableScan implements Scan {
    */
   public MassSpectrumType getSpectrumType() {
     if (spectrumType == null) {
-      spectrumType = ScanUtils.detectSpectrumType(getDataPoints());
+      final int numOfDataPoints = getNumberOfDataPoints();
+      final double mzValues[] = new double[numOfDataPoints];
+      final double intensityValues[] = new double[numOfDataPoints];
+      final int size = getDataPoints(mzValues, intensityValues);
+      spectrumType = ScanUtils.detectSpectrumType(mzValues, intensityValues, size);
     }
     return spectrumType;
   }
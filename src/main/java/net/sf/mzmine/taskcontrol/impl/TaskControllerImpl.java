@@ -21,9 +21,13 @@ package net.sf.mzmine.taskcontrol.impl;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Set;
-import java.util.Vector;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import net.sf.mzmine.desktop.preferences.MZminePreferences;
 import net.sf.mzmine.desktop.preferences.NumOfThreadsParameter;
@@ -33,10 +37,12 @@ import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.taskcontrol.TaskControlListener;
 import net.sf.mzmine.taskcontrol.TaskController;
 import net.sf.mzmine.taskcontrol.TaskPriority;
-import net.sf.mzmine.taskcontrol.TaskStatus;
 
 /**
- * Task controller implementation
+ * Task controller implementation. Tasks are started as soon as they are added, on a thread pool
+ * limited to the number of threads set in the preferences. High priority tasks bypass the limit
+ * and run on a separate pool. The task controller thread only refreshes the Tasks in progress
+ * window.
  */
 public class TaskControllerImpl implements TaskController, Runnable {
 
@@ -49,15 +55,30 @@ public class TaskControllerImpl implements TaskController, Runnable {
    */
   private final int TASKCONTROLLER_THREAD_SLEEP = 300;
 
+  /**
+   * Idle threads of the pools are stopped after this many seconds
+   */
+  private static final long THREAD_KEEP_ALIVE_SECONDS = 60;
+
   private Thread taskControllerThread;
 
   private TaskQueue taskQueue;
 
   /**
-   * This vector contains references to all running threads of NORMAL priority. Maximum number of
-   * concurrent threads is specified in the preferences dialog.
+   * Pool for the tasks of NORMAL priority. Maximum number of concurrent threads is specified in the
+   * preferences dialog.
+   */
+  private ThreadPoolExecutor normalPriorityPool;
+
+  /**
+   * Pool for the tasks of HIGH priority, which are started immediately
+   */
+  private ThreadPoolExecutor highPriorityPool;
+
+  /**
+   * Single low-priority thread for module usage tracking
    */
-  private Vector<WorkerThread> runningThreads;
+  private ThreadPoolExecutor trackerExecutor;
 
   /**
    * Initialize the task controller
@@ -66,10 +87,23 @@ public class TaskControllerImpl implements TaskController, Runnable {
 
     taskQueue = new TaskQueue();
 
-    runningThreads = new Vector<WorkerThread>();
+    final int numOfThreads = getMaxRunningThreads();
+    normalPriorityPool = new ThreadPoolExecutor(numOfThreads, numOfThreads,
+        THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new TaskThreadFactory("Task worker thread", Thread.NORM_PRIORITY));
+    normalPriorityPool.allowCoreThreadTimeOut(true);
+
+    highPriorityPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, THREAD_KEEP_ALIVE_SECONDS,
+        TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+        new TaskThreadFactory("High priority task worker thread", Thread.MAX_PRIORITY));
+
+    trackerExecutor = new ThreadPoolExecutor(1, 1, THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new TaskThreadFactory("Module usage tracking thread", Thread.MIN_PRIORITY));
+    trackerExecutor.allowCoreThreadTimeOut(true);
 
-    // Create a low-priority thread that will manage the queue and start
-    // worker threads for tasks
+    // Create a low-priority thread that will refresh the Tasks in progress
+    // window and clear the queue when all tasks are finished
     taskControllerThread = new Thread(this, "Task controller thread");
     taskControllerThread.setPriority(Thread.MIN_PRIORITY);
     taskControllerThread.start();
@@ -121,15 +155,14 @@ public class TaskControllerImpl implements TaskController, Runnable {
       uniqueTaskClasses.add(taskClassName);
       WrappedTask newQueueEntry = new WrappedTask(task, priority);
       taskQueue.addWrappedTask(newQueueEntry);
+      startTask(newQueueEntry);
     }
 
     // Track module usage
 
     for (String value : uniqueTaskClasses) {
       GoogleAnalyticsTracker GAT = new GoogleAnalyticsTracker(value, "/JAVA/" + value);
-      Thread gatThread = new Thread(GAT);
-      gatThread.setPriority(Thread.MIN_PRIORITY);
-      gatThread.start();
+      trackerExecutor.execute(GAT);
     }
 
     // Wake up the task controller thread
@@ -138,6 +171,58 @@ public class TaskControllerImpl implements TaskController, Runnable {
     }
   }
 
+  /**
+   * Submits the task to the pool of its priority. Tasks of NORMAL priority wait in the pool's queue
+   * until one of its threads is free.
+   */
+  private void startTask(WrappedTask task) {
+    if (task.getPriority() == TaskPriority.HIGH) {
+      highPriorityPool.execute(new TaskWorker(task, this::taskFinished));
+    } else {
+      updatePoolSize();
+      normalPriorityPool.execute(new TaskWorker(task, this::taskFinished));
+    }
+  }
+
+  /**
+   * Wakes up the task controller thread to update the Tasks in progress window
+   */
+  private void taskFinished() {
+    synchronized (this) {
+      this.notifyAll();
+    }
+  }
+
+  /**
+   * Applies changes of the number of threads in the preferences to the pool
+   */
+  private synchronized void updatePoolSize() {
+    final int maxRunningThreads = getMaxRunningThreads();
+    if (maxRunningThreads == normalPriorityPool.getMaximumPoolSize())
+      return;
+    // The core size must never exceed the maximum size
+    if (maxRunningThreads > normalPriorityPool.getMaximumPoolSize()) {
+      normalPriorityPool.setMaximumPoolSize(maxRunningThreads);
+      normalPriorityPool.setCorePoolSize(maxRunningThreads);
+    } else {
+      normalPriorityPool.setCorePoolSize(maxRunningThreads);
+      normalPriorityPool.setMaximumPoolSize(maxRunningThreads);
+    }
+  }
+
+  /**
+   * Obtain the settings of max concurrent threads
+   */
+  private int getMaxRunningThreads() {
+    if (MZmineCore.getConfiguration() == null)
+      return Runtime.getRuntime().availableProcessors();
+    NumOfThreadsParameter parameter =
+        MZmineCore.getConfiguration().getPreferences().getParameter(MZminePreferences.numOfThreads);
+    if (parameter.isAutomatic() || (parameter.getValue() == null))
+      return Runtime.getRuntime().availableProcessors();
+    return Math.max(1, parameter.getValue());
+  }
+
   /**
    * Task controller thread main method.
    * 
@@ -175,55 +260,17 @@ public class TaskControllerImpl implements TaskController, Runnable {
         continue;
       }
 
-      // Remove already finished threads from runningThreads
-      Iterator<WorkerThread> threadIterator = runningThreads.iterator();
-      while (threadIterator.hasNext()) {
-        WorkerThread thread = threadIterator.next();
-        if (thread.isFinished())
-          threadIterator.remove();
-      }
-
-      // Get a snapshot of the queue
-      WrappedTask[] queueSnapshot = taskQueue.getQueueSnapshot();
-
-      // Obtain the settings of max concurrent threads
-      NumOfThreadsParameter parameter = MZmineCore.getConfiguration().getPreferences()
-          .getParameter(MZminePreferences.numOfThreads);
-      int maxRunningThreads;
-      if (parameter.isAutomatic() || (parameter.getValue() == null))
-        maxRunningThreads = Runtime.getRuntime().availableProcessors();
-      else
-        maxRunningThreads = parameter.getValue();
-
-      // Check all tasks in the queue
-      for (WrappedTask task : queueSnapshot) {
-
-        // Skip assigned and canceled tasks
-        if (task.isAssigned() || (task.getActualTask().getStatus() == TaskStatus.CANCELED))
-          continue;
-
-        // Create a new thread if the task is high-priority or if we
-        // have less then maximum # of threads running
-        if ((task.getPriority() == TaskPriority.HIGH)
-            || (runningThreads.size() < maxRunningThreads)) {
-          WorkerThread newThread = new WorkerThread(task);
-
-          if (task.getPriority() == TaskPriority.NORMAL) {
-            runningThreads.add(newThread);
-          }
-
-          newThread.start();
-        }
-      }
-
       // Tell the queue to refresh the Task progress window
       taskQueue.refresh();
 
-      // Sleep for a while until next update
-      try {
-        Thread.sleep(TASKCONTROLLER_THREAD_SLEEP);
-      } catch (InterruptedException e) {
-        // Ignore
+      // Sleep for a while until next update, or until a task is added or
+      // finished
+      synchronized (this) {
+        try {
+          this.wait(TASKCONTROLLER_THREAD_SLEEP);
+        } catch (InterruptedException e) {
+          // Ignore
+        }
       }
 
     }
@@ -244,6 +291,11 @@ public class TaskControllerImpl implements TaskController, Runnable {
             "Setting priority of task \"" + task.getTaskDescription() + "\" to " + priority);
         wrappedTask.setPriority(priority);
 
+        // A waiting task raised to HIGH priority is started immediately,
+        // the worker waiting in the normal priority pool will skip it
+        if ((priority == TaskPriority.HIGH) && !wrappedTask.isAssigned())
+          startTask(wrappedTask);
+
         // Call refresh to re-sort the queue according to new priority
         // and update the Task progress window
         taskQueue.refresh();
@@ -256,4 +308,27 @@ public class TaskControllerImpl implements TaskController, Runnable {
     listeners.add(listener);
   }
 
+  /**
+   * Creates the threads of the pools with given name and priority
+   */
+  private static class TaskThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+    private final String namePrefix;
+    private final int priority;
+
+    TaskThreadFactory(String namePrefix, int priority) {
+      this.namePrefix = namePrefix;
+      this.priority = priority;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, namePrefix + " " + threadNumber.getAndIncrement());
+      thread.setPriority(priority);
+      return thread;
+    }
+
+  }
+
 }
@@ -27,19 +27,23 @@ import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
 
 /**
- * Task controller worker thread, this thread will process one task and then finish
+ * Processes one task on a thread of the task controller's thread pool. The same task may be
+ * submitted to both the normal and the high priority pool (if its priority was raised while it was
+ * waiting), but only the first worker which gets to it will process it.
  */
-class WorkerThread extends Thread {
+class TaskWorker implements Runnable {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
-  private WrappedTask wrappedTask;
-  private boolean finished = false;
+  private final WrappedTask wrappedTask;
+  private final Runnable finishedCallback;
 
-  WorkerThread(WrappedTask wrappedTask) {
-    super("Thread executing task " + wrappedTask);
+  /**
+   * @param finishedCallback called after the task is processed, to refresh the task queue
+   */
+  TaskWorker(WrappedTask wrappedTask, Runnable finishedCallback) {
     this.wrappedTask = wrappedTask;
-    wrappedTask.assignTo(this);
+    this.finishedCallback = finishedCallback;
   }
 
   /**
@@ -47,8 +51,24 @@ class WorkerThread extends Thread {
    */
   public void run() {
 
+    final Thread currentThread = Thread.currentThread();
+
+    // Skip the task if another worker already took it
+    if (!wrappedTask.assignTo(currentThread))
+      return;
+
     Task actualTask = wrappedTask.getActualTask();
 
+    // Skip the tasks canceled while they were waiting
+    if (actualTask.getStatus() == TaskStatus.CANCELED) {
+      wrappedTask.releaseThread();
+      finishedCallback.run();
+      return;
+    }
+
+    final String threadName = currentThread.getName();
+    currentThread.setName("Thread executing task " + wrappedTask);
+
     try {
 
       // Log the start (INFO level events go to the Status bar, too)
@@ -100,15 +120,12 @@ class WorkerThread extends Thread {
 
     }
 
-    /*
-     * Mark this thread as finished
-     */
-    finished = true;
+    // Return the thread to the pool
+    wrappedTask.releaseThread();
+    currentThread.setName(threadName);
 
-  }
+    finishedCallback.run();
 
-  boolean isFinished() {
-    return finished;
   }
 
 }
@@ -28,7 +28,11 @@ public class WrappedTask {
 
   private Task task;
   private TaskPriority priority;
-  private WorkerThread assignedTo;
+  private boolean assigned = false;
+  private Thread assignedTo;
+
+  // Priority of the assigned thread before the assignment, given by its thread pool
+  private int originalThreadPriority;
 
   WrappedTask(Task task, TaskPriority priority) {
     this.task = task;
@@ -38,36 +42,61 @@ public class WrappedTask {
   /**
    * @return Returns the priority.
    */
-  TaskPriority getPriority() {
+  synchronized TaskPriority getPriority() {
     return priority;
   }
 
   /**
    * @param priority The priority to set.
    */
-  void setPriority(TaskPriority priority) {
+  synchronized void setPriority(TaskPriority priority) {
     this.priority = priority;
-    if (assignedTo != null) {
-      switch (priority) {
-        case HIGH:
-          assignedTo.setPriority(Thread.MAX_PRIORITY);
-          break;
-        case NORMAL:
-          assignedTo.setPriority(Thread.NORM_PRIORITY);
-          break;
-      }
-    }
+    if (assignedTo != null)
+      updateThreadPriority();
   }
 
   /**
    * @return Returns the assigned.
    */
-  boolean isAssigned() {
-    return assignedTo != null;
+  synchronized boolean isAssigned() {
+    return assigned;
   }
 
-  void assignTo(WorkerThread thread) {
+  /**
+   * Assigns this task to given thread, unless it was already assigned before
+   * 
+   * @return true if the task was assigned to the thread
+   */
+  synchronized boolean assignTo(Thread thread) {
+    if (assigned)
+      return false;
+    assigned = true;
     assignedTo = thread;
+    originalThreadPriority = thread.getPriority();
+    updateThreadPriority();
+    return true;
+  }
+
+  /**
+   * Called when the thread finished processing of this task, so changes of the priority no longer
+   * affect the thread. The thread gets back the priority it had before the assignment, so the next
+   * task run by the same pooled thread does not inherit the priority of this one.
+   */
+  synchronized void releaseThread() {
+    if (assignedTo != null)
+      assignedTo.setPriority(originalThreadPriority);
+    assignedTo = null;
+  }
+
+  private void updateThreadPriority() {
+    switch (priority) {
+      case HIGH:
+        assignedTo.setPriority(Thread.MAX_PRIORITY);
+        break;
+      case NORMAL:
+        assignedTo.setPriority(Thread.NORM_PRIORITY);
+        break;
+    }
   }
 
   /**
@@ -29,4 +29,78 @@ public class ArrayUtils {
     return -1;
   }
 
+  /**
+   * Sorts the first size values in ascending order (as given by Double.compare()) and reorders the
+   * indexes along with them, so indexes[i] is the index belonging to the i-th smallest value. Equal
+   * values are ordered by their indexes.
+   */
+  public static void sortIndexes(double values[], int indexes[], int size) {
+    quickSort(values, indexes, 0, size - 1);
+  }
+
+  private static void quickSort(double values[], int indexes[], int low, int high) {
+
+    while (high - low > 16) {
+
+      // Median of three, the median ends up in the middle
+      final int middle = (low + high) >>> 1;
+      if (compare(values, indexes, middle, low) < 0)
+        swap(values, indexes, middle, low);
+      if (compare(values, indexes, high, low) < 0)
+        swap(values, indexes, high, low);
+      if (compare(values, indexes, high, middle) < 0)
+        swap(values, indexes, high, middle);
+
+      final double pivotValue = values[middle];
+      final int pivotIndex = indexes[middle];
+
+      int i = low, j = high;
+      while (i <= j) {
+        while (compare(values[i], indexes[i], pivotValue, pivotIndex) < 0)
+          i++;
+        while (compare(values[j], indexes[j], pivotValue, pivotIndex) > 0)
+          j--;
+        if (i <= j) {
+          swap(values, indexes, i, j);
+          i++;
+          j--;
+        }
+      }
+
+      // Recurse into the smaller part, loop over the bigger one
+      if (j - low < high - i) {
+        quickSort(values, indexes, low, j);
+        low = i;
+      } else {
+        quickSort(values, indexes, i, high);
+        high = j;
+      }
+    }
+
+    // Insertion sort for short ranges
+    for (int i = low + 1; i <= high; i++) {
+      for (int j = i; (j > low) && (compare(values, indexes, j, j - 1) < 0); j--)
+        swap(values, indexes, j, j - 1);
+    }
+
+  }
+
+  private static int compare(double values[], int indexes[], int i, int j) {
+    return compare(values[i], indexes[i], values[j], indexes[j]);
+  }
+
+  private static int compare(double value1, int index1, double value2, int index2) {
+    final int result = Double.compare(value1, value2);
+    return (result != 0) ? result : Integer.compare(index1, index2);
+  }
+
+  private static void swap(double values[], int indexes[], int i, int j) {
+    final double value = values[i];
+    values[i] = values[j];
+    values[j] = value;
+    final int index = indexes[i];
+    indexes[i] = indexes[j];
+    indexes[j] = index;
+  }
+
 }
@@ -18,6 +18,7 @@
 
 package net.sf.mzmine.util;
 
+import java.util.Arrays;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
@@ -31,27 +32,39 @@ public class CompressionUtils {
    * 
    */
   public static byte[] decompress(byte compressedBytes[]) throws DataFormatException {
+    return decompress(compressedBytes, compressedBytes.length * 2);
+  }
 
-    Inflater decompresser = new Inflater();
+  /**
+   * Decompress the zlib-compressed bytes and return an array of decompressed bytes. If the expected
+   * length is right, the bytes are decompressed directly into the returned array.
+   */
+  public static byte[] decompress(byte compressedBytes[], int expectedLength)
+      throws DataFormatException {
 
-    decompresser.setInput(compressedBytes);
+    Inflater decompresser = new Inflater();
 
-    byte[] resultBuffer = new byte[compressedBytes.length * 2];
-    byte[] resultTotal = new byte[0];
+    try {
+      decompresser.setInput(compressedBytes);
 
-    int resultLength = decompresser.inflate(resultBuffer);
+      byte[] result = new byte[Math.max(expectedLength, 16)];
+      int resultLength = 0;
 
-    while (resultLength > 0) {
-      byte previousResult[] = resultTotal;
-      resultTotal = new byte[resultTotal.length + resultLength];
-      System.arraycopy(previousResult, 0, resultTotal, 0, previousResult.length);
-      System.arraycopy(resultBuffer, 0, resultTotal, previousResult.length, resultLength);
-      resultLength = decompresser.inflate(resultBuffer);
-    }
+      while (true) {
+        resultLength += decompresser.inflate(result, resultLength, result.length - resultLength);
+        if (decompresser.finished() || decompresser.needsInput() || decompresser.needsDictionary())
+          break;
+        if (resultLength == result.length)
+          result = Arrays.copyOf(result, result.length * 2);
+      }
 
-    decompresser.end();
+      if (resultLength < result.length)
+        result = Arrays.copyOf(result, resultLength);
+      return result;
 
-    return resultTotal;
+    } finally {
+      decompresser.end();
+    }
   }
 
 }
@@ -75,4 +75,100 @@ public class DataPointSorter implements Comparator<DataPoint> {
     }
 
   }
+
+  /**
+   * Sorts the first size data points, given as m/z and intensity arrays, in place using the same
+   * ordering as a DataPointSorter with given property and direction
+   */
+  public static void sortDataPoints(double mzValues[], double intensityValues[], int size,
+      SortingProperty property, SortingDirection direction) {
+
+    final double primary[], secondary[];
+    switch (property) {
+      case MZ:
+        primary = mzValues;
+        secondary = intensityValues;
+        break;
+      case Intensity:
+        primary = intensityValues;
+        secondary = mzValues;
+        break;
+      default:
+        // We should never get here, so throw an exception
+        throw (new IllegalStateException());
+    }
+
+    final int sign = (direction == SortingDirection.Ascending) ? 1 : -1;
+    quickSort(primary, secondary, 0, size - 1, sign);
+
+  }
+
+  private static void quickSort(double primary[], double secondary[], int low, int high,
+      int sign) {
+
+    while (high - low > 16) {
+
+      // Median of three, the median ends up in the middle
+      final int middle = (low + high) >>> 1;
+      if (compare(primary, secondary, middle, low, sign) < 0)
+        swap(primary, secondary, middle, low);
+      if (compare(primary, secondary, high, low, sign) < 0)
+        swap(primary, secondary, high, low);
+      if (compare(primary, secondary, high, middle, sign) < 0)
+        swap(primary, secondary, high, middle);
+
+      final double pivotPrimary = primary[middle], pivotSecondary = secondary[middle];
+
+      int i = low, j = high;
+      while (i <= j) {
+        while (compare(primary[i], secondary[i], pivotPrimary, pivotSecondary, sign) < 0)
+          i++;
+        while (compare(primary[j], secondary[j], pivotPrimary, pivotSecondary, sign) > 0)
+          j--;
+        if (i <= j) {
+          swap(primary, secondary, i, j);
+          i++;
+          j--;
+        }
+      }
+
+      // Recurse into the smaller part, loop over the bigger one
+      if (j - low < high - i) {
+        quickSort(primary, secondary, low, j, sign);
+        low = i;
+      } else {
+        quickSort(primary, secondary, i, high, sign);
+        high = j;
+      }
+    }
+
+    // Insertion sort for short ranges
+    for (int i = low + 1; i <= high; i++) {
+      for (int j = i; (j > low) && (compare(primary, secondary, j, j - 1, sign) < 0); j--)
+        swap(primary, secondary, j, j - 1);
+    }
+
+  }
+
+  private static int compare(double primary[], double secondary[], int i, int j, int sign) {
+    return compare(primary[i], secondary[i], primary[j], secondary[j], sign);
+  }
+
+  private static int compare(double primary1, double secondary1, double primary2,
+      double secondary2, int sign) {
+    int result = Double.compare(primary1, primary2);
+    if (result == 0)
+      result = Double.compare(secondary1, secondary2);
+    return sign * result;
+  }
+
+  private static void swap(double primary[], double secondary[], int i, int j) {
+    double tmp = primary[i];
+    primary[i] = primary[j];
+    primary[j] = tmp;
+    tmp = secondary[i];
+    secondary[i] = secondary[j];
+    secondary[j] = tmp;
+  }
+
 }
@@ -41,9 +41,17 @@ public class PeakUtils {
    * @return String representation of the peak
    */
   public static String peakToString(Feature peak) {
-    StringBuffer buf = new StringBuffer();
     Format mzFormat = MZmineCore.getConfiguration().getMZFormat();
     Format timeFormat = MZmineCore.getConfiguration().getRTFormat();
+    return peakToString(peak, mzFormat, timeFormat);
+  }
+
+  /**
+   * Same as peakToString(Feature), using the given formats. Formats are not thread-safe, so
+   * concurrent callers must pass their own copies.
+   */
+  public static String peakToString(Feature peak, Format mzFormat, Format timeFormat) {
+    StringBuffer buf = new StringBuffer();
     buf.append(mzFormat.format(peak.getMZ()));
     buf.append(" m/z @");
     buf.append(timeFormat.format(peak.getRT()));
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+
+package net.sf.mzmine.util.io;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Writes text files made of one line per exported row, such as CSV tables. The rows are formatted
+ * in parallel, in chunks, and the lines of each chunk are then written in the order of the rows
+ * through a single large buffer. Formatters must be thread-safe, e.g. by keeping NumberFormat
+ * instances in a ThreadLocal.
+ */
+public class ParallelRowWriter implements AutoCloseable {
+
+  // Number of rows formatted in parallel before their lines are written
+  private static final int ROWS_PER_CHUNK = 1024;
+
+  private static final int BUFFER_SIZE = 1 << 20;
+
+  /**
+   * Appends the line of a row to the given buffer, including the line separator
+   */
+  @FunctionalInterface
+  public interface RowFormatter<T> {
+    void formatRow(T row, StringBuilder line);
+  }
+
+  private final Writer writer;
+
+  // Reused buffer of each formatting thread
+  private final ThreadLocal<StringBuilder> lineBuffers =
+      ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+  /**
+   * Opens the file for writing, replacing its content. The text is encoded with the default
+   * charset, as FileWriter does.
+   */
+  public ParallelRowWriter(File file) throws IOException {
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    this.writer = new BufferedWriter(
+        Channels.newWriter(channel, Charset.defaultCharset().newEncoder(), -1), BUFFER_SIZE);
+  }
+
+  /**
+   * Writes text as it is, e.g. the header lines
+   */
+  public void write(String text) throws IOException {
+    writer.write(text);
+  }
+
+  /**
+   * Formats the rows in parallel chunks and writes their lines in order.
+   *
+   * @param isCanceled checked before each chunk
+   * @param rowsWritten called with the number of rows of each written chunk
+   * @return false if cancelled before all rows were written
+   */
+  public <T> boolean writeRows(List<T> rows, RowFormatter<T> formatter,
+      BooleanSupplier isCanceled, IntConsumer rowsWritten) throws IOException {
+
+    final int numOfRows = rows.size();
+    for (int chunkStart = 0; chunkStart < numOfRows; chunkStart += ROWS_PER_CHUNK) {
+
+      if (isCanceled.getAsBoolean())
+        return false;
+
+      final int firstIndex = chunkStart;
+      final int chunkLength = Math.min(ROWS_PER_CHUNK, numOfRows - chunkStart);
+      final String lines[] = new String[chunkLength];
+
+      IntStream.range(0, chunkLength).parallel().forEach(i -> {
+        StringBuilder line = lineBuffers.get();
+        line.setLength(0);
+        formatter.formatRow(rows.get(firstIndex + i), line);
+        lines[i] = line.toString();
+      });
+
+      for (String line : lines)
+        writer.write(line);
+
+      rowsWritten.accept(chunkLength);
+    }
+
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    writer.close();
+  }
+
+}
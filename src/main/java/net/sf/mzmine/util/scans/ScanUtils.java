@@ -126,6 +126,72 @@ public class ScanUtils {
     return basePeak;
   }
 
+  /**
+   * Returns the data points from the first one, which is not below the m/z range, up to the first
+   * one above the m/z range, as expected from MassSpectrum.getDataPointsByMass(). If the data points
+   * are sorted by m/z, both boundaries are found by a binary search, otherwise by testing each data
+   * point, so the result is the same in both cases.
+   * 
+   * @param dataPoints data points of a spectrum
+   * @param sortedByMZ true if isSortedByMZ(dataPoints) returns true
+   * @param mzRange m/z range
+   * @return data points within given m/z range
+   */
+  public static @Nonnull DataPoint[] selectDataPointsByMass(@Nonnull DataPoint dataPoints[],
+      boolean sortedByMZ, @Nonnull Range<Double> mzRange) {
+
+    final double lowerMZ = mzRange.lowerEndpoint(), upperMZ = mzRange.upperEndpoint();
+    int startIndex, endIndex;
+
+    if (sortedByMZ) {
+      // Sorted data points contain no NaN, so only the NaN lower bound needs special handling
+      startIndex = Double.isNaN(lowerMZ) ? dataPoints.length
+          : findFirstDataPointAbove(dataPoints, 0, lowerMZ, false);
+      endIndex = findFirstDataPointAbove(dataPoints, startIndex, upperMZ, true);
+    } else {
+      for (startIndex = 0; startIndex < dataPoints.length; startIndex++) {
+        if (dataPoints[startIndex].getMZ() >= lowerMZ)
+          break;
+      }
+      for (endIndex = startIndex; endIndex < dataPoints.length; endIndex++) {
+        if (dataPoints[endIndex].getMZ() > upperMZ)
+          break;
+      }
+    }
+
+    return Arrays.copyOfRange(dataPoints, startIndex, endIndex);
+  }
+
+  /**
+   * Returns the index of the first of the data points (sorted by m/z) starting at fromIndex, whose
+   * m/z is above (or equal to, if not strictly) given m/z
+   */
+  private static int findFirstDataPointAbove(DataPoint dataPoints[], int fromIndex, double mz,
+      boolean strictly) {
+    int low = fromIndex, high = dataPoints.length;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      final double middleMZ = dataPoints[middle].getMZ();
+      if (strictly ? (middleMZ > mz) : (middleMZ >= mz))
+        high = middle;
+      else
+        low = middle + 1;
+    }
+    return low;
+  }
+
+  /**
+   * Returns true if the m/z values of the data points are in ascending order (equal values allowed)
+   * and none of them is NaN
+   */
+  public static boolean isSortedByMZ(@Nonnull DataPoint dataPoints[]) {
+    for (int i = 1; i < dataPoints.length; i++) {
+      if (!(dataPoints[i - 1].getMZ() <= dataPoints[i].getMZ()))
+        return false;
+    }
+    return (dataPoints.length == 0) || !Double.isNaN(dataPoints[0].getMZ());
+  }
+
   /**
    * Calculate the total ion count of a scan within a given mass range.
    * 
@@ -465,20 +531,32 @@ public class ScanUtils {
     double[] intensityValues = new double[dataPoints.length];
     double[] mzValues = new double[dataPoints.length];
 
+    for (int i = 0; i < dataPoints.length; i++) {
+      intensityValues[i] = dataPoints[i].getIntensity();
+      mzValues[i] = dataPoints[i].getMZ();
+    }
+
+    return detectSpectrumType(mzValues, intensityValues, dataPoints.length);
+
+  }
+
+  /**
+   * Determines the spectrum type from the first size m/z and intensity values of the given arrays,
+   * see detectSpectrumType(DataPoint[])
+   */
+  public static MassSpectrumType detectSpectrumType(@Nonnull double mzValues[],
+      @Nonnull double intensityValues[], int size) {
+
     // If the spectrum has less than 5 data points, it should be centroided.
-    if (dataPoints.length < 5)
+    if (size < 5)
       return MassSpectrumType.CENTROIDED;
 
     int basePeakIndex = 0;
     boolean hasZeroDataPoint = false;
 
     // Go through the data points and find the highest one
-    int size = dataPoints.length;
     for (int i = 0; i < size; i++) {
 
-      intensityValues[i] = dataPoints[i].getIntensity();
-      mzValues[i] = dataPoints[i].getMZ();
-
       // Update the maxDataPointIndex accordingly
       if (intensityValues[i] > intensityValues[basePeakIndex])
         basePeakIndex = i;
@@ -530,32 +608,8 @@ public class ScanUtils {
     assert rtRange != null;
     assert mzRange != null;
 
-    int bestFragmentScan = -1;
-    double topBasePeak = 0;
-
-    int[] fragmentScanNumbers = dataFile.getScanNumbers(2, rtRange);
-
-    for (int number : fragmentScanNumbers) {
-
-      Scan scan = dataFile.getScan(number);
-
-      if (mzRange.contains(scan.getPrecursorMZ())) {
-
-        DataPoint basePeak = scan.getHighestDataPoint();
-
-        // If there is no peak in the scan, basePeak can be null
-        if (basePeak == null)
-          continue;
-
-        if (basePeak.getIntensity() > topBasePeak) {
-          bestFragmentScan = scan.getScanNumber();
-          topBasePeak = basePeak.getIntensity();
-        }
-      }
-
-    }
-
-    return bestFragmentScan;
+    // The precursor index of the data file holds the base peak intensities, so no scan is loaded
+    return dataFile.getBestFragmentScanNumber(2, mzRange, rtRange);
 
   }
 
@@ -571,24 +625,7 @@ public class ScanUtils {
     assert rtRange != null;
     assert mzRange != null;
 
-    int[] fragmentScanNumbers = dataFile.getScanNumbers(2, rtRange);
-    ArrayList<Integer> fragmentScanNumbersInMZRange = new ArrayList<Integer>();
-
-    for (int number : fragmentScanNumbers) {
-
-      Scan scan = dataFile.getScan(number);
-
-      if (mzRange.contains(scan.getPrecursorMZ())) {
-        fragmentScanNumbersInMZRange.add(number);
-      }
-    }
-    int[] resultScans = new int[fragmentScanNumbersInMZRange.size()];
-    if (resultScans.length > 0) {
-      resultScans = fragmentScanNumbersInMZRange.stream().mapToInt(i -> i).toArray();
-    } else {
-      resultScans = new int[] {};
-    }
-    return resultScans;
+    return dataFile.getFragmentScanNumbers(2, mzRange, rtRange);
   }
 
   /**
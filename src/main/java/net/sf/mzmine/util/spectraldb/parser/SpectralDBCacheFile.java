@@ -0,0 +1,569 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.util.spectraldb.parser;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.util.ArrayUtils;
+import net.sf.mzmine.util.spectraldb.entry.DBEntryField;
+import net.sf.mzmine.util.spectraldb.entry.SpectralDBEntry;
+
+/**
+ * Binary copy of the entries parsed from a spectral library file, so the library does not have to
+ * be parsed again for each search. The data points of all entries are stored as one memory mapped
+ * array, the metadata of each entry as a record found by an offset table, and the precursor m/z
+ * values are stored sorted for SpectralDBPrecursorIndex. Entries read the data points and metadata
+ * from the file only when they are used.
+ *
+ * The cache is stored in the temporary directory, or next to the library file if requested and
+ * that directory is writable, and is only used while the length and modification time of the
+ * library file are the same as when the cache was written. A cache which does not match its library
+ * any more is deleted when it is opened.
+ *
+ * File layout: header, sorted precursor m/z values and entry positions, data point table (first
+ * data point and number of data points of each entry), data points (m/z and intensity), metadata
+ * records, metadata offset table (one offset per entry and the end of the last record).
+ */
+public class SpectralDBCacheFile {
+
+  private static final Logger logger = Logger.getLogger(SpectralDBCacheFile.class.getName());
+
+  private static final String CACHE_FILE_EXTENSION = ".mzlib";
+  private static final long MAGIC = 0x4d5a6d696e654c42L; // "MZmineLB"
+  private static final int VERSION = 1;
+
+  // magic, version, library length, library modification time, number of entries, number of data
+  // points, number of sorted precursor m/z values
+  private static final int HEADER_SIZE = 8 + 4 + 8 + 8 + 4 + 8 + 4;
+
+  // Size of the memory mapped segments, a multiple of the data point size
+  private static final int SEGMENT_SIZE = 1 << 30;
+  private static final int DATA_POINT_SIZE = 16;
+
+  // Types of metadata values
+  private static final byte TYPE_STRING = 0, TYPE_DOUBLE = 1, TYPE_FLOAT = 2, TYPE_INTEGER = 3,
+      TYPE_LONG = 4, TYPE_BIG_DECIMAL = 5;
+
+  private final double sortedPrecursorMZ[];
+  private final int sortedPositions[];
+  private final long dataPointStarts[];
+  private final int dataPointCounts[];
+  private final long metadataOffsets[];
+  // null after close()
+  private volatile ByteBuffer dataPointSegments[];
+  private volatile ByteBuffer metadataSegments[];
+
+  private final List<SpectralDBEntry> entries;
+
+  private SpectralDBCacheFile(double sortedPrecursorMZ[], int sortedPositions[],
+      long dataPointStarts[], int dataPointCounts[], long metadataOffsets[],
+      ByteBuffer dataPointSegments[], ByteBuffer metadataSegments[]) {
+    this.sortedPrecursorMZ = sortedPrecursorMZ;
+    this.sortedPositions = sortedPositions;
+    this.dataPointStarts = dataPointStarts;
+    this.dataPointCounts = dataPointCounts;
+    this.metadataOffsets = metadataOffsets;
+    this.dataPointSegments = dataPointSegments;
+    this.metadataSegments = metadataSegments;
+
+    final CachedEntry cachedEntries[] = new CachedEntry[dataPointCounts.length];
+    for (int i = 0; i < cachedEntries.length; i++)
+      cachedEntries[i] = new CachedEntry(i);
+    entries = new AbstractList<SpectralDBEntry>() {
+      @Override
+      public SpectralDBEntry get(int index) {
+        return cachedEntries[index];
+      }
+
+      @Override
+      public int size() {
+        return cachedEntries.length;
+      }
+    };
+  }
+
+  /**
+   * Releases the memory mapped segments of this cache. The segments are not unmapped, as other
+   * threads may still read from them, they are released by the garbage collector once nothing
+   * refers to them any more. The entries can not be read after closing, so entries which are kept
+   * longer than the cache have to be detached first.
+   *
+   * @see #detach(SpectralDBEntry)
+   */
+  public void close() {
+    dataPointSegments = null;
+    metadataSegments = null;
+  }
+
+  /**
+   * @return given entry, or a copy of it if it is an entry of a cache, which does not refer to the
+   *         cache any more
+   */
+  public static SpectralDBEntry detach(SpectralDBEntry entry) {
+    if (!(entry instanceof CachedEntry))
+      return entry;
+    CachedEntry cachedEntry = (CachedEntry) entry;
+    return new SpectralDBEntry(cachedEntry.getFields(), cachedEntry.getDataPoints());
+  }
+
+  /**
+   * @return all entries in the order of the library
+   */
+  public List<SpectralDBEntry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * @return precursor m/z values of the entries in ascending order, without entries lacking a
+   *         precursor m/z
+   */
+  public double[] getSortedPrecursorMZ() {
+    return sortedPrecursorMZ;
+  }
+
+  /**
+   * @return positions of the entries in the order of getSortedPrecursorMZ()
+   */
+  public int[] getSortedPositions() {
+    return sortedPositions;
+  }
+
+  /**
+   * @param libraryFile
+   * @param nextToLibrary store the cache next to the library file (file name + .mzlib) instead of
+   *        the temporary directory, if that directory is writable
+   * @return the cache file of given library file
+   */
+  public static File getCacheFile(File libraryFile, boolean nextToLibrary) {
+    File directory = libraryFile.getAbsoluteFile().getParentFile();
+    if (nextToLibrary && directory != null && directory.canWrite())
+      return new File(directory, libraryFile.getName() + CACHE_FILE_EXTENSION);
+    // Unique name per library in the temporary directory
+    return new File(System.getProperty("java.io.tmpdir"), libraryFile.getName() + "_"
+        + Integer.toHexString(libraryFile.getAbsolutePath().hashCode()) + CACHE_FILE_EXTENSION);
+  }
+
+  /**
+   * Opens the cache of given library file
+   *
+   * @param libraryFile
+   * @param nextToLibrary see getCacheFile()
+   * @return the cache or null, if there is no cache or it does not match the library file. A cache
+   *         which does not match is deleted.
+   */
+  @Nullable
+  public static SpectralDBCacheFile open(File libraryFile, boolean nextToLibrary)
+      throws IOException {
+    final File cacheFile = getCacheFile(libraryFile, nextToLibrary);
+    if (!cacheFile.isFile())
+      return null;
+
+    SpectralDBCacheFile cache;
+    try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+      cache = read(libraryFile, channel);
+    }
+    if (cache != null) {
+      logger.info("Opened cache of spectral library " + libraryFile.getAbsolutePath() + " with "
+          + cache.entries.size() + " entries");
+      return cache;
+    }
+
+    // Nothing of an invalid cache is mapped, so it can be deleted. The cache of the changed library
+    // is written again after parsing it.
+    try {
+      Files.delete(cacheFile.toPath());
+      logger.fine("Deleted outdated cache " + cacheFile.getAbsolutePath());
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not delete outdated cache " + cacheFile.getAbsolutePath(),
+          e);
+    }
+    return null;
+  }
+
+  /**
+   * Reads the tables of the cache and maps its data points and metadata, if the cache matches the
+   * library file. Only the header and the tables are read before the cache is known to match.
+   *
+   * @return the cache or null, if it does not match the library file
+   */
+  @Nullable
+  private static SpectralDBCacheFile read(File libraryFile, FileChannel channel)
+      throws IOException {
+    final long fileSize = channel.size();
+    if (fileSize < HEADER_SIZE)
+      return null;
+
+    ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+    if (header.getLong() != MAGIC || header.getInt() != VERSION)
+      return null;
+    if (header.getLong() != libraryFile.length()
+        || header.getLong() != libraryFile.lastModified())
+      return null;
+    final int numOfEntries = header.getInt();
+    final long numOfDataPoints = header.getLong();
+    final int numOfSorted = header.getInt();
+
+    final long sortedStart = HEADER_SIZE;
+    final long dataPointTableStart = sortedStart + 12L * numOfSorted;
+    final long dataPointsStart = dataPointTableStart + 12L * numOfEntries;
+    final long metadataStart = dataPointsStart + DATA_POINT_SIZE * numOfDataPoints;
+    final long metadataTableStart = fileSize - 8L * (numOfEntries + 1);
+    if (metadataTableStart < metadataStart)
+      return null;
+
+    ByteBuffer sorted = readFully(channel, sortedStart, dataPointTableStart - sortedStart);
+    double sortedPrecursorMZ[] = new double[numOfSorted];
+    int sortedPositions[] = new int[numOfSorted];
+    for (int i = 0; i < numOfSorted; i++)
+      sortedPrecursorMZ[i] = sorted.getDouble();
+    for (int i = 0; i < numOfSorted; i++)
+      sortedPositions[i] = sorted.getInt();
+
+    ByteBuffer dataPointTable =
+        readFully(channel, dataPointTableStart, dataPointsStart - dataPointTableStart);
+    long dataPointStarts[] = new long[numOfEntries];
+    int dataPointCounts[] = new int[numOfEntries];
+    for (int i = 0; i < numOfEntries; i++) {
+      dataPointStarts[i] = dataPointTable.getLong();
+      dataPointCounts[i] = dataPointTable.getInt();
+    }
+
+    ByteBuffer metadataTable =
+        readFully(channel, metadataTableStart, fileSize - metadataTableStart);
+    long metadataOffsets[] = new long[numOfEntries + 1];
+    for (int i = 0; i <= numOfEntries; i++)
+      metadataOffsets[i] = metadataTable.getLong();
+    if (metadataOffsets[numOfEntries] != metadataTableStart - metadataStart)
+      return null;
+
+    // The mapping stays valid after closing the channel
+    ByteBuffer dataPointSegments[] =
+        mapSegments(channel, dataPointsStart, metadataStart - dataPointsStart);
+    ByteBuffer metadataSegments[] =
+        mapSegments(channel, metadataStart, metadataTableStart - metadataStart);
+
+    return new SpectralDBCacheFile(sortedPrecursorMZ, sortedPositions, dataPointStarts,
+        dataPointCounts, metadataOffsets, dataPointSegments, metadataSegments);
+}
+
+  /**
+   * Writes the cache of given library file. The cache is written to a temporary file first, so
+   * other searches never open an incomplete cache.
+   *
+   * @param libraryFile
+   * @param entries all entries parsed from the library file
+   * @param nextToLibrary see getCacheFile()
+   */
+  public static void write(File libraryFile, List<SpectralDBEntry> entries,
+      boolean nextToLibrary) throws IOException {
+    final File cacheFile = getCacheFile(libraryFile, nextToLibrary);
+    final int numOfEntries = entries.size();
+
+    // Sort the precursor m/z values the same way as SpectralDBPrecursorIndex
+    double precursorMZ[] = new double[numOfEntries];
+    int positions[] = new int[numOfEntries];
+    int numOfSorted = 0;
+    long numOfDataPoints = 0;
+    for (int i = 0; i < numOfEntries; i++) {
+      SpectralDBEntry entry = entries.get(i);
+      numOfDataPoints += entry.getDataPoints().length;
+      Double mz = entry.getPrecursorMZ();
+      if (mz == null || mz.isNaN())
+        continue;
+      precursorMZ[numOfSorted] = mz;
+      positions[numOfSorted] = i;
+      numOfSorted++;
+    }
+    ArrayUtils.sortIndexes(precursorMZ, positions, numOfSorted);
+
+    File tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getParentFile());
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16))) {
+        out.writeLong(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(libraryFile.length());
+        out.writeLong(libraryFile.lastModified());
+        out.writeInt(numOfEntries);
+        out.writeLong(numOfDataPoints);
+        out.writeInt(numOfSorted);
+
+        for (int i = 0; i < numOfSorted; i++)
+          out.writeDouble(precursorMZ[i]);
+        for (int i = 0; i < numOfSorted; i++)
+          out.writeInt(positions[i]);
+
+        long dataPointStart = 0;
+        for (SpectralDBEntry entry : entries) {
+          out.writeLong(dataPointStart);
+          out.writeInt(entry.getDataPoints().length);
+          dataPointStart += entry.getDataPoints().length;
+        }
+
+        for (SpectralDBEntry entry : entries) {
+          for (DataPoint dp : entry.getDataPoints()) {
+            out.writeDouble(dp.getMZ());
+            out.writeDouble(dp.getIntensity());
+          }
+        }
+
+        long metadataOffsets[] = new long[numOfEntries + 1];
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        for (int i = 0; i < numOfEntries; i++) {
+          record.reset();
+          writeMetadata(new DataOutputStream(record), entries.get(i));
+          record.writeTo(out);
+          metadataOffsets[i + 1] = metadataOffsets[i] + record.size();
+        }
+        for (long offset : metadataOffsets)
+          out.writeLong(offset);
+      }
+      Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      logger.info("Wrote cache of spectral library " + libraryFile.getAbsolutePath() + " to "
+          + cacheFile.getAbsolutePath());
+    } finally {
+      tmpFile.delete();
+    }
+  }
+
+  private static void writeMetadata(DataOutputStream out, SpectralDBEntry entry)
+      throws IOException {
+    int numOfFields = 0;
+    for (DBEntryField field : DBEntryField.values()) {
+      if (entry.getField(field).isPresent())
+        numOfFields++;
+    }
+    out.writeInt(numOfFields);
+    for (DBEntryField field : DBEntryField.values()) {
+      Object value = entry.getField(field).orElse(null);
+      if (value == null)
+        continue;
+      writeString(out, field.name());
+      if (value instanceof Double) {
+        out.writeByte(TYPE_DOUBLE);
+        out.writeDouble((Double) value);
+      } else if (value instanceof Float) {
+        out.writeByte(TYPE_FLOAT);
+        out.writeFloat((Float) value);
+      } else if (value instanceof Integer) {
+        out.writeByte(TYPE_INTEGER);
+        out.writeInt((Integer) value);
+      } else if (value instanceof Long) {
+        out.writeByte(TYPE_LONG);
+        out.writeLong((Long) value);
+      } else if (value instanceof BigDecimal) {
+        out.writeByte(TYPE_BIG_DECIMAL);
+        writeString(out, value.toString());
+      } else {
+        // Strings and all other values
+        out.writeByte(TYPE_STRING);
+        writeString(out, value.toString());
+      }
+    }
+    out.flush();
+  }
+
+  private static Map<DBEntryField, Object> readMetadata(DataInputStream in) throws IOException {
+    Map<DBEntryField, Object> fields = new EnumMap<>(DBEntryField.class);
+    final int numOfFields = in.readInt();
+    for (int i = 0; i < numOfFields; i++) {
+      final String name = readString(in);
+      final Object value;
+      switch (in.readByte()) {
+        case TYPE_DOUBLE:
+          value = in.readDouble();
+          break;
+        case TYPE_FLOAT:
+          value = in.readFloat();
+          break;
+        case TYPE_INTEGER:
+          value = in.readInt();
+          break;
+        case TYPE_LONG:
+          value = in.readLong();
+          break;
+        case TYPE_BIG_DECIMAL:
+          value = new BigDecimal(readString(in));
+          break;
+        default:
+          value = readString(in);
+          break;
+      }
+      try {
+        fields.put(DBEntryField.valueOf(name), value);
+      } catch (IllegalArgumentException e) {
+        // field does not exist anymore
+      }
+    }
+    return fields;
+  }
+
+  // DataOutputStream.writeUTF() is limited to 64 kB
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte bytes[] = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte bytes[] = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static ByteBuffer readFully(FileChannel channel, long position, long length)
+      throws IOException {
+    if (length > Integer.MAX_VALUE)
+      throw new IOException("Corrupt spectral library cache");
+    ByteBuffer buffer = ByteBuffer.allocate((int) length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0)
+        throw new EOFException();
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static ByteBuffer[] mapSegments(FileChannel channel, long start, long length)
+      throws IOException {
+    final int numOfSegments = (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+    ByteBuffer segments[] = new ByteBuffer[numOfSegments];
+    for (int i = 0; i < numOfSegments; i++) {
+      final long offset = (long) i * SEGMENT_SIZE;
+      segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start + offset,
+          Math.min(SEGMENT_SIZE, length - offset));
+    }
+    return segments;
+  }
+
+  private DataPoint[] readDataPoints(int entry) {
+    final ByteBuffer dataPointSegments[] = checkOpen(this.dataPointSegments);
+    DataPoint dataPoints[] = new DataPoint[dataPointCounts[entry]];
+    long offset = dataPointStarts[entry] * DATA_POINT_SIZE;
+    for (int i = 0; i < dataPoints.length; i++, offset += DATA_POINT_SIZE) {
+      // A data point never spans two segments
+      ByteBuffer segment = dataPointSegments[(int) (offset / SEGMENT_SIZE)];
+      final int position = (int) (offset % SEGMENT_SIZE);
+      dataPoints[i] = new SimpleDataPoint(segment.getDouble(position),
+          segment.getDouble(position + 8));
+    }
+    return dataPoints;
+  }
+
+  private Map<DBEntryField, Object> readMetadata(int entry) {
+    final ByteBuffer metadataSegments[] = checkOpen(this.metadataSegments);
+    byte record[] = new byte[(int) (metadataOffsets[entry + 1] - metadataOffsets[entry])];
+    long offset = metadataOffsets[entry];
+    int copied = 0;
+    while (copied < record.length) {
+      // Duplicate, so concurrent reads do not share the position of the segment
+      ByteBuffer segment = metadataSegments[(int) (offset / SEGMENT_SIZE)].duplicate();
+      segment.position((int) (offset % SEGMENT_SIZE));
+      final int length = Math.min(record.length - copied, segment.remaining());
+      segment.get(record, copied, length);
+      copied += length;
+      offset += length;
+    }
+    try {
+      return readMetadata(new DataInputStream(new ByteArrayInputStream(record)));
+    } catch (IOException e) {
+      throw new IllegalStateException("Corrupt spectral library cache", e);
+    }
+  }
+
+  private static ByteBuffer[] checkOpen(ByteBuffer segments[]) {
+    if (segments == null)
+      throw new IllegalStateException("Spectral library cache was closed");
+    return segments;
+  }
+
+  /**
+   * Entry reading its metadata and data points from the cache on first use. The decoded data points
+   * are only softly referenced, so the entries of a big library do not keep all of them in memory
+   * and are decoded again after the garbage collector cleared them.
+   */
+  private class CachedEntry extends SpectralDBEntry {
+
+    private final int index;
+    private volatile Map<DBEntryField, Object> fields;
+    private volatile SoftReference<DataPoint[]> dataPoints;
+
+    private CachedEntry(int index) {
+      super(null, null);
+      this.index = index;
+    }
+
+    private Map<DBEntryField, Object> getFields() {
+      Map<DBEntryField, Object> map = fields;
+      if (map == null) {
+        map = readMetadata(index);
+        fields = map;
+      }
+      return map;
+    }
+
+    @Override
+    public Double getPrecursorMZ() {
+      return (Double) getFields().get(DBEntryField.MZ);
+    }
+
+    @Override
+    public Optional<Object> getField(DBEntryField f) {
+      return Optional.ofNullable(getFields().get(f));
+    }
+
+    @Override
+    public DataPoint[] getDataPoints() {
+      SoftReference<DataPoint[]> reference = dataPoints;
+      DataPoint cached[] = (reference == null) ? null : reference.get();
+      if (cached == null) {
+        cached = readDataPoints(index);
+        dataPoints = new SoftReference<>(cached);
+      }
+      return cached;
+    }
+
+  }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.datamodel.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+
+/**
+ * Tests that the row index of a peak list is only invalidated by changes of its own rows
+ */
+public class SimplePeakListTest {
+
+  private static final Range<Double> ALL = Range.all();
+
+  @Test
+  public void testRowIndexOfOtherPeakList() throws Exception {
+
+    RawDataFile dataFile = new RawDataFileImpl("test");
+    SimplePeakList peakListA = createPeakList(dataFile, "A");
+    SimplePeakList peakListB = createPeakList(dataFile, "B");
+
+    PeakListRowIndex indexA = buildRowIndex(peakListA);
+    PeakListRowIndex indexB = buildRowIndex(peakListB);
+
+    // Changing a row of list A invalidates only the index of list A
+    peakListA.getRow(3).setAverageRT(100.0);
+    Assert.assertSame(indexB, peakListB.getRowIndex());
+    Assert.assertNotSame(indexA, peakListA.getRowIndex());
+    Assert.assertEquals(1, peakListA.getRowsInsideScanRange(Range.closed(99.0, 101.0)).length);
+
+    // Changing a row of list B invalidates its index, and the queries see the new values
+    indexB = buildRowIndex(peakListB);
+    peakListB.getRow(5).setAverageMZ(1000.0);
+    Assert.assertNotSame(indexB, peakListB.getRowIndex());
+    PeakListRow rowsInside[] = peakListB.getRowsInsideMZRange(Range.closed(999.0, 1001.0));
+    Assert.assertEquals(1, rowsInside.length);
+    Assert.assertSame(peakListB.getRow(5), rowsInside[0]);
+
+  }
+
+  @Test
+  public void testRowIndexOfSharedRow() throws Exception {
+
+    RawDataFile dataFile = new RawDataFileImpl("test");
+    SimplePeakList peakListA = createPeakList(dataFile, "A");
+    SimplePeakList peakListB = createPeakList(dataFile, "B");
+
+    // A row contained in both lists invalidates both indexes
+    PeakListRow sharedRow = peakListA.getRow(0);
+    peakListB.addRow(sharedRow);
+    PeakListRowIndex indexA = buildRowIndex(peakListA);
+    PeakListRowIndex indexB = buildRowIndex(peakListB);
+
+    sharedRow.setAverageMZ(2000.0);
+    Assert.assertNotSame(indexA, peakListA.getRowIndex());
+    Assert.assertNotSame(indexB, peakListB.getRowIndex());
+    Assert.assertEquals(1, peakListA.getRowsInsideMZRange(Range.closed(1999.0, 2001.0)).length);
+    Assert.assertEquals(1, peakListB.getRowsInsideMZRange(Range.closed(1999.0, 2001.0)).length);
+
+  }
+
+  private static SimplePeakList createPeakList(RawDataFile dataFile, String name) {
+    SimplePeakList peakList = new SimplePeakList(name, dataFile);
+    for (int i = 0; i < 10; i++) {
+      SimplePeakListRow row = new SimplePeakListRow(i + 1);
+      row.setAverageMZ(100.0 + i);
+      row.setAverageRT(1.0 + i);
+      peakList.addRow(row);
+    }
+    return peakList;
+  }
+
+  /**
+   * The index is built by the second query without changes of the rows in between
+   */
+  private static PeakListRowIndex buildRowIndex(SimplePeakList peakList) {
+    peakList.getRowsInsideScanAndMZRange(ALL, ALL);
+    peakList.getRowsInsideScanAndMZRange(ALL, ALL);
+    PeakListRowIndex index = peakList.getRowIndex();
+    Assert.assertNotNull(index);
+    return index;
+  }
+
+}
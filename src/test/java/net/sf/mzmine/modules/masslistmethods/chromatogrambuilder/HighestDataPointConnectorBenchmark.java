@@ -0,0 +1,78 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
+
+import java.io.File;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+
+/**
+ * Compares the run time of HighestDataPointConnector with the run time of testing every building
+ * chromatogram for every m/z peak (see HighestDataPointConnectorTest). Not part of the unit tests,
+ * run it with the mzML files to build the chromatograms of as arguments.
+ */
+public class HighestDataPointConnectorBenchmark {
+
+  private static final int REPETITIONS = 5;
+
+  public static void main(String args[]) throws Exception {
+
+    if (args.length == 0) {
+      System.err.println("Usage: HighestDataPointConnectorBenchmark <mzML file>...");
+      System.exit(1);
+    }
+
+    long referenceTime = 0, indexedTime = 0;
+
+    for (String fileName : args) {
+
+      RawDataFileImpl dataFile = HighestDataPointConnectorTest.readFile(new File(fileName));
+      int scanNumbers[] = dataFile.getScanNumbers(1);
+      DataPoint scanDataPoints[][] =
+          HighestDataPointConnectorTest.readDataPoints(dataFile, scanNumbers);
+
+      long fileReferenceTime = 0, fileIndexedTime = 0;
+      for (int repetition = 0; repetition < REPETITIONS; repetition++) {
+
+        long startTime = System.nanoTime();
+        HighestDataPointConnectorTest.buildReference(dataFile, scanNumbers, scanDataPoints);
+        fileReferenceTime += System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        HighestDataPointConnectorTest.buildIndexed(dataFile, scanNumbers, scanDataPoints);
+        fileIndexedTime += System.nanoTime() - startTime;
+
+      }
+
+      System.out.println(fileName + ": testing all chromatograms " + (fileReferenceTime / 1000000)
+          + " ms, sorted m/z index " + (fileIndexedTime / 1000000) + " ms");
+      referenceTime += fileReferenceTime;
+      indexedTime += fileIndexedTime;
+
+      dataFile.close();
+    }
+
+    System.out.println("Built chromatograms of " + args.length + " files " + REPETITIONS
+        + " times, testing all chromatograms: " + (referenceTime / 1000000)
+        + " ms, sorted m/z index: " + (indexedTime / 1000000) + " ms");
+
+  }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzMLReadTask;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.project.impl.MZmineProjectImpl;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.DataPointSorter;
+import net.sf.mzmine.util.SortingDirection;
+import net.sf.mzmine.util.SortingProperty;
+
+/**
+ * Compares the chromatograms built by HighestDataPointConnector with the chromatograms built by
+ * testing every building chromatogram for every m/z peak. The run times of both are compared by
+ * HighestDataPointConnectorBenchmark.
+ */
+public class HighestDataPointConnectorTest {
+
+  // Small files, the reference is quadratic in the number of chromatograms
+  private static final String TEST_FILES[] =
+      {"centroided10.mzML", "centroided4.mzML", "profile9.mzML"};
+
+  private static final MZTolerance mzTolerance = new MZTolerance(0.001, 5.0);
+  private static final double minimumTimeSpan = 0.0, minimumHeight = 0.0;
+
+  @Test
+  public void testAddScan() throws Exception {
+
+    for (String fileName : TEST_FILES) {
+
+      URL url = getClass().getClassLoader().getResource(fileName);
+      Assert.assertNotNull(fileName + " not found", url);
+      File inputFile = new File(url.toURI());
+
+      RawDataFileImpl dataFile = readFile(inputFile);
+      int scanNumbers[] = dataFile.getScanNumbers(1);
+      DataPoint scanDataPoints[][] = readDataPoints(dataFile, scanNumbers);
+
+      Chromatogram expected[] = buildReference(dataFile, scanNumbers, scanDataPoints);
+      Assert.assertNotEquals(0, expected.length);
+      Chromatogram actual[] = buildIndexed(dataFile, scanNumbers, scanDataPoints);
+      assertSameChromatograms(fileName, expected, actual);
+
+      dataFile.close();
+
+    }
+
+  }
+
+  static RawDataFileImpl readFile(File inputFile) throws IOException {
+    MZmineProject project = new MZmineProjectImpl();
+    RawDataFileImpl dataFile = new RawDataFileImpl(inputFile.getName());
+    MzMLReadTask readTask = new MzMLReadTask(project, inputFile, dataFile);
+    readTask.run();
+    Assert.assertEquals(TaskStatus.FINISHED, readTask.getStatus());
+    return dataFile;
+  }
+
+  static DataPoint[][] readDataPoints(RawDataFileImpl dataFile, int scanNumbers[]) {
+    DataPoint scanDataPoints[][] = new DataPoint[scanNumbers.length][];
+    for (int i = 0; i < scanNumbers.length; i++) {
+      Scan scan = dataFile.getScan(scanNumbers[i]);
+      scanDataPoints[i] = scan.getDataPoints();
+    }
+    return scanDataPoints;
+  }
+
+  static Chromatogram[] buildIndexed(RawDataFileImpl dataFile, int scanNumbers[],
+      DataPoint scanDataPoints[][]) {
+
+    HighestDataPointConnector connector = new HighestDataPointConnector(dataFile, scanNumbers,
+        minimumTimeSpan, minimumHeight, mzTolerance);
+
+    for (int i = 0; i < scanNumbers.length; i++) {
+      DataPoint dataPoints[] = scanDataPoints[i];
+      double mzValues[] = new double[dataPoints.length];
+      double intensityValues[] = new double[dataPoints.length];
+      for (int j = 0; j < dataPoints.length; j++) {
+        mzValues[j] = dataPoints[j].getMZ();
+        intensityValues[j] = dataPoints[j].getIntensity();
+      }
+      connector.addScan(scanNumbers[i], mzValues, intensityValues, dataPoints.length);
+    }
+
+    return connector.finishChromatograms();
+  }
+
+  /**
+   * Builds the chromatograms by testing every building chromatogram for every m/z peak
+   */
+  static Chromatogram[] buildReference(RawDataFileImpl dataFile, int scanNumbers[],
+      DataPoint scanDataPoints[][]) {
+
+    Set<Chromatogram> buildingChromatograms = new LinkedHashSet<Chromatogram>();
+
+    for (int s = 0; s < scanNumbers.length; s++) {
+
+      DataPoint mzValues[] = scanDataPoints[s].clone();
+      Arrays.sort(mzValues,
+          new DataPointSorter(SortingProperty.Intensity, SortingDirection.Descending));
+
+      Set<Chromatogram> connectedChromatograms = new LinkedHashSet<Chromatogram>();
+
+      for (DataPoint mzPeak : mzValues) {
+
+        Chromatogram bestChromatogram = null;
+        for (Chromatogram testChrom : buildingChromatograms) {
+          DataPoint lastMzPeak = testChrom.getLastMzPeak();
+          Range<Double> toleranceRange = mzTolerance.getToleranceRange(lastMzPeak.getMZ());
+          if (toleranceRange.contains(mzPeak.getMZ())) {
+            if ((bestChromatogram == null) || (testChrom.getLastMzPeak()
+                .getIntensity() > bestChromatogram.getLastMzPeak().getIntensity())) {
+              bestChromatogram = testChrom;
+            }
+          }
+        }
+
+        if (bestChromatogram != null) {
+          if (connectedChromatograms.contains(bestChromatogram))
+            continue;
+        } else {
+          bestChromatogram = new Chromatogram(dataFile, scanNumbers);
+        }
+
+        bestChromatogram.addMzPeak(scanNumbers[s],
+            new SimpleDataPoint(mzPeak.getMZ(), mzPeak.getIntensity()));
+        connectedChromatograms.add(bestChromatogram);
+      }
+
+      for (Chromatogram testChrom : buildingChromatograms) {
+        if (connectedChromatograms.contains(testChrom))
+          continue;
+        if (testChrom.getBuildingSegmentLength() >= minimumTimeSpan) {
+          testChrom.commitBuildingSegment();
+          connectedChromatograms.add(testChrom);
+          continue;
+        }
+        if (testChrom.getNumberOfCommittedSegments() > 0) {
+          testChrom.removeBuildingSegment();
+          connectedChromatograms.add(testChrom);
+        }
+      }
+
+      buildingChromatograms = connectedChromatograms;
+    }
+
+    List<Chromatogram> finishedChromatograms = new ArrayList<Chromatogram>();
+    for (Chromatogram chromatogram : buildingChromatograms) {
+      if (chromatogram.getBuildingSegmentLength() >= minimumTimeSpan) {
+        chromatogram.commitBuildingSegment();
+      } else if (chromatogram.getNumberOfCommittedSegments() == 0) {
+        continue;
+      } else {
+        chromatogram.removeBuildingSegment();
+      }
+      chromatogram.finishChromatogram();
+      if (chromatogram.getHeight() >= minimumHeight)
+        finishedChromatograms.add(chromatogram);
+    }
+
+    return finishedChromatograms.toArray(new Chromatogram[0]);
+  }
+
+  private static void assertSameChromatograms(String fileName, Chromatogram expected[],
+      Chromatogram actual[]) {
+
+    Assert.assertEquals("Number of chromatograms in " + fileName, expected.length, actual.length);
+
+    for (int i = 0; i < expected.length; i++) {
+      int expectedScanNumbers[] = expected[i].getScanNumbers();
+      Assert.assertArrayEquals("Scan numbers of chromatogram " + i + " in " + fileName,
+          expectedScanNumbers, actual[i].getScanNumbers());
+      for (int scanNumber : expectedScanNumbers) {
+        DataPoint expectedDataPoint = expected[i].getDataPoint(scanNumber);
+        DataPoint actualDataPoint = actual[i].getDataPoint(scanNumber);
+        Assert.assertEquals((expectedDataPoint == null), (actualDataPoint == null));
+        if (expectedDataPoint == null)
+          continue;
+        Assert.assertEquals(expectedDataPoint.getMZ(), actualDataPoint.getMZ(), 0.0);
+        Assert.assertEquals(expectedDataPoint.getIntensity(), actualDataPoint.getIntensity(), 0.0);
+      }
+    }
+
+  }
+
+}
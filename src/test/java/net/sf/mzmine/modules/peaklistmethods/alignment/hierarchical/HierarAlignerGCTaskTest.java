@@ -0,0 +1,232 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.alignment.hierarchical;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.gnf.clustering.DistanceMatrix;
+import org.gnf.clustering.LinkageMode;
+import org.gnf.clustering.Node;
+import org.gnf.clustering.sequentialcache.SequentialCacheClustering;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares the clustering of the groups of connected rows of a SparseDistanceMatrix
+ * (HierarAlignerGCTask.clusterComponents()) with the clustering of the whole dense distance matrix
+ * on random inputs.
+ */
+public class HierarAlignerGCTaskTest {
+
+  private static final int REPETITIONS = 50;
+
+  private static final int NUM_OF_FILES = 4;
+  private static final int MAX_ROWS_PER_FILE = 20;
+
+  // Distances of the stored pairs, below SparseDistanceMatrix.DEFAULT_DISTANCE
+  private static final float MAX_STORED_DISTANCE = 60.0f;
+
+  private final Random random = new Random(42);
+
+  /**
+   * Random rows and stored pairs of rows from different files, as given by
+   * HierarAlignerGCTask.computeSparseDistances()
+   */
+  private static class RandomInput {
+
+    private final int rowFiles[];
+    private final float denseDistances[][];
+    private final SparseDistanceMatrix sparseDistances;
+
+    private RandomInput(Random random) {
+
+      List<Integer> files = new ArrayList<>();
+      for (int file = 0; file < NUM_OF_FILES; file++) {
+        final int numOfRows = 1 + random.nextInt(MAX_ROWS_PER_FILE);
+        for (int i = 0; i < numOfRows; i++)
+          files.add(file);
+      }
+      rowFiles = files.stream().mapToInt(Integer::intValue).toArray();
+      final int numOfRows = rowFiles.length;
+
+      denseDistances = new float[numOfRows][numOfRows];
+      final double pairProbability = random.nextDouble() * 0.2;
+      int pairRows[] = new int[numOfRows * numOfRows], pairColumns[] = new int[pairRows.length];
+      float pairDistances[] = new float[pairRows.length];
+      int numOfPairs = 0;
+      for (int x = 0; x < numOfRows; x++) {
+        for (int y = x + 1; y < numOfRows; y++) {
+          float distance;
+          if ((rowFiles[x] != rowFiles[y]) && (random.nextDouble() < pairProbability)) {
+            distance = random.nextFloat() * MAX_STORED_DISTANCE;
+            // The pairs are stored in either order
+            final boolean swap = random.nextBoolean();
+            pairRows[numOfPairs] = swap ? y : x;
+            pairColumns[numOfPairs] = swap ? x : y;
+            pairDistances[numOfPairs] = distance;
+            numOfPairs++;
+          } else if (rowFiles[x] == rowFiles[y]) {
+            distance = SparseDistanceMatrix.SAME_FILE_DISTANCE;
+          } else {
+            distance = SparseDistanceMatrix.DEFAULT_DISTANCE;
+          }
+          denseDistances[x][y] = denseDistances[y][x] = distance;
+        }
+      }
+
+      sparseDistances =
+          new SparseDistanceMatrix(rowFiles, pairRows, pairColumns, pairDistances, numOfPairs);
+    }
+
+    private DistanceMatrix getDenseMatrix() {
+      DistanceMatrix matrix = new DistanceMatrixTriangular1D2D(rowFiles.length);
+      for (int x = 0; x < rowFiles.length; x++) {
+        for (int y = x; y < rowFiles.length; y++)
+          matrix.setValue(x, y, denseDistances[x][y]);
+      }
+      return matrix;
+    }
+  }
+
+  @Test
+  public void testSparseDistanceMatrix() {
+
+    for (int repetition = 0; repetition < REPETITIONS; repetition++) {
+
+      final RandomInput input = new RandomInput(random);
+      final SparseDistanceMatrix matrix = input.sparseDistances;
+      final int numOfRows = input.rowFiles.length;
+
+      Assert.assertEquals(numOfRows, matrix.getRowCount());
+      for (int x = 0; x < numOfRows; x++) {
+        for (int y = 0; y < numOfRows; y++) {
+          Assert.assertEquals(input.denseDistances[x][y], matrix.getValue(x, y), 0.0f);
+        }
+      }
+
+      // Each row must be in exactly one component, and the stored pairs must not connect rows of
+      // different components
+      final int components[][] = matrix.getConnectedComponents();
+      final int componentOfRow[] = new int[numOfRows];
+      Arrays.fill(componentOfRow, -1);
+      for (int c = 0; c < components.length; c++) {
+        for (int row : components[c]) {
+          Assert.assertEquals(-1, componentOfRow[row]);
+          componentOfRow[row] = c;
+        }
+      }
+      for (int x = 0; x < numOfRows; x++) {
+        Assert.assertNotEquals(-1, componentOfRow[x]);
+        for (int y = 0; y < numOfRows; y++) {
+          if (input.denseDistances[x][y] < SparseDistanceMatrix.DEFAULT_DISTANCE)
+            Assert.assertEquals(componentOfRow[x], componentOfRow[y]);
+        }
+      }
+    }
+
+  }
+
+  @Test
+  public void testClusterComponents() {
+
+    final LinkageMode linkageModes[] = {LinkageMode.MIN, LinkageMode.AVG, LinkageMode.MAX};
+
+    for (int repetition = 0; repetition < REPETITIONS; repetition++) {
+      for (LinkageMode linkage : linkageModes) {
+
+        final RandomInput input = new RandomInput(random);
+        final int numOfRows = input.rowFiles.length;
+        final double maxDistance = random.nextDouble() * MAX_STORED_DISTANCE;
+
+        final Node denseNodes[] =
+            SequentialCacheClustering.clusterDM(input.getDenseMatrix(), linkage, null, numOfRows);
+        final Node sparseNodes[] =
+            HierarAlignerGCTask.clusterComponents(input.sparseDistances, maxDistance, linkage);
+
+        Assert.assertEquals(numOfRows - 1, sparseNodes.length);
+
+        final Set<Set<Integer>> denseClusters =
+            getValidatedClusters(denseNodes, maxDistance, input.sparseDistances);
+        final Set<Set<Integer>> sparseClusters =
+            getValidatedClusters(sparseNodes, maxDistance, input.sparseDistances);
+        Assert.assertEquals(linkage + ", max. distance " + maxDistance, denseClusters,
+            sparseClusters);
+      }
+    }
+
+  }
+
+  /**
+   * Same rule as HierarAlignerGCTask.recursive_validate_clusters_3(): starting from the root, a
+   * node is a cluster if it has at most as many rows as there are files and all distances of its
+   * rows are below the maximum distance. Otherwise its children are tested.
+   */
+  private static Set<Set<Integer>> getValidatedClusters(Node nodes[], double maxDistance,
+      DistanceMatrix distances) {
+    final Set<Set<Integer>> clusters = new HashSet<>();
+    validateNode(nodes, -nodes.length, maxDistance, distances, clusters);
+    return clusters;
+  }
+
+  private static void validateNode(Node nodes[], int reference, double maxDistance,
+      DistanceMatrix distances, Set<Set<Integer>> clusters) {
+
+    if (reference >= 0) {
+      clusters.add(new TreeSet<>(Arrays.asList(reference)));
+      return;
+    }
+
+    final Node node = nodes[-reference - 1];
+    final List<Integer> leaves = new ArrayList<>();
+    addLeaves(nodes, reference, leaves);
+
+    boolean isCluster = leaves.size() <= NUM_OF_FILES;
+    for (int i = 0; isCluster && i < leaves.size(); i++) {
+      for (int j = i + 1; isCluster && j < leaves.size(); j++) {
+        final float distance = distances.getValue(leaves.get(i), leaves.get(j));
+        isCluster = distance < maxDistance + HierarAlignerGCTask.EPSILON;
+      }
+    }
+
+    if (isCluster) {
+      clusters.add(new TreeSet<>(leaves));
+    } else {
+      validateNode(nodes, node.m_nLeft, maxDistance, distances, clusters);
+      validateNode(nodes, node.m_nRight, maxDistance, distances, clusters);
+    }
+
+  }
+
+  private static void addLeaves(Node nodes[], int reference, List<Integer> leaves) {
+    if (reference >= 0) {
+      leaves.add(reference);
+      return;
+    }
+    final Node node = nodes[-reference - 1];
+    addLeaves(nodes, node.m_nLeft, leaves);
+    addLeaves(nodes, node.m_nRight, leaves);
+  }
+
+}
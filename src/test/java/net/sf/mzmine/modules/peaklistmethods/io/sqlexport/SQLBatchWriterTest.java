@@ -0,0 +1,175 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.io.sqlexport;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes rows to an in-memory SQLite database with SQLBatchWriter and reads them back
+ */
+public class SQLBatchWriterTest {
+
+  private static final String INSERT_STATEMENT =
+      "INSERT INTO peaks (id, name, mz, comment) VALUES (?,?,?,?)";
+  private static final int NULL_TYPES[] = {Types.VARCHAR, Types.VARCHAR, Types.VARCHAR,
+      Types.VARCHAR};
+
+  // Not a multiple of the batch sizes and commit intervals of the tests
+  private static final int NUM_OF_ROWS = 103;
+
+  private Connection connection;
+
+  @Before
+  public void openDatabase() throws SQLException {
+    connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+    try (Statement statement = connection.createStatement()) {
+      statement.executeUpdate(
+          "CREATE TABLE peaks (id INTEGER, name TEXT, mz DOUBLE, comment TEXT)");
+    }
+    connection.setAutoCommit(false);
+  }
+
+  @After
+  public void closeDatabase() throws SQLException {
+    connection.close();
+  }
+
+  private static Object[] getRow(int i) {
+    // Every third row has a null comment
+    return new Object[] {i, "Row " + i, 100.0 + i / 8.0, (i % 3 == 0) ? null : "Comment " + i};
+  }
+
+  private void writeRows(Connection writerConnection, int batchSize, int commitInterval)
+      throws SQLException {
+    try (SQLBatchWriter writer = new SQLBatchWriter(writerConnection, INSERT_STATEMENT,
+        NULL_TYPES, batchSize, commitInterval)) {
+      for (int i = 0; i < NUM_OF_ROWS; i++)
+        writer.write(getRow(i));
+      writer.commit();
+    }
+  }
+
+  private void checkRows() throws SQLException {
+    try (Statement statement = connection.createStatement();
+        ResultSet result =
+            statement.executeQuery("SELECT id, name, mz, comment FROM peaks ORDER BY id")) {
+      int i = 0;
+      while (result.next()) {
+        final Object expected[] = getRow(i);
+        Assert.assertEquals(expected[0], result.getInt(1));
+        Assert.assertEquals(expected[1], result.getString(2));
+        Assert.assertEquals((Double) expected[2], result.getDouble(3), 0.0);
+        Assert.assertEquals(expected[3], result.getString(4));
+        i++;
+      }
+      Assert.assertEquals(NUM_OF_ROWS, i);
+    }
+  }
+
+  private int countRows() throws SQLException {
+    try (Statement statement = connection.createStatement();
+        ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM peaks")) {
+      result.next();
+      return result.getInt(1);
+    }
+  }
+
+  @Test
+  public void testBatches() throws SQLException {
+    writeRows(connection, 10, 0);
+    checkRows();
+  }
+
+  @Test
+  public void testCommitInterval() throws SQLException {
+    writeRows(connection, 10, 25);
+    checkRows();
+  }
+
+  @Test
+  public void testCommits() throws SQLException {
+    // Without commit interval nothing is committed before commit()
+    try (SQLBatchWriter writer =
+        new SQLBatchWriter(connection, INSERT_STATEMENT, NULL_TYPES, 10, 0)) {
+      for (int i = 0; i < NUM_OF_ROWS; i++)
+        writer.write(getRow(i));
+    }
+    connection.rollback();
+    Assert.assertEquals(0, countRows());
+
+    // With commit interval the complete intervals are committed, including the rows of the
+    // batches that were not full yet
+    try (SQLBatchWriter writer =
+        new SQLBatchWriter(connection, INSERT_STATEMENT, NULL_TYPES, 10, 25)) {
+      for (int i = 0; i < NUM_OF_ROWS; i++)
+        writer.write(getRow(i));
+    }
+    connection.rollback();
+    Assert.assertEquals(100, countRows());
+  }
+
+  @Test
+  public void testWithoutBatchUpdates() throws SQLException {
+    writeRows(withoutBatchUpdates(connection), 10, 25);
+    checkRows();
+  }
+
+  /**
+   * Returns the connection, reporting that the database does not support batch updates
+   */
+  private static Connection withoutBatchUpdates(Connection connection) throws SQLException {
+    final DatabaseMetaData metaData = connection.getMetaData();
+    final DatabaseMetaData noBatchMetaData = (DatabaseMetaData) Proxy.newProxyInstance(
+        SQLBatchWriterTest.class.getClassLoader(), new Class<?>[] {DatabaseMetaData.class},
+        (proxy, method, args) -> {
+          if (method.getName().equals("supportsBatchUpdates"))
+            return false;
+          return invoke(method, metaData, args);
+        });
+    return (Connection) Proxy.newProxyInstance(SQLBatchWriterTest.class.getClassLoader(),
+        new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+          if (method.getName().equals("getMetaData"))
+            return noBatchMetaData;
+          return invoke(method, connection, args);
+        });
+  }
+
+  private static Object invoke(Method method, Object target, Object args[]) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.centwave;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.centwave.CentWaveDetectorParameters.PeakIntegrationMethod;
+
+/**
+ * Compares the peaks found by the Java port of findPeaks.centWave (CentWave) with the peaks found
+ * by xcms. The chromatograms are read from src/test/resources/centwave/chromatograms.csv, the
+ * reference output of xcms is generated from them by xcms_centwave.R in the same directory.
+ */
+public class CentWaveTest {
+
+  private static final File TEST_DIR = new File("src/test/resources/centwave");
+  private static final File CHROMATOGRAMS_FILE = new File(TEST_DIR, "chromatograms.csv");
+  private static final File XCMS_PEAKS_FILE = new File(TEST_DIR, "xcms_peaks.csv");
+
+  // Parameters of xcms_centwave.R
+  private static final double SN_THRESHOLD = 10.0;
+  private static final Range<Double> PEAK_WIDTH = Range.closed(0.03, 0.3);
+
+  private static final double SECONDS_PER_MINUTE = 60.0;
+
+  // Retention times are compared in seconds, areas and intensities relative to their value
+  private static final double RT_TOLERANCE = 1e-6;
+  private static final double RELATIVE_TOLERANCE = 1e-6;
+
+  private static final Comparator<PeakRow> PEAK_ORDER =
+      Comparator.<PeakRow>comparingDouble(peak -> peak.rtMin)
+          .thenComparingDouble(peak -> peak.rtMax);
+
+  /**
+   * Retention times in minutes and intensities of one chromatogram
+   */
+  private static class Chromatogram {
+    private final List<Double> retentionTimes = new ArrayList<>();
+    private final List<Double> intensities = new ArrayList<>();
+  }
+
+  /**
+   * A row of the peak matrix of xcms, or a peak found by CentWave converted to one
+   */
+  private static class PeakRow {
+
+    private final double rt, rtMin, rtMax, into, maxo;
+
+    private PeakRow(double rt, double rtMin, double rtMax, double into, double maxo) {
+      this.rt = rt;
+      this.rtMin = rtMin;
+      this.rtMax = rtMax;
+      this.into = into;
+      this.maxo = maxo;
+    }
+
+    @Override
+    public String toString() {
+      return "rt " + rt + " (" + rtMin + " - " + rtMax + "), into " + into + ", maxo " + maxo;
+    }
+  }
+
+  /**
+   * CentWaveJavaDetector is only offered to the users once this test passes
+   */
+  @Ignore("The reference output of xcms (xcms_peaks.csv) was not generated yet")
+  @Test
+  public void testParityWithXcms() throws IOException {
+
+    Assert.assertTrue("Reference output of xcms not found, generate " + XCMS_PEAKS_FILE
+        + " by running xcms_centwave.R", XCMS_PEAKS_FILE.exists());
+
+    final Map<Integer, Chromatogram> chromatograms = readChromatograms();
+    final Map<String, List<PeakRow>> xcmsPeaks = readXcmsPeaks();
+
+    for (PeakIntegrationMethod method : PeakIntegrationMethod.values()) {
+      for (Map.Entry<Integer, Chromatogram> entry : chromatograms.entrySet()) {
+
+        final String key = entry.getKey() + "/" + method.getIndex();
+        final List<PeakRow> expected = xcmsPeaks.getOrDefault(key, new ArrayList<>());
+        final List<PeakRow> actual = findPeaks(entry.getValue(), method);
+        expected.sort(PEAK_ORDER);
+        actual.sort(PEAK_ORDER);
+
+        final String message = "Chromatogram " + entry.getKey() + ", " + method;
+        Assert.assertEquals(message + ": number of peaks", expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+          final PeakRow xcmsPeak = expected.get(i), javaPeak = actual.get(i);
+          final String peakMessage = message + ", xcms: " + xcmsPeak + ", Java: " + javaPeak;
+          Assert.assertEquals(peakMessage, xcmsPeak.rtMin, javaPeak.rtMin, RT_TOLERANCE);
+          Assert.assertEquals(peakMessage, xcmsPeak.rtMax, javaPeak.rtMax, RT_TOLERANCE);
+          Assert.assertEquals(peakMessage, xcmsPeak.rt, javaPeak.rt, RT_TOLERANCE);
+          Assert.assertEquals(peakMessage, xcmsPeak.into, javaPeak.into,
+              Math.abs(xcmsPeak.into) * RELATIVE_TOLERANCE);
+          Assert.assertEquals(peakMessage, xcmsPeak.maxo, javaPeak.maxo,
+              Math.abs(xcmsPeak.maxo) * RELATIVE_TOLERANCE);
+        }
+      }
+    }
+
+  }
+
+  /**
+   * The simulated peaks of chromatograms.csv must be found, independently of the reference output
+   */
+  @Test
+  public void testSimulatedPeaks() throws IOException {
+
+    final Map<Integer, Chromatogram> chromatograms = readChromatograms();
+
+    // Chromatogram and scan index of the apex of the simulated peaks
+    final int simulatedPeaks[][] = {{2, 180}, {2, 205}, {3, 100}, {3, 300}, {4, 250}, {5, 150}};
+
+    for (PeakIntegrationMethod method : PeakIntegrationMethod.values()) {
+      for (int simulatedPeak[] : simulatedPeaks) {
+        final Chromatogram chromatogram = chromatograms.get(simulatedPeak[0]);
+        final double apexRT = chromatogram.retentionTimes.get(simulatedPeak[1]);
+        boolean found = false;
+        for (PeakRow peak : findPeaks(chromatogram, method)) {
+          found |= (Math.abs(peak.rt / SECONDS_PER_MINUTE - apexRT) < 0.025)
+              && (peak.rtMin < peak.rt) && (peak.rt < peak.rtMax);
+        }
+        Assert.assertTrue("Peak at " + apexRT + " min of chromatogram " + simulatedPeak[0]
+            + " not found, " + method, found);
+      }
+    }
+
+  }
+
+  private static List<PeakRow> findPeaks(Chromatogram chromatogram,
+      PeakIntegrationMethod method) {
+
+    final double retentionTimes[] =
+        chromatogram.retentionTimes.stream().mapToDouble(Double::doubleValue).toArray();
+    final double intensities[] =
+        chromatogram.intensities.stream().mapToDouble(Double::doubleValue).toArray();
+
+    final CentWave centWave =
+        new CentWave(retentionTimes, intensities, PEAK_WIDTH, SN_THRESHOLD, method);
+    final List<PeakRow> peaks = new ArrayList<>();
+    for (CentWave.Peak peak : centWave.findPeaks()) {
+      peaks.add(new PeakRow(retentionTimes[peak.getApexScan()] * SECONDS_PER_MINUTE,
+          retentionTimes[peak.getFirstScan()] * SECONDS_PER_MINUTE,
+          retentionTimes[peak.getLastScan()] * SECONDS_PER_MINUTE, peak.getArea(),
+          peak.getMaxIntensity()));
+    }
+    return peaks;
+
+  }
+
+  /**
+   * Reads chromatograms.csv: chromatogram, scan, rt (minutes), intensity
+   */
+  private static Map<Integer, Chromatogram> readChromatograms() throws IOException {
+    final Map<Integer, Chromatogram> chromatograms = new TreeMap<>();
+    for (String values[] : readCSV(CHROMATOGRAMS_FILE)) {
+      final Chromatogram chromatogram =
+          chromatograms.computeIfAbsent(Integer.parseInt(values[0]), c -> new Chromatogram());
+      chromatogram.retentionTimes.add(Double.parseDouble(values[2]));
+      chromatogram.intensities.add(Double.parseDouble(values[3]));
+    }
+    return chromatograms;
+  }
+
+  /**
+   * Reads xcms_peaks.csv: chromatogram, integrate, rt, rtmin, rtmax (seconds), into, maxo
+   *
+   * @return peaks by chromatogram and integration method, e.g. "1/2"
+   */
+  private static Map<String, List<PeakRow>> readXcmsPeaks() throws IOException {
+    final Map<String, List<PeakRow>> peaks = new TreeMap<>();
+    for (String values[] : readCSV(XCMS_PEAKS_FILE)) {
+      final String key = Integer.parseInt(values[0]) + "/" + Integer.parseInt(values[1]);
+      peaks.computeIfAbsent(key, k -> new ArrayList<>())
+          .add(new PeakRow(Double.parseDouble(values[2]), Double.parseDouble(values[3]),
+              Double.parseDouble(values[4]), Double.parseDouble(values[5]),
+              Double.parseDouble(values[6])));
+    }
+    return peaks;
+  }
+
+  /**
+   * Returns the values of each line after the header, skipping comments
+   */
+  private static List<String[]> readCSV(File file) throws IOException {
+    final List<String[]> rows = new ArrayList<>();
+    boolean header = true;
+    for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+      if (line.startsWith("#") || line.trim().isEmpty())
+        continue;
+      if (header) {
+        header = false;
+        continue;
+      }
+      rows.add(line.replace("\"", "").split(","));
+    }
+    return rows;
+  }
+
+}
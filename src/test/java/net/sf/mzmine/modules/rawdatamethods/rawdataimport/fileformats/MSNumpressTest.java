@@ -0,0 +1,97 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Decodes MS-Numpress reference vectors. The vectors were encoded by numpress_vectors.py in
+ * src/test/resources/numpress, a port of the encoders of the reference implementation
+ * (https://github.com/ms-numpress/ms-numpress).
+ */
+public class MSNumpressTest {
+
+  // m/z values {100.0, 100.0012, 100.0025, 250.5, 250.5001, 251.75, 120.125} with fixed point
+  // 100000. The last residual is negative, and the last byte is padded with a zero half byte.
+  private static final byte LINEAR[] = {64, -8, 106, 0, 0, 0, 0, 0, -128, -106, -104, 0, -8, -106,
+      -104, 0, 122, 36, -109, -91, -22, 79, -75, -95, 52, 56, -31, -82, -65, 53, 48};
+  private static final long LINEAR_VALUES[] =
+      {10000000, 10000120, 10000250, 25050000, 25050010, 25175000, 12012500};
+  private static final double LINEAR_FIXED_POINT = 100000.0;
+
+  // Intensities {0, 1, 12.5, 1000, 123456.7, 5e6} with fixed point 3000
+  private static final byte SLOF[] =
+      {64, -89, 112, 0, 0, 0, 0, 0, 0, 0, 31, 8, -128, 30, -10, 80, 99, -119, -61, -76};
+  private static final int SLOF_VALUES[] = {0, 2079, 7808, 20726, 35171, 46275};
+  private static final double SLOF_FIXED_POINT = 3000.0;
+
+  // Ion counts with an odd number of half bytes (the last byte is padded), and with an even number
+  private static final byte PIC[] = {-121, 23, -10, 1, 111, -12, 0, 1, 48, 113, 17, 15, -1, -1, -1,
+      119, 48};
+  private static final double PIC_VALUES[] = {0, 1, 15, 16, 255, 4096, 70000, 2147483647, 3};
+  private static final byte PIC_EVEN[] = {119, 92, 33};
+  private static final double PIC_EVEN_VALUES[] = {7, 300};
+
+  @Test
+  public void testLinear() throws DataFormatException {
+    final double values[] = MSNumpress.decodeLinear(LINEAR);
+    Assert.assertEquals(LINEAR_VALUES.length, values.length);
+    for (int i = 0; i < values.length; i++)
+      Assert.assertEquals(LINEAR_VALUES[i] / LINEAR_FIXED_POINT, values[i], 0.0);
+  }
+
+  @Test
+  public void testLinearShortArrays() throws DataFormatException {
+    // Only the fixed point, then one and two values without residuals
+    Assert.assertEquals(0, MSNumpress.decodeLinear(Arrays.copyOf(LINEAR, 8)).length);
+    Assert.assertArrayEquals(new double[] {100.0},
+        MSNumpress.decodeLinear(Arrays.copyOf(LINEAR, 12)), 0.0);
+    Assert.assertArrayEquals(new double[] {100.0, 100.0012},
+        MSNumpress.decodeLinear(Arrays.copyOf(LINEAR, 16)), 0.0);
+  }
+
+  @Test(expected = DataFormatException.class)
+  public void testLinearCorrupt() throws DataFormatException {
+    MSNumpress.decodeLinear(Arrays.copyOf(LINEAR, 10));
+  }
+
+  @Test
+  public void testSlof() throws DataFormatException {
+    final double values[] = MSNumpress.decodeSlof(SLOF);
+    Assert.assertEquals(SLOF_VALUES.length, values.length);
+    for (int i = 0; i < values.length; i++)
+      Assert.assertEquals(Math.exp(SLOF_VALUES[i] / SLOF_FIXED_POINT) - 1, values[i], 0.0);
+    // The values are rounded to the fixed point in log space
+    final double original[] = {0, 1, 12.5, 1000, 123456.7, 5e6};
+    for (int i = 0; i < values.length; i++)
+      Assert.assertEquals(original[i], values[i], (original[i] + 1) / SLOF_FIXED_POINT);
+  }
+
+  @Test
+  public void testPic() throws DataFormatException {
+    Assert.assertArrayEquals(PIC_VALUES, MSNumpress.decodePic(PIC), 0.0);
+    Assert.assertArrayEquals(PIC_EVEN_VALUES, MSNumpress.decodePic(PIC_EVEN), 0.0);
+    Assert.assertEquals(0, MSNumpress.decodePic(new byte[0]).length);
+  }
+
+}
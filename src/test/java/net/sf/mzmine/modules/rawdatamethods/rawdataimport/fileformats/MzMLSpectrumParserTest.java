@@ -0,0 +1,260 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzMLSpectrum.BinaryDataArray;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzMLSpectrum.Compression;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzMLSpectrum.Precision;
+
+/**
+ * Decodes binary data arrays of all supported precisions and compressions, and parses spectra
+ * whose parameters are given by referenceableParamGroup elements
+ */
+public class MzMLSpectrumParserTest {
+
+  private static final double MZ_VALUES[] = {100.0, 100.0012, 100.0025, 250.5, 250.5001, 251.75};
+  private static final double INTENSITIES[] = {0, 1, 12.5, 1000, 123456.75, 5e6};
+
+  private static byte[] toBytes(double values[], Precision precision) {
+    final int size = (precision == Precision.FLOAT32 || precision == Precision.INT32) ? 4 : 8;
+    ByteBuffer buffer = ByteBuffer.allocate(values.length * size).order(ByteOrder.LITTLE_ENDIAN);
+    for (double value : values) {
+      switch (precision) {
+        case FLOAT32:
+          buffer.putFloat((float) value);
+          break;
+        case FLOAT64:
+          buffer.putDouble(value);
+          break;
+        case INT32:
+          buffer.putInt((int) value);
+          break;
+        case INT64:
+          buffer.putLong((long) value);
+          break;
+      }
+    }
+    return buffer.array();
+  }
+
+  private static byte[] zlib(byte data[]) {
+    Deflater deflater = new Deflater();
+    deflater.setInput(data);
+    deflater.finish();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte buffer[] = new byte[1024];
+    while (!deflater.finished())
+      out.write(buffer, 0, deflater.deflate(buffer));
+    deflater.end();
+    return out.toByteArray();
+  }
+
+  private static String base64(byte data[]) {
+    return Base64.getEncoder().encodeToString(data);
+  }
+
+  private static double[] decode(byte data[], Precision precision, Compression compression,
+      int defaultArrayLength) throws DataFormatException {
+    BinaryDataArray array = new BinaryDataArray();
+    array.precision = precision;
+    array.compression = compression;
+    array.encoded = base64(data).getBytes(StandardCharsets.US_ASCII);
+    return array.decode(defaultArrayLength);
+  }
+
+  @Test
+  public void testFloatArrays() throws DataFormatException {
+    Assert.assertArrayEquals(MZ_VALUES,
+        decode(toBytes(MZ_VALUES, Precision.FLOAT64), Precision.FLOAT64, Compression.NONE, 6),
+        0.0);
+
+    final double values[] =
+        decode(toBytes(MZ_VALUES, Precision.FLOAT32), Precision.FLOAT32, Compression.NONE, 6);
+    Assert.assertEquals(MZ_VALUES.length, values.length);
+    for (int i = 0; i < values.length; i++)
+      Assert.assertEquals((float) MZ_VALUES[i], values[i], 0.0);
+  }
+
+  @Test
+  public void testIntegerArrays() throws DataFormatException {
+    final double counts[] = {0, 1, 255, 70000, -3};
+    Assert.assertArrayEquals(counts,
+        decode(toBytes(counts, Precision.INT32), Precision.INT32, Compression.NONE, 5), 0.0);
+    final double longCounts[] = {0, 1L << 40, -3};
+    Assert.assertArrayEquals(longCounts,
+        decode(toBytes(longCounts, Precision.INT64), Precision.INT64, Compression.NONE, 3), 0.0);
+  }
+
+  @Test
+  public void testZlib() throws DataFormatException {
+    Assert.assertArrayEquals(MZ_VALUES, decode(zlib(toBytes(MZ_VALUES, Precision.FLOAT64)),
+        Precision.FLOAT64, Compression.ZLIB, 6), 0.0);
+    Assert.assertArrayEquals(INTENSITIES, decode(zlib(toBytes(INTENSITIES, Precision.FLOAT32)),
+        Precision.FLOAT32, Compression.ZLIB, 6), 0.0);
+    // The default array length is only the expected length, not a limit
+    Assert.assertArrayEquals(MZ_VALUES, decode(zlib(toBytes(MZ_VALUES, Precision.FLOAT64)),
+        Precision.FLOAT64, Compression.ZLIB, 2), 0.0);
+    Assert.assertEquals(0,
+        decode(zlib(new byte[0]), Precision.FLOAT64, Compression.ZLIB, 0).length);
+  }
+
+  @Test
+  public void testNumpressWithZlib() throws DataFormatException {
+    // The linear and pic vectors of MSNumpressTest, the precision does not apply to numpress
+    final byte linear[] = {64, -8, 106, 0, 0, 0, 0, 0, -128, -106, -104, 0, -8, -106, -104, 0,
+        122, 36, -109, -91, -22, 79, -75, -95, 52, 56, -31, -82, -65, 53, 48};
+    final double linearValues[] = MSNumpress.decodeLinear(linear);
+    Assert.assertArrayEquals(linearValues,
+        decode(linear, Precision.FLOAT32, Compression.NUMPRESS_LINEAR, 7), 0.0);
+    Assert.assertArrayEquals(linearValues,
+        decode(zlib(linear), Precision.FLOAT32, Compression.NUMPRESS_LINEAR_ZLIB, 7), 0.0);
+
+    final byte pic[] = {119, 92, 33};
+    Assert.assertArrayEquals(new double[] {7, 300},
+        decode(zlib(pic), Precision.FLOAT64, Compression.NUMPRESS_PIC_ZLIB, 2), 0.0);
+  }
+
+  /**
+   * The groups set the array types, precisions and compressions of the binary data arrays and the
+   * MS level and polarity of the spectrum. The parameters of the spectrum itself come first.
+   */
+  @Test
+  public void testReferenceableParamGroups() throws XMLStreamException, DataFormatException {
+
+    final String mzArray = base64(zlib(toBytes(MZ_VALUES, Precision.FLOAT64)));
+    final String intensityArray = base64(toBytes(INTENSITIES, Precision.FLOAT32));
+    // Base64 text may be broken into lines
+    final String wrappedIntensityArray =
+        intensityArray.substring(0, 10) + "\n   " + intensityArray.substring(10);
+
+    final String mzML = "<mzML xmlns=\"http://psi.hupo.org/ms/mzml\">\n"
+        + "<referenceableParamGroupList count=\"3\">\n"
+        + " <referenceableParamGroup id=\"ms2\">\n"
+        + "  <cvParam cvRef=\"MS\" accession=\"MS:1000511\" name=\"ms level\" value=\"2\"/>\n"
+        + "  <cvParam cvRef=\"MS\" accession=\"MS:1000130\" name=\"positive scan\"/>\n"
+        + " </referenceableParamGroup>\n"
+        + " <referenceableParamGroup id=\"mzArray\">\n"
+        + "  <cvParam cvRef=\"MS\" accession=\"MS:1000514\" name=\"m/z array\"/>\n"
+        + "  <cvParam cvRef=\"MS\" accession=\"MS:1000523\" name=\"64-bit float\"/>\n"
+        + "  <cvParam cvRef=\"MS\" accession=\"MS:1000574\" name=\"zlib compression\"/>\n"
+        + " </referenceableParamGroup>\n"
+        + " <referenceableParamGroup id=\"intensityArray\">\n"
+        + "  <cvParam cvRef=\"MS\" accession=\"MS:1000515\" name=\"intensity array\"/>\n"
+        + "  <cvParam cvRef=\"MS\" accession=\"MS:1000521\" name=\"32-bit float\"/>\n"
+        + "  <cvParam cvRef=\"MS\" accession=\"MS:1000576\" name=\"no compression\"/>\n"
+        + " </referenceableParamGroup>\n"
+        + "</referenceableParamGroupList>\n"
+        + "<run id=\"run\"><spectrumList count=\"2\">\n"
+        // MS level and polarity from the group, m/z and intensity arrays in reverse order
+        + "<spectrum index=\"0\" id=\"scan=1\" defaultArrayLength=\"6\">\n"
+        + " <referenceableParamGroupRef ref=\"ms2\"/>\n"
+        + " <scanList count=\"1\"><scan>\n"
+        + "  <cvParam cvRef=\"MS\" accession=\"MS:1000016\" name=\"scan start time\""
+        + " value=\"90\" unitCvRef=\"UO\" unitAccession=\"UO:0000010\" unitName=\"second\"/>\n"
+        + " </scan></scanList>\n"
+        + " <precursorList count=\"1\"><precursor spectrumRef=\"scan=0\">\n"
+        + "  <selectedIonList count=\"1\"><selectedIon>\n"
+        + "   <cvParam cvRef=\"MS\" accession=\"MS:1000744\" name=\"selected ion m/z\""
+        + " value=\"445.12\"/>\n"
+        + "   <cvParam cvRef=\"MS\" accession=\"MS:1000041\" name=\"charge state\" value=\"2\"/>\n"
+        + "  </selectedIon></selectedIonList>\n"
+        + " </precursor></precursorList>\n"
+        + " <binaryDataArrayList count=\"2\">\n"
+        + "  <binaryDataArray encodedLength=\"" + intensityArray.length() + "\">\n"
+        + "   <referenceableParamGroupRef ref=\"intensityArray\"/>\n"
+        + "   <binary>" + wrappedIntensityArray + "</binary>\n"
+        + "  </binaryDataArray>\n"
+        + "  <binaryDataArray encodedLength=\"" + mzArray.length() + "\">\n"
+        + "   <referenceableParamGroupRef ref=\"mzArray\"/>\n"
+        + "   <binary>" + mzArray + "</binary>\n"
+        + "  </binaryDataArray>\n"
+        + " </binaryDataArrayList>\n"
+        + "</spectrum>\n"
+        // The MS level of the spectrum comes before the one of the group
+        + "<spectrum index=\"1\" id=\"scan=2\" defaultArrayLength=\"0\">\n"
+        + " <cvParam cvRef=\"MS\" accession=\"MS:1000511\" name=\"ms level\" value=\"1\"/>\n"
+        + " <referenceableParamGroupRef ref=\"ms2\"/>\n"
+        + " <referenceableParamGroupRef ref=\"unknown\"/>\n"
+        + "</spectrum>\n"
+        + "</spectrumList></run></mzML>\n";
+
+    final List<MzMLSpectrum> spectra = parse(mzML);
+    Assert.assertEquals(2, spectra.size());
+
+    final MzMLSpectrum spectrum = spectra.get(0);
+    Assert.assertEquals("scan=1", spectrum.getId());
+    Assert.assertEquals(2, spectrum.getMSLevel());
+    Assert.assertEquals(PolarityType.POSITIVE, spectrum.getPolarity());
+    Assert.assertEquals(1.5, spectrum.getRetentionTime(), 0.0);
+    Assert.assertEquals("scan=0", spectrum.getPrecursorSpectrumRef());
+    Assert.assertEquals(445.12, spectrum.getPrecursorMz(), 0.0);
+    Assert.assertEquals(2, spectrum.getPrecursorCharge());
+
+    final DataPoint dataPoints[] = spectrum.decodeDataPoints();
+    Assert.assertEquals(MZ_VALUES.length, dataPoints.length);
+    for (int i = 0; i < dataPoints.length; i++) {
+      Assert.assertEquals(MZ_VALUES[i], dataPoints[i].getMZ(), 0.0);
+      Assert.assertEquals(INTENSITIES[i], dataPoints[i].getIntensity(), 0.0);
+    }
+
+    final MzMLSpectrum ms1Spectrum = spectra.get(1);
+    Assert.assertEquals(1, ms1Spectrum.getMSLevel());
+    Assert.assertEquals(PolarityType.POSITIVE, ms1Spectrum.getPolarity());
+    Assert.assertEquals(0, ms1Spectrum.decodeDataPoints().length);
+  }
+
+  private static List<MzMLSpectrum> parse(String mzML) throws XMLStreamException {
+    final MzMLSpectrumParser parser = new MzMLSpectrumParser();
+    final List<MzMLSpectrum> spectra = new ArrayList<>();
+    final XMLStreamReader reader =
+        XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(mzML));
+    while (reader.hasNext()) {
+      if (reader.next() != XMLStreamConstants.START_ELEMENT)
+        continue;
+      if (reader.getLocalName().equals("referenceableParamGroup"))
+        parser.readReferenceableParamGroup(reader);
+      else if (reader.getLocalName().equals("spectrum"))
+        spectra.add(parser.readSpectrum(reader));
+    }
+    reader.close();
+    return spectra;
+  }
+
+}
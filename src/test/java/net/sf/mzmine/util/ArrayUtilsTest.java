@@ -0,0 +1,76 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+
+package net.sf.mzmine.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ArrayUtilsTest {
+
+  /**
+   * Test the sortIndexes() method against a sort of boxed indexes, using values with many ties, NaN
+   * and both zeros
+   */
+  @Test
+  public void testSortIndexes() {
+
+    Random random = new Random(42);
+    final double specialValues[] = {Double.NaN, 0.0, -0.0, Double.NEGATIVE_INFINITY};
+
+    for (int size : new int[] {0, 1, 2, 17, 100, 5000}) {
+
+      double values[] = new double[size + 3];
+      for (int i = 0; i < size; i++) {
+        values[i] = (random.nextInt(10) == 0) ? specialValues[random.nextInt(4)]
+            : random.nextInt(size / 4 + 1) * 0.5;
+      }
+      final double original[] = values.clone();
+
+      int indexes[] = new int[size + 3];
+      for (int i = 0; i < indexes.length; i++)
+        indexes[i] = i;
+      ArrayUtils.sortIndexes(values, indexes, size);
+
+      Integer expected[] = new Integer[size];
+      for (int i = 0; i < size; i++)
+        expected[i] = i;
+      Arrays.sort(expected, Comparator.<Integer>comparingDouble(i -> original[i])
+          .thenComparingInt(i -> i));
+
+      for (int i = 0; i < size; i++) {
+        Assert.assertEquals(expected[i].intValue(), indexes[i]);
+        Assert.assertEquals(Double.doubleToLongBits(original[expected[i]]),
+            Double.doubleToLongBits(values[i]));
+      }
+
+      // Values past the given size are left untouched
+      for (int i = size; i < values.length; i++) {
+        Assert.assertEquals(i, indexes[i]);
+        Assert.assertEquals(Double.doubleToLongBits(original[i]),
+            Double.doubleToLongBits(values[i]));
+      }
+    }
+  }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.util.spectraldb.parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.util.spectraldb.entry.DBEntryField;
+import net.sf.mzmine.util.spectraldb.entry.SpectralDBEntry;
+
+/**
+ * Writes the cache of a library and reads it back, and checks that the cache is not used after the
+ * library file changed and that entries can be kept after closing the cache
+ */
+public class SpectralDBCacheFileTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static List<SpectralDBEntry> createEntries() {
+    final List<SpectralDBEntry> entries = new ArrayList<>();
+    // The precursor m/z values are not in order, and one entry has none
+    final Double precursorMZ[] = {301.5, 120.25, null, 85.125, 301.5};
+    for (int i = 0; i < precursorMZ.length; i++) {
+      Map<DBEntryField, Object> fields = new EnumMap<>(DBEntryField.class);
+      fields.put(DBEntryField.NAME, "Compound " + i);
+      fields.put(DBEntryField.ENTRY_ID, "ID" + i);
+      if (precursorMZ[i] != null)
+        fields.put(DBEntryField.MZ, precursorMZ[i]);
+      fields.put(DBEntryField.RT, 1.5 * i);
+      fields.put(DBEntryField.CHARGE, i - 2);
+      fields.put(DBEntryField.EXACT_MASS, new BigDecimal("100.0000" + i));
+
+      // The third entry has no data points
+      DataPoint dataPoints[] = new DataPoint[(i == 2) ? 0 : (10 + i)];
+      for (int j = 0; j < dataPoints.length; j++)
+        dataPoints[j] = new SimpleDataPoint(50.0 + j * 10.1 + i, 1000.0 * (j + 1) / (i + 1));
+      entries.add(new SpectralDBEntry(fields, dataPoints));
+    }
+    return entries;
+  }
+
+  private File createLibraryFile() throws IOException {
+    File libraryFile = folder.newFile("library.msp");
+    Files.write(libraryFile.toPath(), "NAME: test\n".getBytes(StandardCharsets.UTF_8));
+    return libraryFile;
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    final File libraryFile = createLibraryFile();
+    final List<SpectralDBEntry> entries = createEntries();
+
+    SpectralDBCacheFile.write(libraryFile, entries, true);
+    Assert.assertTrue(SpectralDBCacheFile.getCacheFile(libraryFile, true).isFile());
+
+    SpectralDBCacheFile cache = SpectralDBCacheFile.open(libraryFile, true);
+    Assert.assertNotNull(cache);
+    Assert.assertEquals(entries.size(), cache.getEntries().size());
+
+    for (int i = 0; i < entries.size(); i++) {
+      SpectralDBEntry expected = entries.get(i), actual = cache.getEntries().get(i);
+      Assert.assertEquals(expected.getPrecursorMZ(), actual.getPrecursorMZ());
+      for (DBEntryField field : DBEntryField.values())
+        Assert.assertEquals(field.toString(), expected.getField(field), actual.getField(field));
+
+      DataPoint expectedDataPoints[] = expected.getDataPoints();
+      DataPoint actualDataPoints[] = actual.getDataPoints();
+      Assert.assertEquals(expectedDataPoints.length, actualDataPoints.length);
+      for (int j = 0; j < expectedDataPoints.length; j++) {
+        Assert.assertEquals(expectedDataPoints[j].getMZ(), actualDataPoints[j].getMZ(), 0.0);
+        Assert.assertEquals(expectedDataPoints[j].getIntensity(),
+            actualDataPoints[j].getIntensity(), 0.0);
+      }
+    }
+
+    Assert.assertArrayEquals(new double[] {85.125, 120.25, 301.5, 301.5},
+        cache.getSortedPrecursorMZ(), 0.0);
+    final int sortedPositions[] = cache.getSortedPositions();
+    Assert.assertEquals(3, sortedPositions[0]);
+    Assert.assertEquals(1, sortedPositions[1]);
+    // Equal precursor m/z values may be in either order
+    Assert.assertEquals(0, Math.min(sortedPositions[2], sortedPositions[3]));
+    Assert.assertEquals(4, Math.max(sortedPositions[2], sortedPositions[3]));
+  }
+
+  @Test
+  public void testInvalidation() throws IOException {
+    final File libraryFile = createLibraryFile();
+    SpectralDBCacheFile.write(libraryFile, createEntries(), true);
+    Assert.assertNotNull(SpectralDBCacheFile.open(libraryFile, true));
+
+    // Other modification time, the outdated cache is deleted
+    Assert.assertTrue(libraryFile.setLastModified(libraryFile.lastModified() - 60000));
+    Assert.assertNull(SpectralDBCacheFile.open(libraryFile, true));
+    Assert.assertFalse(SpectralDBCacheFile.getCacheFile(libraryFile, true).exists());
+
+    // Other length, with the modification time of the cache
+    SpectralDBCacheFile.write(libraryFile, createEntries(), true);
+    final long lastModified = libraryFile.lastModified();
+    Files.write(libraryFile.toPath(), "NAME: other\n".getBytes(StandardCharsets.UTF_8),
+        StandardOpenOption.APPEND);
+    Assert.assertTrue(libraryFile.setLastModified(lastModified));
+    Assert.assertNull(SpectralDBCacheFile.open(libraryFile, true));
+    Assert.assertFalse(SpectralDBCacheFile.getCacheFile(libraryFile, true).exists());
+  }
+
+  @Test
+  public void testClose() throws IOException {
+    final File libraryFile = createLibraryFile();
+    final List<SpectralDBEntry> entries = createEntries();
+    SpectralDBCacheFile.write(libraryFile, entries, true);
+    SpectralDBCacheFile cache = SpectralDBCacheFile.open(libraryFile, true);
+    Assert.assertNotNull(cache);
+
+    SpectralDBEntry cachedEntry = cache.getEntries().get(1);
+    SpectralDBEntry detachedEntry = SpectralDBCacheFile.detach(cachedEntry);
+    Assert.assertSame(entries.get(1), SpectralDBCacheFile.detach(entries.get(1)));
+    cache.close();
+
+    // Detached entries are still complete, the other entries of the cache can not be read
+    Assert.assertEquals(entries.get(1).getField(DBEntryField.NAME),
+        detachedEntry.getField(DBEntryField.NAME));
+    Assert.assertEquals(entries.get(1).getDataPoints().length,
+        detachedEntry.getDataPoints().length);
+    try {
+      cache.getEntries().get(0).getDataPoints();
+      Assert.fail("Read an entry of a closed cache");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testCacheLocation() throws IOException {
+    final File libraryFile = createLibraryFile();
+
+    // By default the cache is not written next to the library
+    File cacheFile = SpectralDBCacheFile.getCacheFile(libraryFile, false);
+    Assert.assertEquals(new File(System.getProperty("java.io.tmpdir")).getAbsoluteFile(),
+        cacheFile.getParentFile().getAbsoluteFile());
+
+    cacheFile = SpectralDBCacheFile.getCacheFile(libraryFile, true);
+    Assert.assertEquals(new File(folder.getRoot(), "library.msp.mzlib"), cacheFile);
+  }
+
+}
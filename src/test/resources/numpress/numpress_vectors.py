@@ -0,0 +1,89 @@
+# Generates the MS-Numpress reference vectors of MSNumpressTest.
+#
+# The encoders are a port of encodeLinear, encodeSlof, encodePic and encodeInt of the reference
+# implementation (MSNumpress.cpp, https://github.com/ms-numpress/ms-numpress), independent of the
+# Java decoder. Prints the encoded bytes as Java arrays, and the fixed point integers the decoded
+# values must equal:
+#
+#   python3 numpress_vectors.py
+
+import math, struct
+
+def fixed_point(fp):
+    return list(struct.pack('>d', fp))
+
+def encode_int(x):
+    x &= 0xffffffff
+    mask = 0xf0000000
+    init = x & mask
+    if init == 0:
+        l = 8
+        for i in range(8):
+            if x & (mask >> (4 * i)):
+                l = i; break
+        res = [l]
+    elif init == mask:
+        l = 7
+        for i in range(8):
+            m = mask >> (4 * i)
+            if (x & m) != m:
+                l = i; break
+        res = [l + 8]
+    else:
+        return [0] + [(x >> (4 * i)) & 0xf for i in range(8)]
+    for i in range(l, 8):
+        res.append((x >> (4 * (i - l))) & 0xf)
+    return res
+
+def pack(half):
+    out = []
+    for i in range(0, len(half) - 1, 2):
+        out.append((half[i] << 4) | (half[i + 1] & 0xf))
+    if len(half) % 2:
+        out.append(half[-1] << 4)
+    return out
+
+def le32(v):
+    return [(v >> (8 * i)) & 0xff for i in range(4)]
+
+def encode_linear(data, fp):
+    out = fixed_point(fp)
+    if not data: return out
+    ints = [int(d * fp + 0.5) for d in data]
+    out += le32(ints[0])
+    if len(data) == 1: return out
+    out += le32(ints[1])
+    half = []
+    for i in range(2, len(data)):
+        diff = ints[i] - (2 * ints[i - 1] - ints[i - 2])
+        half += encode_int(diff)
+    return out + pack(half)
+
+def encode_slof(data, fp):
+    out = fixed_point(fp)
+    for d in data:
+        x = int(math.log(d + 1) * fp + 0.5) & 0xffff
+        out += [x & 0xff, x >> 8]
+    return out
+
+def encode_pic(data):
+    half = []
+    for d in data:
+        half += encode_int(int(d + 0.5))
+    return pack(half)
+
+def java(name, b):
+    vals = ', '.join(str(v - 256 if v > 127 else v) for v in b)
+    return name + ' = {' + vals + '}'
+
+mz = [100.0, 100.0012, 100.0025, 250.5, 250.5001, 251.75, 120.125]
+lin = encode_linear(mz, 100000.0)
+print(java('LINEAR', lin))
+print('linear ints', [int(d * 100000.0 + 0.5) for d in mz])
+inten = [0.0, 1.0, 12.5, 1000.0, 123456.7, 5.0e6]
+fp_slof = 3000.0
+print(java('SLOF', encode_slof(inten, fp_slof)))
+print('slof ints', [int(math.log(d + 1) * fp_slof + 0.5) for d in inten])
+counts = [0, 1, 15, 16, 255, 4096, 70000, 2147483647, 3]
+print(java('PIC', encode_pic(counts)))
+print(java('PIC_EVEN', encode_pic([7, 300])))